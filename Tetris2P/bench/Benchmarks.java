@@ -0,0 +1,63 @@
+package Tetris2P;
+
+import java.io.File;
+
+/**
+ * Runs every benchmark suite: the engine, the codecs, the matchmaker and the fan-out of board
+ * updates, then compares the results with the baseline checked in next to the benchmarks,
+ * flagging those more than 25% slower. With {@code --write}, the results replace the
+ * baseline instead, to be checked in with the change that moved them.
+ * <p>
+ * The baseline only means something on the machine it was measured on, which its header
+ * names: to review a change, measure the baseline and the change on the same machine.
+ * Run from the project's directory with
+ * {@code java Tetris2P.Benchmarks [baseline file] [--write]}; the exit status is the number of
+ * benchmarks flagged.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class Benchmarks
+{
+	/**
+	 * The baseline, from the project's directory.
+	 */
+	private static final String BASELINE = "bench/baseline.txt";
+
+	/**
+	 * The share of slowdown tolerated before a benchmark is flagged. Two runs on the same
+	 * shared machine can differ by 20% without any change, mostly in the codecs and matchmaker,
+	 * which allocate the most.
+	 */
+	private static final double THRESHOLD = 0.25;
+
+	public static void main(String[] args) throws Exception
+	{
+		String baseline = BASELINE;
+		boolean write = false;
+		for (String arg : args)
+		{
+			if (arg.equals("--write"))
+				write = true;
+			else
+				baseline = arg;
+		}
+
+		Microbench bench = new Microbench();
+		EngineBenchmark.run(bench);
+		CodecBenchmark.run(bench);
+		MatchmakingBenchmark.run(bench);
+		FanOutBenchmark.run(bench);
+		System.out.println("(sink " + bench.getSink() + ")");
+
+		if (write)
+		{
+			bench.write(baseline);
+			System.out.println("Baseline written to " + baseline);
+		}
+		else if (new File(baseline).exists())
+			System.exit(bench.compare(baseline, THRESHOLD));
+		else
+			System.out.println("No baseline at " + baseline + "; run with --write to record one.");
+	}
+}
@@ -0,0 +1,216 @@
+package Tetris2P;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import ocsf.common.Ping;
+import ocsf.common.SharedFrame;
+import Tetris2P.Engine.Input;
+
+/**
+ * Measures what the messages of a match cost to encode and decode: a board update, the
+ * inputs sent on their own between two boards, a ping, and the {@code SharedFrame} a board is
+ * encoded into once for many recipients.
+ * <p>
+ * A {@code connection} benchmark writes to one long-lived object stream, as a connection does,
+ * so class descriptors are only written once per stream; the stream is recreated every
+ * {@code MESSAGES_PER_STREAM} messages so that its handle table stays small. Each message it
+ * writes is a distinct copy, as a back reference to a message already written would cost
+ * next to nothing. An {@code encode}
+ * benchmark writes each message to a new stream, as {@code SharedFrame} does. The size of each
+ * message is printed before the timings.
+ * Run with {@code java Tetris2P.CodecBenchmark}, or with the other suites in {@code Benchmarks}.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class CodecBenchmark
+{
+	/**
+	 * Messages written to a connection's stream before it is recreated.
+	 */
+	private static final int MESSAGES_PER_STREAM = 200;
+
+	public static void main(String[] args) throws Exception
+	{
+		Microbench bench = new Microbench();
+		run(bench);
+		System.out.println("(sink " + bench.getSink() + ")");
+	}
+
+	/**
+	 * Measures every codec.
+	 */
+	public static void run(Microbench bench) throws Exception
+	{
+		final Updater board = boardUpdate();
+		final Updater inputs = inputsUpdate();
+		final byte[] boardBytes = encode(board);
+		final SharedFrame frame = SharedFrame.encode(board, "Player1");
+
+		System.out.println("board update " + boardBytes.length + " bytes alone, " + frame.size() + " in a frame; inputs "
+			+ encode(inputs).length + " bytes alone; ping " + encode(Ping.request()).length + " bytes alone");
+
+		bench.measure("codec.board.connection", connection(copies(board)));
+		bench.measure("codec.inputs.connection", connection(copies(inputs)));
+		Object[] pings = new Object[MESSAGES_PER_STREAM];
+		for (int i = 0; i < pings.length; i++)
+			pings[i] = Ping.request();
+		bench.measure("codec.ping.connection", connection(pings));
+
+		bench.measure("codec.board.encode", new Microbench.Op()
+		{
+			public long run(int times) throws IOException
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+					sum += encode(board).length;
+				return sum;
+			}
+		});
+
+		bench.measure("codec.board.decode", new Microbench.Op()
+		{
+			public long run(int times) throws Exception
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+				{
+					ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(boardBytes));
+					sum += ((Updater) in.readObject()).newBoard.length;
+				}
+				return sum;
+			}
+		});
+
+		bench.measure("codec.frame.encode", new Microbench.Op()
+		{
+			public long run(int times) throws IOException
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+					sum += SharedFrame.encode(board, "Player1").size();
+				return sum;
+			}
+		});
+
+		bench.measure("codec.frame.decode", new Microbench.Op()
+		{
+			public long run(int times) throws Exception
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+					sum += ((Updater) frame.decode()).newBoard.length;
+				return sum;
+			}
+		});
+	}
+
+	/**
+	 * @param messages the messages, one per message written to a stream.
+	 * @return an operation writing the messages to a long-lived stream that discards its bytes.
+	 */
+	private static Microbench.Op connection(final Object[] messages)
+	{
+		return new Microbench.Op()
+		{
+			private ObjectOutputStream out;
+			private int written;
+			private long bytes;
+
+			public long run(int times) throws IOException
+			{
+				for (int i = 0; i < times; i++)
+				{
+					if (written++ % MESSAGES_PER_STREAM == 0)
+					{
+						out = new ObjectOutputStream(new OutputStream()
+						{
+							public void write(int b)
+							{
+								bytes++;
+							}
+
+							public void write(byte[] b, int off, int len)
+							{
+								bytes += len;
+							}
+						});
+					}
+					out.writeObject(messages[(written - 1) % MESSAGES_PER_STREAM]);
+					out.flush();
+				}
+				return bytes;
+			}
+		};
+	}
+
+	/**
+	 * @return distinct copies of a message, one per message written to a stream.
+	 */
+	private static Object[] copies(Object message) throws Exception
+	{
+		byte[] bytes = encode(message);
+		Object[] copies = new Object[MESSAGES_PER_STREAM];
+		for (int i = 0; i < copies.length; i++)
+			copies[i] = new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+		return copies;
+	}
+
+	/**
+	 * @return a message serialized alone.
+	 */
+	private static byte[] encode(Object message) throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+		ObjectOutputStream out = new ObjectOutputStream(buffer);
+		out.writeObject(message);
+		out.close();
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * @return the board sent after a piece is locked in the middle of a game, with its inputs.
+	 */
+	private static Updater boardUpdate()
+	{
+		Random bot = new Random(7);
+		Engine engine = new Engine(7);
+
+		engine.setRecording(true);
+		for (int piece = 0; piece < 20; piece++)
+		{
+			for (int i = bot.nextInt(6); i > 0; i--)
+				engine.apply(Input.values()[1 + bot.nextInt(3)]);
+			if ((engine.apply(Input.DROP) & Engine.CLEARED) != 0)
+				engine.apply(Input.TICK);
+			if (piece < 19)
+				engine.takeInputs();
+		}
+		Updater update = engine.snapshot();
+		update.sender = "Player1";
+		return update;
+	}
+
+	/**
+	 * @return a few keys sent on their own before the piece is locked.
+	 */
+	private static Updater inputsUpdate()
+	{
+		Engine engine = new Engine(7);
+
+		engine.setRecording(true);
+		engine.apply(Input.LEFT);
+		engine.apply(Input.ROTATE);
+		engine.apply(Input.TICK);
+		engine.apply(Input.LEFT);
+		Updater update = engine.takeInputs();
+		update.sender = "Player1";
+		return update;
+	}
+}
@@ -0,0 +1,251 @@
+package Tetris2P;
+
+import Tetris2P.Engine.Input;
+import Tetris2P.Shape.Tetromino;
+
+/**
+ * Measures the game operations every client and the server's referees run for each input:
+ * moving, turning, gravity, hard drops, line clears and snapshots on the headless
+ * {@code Engine}, which {@code Board} plays through, and making and turning a {@code Shape}.
+ * <p>
+ * A line clear is measured by restoring a game saved just before a drop that clears a line,
+ * then dropping; {@code engine.restore} measures the restore alone, to be taken off.
+ * Run with {@code java Tetris2P.EngineBenchmark}, or with the other suites in
+ * {@code Benchmarks}.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class EngineBenchmark
+{
+	/**
+	 * The seed of every game played.
+	 */
+	private static final long SEED = 42;
+
+	public static void main(String[] args) throws Exception
+	{
+		Microbench bench = new Microbench();
+		run(bench);
+		System.out.println("(sink " + bench.getSink() + ")");
+	}
+
+	/**
+	 * Measures every operation.
+	 */
+	public static void run(Microbench bench) throws Exception
+	{
+		final Engine moving = new Engine(SEED);
+		moving.apply(Input.TICK);
+		bench.measure("engine.move", new Microbench.Op()
+		{
+			public long run(int times)
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+					sum += moving.apply((i & 1) == 0 ? Input.LEFT : Input.RIGHT);
+				return sum;
+			}
+		});
+
+		bench.measure("engine.rotate", new Microbench.Op()
+		{
+			public long run(int times)
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+					sum += moving.apply(Input.ROTATE);
+				return sum;
+			}
+		});
+
+		final Engine falling = new Engine(SEED);
+		bench.measure("engine.tick", new Microbench.Op()
+		{
+			public long run(int times)
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+				{
+					sum += falling.apply(Input.TICK);
+					if (falling.isOver())
+						falling.reset(SEED);
+				}
+				return sum;
+			}
+		});
+
+		final Engine dropping = new Engine(SEED);
+		dropping.apply(Input.TICK);
+		bench.measure("engine.hardDrop", new Microbench.Op()
+		{
+			public long run(int times)
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+				{
+					int result = dropping.apply(Input.DROP);
+					if ((result & Engine.CLEARED) != 0)
+						dropping.apply(Input.TICK);
+					if (dropping.isOver())
+					{
+						dropping.reset(SEED);
+						dropping.apply(Input.TICK);
+					}
+					sum += result;
+				}
+				return sum;
+			}
+		});
+
+		final Engine clearing = new Engine(SEED);
+		final Engine.State beforeClear = stateBeforeClear();
+		bench.measure("engine.restore", new Microbench.Op()
+		{
+			public long run(int times)
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+				{
+					clearing.restore(beforeClear);
+					sum += clearing.getCurX();
+				}
+				return sum;
+			}
+		});
+
+		bench.measure("engine.lineClear", new Microbench.Op()
+		{
+			public long run(int times)
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+				{
+					clearing.restore(beforeClear);
+					sum += clearing.apply(Input.DROP);
+				}
+				return sum;
+			}
+		});
+
+		final Engine recorded = new Engine(SEED);
+		recorded.restore(beforeClear);
+		bench.measure("engine.snapshot", new Microbench.Op()
+		{
+			public long run(int times)
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+					sum += recorded.snapshot().newBoard.length;
+				return sum;
+			}
+		});
+
+		bench.measure("shape.create", new Microbench.Op()
+		{
+			public long run(int times)
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+				{
+					Shape shape = new Shape();
+					shape.setRandomShape();
+					sum += shape.getShape().ordinal();
+				}
+				return sum;
+			}
+		});
+
+		final Shape turning = new Shape();
+		turning.setShape(Tetromino.TShape);
+		bench.measure("shape.rotate", new Microbench.Op()
+		{
+			public long run(int times)
+			{
+				long sum = 0;
+				for (int i = 0; i < times; i++)
+					sum += turning.rotate().getShape().ordinal();
+				return sum;
+			}
+		});
+	}
+
+	/**
+	 * Plays pieces where they leave the flattest board until one of the placements tried
+	 * clears a line.
+	 *
+	 * @return the game before the drop, with the piece already moved into place.
+	 */
+	private static Engine.State stateBeforeClear()
+	{
+		Engine game = new Engine(SEED);
+		Engine scratch = new Engine(SEED);
+		Engine.State start = new Engine.State();
+		Engine.State placed = new Engine.State();
+
+		game.apply(Input.TICK);
+		for (int piece = 0; piece < 1000 && !game.isOver(); piece++)
+		{
+			int bestTurns = 0, bestShift = 0, bestCost = Integer.MAX_VALUE;
+
+			game.save(start);
+			for (int turns = 0; turns < 4; turns++)
+			{
+				for (int shift = -Engine.SQUARES_IN_WIDTH / 2 - 1; shift <= Engine.SQUARES_IN_WIDTH / 2; shift++)
+				{
+					scratch.restore(start);
+					move(scratch, turns, shift);
+					scratch.save(placed);
+					if ((scratch.apply(Input.DROP) & Engine.CLEARED) != 0)
+						return placed;
+
+					int cost = cost(scratch);
+					if (cost < bestCost)
+					{
+						bestCost = cost;
+						bestTurns = turns;
+						bestShift = shift;
+					}
+				}
+			}
+			move(game, bestTurns, bestShift);
+			game.apply(Input.DROP);
+		}
+		throw new IllegalStateException("No line was cleared");
+	}
+
+	/**
+	 * Turns and moves the current piece.
+	 */
+	private static void move(Engine engine, int turns, int shift)
+	{
+		for (int i = 0; i < turns; i++)
+			engine.apply(Input.ROTATE);
+		for (int i = 0; i < Math.abs(shift); i++)
+			engine.apply(shift < 0 ? Input.LEFT : Input.RIGHT);
+	}
+
+	/**
+	 * @return how bad a board is, from the height of its columns and the holes under them.
+	 */
+	private static int cost(Engine engine)
+	{
+		int total = 0;
+		for (int x = 0; x < Engine.SQUARES_IN_WIDTH; x++)
+		{
+			int height = 0;
+			for (int y = Engine.SQUARES_IN_HEIGHT - 1; y >= 0; y--)
+			{
+				if (engine.shapeAt(x, y) != Tetromino.NoShape)
+				{
+					if (height == 0)
+						height = y + 1;
+				}
+				else if (height > 0)
+					total += 4;
+			}
+			total += height * height;
+		}
+		return total;
+	}
+}
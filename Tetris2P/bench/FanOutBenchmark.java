@@ -0,0 +1,199 @@
+package Tetris2P;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import ocsf.common.SharedFrame;
+import Tetris2P.Shape.Tetromino;
+
+/**
+ * Compares the two ways of fanning a board update out to the other players of a room:
+ * serializing the {@code Updater} once per recipient, as {@code sendToAllClients} does,
+ * against serializing it once into a {@code SharedFrame} written to every recipient.
+ * <p>
+ * Each recipient is an {@code ObjectOutputStream} over a buffered stream that discards its
+ * bytes, like a {@code ConnectionToClient} writing to a fast socket, so only the encoding and
+ * copying cost is measured. Run with {@code java Tetris2P.FanOutBenchmark [updates]}, or with
+ * the other suites in {@code Benchmarks}, which measures the time per update of both ways.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class FanOutBenchmark
+{
+	/**
+	 * Room sizes measured; a room of n players fans every update out to n-1 recipients.
+	 */
+	private static final int[] ROOM_SIZES = { 2, 10, 50, 100 };
+
+	/**
+	 * Updates sent per round, after which the streams are recreated so that their
+	 * handle tables do not grow without bound.
+	 */
+	private static final int UPDATES_PER_ROUND = 200;
+
+	/**
+	 * Keeps the results alive so the work cannot be optimised away.
+	 */
+	private static long sink;
+
+	public static void main(String[] args) throws IOException
+	{
+		int updates = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+
+		System.out.println("players  per-recipient ns/update  encode-once ns/update  speedup  frame bytes");
+
+		for (int players : ROOM_SIZES)
+		{
+			int recipients = players - 1;
+
+			// Warm up both paths before measuring
+			run(recipients, updates / 4, false);
+			run(recipients, updates / 4, true);
+
+			long perRecipient = run(recipients, updates, false);
+			long encodeOnce   = run(recipients, updates, true);
+
+			System.out.printf("%7d  %24d  %21d  %6.1fx  %11d%n", players,
+				perRecipient / updates, encodeOnce / updates,
+				(double) perRecipient / encodeOnce, SharedFrame.encode(newUpdate(new Random(1)), null).size());
+		}
+		System.out.println("(sink " + sink + ")");
+	}
+
+	/**
+	 * Measures both ways for every room size, in the time to fan one update out.
+	 */
+	public static void run(Microbench bench) throws Exception
+	{
+		for (int players : ROOM_SIZES)
+		{
+			bench.measure("fanout.perRecipient." + players, fanOut(players - 1, false));
+			bench.measure("fanout.encodeOnce." + players, fanOut(players - 1, true));
+		}
+	}
+
+	/**
+	 * @param recipients the number of recipients.
+	 * @param shared true to encode each update once into a frame, false to serialize it per recipient.
+	 * @return an operation fanning updates made beforehand out to every recipient.
+	 */
+	private static Microbench.Op fanOut(final int recipients, final boolean shared)
+	{
+		Random random = new Random(42);
+		final Updater[] updates = new Updater[UPDATES_PER_ROUND];
+		for (int i = 0; i < updates.length; i++)
+			updates[i] = newUpdate(random);
+
+		return new Microbench.Op()
+		{
+			private ObjectOutputStream[] streams;
+			private int sent;
+
+			public long run(int times) throws IOException
+			{
+				for (int i = 0; i < times; i++, sent++)
+				{
+					if (sent % UPDATES_PER_ROUND == 0)
+						streams = openStreams(recipients);
+
+					Updater update = updates[sent % UPDATES_PER_ROUND];
+					Object message = shared ? SharedFrame.encode(update, Long.valueOf(1)) : update;
+					for (ObjectOutputStream out : streams)
+					{
+						out.writeObject(message);
+						out.flush();
+					}
+				}
+				return sink;
+			}
+		};
+	}
+
+	/**
+	 * Sends board updates to every recipient.
+	 *
+	 * @param recipients the number of recipients.
+	 * @param updates the number of updates to send.
+	 * @param shared true to encode each update once into a frame, false to serialize it per recipient.
+	 * @return the time taken, in nanoseconds.
+	 */
+	private static long run(int recipients, int updates, boolean shared) throws IOException
+	{
+		Random random = new Random(42);
+		ObjectOutputStream[] streams = null;
+		long elapsed = 0;
+
+		for (int sent = 0; sent < updates; sent++)
+		{
+			if (sent % UPDATES_PER_ROUND == 0)
+				streams = openStreams(recipients);
+
+			// A new update every time, as a player's board changes between two updates
+			Updater update = newUpdate(random);
+
+			long start = System.nanoTime();
+			Object message = shared ? SharedFrame.encode(update, Long.valueOf(1)) : update;
+
+			for (ObjectOutputStream out : streams)
+			{
+				out.writeObject(message);
+				out.flush();
+			}
+			elapsed += System.nanoTime() - start;
+		}
+		return elapsed;
+	}
+
+	/**
+	 * @return one stream per recipient, each with its stream header already written.
+	 */
+	private static ObjectOutputStream[] openStreams(int recipients) throws IOException
+	{
+		ObjectOutputStream[] streams = new ObjectOutputStream[recipients];
+
+		for (int i = 0; i < recipients; i++)
+		{
+			streams[i] = new ObjectOutputStream(new BufferedOutputStream(new OutputStream()
+			{
+				public void write(int b)
+				{
+					sink += b;
+				}
+
+				public void write(byte[] b, int off, int len)
+				{
+					sink += len;
+				}
+			}));
+			streams[i].flush();
+		}
+		return streams;
+	}
+
+	/**
+	 * @return an update holding a half-filled 10x20 board and three pieces.
+	 */
+	private static Updater newUpdate(Random random)
+	{
+		Tetromino[] board = new Tetromino[10 * 20];
+		Tetromino[] kinds = Tetromino.values();
+
+		for (int i = 0; i < board.length; i++)
+			board[i] = (i < board.length / 2) ? kinds[1 + random.nextInt(kinds.length - 1)] : Tetromino.NoShape;
+
+		Shape hold = new Shape();
+		Shape next = new Shape();
+		Shape current = new Shape();
+		hold.setRandomShape();
+		next.setRandomShape();
+		current.setRandomShape();
+
+		Updater update = new Updater(hold, next, current, board);
+		update.sender = "Player1";
+		return update;
+	}
+}
@@ -0,0 +1,805 @@
+package Tetris2P;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.LatencyStats;
+import ocsf.common.StreamSegment;
+import Tetris2P.Engine.Input;
+import Tetris2P.Shape.Tetromino;
+
+/**
+ * Loads a running server with headless bots that play like people, to find out how many
+ * players a node can take. Each bot is an {@code AbstractClient} that connects, takes a name,
+ * waits for a match, readies up once matched, and plays its game on the headless
+ * {@code Engine} from the seed the server starts the match with: it sends its boards and
+ * inputs as {@code Board} does, over the datagram link when the server offers one, takes the
+ * garbage sent to it, chats now and then and pings the server. Once its match is over it
+ * reconnects to be matched again.
+ * <p>
+ * Bots play one input per step. The {@code random} policy moves and turns each piece a few
+ * times before dropping it; the {@code ai} policy places each piece where it leaves the best
+ * board, and lives much longer. Every few steps gravity ticks the piece down.
+ * <p>
+ * Every bot plays and reads the server on its own virtual thread when the JVM has them
+ * (Java 21 or later), on platform threads otherwise. A bot given a datagram link also has the
+ * two platform threads of its transport.
+ * <p>
+ * Every few seconds, and once more at the end, the generator prints the messages sent and
+ * received per second, the matches played, the errors seen, and the percentiles of:
+ * <ul>
+ * <li>relay latency: from a bot sending inputs to an opponent bot receiving them, which
+ * includes the server's dispatch, check and fan-out. Rooms too large to stream inputs only
+ * relay boards, which carry no sequence, and are not measured.</li>
+ * <li>chat latency: from a bot sending a chat line to the server echoing it back.</li>
+ * <li>round trips of the bots' pings.</li>
+ * </ul>
+ * The bots and the server should not share a machine when measuring for real, since the bots
+ * take their share of the CPU.
+ * Run with {@code java Tetris2P.LoadGenerator [host] [port] [bots] [seconds] [random|ai]
+ * [step ms] [chats per minute]}.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class LoadGenerator
+{
+	/**
+	 * How often the progress is printed, in milliseconds.
+	 */
+	private static final long REPORT_INTERVAL = 5000;
+
+	/**
+	 * How long a bot waits for its match to start once matched, or to end once topped out,
+	 * before it gives up and reconnects, in milliseconds.
+	 */
+	private static final long START_TIMEOUT = 30000;
+
+	/**
+	 * How often a bot pings the server, in milliseconds.
+	 */
+	private static final long PING_INTERVAL = 2000;
+
+	/**
+	 * Steps between two ticks of gravity.
+	 */
+	private static final int STEPS_PER_TICK = 4;
+
+	/**
+	 * Bots started per second, so that the server is not hit by every connection at once.
+	 */
+	private static final int CONNECTS_PER_SECOND = 500;
+
+	/**
+	 * What every chat line of the bots starts with, followed by the time it was sent.
+	 */
+	private static final String CHAT = "gl hf #";
+
+	private final String host;
+	private final int port;
+	private final boolean ai;
+	private final long step;
+	private final double chatsPerStep;
+
+	/**
+	 * Makes the bots' threads, or null for platform threads.
+	 */
+	private final ThreadFactory threads = virtualThreads();
+
+	/**
+	 * Cleared to make every bot leave.
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * The bots, by the name they take on the server.
+	 */
+	private final Map<String, Bot> bots = new ConcurrentHashMap<String, Bot>();
+
+	private final AtomicInteger connected = new AtomicInteger();
+	private final AtomicInteger playing = new AtomicInteger();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong updatesSent = new AtomicLong();
+	private final AtomicLong updatesRelayed = new AtomicLong();
+	private final AtomicLong chatsSent = new AtomicLong();
+	private final AtomicLong chatsReceived = new AtomicLong();
+	private final AtomicLong matchesStarted = new AtomicLong();
+	private final AtomicLong matchesOver = new AtomicLong();
+	private final AtomicLong connectFailures = new AtomicLong();
+	private final AtomicLong connectionErrors = new AtomicLong();
+	private final AtomicLong sendFailures = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong stalls = new AtomicLong();
+
+	private final Histogram relayLatency = new Histogram();
+	private final Histogram chatLatency = new Histogram();
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		String host = (args.length > 0) ? args[0] : "localhost";
+		int port = (args.length > 1) ? Integer.parseInt(args[1]) : TetrisServer.DEFAULT_PORT;
+		int bots = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+		int seconds = (args.length > 3) ? Integer.parseInt(args[3]) : 60;
+		boolean ai = (args.length > 4) && args[4].equals("ai");
+		long step = (args.length > 5) ? Long.parseLong(args[5]) : 100;
+		double chatsPerMinute = (args.length > 6) ? Double.parseDouble(args[6]) : 1;
+
+		LoadGenerator load = new LoadGenerator(host, port, ai, step, chatsPerMinute);
+		System.out.println(bots + " " + (ai ? "ai" : "random") + " bots on " + host + ":" + port + " for " + seconds
+			+ "s, one input every " + step + "ms, " + chatsPerMinute + " chats per minute, on "
+			+ (load.threads != null ? "virtual" : "platform") + " threads");
+		load.run(bots, seconds * 1000L);
+		System.exit(0);
+	}
+
+	/**
+	 * @param host the server's host.
+	 * @param port the server's port.
+	 * @param ai true to place pieces well, false to play at random.
+	 * @param step the time between two inputs of a bot, in milliseconds.
+	 * @param chatsPerMinute the chat lines each bot sends per minute.
+	 */
+	public LoadGenerator(String host, int port, boolean ai, long step, double chatsPerMinute)
+	{
+		this.host = host;
+		this.port = port;
+		this.ai = ai;
+		this.step = step;
+		this.chatsPerStep = chatsPerMinute * step / 60000;
+	}
+
+	/**
+	 * Starts the bots, reports on them while they play, then makes them leave.
+	 *
+	 * @param count the number of bots.
+	 * @param duration how long they play, in milliseconds, counted from the first bot.
+	 */
+	public void run(int count, long duration) throws InterruptedException
+	{
+		String run = Long.toString(System.currentTimeMillis() % 46656, 36);
+		List<Thread> started = new ArrayList<Thread>();
+		long start = System.currentTimeMillis();
+		long nextReport = start + REPORT_INTERVAL;
+		long[] previous = counters();
+
+		for (int i = 0; i < count || System.currentTimeMillis() < start + duration; i++)
+		{
+			if (i < count)
+			{
+				final Bot bot = new Bot("bot" + run + "-" + i, i);
+				bots.put(bot.name, bot);
+				Runnable task = new Runnable()
+				{
+					public void run()
+					{
+						bot.live();
+					}
+				};
+				Thread thread = (threads != null) ? threads.newThread(task) : new Thread(task, bot.name);
+				thread.start();
+				started.add(thread);
+				Thread.sleep(1000 / CONNECTS_PER_SECOND);
+			}
+			else
+				Thread.sleep(50);
+
+			if (System.currentTimeMillis() >= nextReport)
+			{
+				long[] now = counters();
+				report("  " + ((nextReport - start) / 1000) + "s", now, previous, REPORT_INTERVAL);
+				previous = now;
+				nextReport += REPORT_INTERVAL;
+			}
+		}
+
+		running = false;
+		for (Thread thread : started)
+			thread.join(2000);
+
+		long elapsed = System.currentTimeMillis() - start;
+		System.out.println();
+		report("total", counters(), new long[previous.length], elapsed);
+		System.out.println("matches started " + matchesStarted + " over " + matchesOver
+			+ ", inputs sent " + updatesSent + " relayed " + updatesRelayed
+			+ ", chats sent " + chatsSent + " received " + chatsReceived);
+		System.out.println("errors: connect failures " + connectFailures + ", connections lost " + connectionErrors
+			+ ", failed sends " + sendFailures + ", rejected commands " + rejected
+			+ ", matches stalled " + stalls);
+		System.out.println("relay latency " + relayLatency);
+		System.out.println("chat latency  " + chatLatency);
+		System.out.println("ping rtt      " + pingRtts());
+	}
+
+	/**
+	 * @return the counters the reports give rates of.
+	 */
+	private long[] counters()
+	{
+		return new long[] { sent.get(), received.get(), updatesSent.get(), updatesRelayed.get(),
+			matchesStarted.get(), connectFailures.get() + connectionErrors.get() + sendFailures.get() + rejected.get() + stalls.get() };
+	}
+
+	/**
+	 * Prints the rates over an interval, and the relay latency so far.
+	 */
+	private void report(String label, long[] now, long[] before, long millis)
+	{
+		double seconds = millis / 1000.0;
+		System.out.printf("%6s  bots %d playing %d  sent %.0f/s received %.0f/s  inputs %.0f/s relayed %.0f/s"
+			+ "  matches +%d  errors +%d  relay p50 %s p99 %s%n",
+			label, connected.get(), playing.get(),
+			(now[0] - before[0]) / seconds, (now[1] - before[1]) / seconds,
+			(now[2] - before[2]) / seconds, (now[3] - before[3]) / seconds,
+			now[4] - before[4], now[5] - before[5],
+			relayLatency.percentile(50), relayLatency.percentile(99));
+	}
+
+	/**
+	 * @return the percentiles of the recent round trips of every bot.
+	 */
+	private String pingRtts()
+	{
+		long[] rtts = new long[bots.size() * LatencyStats.WINDOW];
+		int count = 0;
+		for (Bot bot : bots.values())
+			count += bot.getLatency().copyRtts(rtts, count);
+
+		if (count == 0)
+			return "no samples";
+		Arrays.sort(rtts, 0, count);
+		return "p50 " + millis(rtts[(count - 1) / 2]) + " p99 " + millis(rtts[(int) ((count - 1) * 0.99)])
+			+ " max " + millis(rtts[count - 1]) + " ms (" + count + " samples)";
+	}
+
+	private static String millis(long nanos)
+	{
+		return String.format("%.1f", nanos / 1e6);
+	}
+
+	/**
+	 * Counts latencies in buckets of 100us up to a second, so that millions of samples
+	 * take no more room than a few.
+	 */
+	private static class Histogram
+	{
+		/**
+		 * The width of a bucket, in microseconds.
+		 */
+		private static final int BUCKET = 100;
+
+		/**
+		 * The samples in each bucket. The last one takes everything from a second up.
+		 */
+		private final AtomicLongArray counts = new AtomicLongArray(1000000 / BUCKET + 1);
+		private final AtomicLong max = new AtomicLong();
+
+		void add(long nanos)
+		{
+			counts.incrementAndGet((int) Math.min(counts.length() - 1, Math.max(0, nanos / 1000 / BUCKET)));
+
+			long highest = max.get();
+			while (nanos > highest && !max.compareAndSet(highest, nanos))
+				highest = max.get();
+		}
+
+		long count()
+		{
+			long total = 0;
+			for (int i = 0; i < counts.length(); i++)
+				total += counts.get(i);
+			return total;
+		}
+
+		/**
+		 * @return the top of the bucket holding a percentile, in ms, or "-" without samples.
+		 */
+		String percentile(double percent)
+		{
+			long total = count();
+			if (total == 0)
+				return "-";
+
+			long rank = Math.max(1, (long) Math.ceil(total * percent / 100));
+			for (int i = 0; i < counts.length(); i++)
+			{
+				rank -= counts.get(i);
+				if (rank <= 0)
+					return (i == counts.length() - 1) ? ">1000" : String.format("%.1f", (i + 1) * BUCKET / 1000.0);
+			}
+			return "-";
+		}
+
+		public String toString()
+		{
+			long total = count();
+			if (total == 0)
+				return "no samples";
+			return "p50 " + percentile(50) + " p90 " + percentile(90) + " p99 " + percentile(99)
+				+ " p99.9 " + percentile(99.9) + " max " + millis(max.get()) + " ms (" + total + " samples)";
+		}
+	}
+
+	/**
+	 * A player without a window. Its game runs on its own thread, in {@code live}; the
+	 * client's thread only records what the server said.
+	 */
+	private class Bot extends AbstractClient
+	{
+		final String name;
+		private final Random random;
+
+		/**
+		 * When each sequence of inputs of the current match was sent, for the relay latency.
+		 */
+		final Map<Long, Long> sentAt = new ConcurrentHashMap<Long, Long>();
+
+		// What the server said, reset on every connection
+		private volatile Long seed;
+		private volatile int opponents;
+		private final AtomicInteger garbage = new AtomicInteger();
+		private volatile boolean isOver;
+
+		// The game, only touched by the bot's thread
+		private Engine engine;
+		private Engine scratch;
+		private final Engine.State saved = new Engine.State();
+		private final ArrayDeque<Input> plan = new ArrayDeque<Input>();
+		private boolean isStreaming;
+		private boolean needsTick;
+		private long nextPing;
+
+		Bot(String name, long id)
+		{
+			super(host, port);
+			this.name = name;
+			this.random = new Random(id);
+			setThreadFactory(threads);
+		}
+
+		/**
+		 * Plays match after match until the generator stops.
+		 */
+		void live()
+		{
+			while (running)
+			{
+				if (!connect())
+				{
+					pause(1000);
+					continue;
+				}
+				try
+				{
+					if (awaitStart())
+						play();
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				finally
+				{
+					disconnect();
+				}
+			}
+		}
+
+		/**
+		 * Connects with fresh match state and takes the bot's name.
+		 *
+		 * @return true once connected.
+		 */
+		private boolean connect()
+		{
+			seed = null;
+			opponents = -1;
+			garbage.set(0);
+			isOver = false;
+			plan.clear();
+			needsTick = false;
+
+			try
+			{
+				openConnection();
+				connected.incrementAndGet();
+				send("#name " + name);
+				return true;
+			}
+			catch (IOException e)
+			{
+				connectFailures.incrementAndGet();
+				return false;
+			}
+		}
+
+		private void disconnect()
+		{
+			try
+			{
+				closeConnection();
+			}
+			catch (IOException e) {}
+			connected.decrementAndGet();
+
+			// The reader stops on its own once the socket is closed
+			for (int i = 0; i < 100 && isConnected(); i++)
+				pause(10);
+		}
+
+		/**
+		 * Waits in the queue for a match, readies up once matched and waits for the server to
+		 * start the match.
+		 *
+		 * @return true once the match started.
+		 */
+		private boolean awaitStart() throws InterruptedException
+		{
+			long deadline = Long.MAX_VALUE;
+			boolean isReady = false;
+
+			while (running && isConnected() && !isOver)
+			{
+				if (!isReady && opponents >= 0)
+				{
+					isReady = true;
+					deadline = System.currentTimeMillis() + START_TIMEOUT;
+					send(new Updater("ready"));
+				}
+				if (isReady && seed != null)
+					return true;
+				if (System.currentTimeMillis() > deadline)
+				{
+					stalls.incrementAndGet();
+					return false;
+				}
+				pingNowAndThen();
+				Thread.sleep(10);
+			}
+			return false;
+		}
+
+		/**
+		 * Plays until the match is over, then waits for the server to say so.
+		 */
+		private void play() throws InterruptedException
+		{
+			long matchSeed = seed;
+
+			matchesStarted.incrementAndGet();
+			playing.incrementAndGet();
+			try
+			{
+				sentAt.clear();
+				engine = new Engine(matchSeed);
+				engine.setRecording(true);
+				if (ai)
+					scratch = new Engine(matchSeed);
+				// The inputs of a whole match go over the same channel, as Tetris2P does
+				isStreaming = isDatagramLinkUp();
+
+				long next = System.nanoTime();
+				for (int steps = 1; running && isConnected() && !isOver && !engine.isOver(); steps++)
+				{
+					int lines = garbage.getAndSet(0);
+					if (lines > 0)
+					{
+						for (int i = 0; i < lines; i++)
+							engine.apply(Input.GARBAGE);
+						sendInputs(engine.takeInputs());
+					}
+
+					Input input = (steps % STEPS_PER_TICK == 0) ? Input.TICK : nextInput();
+					int result = engine.apply(input);
+					needsTick |= (result & Engine.CLEARED) != 0;
+					if ((result & Engine.LOCKED) != 0)
+						sendInputs(engine.snapshot());
+					else if (input != Input.TICK)
+						sendInputs(engine.takeInputs());
+
+					if (random.nextDouble() < chatsPerStep)
+					{
+						send(CHAT + System.nanoTime());
+						chatsSent.incrementAndGet();
+					}
+					pingNowAndThen();
+
+					next += step * 1000000;
+					long wait = next - System.nanoTime();
+					if (wait > 0)
+						Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				}
+
+				// The server decides the match once every player but one topped out
+				long deadline = System.currentTimeMillis() + START_TIMEOUT;
+				while (running && isConnected() && !isOver)
+				{
+					if (System.currentTimeMillis() > deadline)
+					{
+						stalls.incrementAndGet();
+						return;
+					}
+					pingNowAndThen();
+					Thread.sleep(10);
+				}
+				if (isOver)
+					matchesOver.incrementAndGet();
+			}
+			finally
+			{
+				playing.decrementAndGet();
+			}
+		}
+
+		/**
+		 * @return the next key of the policy, or the tick that brings a new piece after a
+		 *         line was removed.
+		 */
+		private Input nextInput()
+		{
+			if (needsTick)
+			{
+				needsTick = false;
+				return Input.TICK;
+			}
+			if (plan.isEmpty())
+			{
+				if (ai)
+					planBestMove();
+				else
+					planRandomMove();
+			}
+			return plan.poll();
+		}
+
+		/**
+		 * A few moves and turns, now and then holding the piece, then a drop.
+		 */
+		private void planRandomMove()
+		{
+			if (random.nextInt(10) == 0)
+				plan.add(Input.HOLD);
+			for (int i = random.nextInt(8); i > 0; i--)
+				plan.add(Input.values()[1 + random.nextInt(3)]);
+			plan.add(Input.DROP);
+		}
+
+		/**
+		 * The turns and moves that leave the best board once the piece is dropped, tried on
+		 * a scratch game from the same state.
+		 */
+		private void planBestMove()
+		{
+			int bestTurns = 0, bestShift = 0, bestScore = Integer.MIN_VALUE;
+
+			engine.save(saved);
+			for (int turns = 0; turns < 4; turns++)
+			{
+				for (int shift = -Engine.SQUARES_IN_WIDTH / 2 - 1; shift <= Engine.SQUARES_IN_WIDTH / 2; shift++)
+				{
+					scratch.restore(saved);
+					for (int i = 0; i < turns; i++)
+						scratch.apply(Input.ROTATE);
+					for (int i = 0; i < Math.abs(shift); i++)
+						scratch.apply(shift < 0 ? Input.LEFT : Input.RIGHT);
+					scratch.apply(Input.DROP);
+
+					int score = (scratch.getLinesRemoved() - engine.getLinesRemoved()) * 760 - cost(scratch);
+					if (score > bestScore)
+					{
+						bestScore = score;
+						bestTurns = turns;
+						bestShift = shift;
+					}
+				}
+			}
+			for (int i = 0; i < bestTurns; i++)
+				plan.add(Input.ROTATE);
+			for (int i = 0; i < Math.abs(bestShift); i++)
+				plan.add(bestShift < 0 ? Input.LEFT : Input.RIGHT);
+			plan.add(Input.DROP);
+		}
+
+		/**
+		 * @return how bad a board is, from the height of its columns, the holes under them
+		 *         and how uneven they are.
+		 */
+		private int cost(Engine game)
+		{
+			int total = 0, previous = -1;
+			for (int x = 0; x < Engine.SQUARES_IN_WIDTH; x++)
+			{
+				int height = 0;
+				for (int y = Engine.SQUARES_IN_HEIGHT - 1; y >= 0; y--)
+				{
+					if (game.shapeAt(x, y) != Tetromino.NoShape)
+					{
+						if (height == 0)
+							height = y + 1;
+					}
+					else if (height > 0)
+						total += 356;
+				}
+				total += height * 510;
+				if (previous >= 0)
+					total += Math.abs(height - previous) * 184;
+				previous = height;
+			}
+			return total;
+		}
+
+		/**
+		 * Sends a board or inputs as {@code Tetris2P.sendUpdate} does, over the datagram link
+		 * in a match streamed over datagrams.
+		 */
+		private void sendInputs(Updater update)
+		{
+			if (update == null)
+				return;
+
+			sentAt.put(update.sequence, System.nanoTime());
+			updatesSent.incrementAndGet();
+			if (isStreaming && update.inputs != null)
+			{
+				if (sendStream(String.valueOf(seed), update.sequence, update.inputs))
+				{
+					sent.incrementAndGet();
+					return;
+				}
+				// The link stalled: the rest of the match goes over the connection
+				isStreaming = false;
+			}
+			send(update);
+		}
+
+		private void send(Object message)
+		{
+			try
+			{
+				sendToServer(message);
+				sent.incrementAndGet();
+			}
+			catch (IOException e)
+			{
+				sendFailures.incrementAndGet();
+			}
+		}
+
+		private void pingNowAndThen()
+		{
+			long now = System.currentTimeMillis();
+			if (now < nextPing)
+				return;
+
+			nextPing = now + PING_INTERVAL;
+			try
+			{
+				ping();
+				sent.incrementAndGet();
+			}
+			catch (IOException e)
+			{
+				sendFailures.incrementAndGet();
+			}
+		}
+
+		private void pause(long millis)
+		{
+			try
+			{
+				Thread.sleep(millis);
+			}
+			catch (InterruptedException e) {}
+		}
+
+		/**
+		 * Records what the server said; the bot's thread acts on it.
+		 */
+		protected void handleMessageFromServer(Object msg)
+		{
+			long now = System.nanoTime();
+			received.incrementAndGet();
+
+			if (msg instanceof StreamSegment)
+			{
+				// An opponent's inputs over datagrams, keyed by "seed:name"
+				String key = ((StreamSegment) msg).getKey();
+				relayed(key.substring(key.indexOf(':') + 1), ((StreamSegment) msg).getFirstSeq(), now);
+			}
+			else if (msg instanceof Updater)
+			{
+				Updater update = (Updater) msg;
+				String command = update.getCommandMessage();
+
+				if (command == null)
+				{
+					if (update.inputs != null)
+						relayed(update.getSender(), update.sequence, now);
+					return;
+				}
+
+				String[] words = command.split(" ");
+				try
+				{
+					if (words[0].equals("start"))
+						seed = Long.valueOf(words[1]);
+					else if (words[0].equals("garbage"))
+						garbage.addAndGet(Integer.parseInt(words[1]));
+					else if (words[0].equals("gameWon") || words[0].equals("gameLost"))
+						isOver = true;
+				}
+				catch (RuntimeException e)
+				{
+					rejected.incrementAndGet();
+				}
+			}
+			else if (msg instanceof String)
+			{
+				String text = (String) msg;
+
+				if (text.equals("You have a new opponent!"))
+					opponents = 1;
+				else if (text.startsWith("You have ") && text.endsWith(" new opponents!"))
+					opponents = Integer.parseInt(text.substring(9, text.indexOf(' ', 9)));
+				else if (text.equals("[INFO] You no longer have an opponent!"))
+					isOver = true;
+				else if (text.equals("Invalid Command.") || text.equals("[INFO] You have no opponent.")
+						|| text.startsWith("[INFO] The name "))
+					rejected.incrementAndGet();
+				else if (text.startsWith("[") && text.contains("] " + CHAT))
+				{
+					chatsReceived.incrementAndGet();
+					if (text.startsWith("[" + name + "] " + CHAT))
+						chatLatency.add(now - Long.parseLong(text.substring(name.length() + 3 + CHAT.length())));
+				}
+			}
+		}
+
+		/**
+		 * Measures how long an opponent's inputs took to get here.
+		 */
+		private void relayed(String sender, long sequence, long now)
+		{
+			Bot from = (sender == null) ? null : bots.get(sender);
+			Long sentTime = (from == null) ? null : from.sentAt.get(sequence);
+
+			updatesRelayed.incrementAndGet();
+			if (sentTime != null)
+				relayLatency.add(now - sentTime);
+		}
+
+		protected void connectionException(Exception exception)
+		{
+			if (running)
+				connectionErrors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return a factory making virtual threads, looked up reflectively so that the generator
+	 *         still runs on JVMs without them, or null.
+	 */
+	private static ThreadFactory virtualThreads()
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package Tetris2P;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the matchmaker's work when many players wait at once: queueing every waiting
+ * player, then one batch of the matcher thread grouping them, for 1v1 matches in order of
+ * arrival and by rating.
+ * <p>
+ * The players are registered without connections. Those matched are not put in a match, so
+ * the next operation queues them again; players a batch cannot match by rating stay queued
+ * and are carried over, as they would be on a busy server. The time is per batch, for every
+ * player of the queue.
+ * Run with {@code java Tetris2P.MatchmakingBenchmark}, or with the other suites in
+ * {@code Benchmarks}.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class MatchmakingBenchmark
+{
+	/**
+	 * Numbers of players waiting at once.
+	 */
+	private static final int[] QUEUE_SIZES = { 100, 1000, 10000 };
+
+	/**
+	 * How far ratings spread around the default rating.
+	 */
+	private static final int RATING_SPREAD = 400;
+
+	public static void main(String[] args) throws Exception
+	{
+		Microbench bench = new Microbench();
+		run(bench);
+		System.out.println("(sink " + bench.getSink() + ")");
+	}
+
+	/**
+	 * Measures a batch for every queue size, with and without ratings.
+	 */
+	public static void run(Microbench bench) throws Exception
+	{
+		for (int players : QUEUE_SIZES)
+		{
+			bench.measure("matchmaking.arrival." + players, batch(players, false));
+			bench.measure("matchmaking.rating." + players, batch(players, true));
+		}
+	}
+
+	/**
+	 * @param players the number of players waiting.
+	 * @param useRatings true to group players by rating.
+	 * @return an operation queueing every player then running a batch.
+	 */
+	private static Microbench.Op batch(int players, boolean useRatings)
+	{
+		Random random = new Random(players);
+		PlayerRegistry registry = new PlayerRegistry();
+		final ClientNode[] nodes = new ClientNode[players];
+
+		for (int i = 0; i < players; i++)
+		{
+			nodes[i] = new ClientNode(Long.valueOf(i));
+			nodes[i].setRating(ClientNode.DEFAULT_RATING + random.nextInt(2 * RATING_SPREAD + 1) - RATING_SPREAD);
+			registry.add(nodes[i]);
+		}
+
+		final MatchmakingService matchmaking = new MatchmakingService(registry, new MatchmakingService.MatchListener()
+		{
+			public void matched(List<ClientNode> group) {}
+		});
+		matchmaking.setUseRatings(useRatings);
+
+		return new Microbench.Op()
+		{
+			public long run(int times)
+			{
+				for (int i = 0; i < times; i++)
+				{
+					for (ClientNode node : nodes)
+						matchmaking.enqueue(node);
+					matchmaking.matchBatch();
+				}
+				return matchmaking.getMatchesMade();
+			}
+		};
+	}
+}
@@ -0,0 +1,248 @@
+package Tetris2P;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small harness in the spirit of JMH for the benchmarks of this directory, which build
+ * without any library. Each benchmark is an operation run in batches: the batch is first grown
+ * until it takes a measurable time, then the operation runs for a few warm-up iterations, so
+ * that the JIT compiles it, and for the measured iterations. The result is the mean time per
+ * operation and its standard deviation across iterations.
+ * <p>
+ * Every operation returns a value that is kept, so the JIT cannot optimise the work away.
+ * Unlike JMH, the benchmarks share one JVM and are not forked, so a benchmark may be
+ * measured with code the JIT compiled for the ones before it; run a suite on its own to
+ * rule that out.
+ * <p>
+ * Results can be written to a baseline file and compared with it, see {@code Benchmarks}.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class Microbench
+{
+	/**
+	 * An operation to measure.
+	 */
+	public interface Op
+	{
+		/**
+		 * Runs the operation a number of times.
+		 *
+		 * @param times how many times.
+		 * @return anything computed, so that the work is not optimised away.
+		 */
+		long run(int times) throws Exception;
+	}
+
+	/**
+	 * The time an operation takes.
+	 */
+	public static final class Result
+	{
+		final String name;
+		final double nanosPerOp;
+		final double deviation;
+
+		Result(String name, double nanosPerOp, double deviation)
+		{
+			this.name = name;
+			this.nanosPerOp = nanosPerOp;
+			this.deviation = deviation;
+		}
+	}
+
+	/**
+	 * How long an iteration runs, in nanoseconds.
+	 */
+	private final long iterationNanos;
+	private final int warmups;
+	private final int iterations;
+
+	/**
+	 * The results, in the order measured.
+	 */
+	private final List<Result> results = new ArrayList<Result>();
+
+	/**
+	 * Keeps the results alive so the work cannot be optimised away.
+	 */
+	private long sink;
+
+	/**
+	 * Five warm-up and ten measured iterations of 200ms each.
+	 */
+	public Microbench()
+	{
+		this(200, 5, 10);
+	}
+
+	/**
+	 * @param iterationMillis how long an iteration runs.
+	 * @param warmups the iterations run before measuring.
+	 * @param iterations the iterations measured.
+	 */
+	public Microbench(long iterationMillis, int warmups, int iterations)
+	{
+		this.iterationNanos = iterationMillis * 1000000;
+		this.warmups = warmups;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Measures an operation and prints the result.
+	 *
+	 * @param name the benchmark's name, as in the baseline.
+	 * @param op the operation.
+	 * @return the result.
+	 */
+	public Result measure(String name, Op op) throws Exception
+	{
+		// A batch long enough that reading the clock costs nothing in comparison
+		int batch = 1;
+		while (batch < (1 << 30))
+		{
+			long start = System.nanoTime();
+			sink += op.run(batch);
+			if (System.nanoTime() - start >= iterationNanos / 20)
+				break;
+			batch *= 2;
+		}
+
+		for (int i = 0; i < warmups; i++)
+			iterate(op, batch);
+
+		double[] samples = new double[iterations];
+		double mean = 0;
+		for (int i = 0; i < iterations; i++)
+		{
+			samples[i] = iterate(op, batch);
+			mean += samples[i] / iterations;
+		}
+		double variance = 0;
+		for (double sample : samples)
+			variance += (sample - mean) * (sample - mean) / Math.max(1, iterations - 1);
+
+		Result result = new Result(name, mean, Math.sqrt(variance));
+		results.add(result);
+		System.out.printf("%-36s %14.1f +- %9.1f ns/op%n", name, result.nanosPerOp, result.deviation);
+		return result;
+	}
+
+	/**
+	 * Runs batches for an iteration.
+	 *
+	 * @return the time per operation, in nanoseconds.
+	 */
+	private double iterate(Op op, int batch) throws Exception
+	{
+		long start = System.nanoTime();
+		long elapsed, ops = 0;
+		do
+		{
+			sink += op.run(batch);
+			ops += batch;
+			elapsed = System.nanoTime() - start;
+		}
+		while (elapsed < iterationNanos);
+		return (double) elapsed / ops;
+	}
+
+	/**
+	 * @return the results, in the order measured.
+	 */
+	public List<Result> getResults()
+	{
+		return results;
+	}
+
+	/**
+	 * @return the sum of everything the operations computed.
+	 */
+	public long getSink()
+	{
+		return sink;
+	}
+
+	/**
+	 * Writes the results to a baseline file, one benchmark per line, after a header saying
+	 * where they were measured.
+	 *
+	 * @param file the baseline file.
+	 */
+	public void write(String file) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try
+		{
+			out.println("# Measured with Tetris2P.Benchmarks, in ns/op with the standard deviation across iterations.");
+			out.println("# Java " + System.getProperty("java.version") + " (" + System.getProperty("java.vm.name") + ") on "
+				+ System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", "
+				+ Runtime.getRuntime().availableProcessors() + " cores");
+			for (Result result : results)
+				out.printf("%s\t%.1f\t%.1f%n", result.name, result.nanosPerOp, result.deviation);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Compares the results with a baseline file and prints how each benchmark moved.
+	 * A benchmark is flagged when it is slower than the baseline by more than a threshold and
+	 * by more than the two measurements' deviations together.
+	 *
+	 * @param file the baseline file.
+	 * @param threshold the share of slowdown tolerated, 0.1 for 10%.
+	 * @return the number of benchmarks flagged as slower.
+	 */
+	public int compare(String file, double threshold) throws IOException
+	{
+		Map<String, double[]> baseline = new LinkedHashMap<String, double[]>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			for (String line; (line = in.readLine()) != null; )
+			{
+				String[] fields = line.split("\t");
+				if (line.startsWith("#") || fields.length < 3)
+					continue;
+				baseline.put(fields[0], new double[] { Double.parseDouble(fields[1]), Double.parseDouble(fields[2]) });
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		int slower = 0;
+		System.out.println();
+		System.out.printf("%-36s %14s %14s %8s%n", "benchmark", "baseline", "now", "change");
+		for (Result result : results)
+		{
+			double[] before = baseline.get(result.name);
+			if (before == null)
+			{
+				System.out.printf("%-36s %14s %14.1f%n", result.name, "-", result.nanosPerOp);
+				continue;
+			}
+
+			double change = result.nanosPerOp / before[0] - 1;
+			boolean flagged = change > threshold && result.nanosPerOp - before[0] > result.deviation + before[1];
+			if (flagged)
+				slower++;
+			System.out.printf("%-36s %14.1f %14.1f %+7.1f%%%s%n", result.name, before[0], result.nanosPerOp,
+				change * 100, flagged ? "  SLOWER" : "");
+		}
+		return slower;
+	}
+}
@@ -0,0 +1,190 @@
+package Tetris2P;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import Tetris2P.Engine.Input;
+
+/**
+ * Measures what it costs the server to check the boards of a match: the CPU time a
+ * {@code Referee} spends replaying a player's inputs and comparing boards, and the memory
+ * it keeps per player.
+ * <p>
+ * The games are played by a bot that moves and turns each piece a few times while it falls,
+ * then drops it, so a board comes with about as many inputs as a person would send. The boards
+ * are recorded once, then checked again and again by fresh referees. The cost of a match is
+ * the cost of a player times its players, since each player has its own referee.
+ * Run with {@code java Tetris2P.RefereeBenchmark [games]}.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class RefereeBenchmark
+{
+	/**
+	 * Room sizes the cost of a match is given for.
+	 */
+	private static final int[] ROOM_SIZES = { 2, 10, 100 };
+
+	/**
+	 * Boards a player sends per minute, one every two seconds.
+	 */
+	private static final int BOARDS_PER_MINUTE = 30;
+
+	/**
+	 * Referees kept alive at once to measure their memory.
+	 */
+	private static final int REFEREES = 10000;
+
+	/**
+	 * Keeps the results alive so the work cannot be optimised away.
+	 */
+	private static long sink;
+
+	public static void main(String[] args)
+	{
+		int games = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		List<Game> recorded = new ArrayList<Game>();
+		long boards = 0, inputs = 0;
+		for (int i = 0; i < games; i++)
+		{
+			Game game = record(i);
+			recorded.add(game);
+			boards += game.boards.size();
+			for (Updater board : game.boards)
+				inputs += board.inputs.length;
+		}
+		System.out.println(games + " games, " + boards + " boards, " + (inputs / boards) + " inputs per board");
+
+		// Warm up, then measure
+		for (int round = 0; round < 5; round++)
+			checkAll(recorded);
+
+		long cpu = threads.getCurrentThreadCpuTime();
+		long wall = System.nanoTime();
+		int rounds = 20;
+		for (int round = 0; round < rounds; round++)
+			checkAll(recorded);
+		cpu = threads.getCurrentThreadCpuTime() - cpu;
+		wall = System.nanoTime() - wall;
+
+		long perBoard = cpu / (boards * rounds);
+		System.out.println("CPU per board checked: " + perBoard + "ns (wall " + wall / (boards * rounds) + "ns)");
+		System.out.println("CPU per player per minute at " + BOARDS_PER_MINUTE + " boards: " + (perBoard * BOARDS_PER_MINUTE / 1000) + "us");
+
+		long perReferee = refereeBytes();
+		System.out.println("Memory per player: " + perReferee + " bytes");
+
+		System.out.println("players  CPU ms per match-minute  share of one core  memory KB");
+		for (int players : ROOM_SIZES)
+		{
+			double cpuMillis = perBoard * BOARDS_PER_MINUTE * players / 1e6;
+			System.out.printf("%7d  %24.2f  %16.4f%%  %9.1f%n", players, cpuMillis,
+				cpuMillis / 60000 * 100, perReferee * players / 1024.0);
+		}
+		System.out.println("(sink " + sink + ")");
+	}
+
+	/**
+	 * A recorded game: its seed and the boards sent, with their inputs.
+	 */
+	private static class Game
+	{
+		long seed;
+		List<Updater> boards = new ArrayList<Updater>();
+	}
+
+	/**
+	 * Plays a game until the bot tops out, recording the board sent after each piece.
+	 */
+	private static Game record(long seed)
+	{
+		Random bot = new Random(seed);
+		Engine engine = new Engine(seed);
+		Game game = new Game();
+
+		game.seed = seed;
+		engine.setRecording(true);
+
+		while (!engine.isOver())
+		{
+			int result;
+			int moves = bot.nextInt(8);
+			// A few moves while gravity ticks the piece down a few lines, then a drop
+			for (int i = 0; i < moves; i++)
+			{
+				engine.apply(Input.values()[1 + bot.nextInt(3)]);
+				if (bot.nextBoolean())
+					engine.apply(Input.TICK);
+			}
+			result = engine.apply(Input.DROP);
+			// The tick that brings a new piece after a line was removed
+			if ((result & Engine.CLEARED) != 0)
+				engine.apply(Input.TICK);
+			if ((result & Engine.LOCKED) != 0)
+				game.boards.add(engine.snapshot());
+		}
+		return game;
+	}
+
+	/**
+	 * Checks every recorded game with a new referee.
+	 */
+	private static void checkAll(List<Game> games)
+	{
+		for (Game game : games)
+		{
+			Referee referee = new Referee(game.seed);
+			for (Updater board : game.boards)
+			{
+				if (referee.check(board) != Referee.Verdict.VALID)
+					throw new IllegalStateException("A recorded board diverged");
+			}
+			sink += referee.getBoardsChecked();
+		}
+	}
+
+	/**
+	 * @return the heap kept by a referee in the middle of a game, in bytes.
+	 */
+	private static long refereeBytes()
+	{
+		Game game = record(1);
+		Referee[] referees = new Referee[REFEREES];
+
+		long before = usedHeap();
+		for (int i = 0; i < REFEREES; i++)
+		{
+			referees[i] = new Referee(game.seed);
+			for (int board = 0; board < game.boards.size() / 2; board++)
+				referees[i].check(game.boards.get(board));
+		}
+		long after = usedHeap();
+
+		sink += referees.length;
+		return (after - before) / REFEREES;
+	}
+
+	/**
+	 * @return the heap in use after collecting garbage.
+	 */
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+			try
+			{
+				Thread.sleep(50);
+			}
+			catch (InterruptedException e) {}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,114 @@
+package Tetris2P;
+
+import java.util.Random;
+
+import Tetris2P.Engine.Input;
+
+/**
+ * Measures what it costs a client to show an opponent's game ahead of the opponent's inputs:
+ * saving and restoring the game, and rewinding a {@code Rollback} a number of predicted ticks
+ * and playing them again.
+ * <p>
+ * A rollback of depth {@code d} is timed as {@code d} predicted ticks followed by a batch of
+ * real inputs that differs from the first one, so every predicted tick is undone and played
+ * again. The times include the prediction and the opponent's own game that makes the inputs;
+ * the prediction costs the client one tick per gravity tick whatever happens, so the extra
+ * cost of a wrong guess is the restore and the replay.
+ * Run with {@code java Tetris2P.RollbackBenchmark [rounds]}.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class RollbackBenchmark
+{
+	/**
+	 * Rollback depths measured, in ticks.
+	 */
+	private static final int[] DEPTHS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	/**
+	 * Keeps the results alive so the work cannot be optimised away.
+	 */
+	private static long sink;
+
+	public static void main(String[] args)
+	{
+		int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+
+		Engine engine = midGame();
+		Engine.State state = new Engine.State();
+
+		for (int i = 0; i < rounds; i++)
+			engine.save(state);
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++)
+			engine.save(state);
+		System.out.println("save: " + (System.nanoTime() - start) / rounds + "ns");
+
+		for (int i = 0; i < rounds; i++)
+			engine.restore(state);
+		start = System.nanoTime();
+		for (int i = 0; i < rounds; i++)
+			engine.restore(state);
+		System.out.println("restore: " + (System.nanoTime() - start) / rounds + "ns");
+
+		System.out.println("depth  ns per rollback  ns per tick replayed");
+		for (int depth : DEPTHS)
+		{
+			int batches = Math.max(1000, rounds / depth);
+			rollbacks(depth, batches);
+			start = System.nanoTime();
+			rollbacks(depth, batches);
+			long perRollback = (System.nanoTime() - start) / batches;
+			System.out.printf("%5d  %15d  %20d%n", depth, perRollback, perRollback / depth);
+		}
+		System.out.println("(sink " + sink + ")");
+	}
+
+	/**
+	 * Plays rollbacks of one depth on a fresh view. Each batch of real inputs is a move
+	 * followed by {@code depth} ticks, so the first predicted tick is always wrong and the
+	 * view is not left ahead of the real inputs.
+	 */
+	private static void rollbacks(int depth, int batches)
+	{
+		Engine player = new Engine(42);
+		Rollback view = new Rollback(42);
+		int done = 0;
+
+		player.setRecording(true);
+		while (done < batches)
+		{
+			if (player.isOver())
+			{
+				player = new Engine(42);
+				view = new Rollback(42);
+				player.setRecording(true);
+			}
+
+			for (int i = 0; i < depth; i++)
+				view.predict();
+			player.apply((done & 1) == 0 ? Input.LEFT : Input.RIGHT);
+			for (int i = 0; i < depth; i++)
+				player.apply(Input.TICK);
+
+			if (!view.receive(player.takeInputs()))
+				throw new IllegalStateException("The view lost track of the game");
+			done++;
+		}
+		sink += view.getRollbacks() + view.getMaxDepth();
+	}
+
+	/**
+	 * @return a game with a few pieces on the board.
+	 */
+	private static Engine midGame()
+	{
+		Engine engine = new Engine(7);
+		Random inputs = new Random(7);
+
+		for (int i = 0; i < 300 && !engine.isOver(); i++)
+			engine.apply(Input.values()[inputs.nextInt(Input.values().length)]);
+		return engine;
+	}
+}
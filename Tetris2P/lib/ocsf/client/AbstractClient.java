@@ -6,6 +6,17 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.ThreadFactory;
+
+import ocsf.common.DatagramLink;
+import ocsf.common.DatagramOffer;
+import ocsf.common.DatagramTransport;
+import ocsf.common.LatencyStats;
+import ocsf.common.NetworkConditions;
+import ocsf.common.Ping;
+import ocsf.common.SharedFrame;
+import ocsf.common.SimulatedOutputStream;
+import ocsf.common.StreamSegment;
 
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
@@ -19,6 +30,12 @@ import java.net.*;
  * Several public service methods are provided to application that use this
  * framework.
  * <p>
+ * When the server takes datagrams, the client opens a datagram link to it
+ * on its own. Streams may then be sent with <code>sendStream</code>, and the
+ * server's streams reach <code>handleMessageFromServer</code> as
+ * <code>StreamSegment</code> instances. Messages from the connection and from
+ * the link are handled one at a time.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -55,12 +72,45 @@ public abstract class AbstractClient implements Runnable {
 	 */
 	private Thread				clientReader;
 
+	/**
+	 * Makes the thread reading from the server, or null for a platform
+	 * thread.
+	 */
+	private volatile ThreadFactory	readerFactory;
+
 	/**
 	 * Indicates if the thread is ready to stop. Needed so that the loop in the
 	 * run method knows when to stop waiting for incoming messages.
 	 */
 	private boolean				readyToStop	= false;
 
+	/**
+	 * Round trip times and clock offset measured by this client's pings.
+	 */
+	private final LatencyStats	latency		= new LatencyStats();
+
+	/**
+	 * Carries the datagrams to the server, once the server offered them.
+	 */
+	private volatile DatagramTransport	datagrams;
+
+	/**
+	 * The link to the server over <code>datagrams</code>.
+	 */
+	private volatile DatagramLink	datagramLink;
+
+	/**
+	 * The simulated network everything sent to the server goes through,
+	 * over the connection and datagrams. Perfect by default.
+	 */
+	private final NetworkConditions	conditions	= new NetworkConditions();
+
+	/**
+	 * Held while a message is handled, so that the messages read from the
+	 * connection and from the datagram link are handled one at a time.
+	 */
+	private final Object		handlerLock	= new Object();
+
 	/**
 	 * The server's host name.
 	 */
@@ -104,7 +154,8 @@ public abstract class AbstractClient implements Runnable {
 		// Create the sockets and the data streams
 		try {
 			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
+			clientSocket.setTcpNoDelay(true); // Small messages leave at once, not after the peer's delayed ack
+			output = new ObjectOutputStream(new SimulatedOutputStream(clientSocket.getOutputStream(), conditions));
 			input = new ObjectInputStream(clientSocket.getInputStream());
 		} catch (IOException ex)
 		// All three of the above must be closed when there is a failure
@@ -117,34 +168,138 @@ public abstract class AbstractClient implements Runnable {
 			throw ex; // Rethrow the exception.
 		}
 
-		clientReader = new Thread(this); // Create the data reader thread
+		// Create the data reader thread
+		ThreadFactory factory = readerFactory;
+		clientReader = (factory == null) ? new Thread(this) : factory.newThread(this);
 		readyToStop = false;
+		latency.clear();
 		clientReader.start(); // Start the thread
 	}
 
 	/**
 	 * Sends an object to the server. This is the only way that methods should
-	 * communicate with the server.
+	 * communicate with the server. Safe to call from any thread, since the
+	 * client's thread also answers the server's pings.
 	 * 
 	 * @param msg
 	 *            The message to be sent.
 	 * @exception IOException
 	 *                if an I/O error occurs when sending
 	 */
-	final public void sendToServer(Object msg) throws IOException {
+	final synchronized public void sendToServer(Object msg) throws IOException {
 		if (clientSocket == null || output == null)
 			throw new SocketException("socket does not exist");
 		
+		if (msg instanceof Ping)
+			((Ping) msg).stampSent();
 		output.writeObject(msg);
 		output.flush();
 	}
 
+	/**
+	 * Sends a ping to the server, whose reply is recorded in
+	 * <code>getLatency</code>.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs when sending
+	 */
+	final public void ping() throws IOException {
+		sendToServer(Ping.request());
+	}
+
+	/**
+	 * Returns the round trip times and the offset of the server's clock
+	 * measured by this client's pings.
+	 * 
+	 * @return the latency of the connection.
+	 */
+	final public LatencyStats getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Sends bytes of a stream to the server over the datagram link. They are
+	 * repeated until the server acknowledges them, and may overtake messages
+	 * sent with <code>sendToServer</code>. Once the link stalls, the bytes
+	 * the server did not acknowledge are sent over the connection, as
+	 * <code>StreamSegment</code> instances, and the caller should send the
+	 * rest of the stream there too.
+	 * 
+	 * @param key
+	 *            the stream.
+	 * @param firstSeq
+	 *            the number of the first byte in the stream.
+	 * @param data
+	 *            the bytes.
+	 * @return false if there is no datagram link to the server yet, or it
+	 *         stalled, in which case these bytes are not sent.
+	 */
+	final public boolean sendStream(String key, long firstSeq, byte[] data) {
+		DatagramLink link = datagramLink;
+		if (link == null)
+			return false;
+		if (link.send(key, firstSeq, data))
+			return true;
+
+		try {
+			for (StreamSegment unacked : link.takeUnacked())
+				sendToServer(unacked);
+		} catch (IOException ex) {}
+		return false;
+	}
+
+	/**
+	 * @return true once the server answered on the datagram link.
+	 */
+	final public boolean isDatagramLinkUp() {
+		DatagramLink link = datagramLink;
+		return link != null && link.isEstablished();
+	}
+
+	/**
+	 * @return the datagram link to the server, or null if there is none.
+	 */
+	final public DatagramLink getDatagramLink() {
+		return datagramLink;
+	}
+
+	/**
+	 * Selects how the thread reading from the server is made, for instance
+	 * as a virtual thread when thousands of clients run in one JVM. Applies
+	 * from the next connection.
+	 * 
+	 * @param factory
+	 *            the factory, or null for a platform thread.
+	 */
+	final public void setThreadFactory(ThreadFactory factory) {
+		readerFactory = factory;
+	}
+
+	/**
+	 * @return the simulated network everything sent to the server goes
+	 *         through. Changing it applies at once.
+	 */
+	final public NetworkConditions getNetworkConditions() {
+		return conditions;
+	}
+
+	/**
+	 * Sends everything to the server through a simulated network, for
+	 * testing.
+	 * 
+	 * @param conditions
+	 *            the conditions to copy, or null for none.
+	 */
+	final public void setNetworkConditions(NetworkConditions conditions) {
+		this.conditions.set((conditions == null) ? new NetworkConditions() : conditions);
+	}
+
 	/**
 	 * Reset the object output stream so we can use the same
 	 * buffer repeatedly. This would not normally be used, but is necessary
     * in some circumstances when Java refuses to send data that it thinks has been sent.
 	 */
-	final public void forceResetAfterSend() throws IOException {
+	final synchronized public void forceResetAfterSend() throws IOException {
       output.reset();
 	}
 
@@ -240,10 +395,32 @@ public abstract class AbstractClient implements Runnable {
 				// The thread waits indefinitely at the following
 				// statement until something is received from the server
 				msg = input.readObject();
+				long received = System.nanoTime();
+				// Pings are answered here, as soon as they are read
+				if (msg instanceof Ping) {
+					Ping ping = (Ping) msg;
+					if (ping.isReply())
+						latency.add(ping, received);
+					else
+						sendToServer(ping.reply(received));
+					continue;
+				}
+
+				// The server takes datagrams too
+				if (msg instanceof DatagramOffer) {
+					openDatagrams((DatagramOffer) msg);
+					continue;
+				}
+
+				// Messages the server encoded once for many clients
+				if (msg instanceof SharedFrame)
+					msg = ((SharedFrame) msg).decode();
 
 				// Concrete subclasses do what they want with the
 				// msg by implementing the following method
-				handleMessageFromServer(msg);
+				synchronized (handlerLock) {
+					handleMessageFromServer(msg);
+				}
 			}
 		} catch (Exception exception) {
 			if (!readyToStop) {
@@ -299,6 +476,45 @@ public abstract class AbstractClient implements Runnable {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Opens a datagram link to the server, which says hello until the
+	 * server answers. Datagrams are only ever a shortcut, so the client
+	 * does without them if the socket cannot be opened.
+	 * 
+	 * @param offer
+	 *            where to send the datagrams, and the token to send.
+	 */
+	private void openDatagrams(DatagramOffer offer) {
+		closeDatagrams();
+
+		try {
+			DatagramTransport transport = new DatagramTransport(new DatagramSocket(),
+					new DatagramTransport.Receiver() {
+						public void received(DatagramLink link, StreamSegment segment) {
+							synchronized (handlerLock) {
+								handleMessageFromServer(segment);
+							}
+						}
+					});
+			transport.setConditions(conditions);
+			datagrams = transport;
+			datagramLink = transport.open(offer.getToken(),
+					new InetSocketAddress(clientSocket.getInetAddress(), offer.getPort()));
+		} catch (IOException ex) {}
+	}
+
+	/**
+	 * Closes the datagram link, if any.
+	 */
+	private void closeDatagrams() {
+		DatagramTransport transport = datagrams;
+
+		datagramLink = null;
+		datagrams = null;
+		if (transport != null)
+			transport.close();
+	}
+
 	/**
 	 * Closes all aspects of the connection to the server.
 	 * 
@@ -306,6 +522,8 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when closing.
 	 */
 	private void closeAll() throws IOException {
+		closeDatagrams();
+
 		try {
 			// Close the socket
 			if (clientSocket != null)
@@ -0,0 +1,631 @@
+package ocsf.common;
+
+import java.io.*;
+import java.net.SocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The <code> DatagramLink </code> class carries byte streams to one peer in
+ * datagrams, for data that must arrive as soon as possible, such as a game's
+ * inputs, rather than in the order of a connection. Each side of a link has
+ * its own; the server's is tied to a client's connection by a token, see
+ * <code>DatagramOffer</code>.
+ * <p>
+ * Every datagram is numbered and acknowledges the latest datagram received
+ * from the peer along with the 32 before it, one bit each, so one datagram
+ * that arrives is enough to acknowledge the ones whose acknowledgement was
+ * lost. Streams are named by a key and their bytes numbered by the sender.
+ * Every datagram repeats all the bytes of each stream that the peer has not
+ * acknowledged yet, the newest along with the oldest, so a lost datagram is
+ * made up for by the next one and new bytes do not wait for the old ones to
+ * be acknowledged. Only a stream too far behind to fit in a datagram sends
+ * its oldest bytes first, as many as fit, so that they are still delivered in
+ * order, and goes after the other streams in the next datagram. Until
+ * everything is acknowledged, the link sends a datagram every
+ * <code>RESEND_INTERVAL</code> of its transport even with nothing new to
+ * send. The receiver delivers each byte once, in order,
+ * and acknowledges a datagram carrying bytes at once.
+ * <p>
+ * A link whose peer acknowledges nothing for <code>STALL_TIMEOUT</code> while
+ * bytes are waiting is stalled: it is no longer established, and says hello
+ * again until the peer answers. The bytes it could not deliver are kept for
+ * the sender to send another way, see <code>takeUnacked</code>.
+ * <p>
+ * A datagram is a header, <code>MAGIC</code>, the token, flags, its number,
+ * the number of the latest one received and the bits of the ones before,
+ * followed by the segments of the streams: the key, the number of the first
+ * byte, the length and the bytes.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.DatagramTransport
+ */
+public class DatagramLink
+{
+  // CLASS VARIABLES **************************************************
+
+  /**
+   * The largest datagram sent, small enough not to be fragmented.
+   */
+  public static final int MAX_PACKET = 1200;
+
+  /**
+   * How long the peer may acknowledge nothing while bytes are waiting before
+   * the link is taken as stalled, in milliseconds.
+   */
+  public static final long STALL_TIMEOUT = 500;
+
+  /**
+   * The most hellos sent before giving up on the peer.
+   */
+  public static final int MAX_HELLOS = 100;
+
+  /**
+   * Starts every datagram of the framework.
+   */
+  static final int MAGIC = 0x54325055;
+
+  /**
+   * Flag of a datagram asking the peer to answer, to open the link.
+   */
+  private static final int HELLO = 1;
+
+  /**
+   * Flag of a datagram whose acknowledgement fields are set, i.e. whose
+   * sender heard from its peer.
+   */
+  private static final int ACKED = 2;
+
+  /**
+   * The size of the header.
+   */
+  private static final int HEADER = 26;
+
+  /**
+   * The number of datagrams sent that are remembered, to be acknowledged.
+   */
+  private static final int HISTORY = 64;
+
+  /**
+   * The most streams whose delivered position is remembered.
+   */
+  private static final int MAX_KEYS = 64;
+
+  /**
+   * Encodes the keys.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The bytes of a stream that the peer has not acknowledged yet.
+   */
+  private static final class OutStream
+  {
+    /** The key of the stream. */
+    final String key;
+    /** The number of the first unacknowledged byte. */
+    long acked;
+    /** The unacknowledged bytes. */
+    byte[] data = new byte[64];
+    /** The number of unacknowledged bytes. */
+    int length;
+
+    OutStream(String key, long start)
+    {
+      this.key = key;
+      this.acked = start;
+    }
+
+    /** @return the number of the byte after the last one. */
+    long end()
+    {
+      return acked + length;
+    }
+
+    void append(byte[] bytes)
+    {
+      if (length + bytes.length > data.length)
+        data = Arrays.copyOf(data, Math.max(data.length * 2, length + bytes.length));
+      System.arraycopy(bytes, 0, data, length, bytes.length);
+      length += bytes.length;
+    }
+
+    /** Forgets the bytes before a number, once the peer has them. */
+    void ackTo(long end)
+    {
+      int done = (int) Math.min(length, end - acked);
+      if (done <= 0)
+        return;
+      System.arraycopy(data, done, data, 0, length - done);
+      length -= done;
+      acked += done;
+    }
+  }
+
+  // INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The transport the link sends through.
+   */
+  private final DatagramTransport transport;
+
+  /**
+   * Ties the link's datagrams to it.
+   */
+  private final long token;
+
+  /**
+   * Where the peer is, or null until it says hello.
+   */
+  private volatile SocketAddress remote;
+
+  /**
+   * True once a datagram was received from the peer.
+   */
+  private volatile boolean established;
+
+  /**
+   * True once the link is closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * The number of hellos sent.
+   */
+  private int hellos;
+
+  /**
+   * When the peer last acknowledged bytes, or bytes started waiting for it,
+   * in nanoseconds.
+   */
+  private long progressNanos;
+
+  /**
+   * The number of the next datagram sent.
+   */
+  private int localSeq;
+
+  /**
+   * The streams with unacknowledged bytes, by key.
+   */
+  private final Map<String, OutStream> outgoing = new LinkedHashMap<String, OutStream>();
+
+  /**
+   * The number of each datagram remembered, by its number modulo
+   * <code>HISTORY</code>.
+   */
+  private final int[] sentSeqs = new int[HISTORY];
+
+  /**
+   * The streams each remembered datagram carried.
+   */
+  private final OutStream[][] sentStreams = new OutStream[HISTORY][];
+
+  /**
+   * Where each stream carried by each remembered datagram ended.
+   */
+  private final long[][] sentEnds = new long[HISTORY][];
+
+  /**
+   * The number of the latest datagram received.
+   */
+  private int remoteSeq;
+
+  /**
+   * Bit i is set if datagram <code>remoteSeq - 1 - i</code> was received.
+   */
+  private int remoteBits;
+
+  /**
+   * The number of the next byte to deliver of every stream, the least
+   * recently used dropped first.
+   */
+  private final Map<String, Long> expected = new LinkedHashMap<String, Long>(16, 0.75f, true)
+    {
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+      {
+        return size() > MAX_KEYS;
+      }
+    };
+
+  /**
+   * The number of datagrams sent.
+   */
+  private long packetsSent;
+
+  /**
+   * The number of datagrams received.
+   */
+  private long packetsReceived;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Creates a link. Use <code>DatagramTransport.open</code>.
+   *
+   * @param transport the transport the link sends through.
+   * @param token ties the link's datagrams to it.
+   * @param remote the peer's address, or null to learn it from its hello.
+   */
+  DatagramLink(DatagramTransport transport, long token, SocketAddress remote)
+  {
+    this.transport = transport;
+    this.token = token;
+    this.remote = remote;
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Sends bytes of a stream. They are sent at once and repeated until the
+   * peer acknowledges them. Bytes that do not follow the ones sent before
+   * start the stream over.
+   *
+   * @param key the stream.
+   * @param firstSeq the number of the first byte in the stream.
+   * @param data the bytes.
+   * @return false if the link is not open or stalled, in which case nothing
+   *         is sent.
+   */
+  public synchronized boolean send(String key, long firstSeq, byte[] data)
+  {
+    if (!established || closed || stalled())
+      return false;
+
+    if (outgoing.isEmpty())
+      progressNanos = System.nanoTime();
+    OutStream stream = outgoing.get(key);
+    if (stream == null || stream.end() != firstSeq)
+    {
+      stream = new OutStream(key, firstSeq);
+      outgoing.put(key, stream);
+    }
+    stream.append(data);
+    flush(0);
+    return true;
+  }
+
+  /**
+   * Takes the bytes the peer did not acknowledge, of every stream, so that a
+   * stalled link's bytes can be sent another way. The link forgets them.
+   *
+   * @return the bytes of each stream, from the first one not acknowledged.
+   */
+  public synchronized List<StreamSegment> takeUnacked()
+  {
+    List<StreamSegment> unacked = new ArrayList<StreamSegment>(outgoing.size());
+    for (OutStream stream : outgoing.values())
+      unacked.add(new StreamSegment(stream.key, stream.acked, Arrays.copyOf(stream.data, stream.length)));
+    outgoing.clear();
+    return unacked;
+  }
+
+  /**
+   * Closes the link. It can no longer send, and its peer's datagrams are
+   * ignored.
+   */
+  public void close()
+  {
+    closed = true;
+    transport.remove(this);
+  }
+
+  /**
+   * Says hello until the peer answers, then resends what the peer has not
+   * acknowledged. Called by the transport's timer.
+   */
+  synchronized void tick()
+  {
+    if (closed)
+      return;
+
+    if (!established || stalled())
+    {
+      if (remote != null && hellos < MAX_HELLOS)
+      {
+        hellos++;
+        flush(HELLO);
+      }
+      return;
+    }
+    if (!outgoing.isEmpty())
+      flush(0);
+  }
+
+  /**
+   * Reads a datagram from the peer. Called by the transport's thread.
+   *
+   * @param buffer the datagram.
+   * @param length its length.
+   * @param from where it came from.
+   * @return the bytes not delivered before, to hand to the receiver.
+   * @exception IOException if the datagram is malformed.
+   */
+  List<StreamSegment> receive(byte[] buffer, int length, SocketAddress from) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, 12, length - 12));
+
+    int flags = in.readUnsignedByte();
+    int seq = in.readInt();
+    int ack = in.readInt();
+    int ackBits = in.readInt();
+    int count = in.readUnsignedByte();
+
+    String[] keys = new String[count];
+    long[] firsts = new long[count];
+    byte[][] datas = new byte[count][];
+    for (int i = 0; i < count; i++)
+    {
+      byte[] key = new byte[in.readUnsignedShort()];
+      in.readFully(key);
+      keys[i] = new String(key, UTF8);
+      firsts[i] = in.readLong();
+      datas[i] = new byte[in.readUnsignedShort()];
+      in.readFully(datas[i]);
+    }
+
+    synchronized (this)
+    {
+      if (closed)
+        return Collections.emptyList();
+
+      remote = from;
+      markReceived(seq);
+      established = true;
+      packetsReceived++;
+
+      if ((flags & ACKED) != 0)
+      {
+        for (int i = 0; i <= 32; i++)
+        {
+          if (i == 0 || (ackBits & (1 << (i - 1))) != 0)
+            acknowledge(ack - i);
+        }
+      }
+
+      List<StreamSegment> delivered = new ArrayList<StreamSegment>(count);
+      for (int i = 0; i < count; i++)
+      {
+        Long next = expected.get(keys[i]);
+        long first = firsts[i];
+        long end = first + datas[i].length;
+
+        if (next == null || first > next)
+          delivered.add(new StreamSegment(keys[i], first, datas[i]));
+        else if (end > next)
+          delivered.add(new StreamSegment(keys[i], next,
+            Arrays.copyOfRange(datas[i], (int) (next - first), datas[i].length)));
+        else
+          continue;
+        expected.put(keys[i], end);
+      }
+
+      // Bytes and hellos are acknowledged at once
+      if (count > 0 || (flags & HELLO) != 0)
+        flush(0);
+      return delivered;
+    }
+  }
+
+  /**
+   * Reads the token of a datagram.
+   *
+   * @param buffer the datagram.
+   * @param length its length.
+   * @return the token, or 0 if the datagram is not one of the framework's.
+   */
+  static long tokenOf(byte[] buffer, int length)
+  {
+    if (length < HEADER || readInt(buffer, 0) != MAGIC)
+      return 0;
+
+    return ((long) readInt(buffer, 4) << 32) | (readInt(buffer, 8) & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Reads a big-endian int.
+   */
+  private static int readInt(byte[] buffer, int at)
+  {
+    return ((buffer[at] & 0xFF) << 24) | ((buffer[at + 1] & 0xFF) << 16)
+      | ((buffer[at + 2] & 0xFF) << 8) | (buffer[at + 3] & 0xFF);
+  }
+
+  /**
+   * Takes the link down if the peer acknowledged nothing for too long while
+   * bytes are waiting.
+   *
+   * @return true if the link is stalled.
+   */
+  private boolean stalled()
+  {
+    if (outgoing.isEmpty() || System.nanoTime() - progressNanos < STALL_TIMEOUT * 1000000)
+      return false;
+
+    established = false;
+    hellos = 0;
+    return true;
+  }
+
+  /**
+   * Records that a datagram was received, to acknowledge it.
+   */
+  private void markReceived(int seq)
+  {
+    if (!established)
+    {
+      remoteSeq = seq;
+      remoteBits = 0;
+      return;
+    }
+
+    int ahead = seq - remoteSeq;
+    if (ahead > 0)
+    {
+      remoteBits = (ahead < 32 ? remoteBits << ahead : 0) | (ahead <= 32 ? 1 << (ahead - 1) : 0);
+      remoteSeq = seq;
+    }
+    else if (ahead < 0 && ahead >= -32)
+      remoteBits |= 1 << (-ahead - 1);
+  }
+
+  /**
+   * Forgets the bytes a datagram carried, now that the peer has them.
+   */
+  private void acknowledge(int seq)
+  {
+    int slot = seq & (HISTORY - 1);
+    OutStream[] streams = sentStreams[slot];
+
+    if (sentSeqs[slot] != seq || streams == null)
+      return;
+
+    for (int i = 0; i < streams.length; i++)
+    {
+      if (sentEnds[slot][i] > streams[i].acked)
+        progressNanos = System.nanoTime();
+      streams[i].ackTo(sentEnds[slot][i]);
+      if (streams[i].length == 0 && outgoing.get(streams[i].key) == streams[i])
+        outgoing.remove(streams[i].key);
+    }
+    sentStreams[slot] = null;
+  }
+
+  /**
+   * Sends a datagram with the acknowledgements and the unacknowledged bytes
+   * of as many streams as fit, all of them unless a stream is too far behind.
+   */
+  private void flush(int flags)
+  {
+    if (closed)
+      return;
+
+    try
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER + 64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      List<OutStream> carried = new ArrayList<OutStream>();
+      long[] ends = new long[Math.min(outgoing.size(), 255)];
+      int room = MAX_PACKET - HEADER;
+
+      out.writeInt(MAGIC);
+      out.writeLong(token);
+      out.writeByte(flags | (established ? ACKED : 0));
+      out.writeInt(localSeq);
+      out.writeInt(remoteSeq);
+      out.writeInt(remoteBits);
+
+      ByteArrayOutputStream segments = new ByteArrayOutputStream();
+      DataOutputStream segment = new DataOutputStream(segments);
+      OutStream behind = null;
+      for (OutStream stream : outgoing.values())
+      {
+        byte[] key = stream.key.getBytes(UTF8);
+        int length = Math.min(stream.length, room - (2 + key.length + 8 + 2));
+        int size = 2 + key.length + 8 + 2 + length;
+
+        if (length <= 0 || carried.size() == ends.length)
+          continue;
+
+        segment.writeShort(key.length);
+        segment.write(key);
+        segment.writeLong(stream.acked);
+        segment.writeShort(length);
+        segment.write(stream.data, 0, length);
+
+        ends[carried.size()] = stream.acked + length;
+        carried.add(stream);
+        room -= size;
+        if (length < stream.length && behind == null)
+          behind = stream;
+      }
+      // The others go first next time
+      if (behind != null)
+      {
+        outgoing.remove(behind.key);
+        outgoing.put(behind.key, behind);
+      }
+      out.writeByte(carried.size());
+      segments.writeTo(out);
+
+      int slot = localSeq & (HISTORY - 1);
+      sentSeqs[slot] = localSeq;
+      sentStreams[slot] = carried.isEmpty() ? null : carried.toArray(new OutStream[carried.size()]);
+      sentEnds[slot] = ends;
+      localSeq++;
+      packetsSent++;
+
+      transport.send(bytes.toByteArray(), remote);
+    }
+    catch (IOException ex) {} // Writing to memory does not fail
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the token tying the link's datagrams to it.
+   */
+  public long getToken()
+  {
+    return token;
+  }
+
+  /**
+   * @return true once the peer answered, so that the link can send.
+   */
+  public boolean isEstablished()
+  {
+    return established && !closed;
+  }
+
+  /**
+   * @return where the peer is, or null until it says hello.
+   */
+  public SocketAddress getRemoteAddress()
+  {
+    return remote;
+  }
+
+  /**
+   * @return the number of bytes the peer has not acknowledged yet.
+   */
+  public synchronized int getUnackedBytes()
+  {
+    int total = 0;
+    for (OutStream stream : outgoing.values())
+      total += stream.length;
+    return total;
+  }
+
+  /**
+   * @return the number of datagrams sent.
+   */
+  public synchronized long getPacketsSent()
+  {
+    return packetsSent;
+  }
+
+  /**
+   * @return the number of datagrams received.
+   */
+  public synchronized long getPacketsReceived()
+  {
+    return packetsReceived;
+  }
+
+  /**
+   * @return the state and traffic of the link, for display.
+   */
+  public String toString()
+  {
+    return (isEstablished() ? "up" : "down") + " sent " + getPacketsSent()
+      + " received " + getPacketsReceived() + " unacked " + getUnackedBytes() + "B";
+  }
+}
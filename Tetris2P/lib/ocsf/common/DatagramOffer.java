@@ -0,0 +1,77 @@
+package ocsf.common;
+
+import java.io.Serializable;
+
+/**
+ * The <code> DatagramOffer </code> class is sent by the server to a client
+ * that just connected, when the server also takes datagrams. It tells the
+ * client where to send them and the token that ties them to the client's
+ * connection. The client answers on its own by opening a datagram link, so
+ * an offer never reaches the message handlers.
+ * <p>
+ * The token is only ever sent over the connection, so a datagram carrying it
+ * comes from the client, or from someone who can read its connection.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.DatagramLink
+ */
+public final class DatagramOffer implements Serializable
+{
+  // CLASS VARIABLES **************************************************
+
+  private static final long serialVersionUID = 1L;
+
+  // INSTANCE VARIABLES ***********************************************
+
+  /**
+   * Ties the client's datagrams to its connection.
+   */
+  private final long token;
+
+  /**
+   * The port the server takes datagrams on.
+   */
+  private final int port;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Creates an offer.
+   *
+   * @param token ties the client's datagrams to its connection.
+   * @param port the port the server takes datagrams on.
+   */
+  public DatagramOffer(long token, int port)
+  {
+    this.token = token;
+    this.port = port;
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the token tying the client's datagrams to its connection.
+   */
+  public long getToken()
+  {
+    return token;
+  }
+
+  /**
+   * @return the port the server takes datagrams on.
+   */
+  public int getPort()
+  {
+    return port;
+  }
+
+  /**
+   * @return a short description of the offer, for traces.
+   */
+  public String toString()
+  {
+    return "DatagramOffer port " + port;
+  }
+}
@@ -0,0 +1,403 @@
+package ocsf.common;
+
+import java.io.*;
+import java.net.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code> DatagramTransport </code> class owns a datagram socket and the
+ * links to the peers it talks to over it. The server has one for all its
+ * clients, a client one for its link to the server.
+ * <p>
+ * A thread reads every datagram and hands it to the link whose token it
+ * carries; datagrams with an unknown token are ignored. The segments the
+ * link delivers are passed to the receiver on that same thread, in the
+ * order they are delivered. A timer makes every link resend what its peer
+ * has not acknowledged yet, and say hello until its peer answers.
+ * <p>
+ * Every datagram sent goes through the transport's
+ * <code>NetworkConditions</code>, which may drop it or hold it back.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.DatagramLink
+ */
+public class DatagramTransport
+{
+  // CLASS VARIABLES **************************************************
+
+  /**
+   * How often links resend what was not acknowledged, in milliseconds.
+   */
+  public static final long RESEND_INTERVAL = 30;
+
+  /**
+   * The longest a datagram waits for the simulated link to be free before
+   * it is dropped, in nanoseconds, as a router's full queue would.
+   */
+  private static final long MAX_QUEUE_NANOS = 1000000000L;
+
+  /**
+   * Where the threads of every transport are numbered from.
+   */
+  private static final AtomicLong nextId = new AtomicLong();
+
+  /**
+   * What a transport hands the segments its links deliver to.
+   */
+  public interface Receiver
+  {
+    /**
+     * Called on the transport's thread for every segment delivered.
+     *
+     * @param link the link the segment came in on.
+     * @param segment the bytes not delivered before.
+     */
+    void received(DatagramLink link, StreamSegment segment);
+  }
+
+  // INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The socket every link sends and receives on.
+   */
+  private final DatagramSocket socket;
+
+  /**
+   * Where delivered segments go.
+   */
+  private final Receiver receiver;
+
+  /**
+   * The links, by token.
+   */
+  private final Map<Long, DatagramLink> links =
+    new ConcurrentHashMap<Long, DatagramLink>();
+
+  /**
+   * Resends for the links, and sends the datagrams held back by the
+   * simulated conditions.
+   */
+  private final ScheduledExecutorService timer;
+
+  /**
+   * The thread reading the socket.
+   */
+  private final Thread reader;
+
+  /**
+   * The simulated network the datagrams are sent through.
+   */
+  private volatile NetworkConditions conditions = new NetworkConditions();
+
+  /**
+   * When the simulated link is done sending the datagrams before, from
+   * System.nanoTime. Guarded by the transport.
+   */
+  private long linkFree;
+
+  /**
+   * Set once the transport is closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Datagrams sent, not counting the ones dropped on purpose.
+   */
+  private final AtomicLong packetsSent = new AtomicLong();
+
+  /**
+   * Datagrams dropped by the simulated conditions.
+   */
+  private final AtomicLong packetsDropped = new AtomicLong();
+
+  /**
+   * Datagrams received for a known link.
+   */
+  private final AtomicLong packetsReceived = new AtomicLong();
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Starts using a socket.
+   *
+   * @param socket the socket, already bound.
+   * @param receiver where delivered segments go.
+   */
+  public DatagramTransport(DatagramSocket socket, Receiver receiver)
+  {
+    this.socket = socket;
+    this.receiver = receiver;
+
+    final String name = "DatagramTransport-" + nextId.incrementAndGet();
+    timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+        public Thread newThread(Runnable task)
+        {
+          Thread thread = new Thread(task, name + " timer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    timer.scheduleAtFixedRate(new Runnable()
+      {
+        public void run()
+        {
+          for (DatagramLink link : links.values())
+            link.tick();
+        }
+      }, RESEND_INTERVAL, RESEND_INTERVAL, TimeUnit.MILLISECONDS);
+
+    reader = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          receiveLoop();
+        }
+      }, name);
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Creates a link. A link given its peer's address says hello until the
+   * peer answers; one without waits for the peer's hello.
+   *
+   * @param token the token the link's datagrams carry.
+   * @param remote the peer's address, or null to learn it from the peer.
+   * @return the link.
+   */
+  public DatagramLink open(long token, SocketAddress remote)
+  {
+    DatagramLink link = new DatagramLink(this, token, remote);
+    links.put(token, link);
+    link.tick();
+    return link;
+  }
+
+  /**
+   * Forgets a link. Its datagrams are ignored from now on.
+   *
+   * @param link the link.
+   */
+  public void remove(DatagramLink link)
+  {
+    links.remove(link.getToken(), link);
+  }
+
+  /**
+   * Closes the socket and stops the threads. Links can no longer send.
+   */
+  public void close()
+  {
+    closed = true;
+    links.clear();
+    timer.shutdownNow();
+    socket.close();
+  }
+
+  /**
+   * Sends a datagram through the simulated conditions.
+   *
+   * @param data the datagram.
+   * @param to where it goes.
+   */
+  void send(byte[] data, final SocketAddress to)
+  {
+    if (closed || to == null)
+      return;
+
+    NetworkConditions simulated = conditions;
+    if (simulated.drop())
+    {
+      packetsDropped.incrementAndGet();
+      return;
+    }
+
+    // With a bandwidth limit, datagrams queue for the link
+    long delay = simulated.nextDelay() * 1000000;
+    long transmit = simulated.transmitNanos(data.length);
+    if (transmit > 0)
+    {
+      long now = System.nanoTime();
+      synchronized (this)
+      {
+        long start = Math.max(now, linkFree);
+        if (start - now > MAX_QUEUE_NANOS)
+        {
+          packetsDropped.incrementAndGet();
+          return;
+        }
+        linkFree = start + transmit;
+        delay += linkFree - now;
+      }
+    }
+
+    final DatagramPacket packet = new DatagramPacket(data, data.length, to);
+    if (delay == 0)
+    {
+      write(packet);
+      return;
+    }
+
+    try
+    {
+      timer.schedule(new Runnable()
+        {
+          public void run()
+          {
+            write(packet);
+          }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+    catch (Exception ex) {} // The transport closed in the meantime
+  }
+
+  /**
+   * Writes a datagram to the socket.
+   */
+  private void write(DatagramPacket packet)
+  {
+    try
+    {
+      socket.send(packet);
+      packetsSent.incrementAndGet();
+    }
+    catch (IOException ex)
+    {
+      if (!closed)
+        ServerLog.log(ServerLog.Level.DEBUG, "Could not send a datagram to " + packet.getSocketAddress(), ex);
+    }
+  }
+
+  /**
+   * Reads datagrams until the transport is closed.
+   */
+  private void receiveLoop()
+  {
+    byte[] buffer = new byte[DatagramLink.MAX_PACKET];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+    while (!closed)
+    {
+      try
+      {
+        packet.setLength(buffer.length);
+        socket.receive(packet);
+
+        DatagramLink link = links.get(DatagramLink.tokenOf(buffer, packet.getLength()));
+        if (link == null)
+          continue;
+
+        packetsReceived.incrementAndGet();
+        for (StreamSegment segment : link.receive(buffer, packet.getLength(), packet.getSocketAddress()))
+          receiver.received(link, segment);
+      }
+      catch (IOException ex)
+      {
+        if (!closed)
+          ServerLog.log(ServerLog.Level.DEBUG, "Could not read a datagram", ex);
+      }
+      catch (RuntimeException ex)
+      {
+        ServerLog.log(ServerLog.Level.ERROR, "Datagram handler failed", ex);
+      }
+    }
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the simulated network the datagrams are sent through.
+   */
+  public NetworkConditions getConditions()
+  {
+    return conditions;
+  }
+
+  /**
+   * Sends the datagrams through a simulated network, for testing. The
+   * conditions may be shared with other transports and streams.
+   *
+   * @param conditions the conditions, or null for none.
+   */
+  public void setConditions(NetworkConditions conditions)
+  {
+    this.conditions = (conditions == null) ? new NetworkConditions() : conditions;
+  }
+
+  /**
+   * @return the link with a token, or null.
+   */
+  public DatagramLink getLink(long token)
+  {
+    return links.get(token);
+  }
+
+  /**
+   * @return the number of links.
+   */
+  public int getNumberOfLinks()
+  {
+    return links.size();
+  }
+
+  /**
+   * @return the port the socket is bound to.
+   */
+  public int getLocalPort()
+  {
+    return socket.getLocalPort();
+  }
+
+  /**
+   * @return true once the transport is closed.
+   */
+  public boolean isClosed()
+  {
+    return closed;
+  }
+
+  /**
+   * @return the datagrams sent, not counting the ones dropped on purpose.
+   */
+  public long getPacketsSent()
+  {
+    return packetsSent.get();
+  }
+
+  /**
+   * @return the datagrams dropped by the simulated conditions.
+   */
+  public long getPacketsDropped()
+  {
+    return packetsDropped.get();
+  }
+
+  /**
+   * @return the datagrams received for a known link.
+   */
+  public long getPacketsReceived()
+  {
+    return packetsReceived.get();
+  }
+
+  /**
+   * @return the transport's traffic and conditions, for display.
+   */
+  public String toString()
+  {
+    return "port " + getLocalPort() + " links " + getNumberOfLinks()
+      + " sent " + getPacketsSent() + " received " + getPacketsReceived()
+      + " dropped " + getPacketsDropped() + ", " + conditions;
+  }
+}
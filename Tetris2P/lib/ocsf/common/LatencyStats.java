@@ -0,0 +1,223 @@
+package ocsf.common;
+
+import java.util.Arrays;
+
+/**
+ * The <code> LatencyStats </code> class keeps the round trip times and
+ * clock offsets measured by the pings of one connection. Each side of a
+ * connection has its own, fed by the replies to its own pings.
+ * <p>
+ * For a ping written at <code>t0</code>, read by the peer at
+ * <code>t1</code>, answered at <code>t2</code> and the answer read at
+ * <code>t3</code>, the round trip time is <code>(t3 - t0) - (t2 - t1)</code>,
+ * which leaves out the time the peer took to answer, and the offset of the
+ * peer's clock is <code>((t1 - t0) + (t2 - t3)) / 2</code>, exact when the
+ * trip takes as long both ways. As NTP does, the offset given is the one of
+ * the fastest recent round trip, the least likely to have been delayed one
+ * way only. Jitter is the mean deviation between consecutive round trips,
+ * smoothed as in RFC 3550.
+ * <p>
+ * Only the latest <code>WINDOW</code> samples are kept, so percentiles
+ * follow the current state of the connection.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Ping
+ */
+public class LatencyStats
+{
+  // CLASS VARIABLES **************************************************
+
+  /**
+   * The number of samples kept.
+   */
+  public static final int WINDOW = 128;
+
+  // INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The latest round trip times, in nanoseconds, in a ring.
+   */
+  private final long[] rtts = new long[WINDOW];
+
+  /**
+   * The peer's clock offset measured with each round trip, in nanoseconds.
+   */
+  private final long[] offsets = new long[WINDOW];
+
+  /**
+   * Where the next sample goes in the ring.
+   */
+  private int next;
+
+  /**
+   * The number of samples in the ring.
+   */
+  private int count;
+
+  /**
+   * The number of samples ever added.
+   */
+  private long samples;
+
+  /**
+   * The latest round trip time, or -1 before the first.
+   */
+  private long lastRtt = -1;
+
+  /**
+   * The smoothed jitter, in nanoseconds.
+   */
+  private long jitter;
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Records the reply to one of this side's pings.
+   *
+   * @param reply the reply.
+   * @param received when the reply was read, from System.nanoTime.
+   */
+  public synchronized void add(Ping reply, long received)
+  {
+    long rtt = (received - reply.getRequestSent())
+      - (reply.getReplySent() - reply.getRequestReceived());
+    long offset = ((reply.getRequestReceived() - reply.getRequestSent())
+      + (reply.getReplySent() - received)) / 2;
+
+    if (rtt < 0)
+      rtt = 0;
+    if (lastRtt >= 0)
+      jitter += (Math.abs(rtt - lastRtt) - jitter) / 16;
+    lastRtt = rtt;
+
+    rtts[next] = rtt;
+    offsets[next] = offset;
+    next = (next + 1) % WINDOW;
+    if (count < WINDOW)
+      count++;
+    samples++;
+  }
+
+  /**
+   * Forgets every sample, for a new connection.
+   */
+  public synchronized void clear()
+  {
+    next = 0;
+    count = 0;
+    samples = 0;
+    lastRtt = -1;
+    jitter = 0;
+  }
+
+  /**
+   * Returns a percentile of the recent round trip times.
+   *
+   * @param percent the percentile, from 0 to 100.
+   * @return the round trip time in nanoseconds, or -1 without samples.
+   */
+  public synchronized long getRtt(double percent)
+  {
+    long[] sorted = Arrays.copyOf(rtts, count);
+    Arrays.sort(sorted);
+    return percentile(sorted, count, percent);
+  }
+
+  /**
+   * Copies the recent round trip times, to be merged with other
+   * connections'.
+   *
+   * @param into where to copy them, with room for <code>WINDOW</code> more.
+   * @param at the index of the first one.
+   * @return the number copied.
+   */
+  public synchronized int copyRtts(long[] into, int at)
+  {
+    System.arraycopy(rtts, 0, into, at, count);
+    return count;
+  }
+
+  /**
+   * Returns the offset of the peer's clock from this side's, measured by
+   * the fastest recent round trip. Adding it to a local System.nanoTime
+   * gives the same instant on the peer's System.nanoTime.
+   *
+   * @return the offset in nanoseconds, 0 without samples.
+   */
+  public synchronized long getOffset()
+  {
+    int best = -1;
+    for (int i = 0; i < count; i++)
+    {
+      if (best < 0 || rtts[i] < rtts[best])
+        best = i;
+    }
+    return best < 0 ? 0 : offsets[best];
+  }
+
+  /**
+   * @return the latest round trip time in nanoseconds, or -1 before the first.
+   */
+  public synchronized long getLastRtt()
+  {
+    return lastRtt;
+  }
+
+  /**
+   * @return the smoothed jitter in nanoseconds.
+   */
+  public synchronized long getJitter()
+  {
+    return jitter;
+  }
+
+  /**
+   * @return the number of samples ever recorded.
+   */
+  public synchronized long getSamples()
+  {
+    return samples;
+  }
+
+  /**
+   * Returns a percentile of sorted values, by nearest rank.
+   *
+   * @param sorted the values, sorted.
+   * @param length the number of values.
+   * @param percent the percentile, from 0 to 100.
+   * @return the value, or -1 if there are none.
+   */
+  public static long percentile(long[] sorted, int length, double percent)
+  {
+    if (length == 0)
+      return -1;
+
+    int rank = (int) Math.ceil(percent / 100 * length) - 1;
+    return sorted[Math.max(0, Math.min(length - 1, rank))];
+  }
+
+  /**
+   * Formats nanoseconds as milliseconds, for display.
+   *
+   * @param nanos the time.
+   * @return the time in milliseconds with one decimal.
+   */
+  public static String millis(long nanos)
+  {
+    return String.format("%.1fms", nanos / 1e6);
+  }
+
+  /**
+   * @return the percentiles, jitter and offset, for display.
+   */
+  public String toString()
+  {
+    if (getSamples() == 0)
+      return "no round trip measured yet";
+
+    return "rtt p50 " + millis(getRtt(50)) + " p99 " + millis(getRtt(99))
+      + " jitter " + millis(getJitter()) + " clock offset " + millis(getOffset());
+  }
+}
@@ -0,0 +1,245 @@
+package ocsf.common;
+
+import java.util.Random;
+
+/**
+ * The <code> NetworkConditions </code> class simulates a worse network than
+ * the one actually used, so that the framework can be tried on loopback as
+ * it would behave over the Internet. A transport asks it, for every packet
+ * it sends, whether to drop the packet and how long to hold it back.
+ * <p>
+ * Every packet is delayed by the base delay plus or minus a uniform jitter,
+ * so datagrams sent close together may arrive out of order, as they do on a
+ * real network. Lost packets are picked at random. With a bandwidth set,
+ * packets also wait for the ones before them to be sent. The conditions may
+ * be changed while in use, and shared by several transports; a transport
+ * without conditions sends everything at once.
+ * <p>
+ * Each side simulates the network for what it sends: the conditions of a
+ * server apply to everything it sends to its clients, over connections, see
+ * <code>SimulatedOutputStream</code>, and datagrams alike.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.DatagramTransport
+ */
+public class NetworkConditions
+{
+  // INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The delay added to every packet, in milliseconds.
+   */
+  private volatile int delay;
+
+  /**
+   * The most the delay varies by, either way, in milliseconds.
+   */
+  private volatile int jitter;
+
+  /**
+   * The share of packets lost, from 0 to 1.
+   */
+  private volatile double loss;
+
+  /**
+   * The bandwidth of the link, in bytes per second, or 0 for no limit.
+   */
+  private volatile long bandwidth;
+
+  /**
+   * Picks the lost packets and the jitter. Guarded by itself.
+   */
+  private final Random random;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Creates perfect conditions, adding nothing to the network's own.
+   */
+  public NetworkConditions()
+  {
+    this(0, 0, 0);
+  }
+
+  /**
+   * Creates the given conditions.
+   *
+   * @param delay the delay added to every packet, in ms.
+   * @param jitter the most the delay varies by, either way, in ms.
+   * @param lossPercent the percentage of packets lost.
+   */
+  public NetworkConditions(int delay, int jitter, double lossPercent)
+  {
+    this(delay, jitter, lossPercent, new Random());
+  }
+
+  /**
+   * Creates the given conditions, drawn from a given source so that a test
+   * sees the same losses every time.
+   *
+   * @param delay the delay added to every packet, in ms.
+   * @param jitter the most the delay varies by, either way, in ms.
+   * @param lossPercent the percentage of packets lost.
+   * @param random where the losses and the jitter are drawn from.
+   */
+  public NetworkConditions(int delay, int jitter, double lossPercent, Random random)
+  {
+    this.random = random;
+    this.delay = Math.max(0, delay);
+    this.jitter = Math.max(0, jitter);
+    this.loss = Math.max(0, Math.min(100, lossPercent)) / 100;
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return true if the conditions add nothing to the network's own.
+   */
+  public boolean isPerfect()
+  {
+    return delay == 0 && jitter == 0 && loss == 0 && bandwidth == 0;
+  }
+
+  /**
+   * Decides whether the next packet is lost.
+   *
+   * @return true to drop it.
+   */
+  public boolean drop()
+  {
+    if (loss == 0)
+      return false;
+
+    synchronized (random)
+    {
+      return random.nextDouble() < loss;
+    }
+  }
+
+  /**
+   * Draws how long the next packet is held back.
+   *
+   * @return the delay in milliseconds, never negative.
+   */
+  public long nextDelay()
+  {
+    int base = delay;
+    int spread = jitter;
+
+    if (spread == 0)
+      return base;
+
+    synchronized (random)
+    {
+      return Math.max(0, base + random.nextInt(2 * spread + 1) - spread);
+    }
+  }
+
+  /**
+   * Works out how long the link takes to send some bytes.
+   *
+   * @param bytes the number of bytes.
+   * @return the time in nanoseconds, 0 without a bandwidth limit.
+   */
+  public long transmitNanos(int bytes)
+  {
+    long limit = bandwidth;
+    return (limit == 0) ? 0 : bytes * 1000000000L / limit;
+  }
+
+  /**
+   * Copies other conditions, so that everything sharing these sees the
+   * change.
+   *
+   * @param other the conditions to copy.
+   */
+  public void set(NetworkConditions other)
+  {
+    setDelay(other.getDelay());
+    setJitter(other.getJitter());
+    setLossPercent(other.getLossPercent());
+    setBandwidth(other.getBandwidth());
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the delay added to every packet, in ms.
+   */
+  public int getDelay()
+  {
+    return delay;
+  }
+
+  /**
+   * @param delay the delay added to every packet, in ms.
+   */
+  public void setDelay(int delay)
+  {
+    this.delay = Math.max(0, delay);
+  }
+
+  /**
+   * @return the most the delay varies by, either way, in ms.
+   */
+  public int getJitter()
+  {
+    return jitter;
+  }
+
+  /**
+   * @param jitter the most the delay varies by, either way, in ms.
+   */
+  public void setJitter(int jitter)
+  {
+    this.jitter = Math.max(0, jitter);
+  }
+
+  /**
+   * @return the percentage of packets lost.
+   */
+  public double getLossPercent()
+  {
+    return loss * 100;
+  }
+
+  /**
+   * @param lossPercent the percentage of packets lost, from 0 to 100.
+   */
+  public void setLossPercent(double lossPercent)
+  {
+    this.loss = Math.max(0, Math.min(100, lossPercent)) / 100;
+  }
+
+  /**
+   * @return the bandwidth of the link in bytes per second, 0 for no limit.
+   */
+  public long getBandwidth()
+  {
+    return bandwidth;
+  }
+
+  /**
+   * @param bandwidth the bandwidth of the link in bytes per second, 0 for
+   * no limit.
+   */
+  public void setBandwidth(long bandwidth)
+  {
+    this.bandwidth = Math.max(0, bandwidth);
+  }
+
+  /**
+   * @return the conditions, for display.
+   */
+  public String toString()
+  {
+    if (isPerfect())
+      return "no simulated delay or loss";
+
+    return "delay " + delay + "ms jitter " + jitter + "ms loss "
+      + String.format("%.1f", getLossPercent()) + "%"
+      + (bandwidth == 0 ? "" : " bandwidth " + (bandwidth / 1024) + "KB/s");
+  }
+}
@@ -0,0 +1,168 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * The <code> Ping </code> class is a probe exchanged by a client and the
+ * server to measure the round trip time of their connection and the offset
+ * between their clocks. Both sides answer and record pings themselves, so a
+ * ping never reaches the message handlers.
+ * <p>
+ * A request carries the time it was written by its sender. The peer answers
+ * it at once with a reply that also carries the time the request was read
+ * and the time the reply was written. With the time the reply is read, the
+ * sender has the four timestamps of an NTP exchange, see
+ * <code>LatencyStats.add</code>. Every timestamp comes from
+ * <code>System.nanoTime</code>, so the wall clocks of either side, and any
+ * change made to them, play no part.
+ * <p>
+ * On the wire a ping is a flag and three longs.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.LatencyStats
+ */
+public final class Ping implements Serializable
+{
+  // CLASS VARIABLES **************************************************
+
+  private static final long serialVersionUID = 1L;
+
+  // INSTANCE VARIABLES ***********************************************
+
+  /**
+   * True for the answer to a request.
+   */
+  private transient boolean reply;
+
+  /**
+   * When the request was written, on the sender's clock.
+   */
+  private transient long requestSent;
+
+  /**
+   * When the request was read, on the peer's clock. 0 in a request.
+   */
+  private transient long requestReceived;
+
+  /**
+   * When the reply was written, on the peer's clock. 0 in a request.
+   */
+  private transient long replySent;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Builds a ping.
+   *
+   * @param reply true for a reply.
+   * @param requestSent when the request was written.
+   * @param requestReceived when the request was read, for a reply.
+   */
+  private Ping(boolean reply, long requestSent, long requestReceived)
+  {
+    this.reply = reply;
+    this.requestSent = requestSent;
+    this.requestReceived = requestReceived;
+  }
+
+  /**
+   * Creates a request. It is stamped when written.
+   *
+   * @return the request.
+   */
+  public static Ping request()
+  {
+    return new Ping(false, 0, 0);
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Creates the reply to this request. It is stamped when written.
+   *
+   * @param received when this request was read, from System.nanoTime.
+   * @return the reply.
+   */
+  public Ping reply(long received)
+  {
+    return new Ping(true, requestSent, received);
+  }
+
+  /**
+   * Stamps the ping with the current time. Called by the framework right
+   * before the ping is written, so time spent in a queue is not counted.
+   */
+  public void stampSent()
+  {
+    if (reply)
+      replySent = System.nanoTime();
+    else
+      requestSent = System.nanoTime();
+  }
+
+  /**
+   * @return true for the answer to a request.
+   */
+  public boolean isReply()
+  {
+    return reply;
+  }
+
+  /**
+   * @return when the request was written, on the sender's clock.
+   */
+  public long getRequestSent()
+  {
+    return requestSent;
+  }
+
+  /**
+   * @return when the request was read, on the peer's clock.
+   */
+  public long getRequestReceived()
+  {
+    return requestReceived;
+  }
+
+  /**
+   * @return when the reply was written, on the peer's clock.
+   */
+  public long getReplySent()
+  {
+    return replySent;
+  }
+
+  /**
+   * @return a short description of the ping, for traces.
+   */
+  public String toString()
+  {
+    return reply ? "Pong" : "Ping";
+  }
+
+// SERIALIZATION ****************************************************
+
+  /**
+   * Writes the ping as a flag and three longs.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException
+  {
+    out.writeBoolean(reply);
+    out.writeLong(requestSent);
+    out.writeLong(requestReceived);
+    out.writeLong(replySent);
+  }
+
+  /**
+   * Reads the ping written by <code>writeObject</code>.
+   */
+  private void readObject(ObjectInputStream in) throws IOException
+  {
+    reply = in.readBoolean();
+    requestSent = in.readLong();
+    requestReceived = in.readLong();
+    replySent = in.readLong();
+  }
+}
@@ -0,0 +1,293 @@
+package ocsf.common;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The <code> ServerLog </code> class is a leveled, asynchronous log for
+ * the server's hot paths. Logging a message only stores it in a fixed
+ * size ring buffer; a single daemon thread prints the buffered messages
+ * in batches, so connection threads never wait on the console.
+ * <p>
+ * If the messages are produced faster than they can be printed, the
+ * oldest unprinted messages are overwritten and the number lost is
+ * reported instead. Very frequent events should use <code>sample</code>,
+ * which keeps only one event in every <code>sampleRate</code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ConnectionToClient#setTracing(boolean)
+ */
+public final class ServerLog
+{
+  /**
+   * The severity of a message. Messages below the current level are
+   * discarded before anything is stored.
+   */
+  public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+  // CLASS VARIABLES **************************************************
+
+  /**
+   * Number of messages the ring buffer holds. A power of two.
+   */
+  private static final int RING_SIZE = 4096;
+
+  /**
+   * The ring buffer of messages waiting to be printed.
+   */
+  private static final AtomicReferenceArray<Entry> ring =
+    new AtomicReferenceArray<Entry>(RING_SIZE);
+
+  /**
+   * Sequence number of the next message to be stored.
+   */
+  private static final AtomicLong head = new AtomicLong();
+
+  /**
+   * Counts sampled events to decide which ones to keep.
+   */
+  private static final AtomicLong sampleCount = new AtomicLong();
+
+  /**
+   * Messages below this level are discarded. INFO by default.
+   */
+  private static volatile Level level = Level.INFO;
+
+  /**
+   * One sampled event in this many is kept. 1000 by default.
+   */
+  private static volatile int sampleRate = 1000;
+
+  /**
+   * Where the messages are printed.
+   */
+  private static volatile PrintStream out = System.out;
+
+  /**
+   * Messages lost because the printer fell a whole ring behind.
+   */
+  private static volatile long dropped = 0;
+
+  static
+  {
+    Thread printer = new Thread("ServerLog printer")
+      {
+        public void run()
+        {
+          printLoop();
+        }
+      };
+    printer.setDaemon(true);
+    printer.start();
+  }
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * All methods are static.
+   */
+  private ServerLog() {}
+
+// LOGGING METHODS --------------------------------------------------
+
+  /**
+   * Returns true if messages of the given level are kept. Callers on hot
+   * paths should check this before building an expensive message.
+   *
+   * @param messageLevel the level of the message.
+   * @return true if the message would be logged.
+   */
+  public static boolean isEnabled(Level messageLevel)
+  {
+    return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+  }
+
+  /**
+   * Logs a message at the given level.
+   *
+   * @param messageLevel the level of the message.
+   * @param message the message.
+   */
+  public static void log(Level messageLevel, String message)
+  {
+    log(messageLevel, message, null);
+  }
+
+  /**
+   * Logs a message and an exception at the given level. The stack trace
+   * is only formatted by the printer thread.
+   *
+   * @param messageLevel the level of the message.
+   * @param message the message.
+   * @param error the exception, or null.
+   */
+  public static void log(Level messageLevel, String message, Throwable error)
+  {
+    if (!isEnabled(messageLevel))
+      return;
+
+    long seq = head.getAndIncrement();
+    ring.set((int) (seq & (RING_SIZE - 1)),
+      new Entry(seq, System.currentTimeMillis(), messageLevel, message, error));
+  }
+
+  /**
+   * Logs a trace message. Traces are kept regardless of the level, since
+   * they are only produced for connections being traced on purpose.
+   *
+   * @param message the message.
+   */
+  public static void trace(String message)
+  {
+    long seq = head.getAndIncrement();
+    ring.set((int) (seq & (RING_SIZE - 1)),
+      new Entry(seq, System.currentTimeMillis(), Level.TRACE, message, null));
+  }
+
+  /**
+   * Returns true for one call in every <code>sampleRate</code>. Hot
+   * paths use it to log a representative share of their events:
+   * <code>if (ServerLog.sample()) ServerLog.log(...)</code>.
+   *
+   * @return true if this event should be logged.
+   */
+  public static boolean sample()
+  {
+    return isEnabled(Level.DEBUG)
+      && sampleCount.incrementAndGet() % sampleRate == 0;
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the current log level.
+   */
+  public static Level getLevel()
+  {
+    return level;
+  }
+
+  /**
+   * Sets the level below which messages are discarded.
+   *
+   * @param newLevel the new level.
+   */
+  public static void setLevel(Level newLevel)
+  {
+    level = newLevel;
+  }
+
+  /**
+   * Sets how many sampled events are seen for each one kept.
+   *
+   * @param rate the sample rate, at least 1.
+   */
+  public static void setSampleRate(int rate)
+  {
+    sampleRate = Math.max(1, rate);
+  }
+
+  /**
+   * Sets where messages are printed. System.out by default.
+   *
+   * @param stream the destination.
+   */
+  public static void setOutput(PrintStream stream)
+  {
+    out = stream;
+  }
+
+  /**
+   * @return the number of messages lost because the buffer overflowed.
+   */
+  public static long getDropped()
+  {
+    return dropped;
+  }
+
+// PRINTER ----------------------------------------------------------
+
+  /**
+   * Prints stored messages in order, one batch per wake-up.
+   */
+  private static void printLoop()
+  {
+    long tail = 0;
+    StringBuilder batch = new StringBuilder();
+
+    while (true)
+    {
+      long end = head.get();
+
+      while (tail < end)
+      {
+        Entry entry = ring.get((int) (tail & (RING_SIZE - 1)));
+
+        // The writer claimed the slot but has not stored it yet
+        if (entry == null || entry.seq < tail)
+          break;
+
+        // The writers lapped the printer: skip what was overwritten
+        if (entry.seq > tail)
+        {
+          dropped += entry.seq - tail;
+          batch.append("[LOG] ").append(entry.seq - tail)
+            .append(" message(s) dropped\n");
+          tail = entry.seq;
+        }
+
+        entry.appendTo(batch);
+        tail++;
+      }
+
+      if (batch.length() > 0)
+      {
+        out.print(batch);
+        out.flush();
+        batch.setLength(0);
+      }
+      else
+        LockSupport.parkNanos(10000000L); // 10 ms
+    }
+  }
+
+  /**
+   * One stored message.
+   */
+  private static final class Entry
+  {
+    final long seq;
+    final long time;
+    final Level level;
+    final String message;
+    final Throwable error;
+
+    Entry(long seq, long time, Level level, String message, Throwable error)
+    {
+      this.seq = seq;
+      this.time = time;
+      this.level = level;
+      this.message = message;
+      this.error = error;
+    }
+
+    void appendTo(StringBuilder batch)
+    {
+      batch.append(time).append(' ').append(level).append(' ')
+        .append(message).append('\n');
+
+      if (error != null)
+      {
+        StringWriter trace = new StringWriter();
+        error.printStackTrace(new PrintWriter(trace));
+        batch.append(trace);
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * The <code> SharedFrame </code> class holds a message that has already
+ * been serialized, so that the same message can be sent to many clients
+ * while being encoded only once. Writing a frame to a connection copies
+ * its bytes; the object graph of the message is not walked again.
+ * <p>
+ * A frame is immutable and may be sent to any number of connections at
+ * once. <code>AbstractClient</code> decodes frames as they arrive, so a
+ * client only ever sees the original message.
+ * <p>
+ * A frame may carry a key identifying where its message comes from. A
+ * server can use it to let a newer frame replace an older queued one
+ * from the same source, see <code>AbstractServer.supersedes</code>. The
+ * key stays on the server.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setCoalesceSnapshots(boolean)
+ */
+public final class SharedFrame implements Serializable
+{
+  // CLASS VARIABLES **************************************************
+
+  private static final long serialVersionUID = 1L;
+
+  // INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The serialized message.
+   */
+  private transient byte[] bytes;
+
+  /**
+   * Where the message comes from, or null. Not sent.
+   */
+  private final transient Object key;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Wraps bytes already holding a serialized message.
+   *
+   * @param bytes the serialized message. Not copied.
+   * @param key where the message comes from, or null.
+   */
+  private SharedFrame(byte[] bytes, Object key)
+  {
+    this.bytes = bytes;
+    this.key = key;
+  }
+
+  /**
+   * Serializes a message into a frame.
+   *
+   * @param msg the message.
+   * @param key where the message comes from, or null.
+   * @return the frame.
+   * @exception IOException if the message cannot be serialized.
+   */
+  public static SharedFrame encode(Object msg, Object key) throws IOException
+  {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+    ObjectOutputStream out = new ObjectOutputStream(buffer);
+
+    out.writeObject(msg);
+    out.close();
+
+    return new SharedFrame(buffer.toByteArray(), key);
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Deserializes the message held by this frame.
+   *
+   * @return the message.
+   * @exception IOException if the bytes are not a valid message.
+   * @exception ClassNotFoundException if the message's class is unknown.
+   */
+  public Object decode() throws IOException, ClassNotFoundException
+  {
+    ObjectInputStream in =
+      new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+    try
+    {
+      return in.readObject();
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * @return where the message comes from, or null.
+   */
+  public Object getKey()
+  {
+    return key;
+  }
+
+  /**
+   * @return the size of the serialized message in bytes.
+   */
+  public int size()
+  {
+    return bytes.length;
+  }
+
+// SERIALIZATION ****************************************************
+
+  /**
+   * Writes the serialized message as a length and raw bytes.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException
+  {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads the serialized message written by <code>writeObject</code>.
+   */
+  private void readObject(ObjectInputStream in) throws IOException
+  {
+    int length = in.readInt();
+    if (length < 0)
+      throw new StreamCorruptedException("Negative frame length " + length);
+
+    bytes = new byte[length];
+    in.readFully(bytes);
+  }
+}
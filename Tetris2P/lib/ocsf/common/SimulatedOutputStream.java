@@ -0,0 +1,371 @@
+package ocsf.common;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The <code> SimulatedOutputStream </code> class sends the bytes written to
+ * a connection through a simulated network, see
+ * <code>NetworkConditions</code>. It sits right above the socket, so the
+ * framework and the application above it see the network as if it were the
+ * real one.
+ * <p>
+ * Each write is a segment that leaves once the link is free, is sent at the
+ * bandwidth of the link, and arrives after the delay and jitter. A segment
+ * picked as lost is sent again after a retransmission timeout, as TCP would.
+ * As on a connection, segments are never reordered: a late segment holds
+ * back the ones after it. Segments wait in a buffer of <code>BUFFER</code>
+ * bytes, like a socket's send buffer; once it is full, writes block, so a
+ * slow link slows the writer down as a real one does.
+ * <p>
+ * With perfect conditions, the bytes are written straight to the socket.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.NetworkConditions
+ */
+public class SimulatedOutputStream extends FilterOutputStream
+{
+  // CLASS VARIABLES **************************************************
+
+  /**
+   * The most bytes waiting to be sent before writes block.
+   */
+  public static final int BUFFER = 64 * 1024;
+
+  /**
+   * The shortest time before a lost segment is sent again, in
+   * milliseconds, as TCP's minimum retransmission timeout.
+   */
+  public static final long MIN_RETRANSMIT = 200;
+
+  /**
+   * A segment waiting to be sent.
+   */
+  private static final class Segment
+  {
+    /** The bytes. */
+    final byte[] data;
+    /** When the bytes arrive, from System.nanoTime. */
+    final long arrival;
+
+    Segment(byte[] data, long arrival)
+    {
+      this.data = data;
+      this.arrival = arrival;
+    }
+  }
+
+  // INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The simulated network.
+   */
+  private volatile NetworkConditions conditions;
+
+  /**
+   * The segments waiting to be sent, in order. Guarded by <code>lock</code>,
+   * as are the fields below.
+   */
+  private final ArrayDeque<Segment> queue = new ArrayDeque<Segment>();
+
+  /**
+   * Guards the queue. A lock rather than the queue's monitor, since the
+   * writer may be a virtual thread, which would hold on to its carrier
+   * thread while waiting for room in the buffer.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Signalled when a segment is queued or sent, or the stream fails or
+   * closes.
+   */
+  private final Condition changed = lock.newCondition();
+
+  /**
+   * The bytes in the queue.
+   */
+  private int queuedBytes;
+
+  /**
+   * When the last segment queued arrives.
+   */
+  private long lastArrival;
+
+  /**
+   * When the link is done sending the segments queued.
+   */
+  private long linkFree;
+
+  /**
+   * Writes the segments as they arrive. Started with the first segment.
+   */
+  private Thread sender;
+
+  /**
+   * Set if the socket failed, and thrown by the next write.
+   */
+  private IOException failure;
+
+  /**
+   * Set once the stream is closed.
+   */
+  private boolean closed;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Sends a socket's bytes through a simulated network.
+   *
+   * @param out the socket's stream.
+   * @param conditions the simulated network.
+   */
+  public SimulatedOutputStream(OutputStream out, NetworkConditions conditions)
+  {
+    super(out);
+    this.conditions = (conditions == null) ? new NetworkConditions() : conditions;
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Writes one byte, as a segment of its own.
+   */
+  public void write(int b) throws IOException
+  {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  /**
+   * Writes bytes as one segment, blocking while the buffer is full.
+   */
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    lock.lock();
+    try
+    {
+      if (failure != null)
+        throw failure;
+
+      NetworkConditions simulated = conditions;
+      if (simulated.isPerfect() && queue.isEmpty())
+      {
+        out.write(b, off, len);
+        return;
+      }
+
+      try
+      {
+        while (queuedBytes >= BUFFER && !closed && failure == null)
+          changed.await();
+      }
+      catch (InterruptedException ex)
+      {
+        throw new InterruptedIOException("Interrupted while the simulated link was busy");
+      }
+      if (failure != null)
+        throw failure;
+      if (closed)
+        throw new IOException("Stream closed");
+
+      long now = System.nanoTime();
+      long delay = simulated.nextDelay();
+      if (simulated.drop())
+        delay += Math.max(MIN_RETRANSMIT, 2 * simulated.getDelay());
+
+      // The link sends one segment at a time, then it travels for the delay
+      linkFree = Math.max(now, linkFree) + simulated.transmitNanos(len);
+      long arrival = Math.max(lastArrival, linkFree + delay * 1000000);
+      lastArrival = arrival;
+
+      byte[] data = new byte[len];
+      System.arraycopy(b, off, data, 0, len);
+      queue.add(new Segment(data, arrival));
+      queuedBytes += len;
+
+      if (sender == null)
+      {
+        sender = new Thread(new Runnable()
+          {
+            public void run()
+            {
+              sendLoop();
+            }
+          }, "SimulatedOutputStream");
+        sender.setDaemon(true);
+        sender.start();
+      }
+      changed.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Flushes the socket's stream if no segment is waiting; the segments
+   * waiting are flushed as they are written.
+   */
+  public void flush() throws IOException
+  {
+    lock.lock();
+    try
+    {
+      if (failure != null)
+        throw failure;
+      if (queue.isEmpty())
+        out.flush();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Closes the stream and the socket's stream. Segments still waiting are
+   * lost.
+   */
+  public void close() throws IOException
+  {
+    lock.lock();
+    try
+    {
+      closed = true;
+      queue.clear();
+      queuedBytes = 0;
+      changed.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+    out.close();
+  }
+
+  /**
+   * Writes every segment to the socket once it arrives, until the stream
+   * is closed or the socket fails.
+   */
+  private void sendLoop()
+  {
+    try
+    {
+      while (true)
+      {
+        Segment segment;
+        lock.lock();
+        try
+        {
+          while (!closed)
+          {
+            segment = queue.peek();
+            long wait = (segment == null) ? 0 : segment.arrival - System.nanoTime();
+            if (segment != null && wait <= 0)
+              break;
+            if (segment == null)
+              changed.await();
+            else
+              changed.awaitNanos(wait);
+          }
+          if (closed)
+            return;
+
+          segment = queue.peek();
+        }
+        finally
+        {
+          lock.unlock();
+        }
+
+        // The segment stays queued while it is written, so that later ones wait for it
+        out.write(segment.data);
+        out.flush();
+
+        lock.lock();
+        try
+        {
+          if (queue.peek() == segment)
+          {
+            queue.poll();
+            queuedBytes -= segment.data.length;
+          }
+          changed.signalAll();
+        }
+        finally
+        {
+          lock.unlock();
+        }
+      }
+    }
+    catch (InterruptedException ex) {}
+    catch (IOException ex)
+    {
+      lock.lock();
+      try
+      {
+        failure = ex;
+        queue.clear();
+        queuedBytes = 0;
+        changed.signalAll();
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+    finally
+    {
+      lock.lock();
+      try
+      {
+        sender = null;
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the simulated network.
+   */
+  public NetworkConditions getConditions()
+  {
+    return conditions;
+  }
+
+  /**
+   * Changes the simulated network. Segments already waiting keep their
+   * arrival time.
+   *
+   * @param conditions the conditions, or null for none.
+   */
+  public void setConditions(NetworkConditions conditions)
+  {
+    this.conditions = (conditions == null) ? new NetworkConditions() : conditions;
+  }
+
+  /**
+   * @return the number of bytes waiting to be sent.
+   */
+  public int getQueuedBytes()
+  {
+    lock.lock();
+    try
+    {
+      return queuedBytes;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+}
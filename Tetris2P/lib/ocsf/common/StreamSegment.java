@@ -0,0 +1,95 @@
+package ocsf.common;
+
+import java.io.Serializable;
+
+/**
+ * The <code> StreamSegment </code> class is the part of a stream that a
+ * datagram link delivers to its handler: the bytes of one stream that were
+ * not delivered before, and where they start in the stream.
+ * <p>
+ * The sender numbers the bytes of every stream itself, so a segment starting
+ * later than the previous one ended means the sender started the stream over
+ * from a new position.
+ * <p>
+ * Once a link stalls, the bytes it could not deliver are sent again over the
+ * connection as segments, see <code>DatagramLink.takeUnacked</code>. Some of
+ * them may have been delivered already.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.DatagramLink
+ */
+public final class StreamSegment implements Serializable
+{
+  // CLASS VARIABLES **************************************************
+
+  private static final long serialVersionUID = 1L;
+
+  // INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The stream the bytes belong to.
+   */
+  private final String key;
+
+  /**
+   * The position of the first byte in the stream.
+   */
+  private final long firstSeq;
+
+  /**
+   * The bytes.
+   */
+  private final byte[] data;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Creates a segment.
+   *
+   * @param key the stream the bytes belong to.
+   * @param firstSeq the position of the first byte in the stream.
+   * @param data the bytes.
+   */
+  public StreamSegment(String key, long firstSeq, byte[] data)
+  {
+    this.key = key;
+    this.firstSeq = firstSeq;
+    this.data = data;
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the stream the bytes belong to.
+   */
+  public String getKey()
+  {
+    return key;
+  }
+
+  /**
+   * @return the position of the first byte in the stream.
+   */
+  public long getFirstSeq()
+  {
+    return firstSeq;
+  }
+
+  /**
+   * @return the bytes.
+   */
+  public byte[] getData()
+  {
+    return data;
+  }
+
+  /**
+   * @return a short description of the segment, for traces.
+   */
+  public String toString()
+  {
+    return "StreamSegment " + key + " [" + firstSeq + ", " + (firstSeq + data.length) + ")";
+  }
+}
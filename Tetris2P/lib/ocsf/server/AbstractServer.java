@@ -6,15 +6,36 @@ package ocsf.server;
 
 import java.net.*;
 import java.io.*;
+import java.lang.reflect.Method;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.common.DatagramLink;
+import ocsf.common.DatagramOffer;
+import ocsf.common.DatagramTransport;
+import ocsf.common.NetworkConditions;
+import ocsf.common.StreamSegment;
 
 /**
 * The <code> AbstractServer </code> class maintains a thread that waits
 * for connection attempts from clients. When a connection attempt occurs
 * it creates a new <code> ConnectionToClient </code> instance which
-* runs as a thread. When a client is thus connected to the
+* runs on its own thread, either a platform thread or, if requested
+* and supported by the JVM, a virtual thread. When a client is thus connected to the
 * server, the two programs can then exchange <code> Object </code>
 * instances.<p>
 *
+* The server may also take datagrams on the port number it listens on,
+* for data that must arrive as soon as possible rather than in order. Each
+* client is then offered a <code> DatagramLink </code> when it connects,
+* and the streams it sends over the link reach
+* <code> handleMessageFromClient </code> as <code> StreamSegment </code>
+* instances, in turn with the client's other messages.<p>
+*
 * Method <code> handleMessageFromClient </code> must be defined by
 * a concrete subclass. Several other hook methods may also be
 * overriden.<p>
@@ -67,10 +88,116 @@ public abstract class AbstractServer implements Runnable
   private int 			backlog = 10;
 
   /**
-   * The thread group associated with client threads. Each member of the
-   * thread group is a <code> ConnectionToClient </code>.
+   * The set of live client connections. Each connection adds itself
+   * before its thread starts and removes itself when its thread ends.
+   */
+  private final Set<ConnectionToClient> clientConnections =
+    ConcurrentHashMap.newKeySet();
+
+  /**
+   * Creates the threads on which each <code> ConnectionToClient </code>
+   * loop runs. Platform threads by default.
+   */
+  private volatile ThreadFactory connectionThreadFactory;
+
+  /**
+   * Indicates if client connections run on virtual threads.
+   */
+  private volatile boolean usingVirtualThreads = false;
+
+  /**
+   * The maximum number of messages queued for a single client before
+   * the overflow policy applies. Set to 256 by default.
+   */
+  private volatile int 	outboundQueueCapacity = 256;
+
+  /**
+   * What to do when a client's outbound queue is full.
+   * Drops the oldest snapshot by default.
+   */
+  private volatile OverflowPolicy overflowPolicy =
+    OverflowPolicy.DROP_OLDEST_SNAPSHOT;
+
+  /**
+   * The outbound queue depth at which a client is considered slow.
+   * Set to 32 by default.
+   */
+  private volatile int 	slowClientQueueDepth = 32;
+
+  /**
+   * Indicates if a snapshot always replaces a queued one it supersedes,
+   * rather than only once the client is slow. Set to false by default.
    */
-  private ThreadGroup 	clientThreadGroup;
+  private volatile boolean coalesceSnapshots = false;
+
+  /**
+   * How long a write to a client may stay blocked before the client is
+   * disconnected, in milliseconds. Zero disables the check.
+   * Set to 10 seconds by default.
+   */
+  private volatile long 	writeStallTimeout = 10000;
+
+  /**
+   * Carries the clients' datagrams, or null while the server only takes
+   * connections.
+   */
+  private volatile DatagramTransport datagrams = null;
+
+  /**
+   * The connections offered a datagram link, by the link's token.
+   */
+  private final Map<Long, ConnectionToClient> datagramClients =
+    new ConcurrentHashMap<Long, ConnectionToClient>();
+
+  /**
+   * Draws the tokens of the datagram links.
+   */
+  private final SecureRandom tokens = new SecureRandom();
+
+  /**
+   * The simulated network everything sent to the clients goes through,
+   * over connections and datagrams. Perfect by default.
+   */
+  private final NetworkConditions networkConditions = new NetworkConditions();
+
+  /**
+   * The counters, gauges and histograms describing the server.
+   */
+  private final Metrics metrics = new Metrics();
+
+  /**
+   * Serves the metrics over HTTP, or null while they are not served.
+   */
+  private MetricsEndpoint metricsEndpoint = null;
+
+  /**
+   * The connections accepted since the server was created.
+   */
+  private final Metrics.Counter connectionsAccepted;
+
+  /**
+   * The time <code>handleMessageFromClient</code> takes.
+   */
+  private final Histogram dispatchTime;
+
+  /**
+   * The bytes read from and written to every connection, counted by the
+   * connections' streams.
+   */
+  final Metrics.Counter bytesReceived;
+  final Metrics.Counter bytesSent;
+
+  /**
+   * The messages written to every connection.
+   */
+  final Metrics.Counter messagesSent;
+
+  /**
+   * The messages read from every connection, one counter per class of
+   * message, looked up once per class rather than once per message.
+   */
+  private final ConcurrentHashMap<Class<?>, Metrics.Counter> messagesReceived =
+    new ConcurrentHashMap<Class<?>, Metrics.Counter>();
 
   /**
    * Indicates if the listening thread is ready to stop.  Set to
@@ -89,17 +216,19 @@ public abstract class AbstractServer implements Runnable
   public AbstractServer(int port)
   {
     this.port = port;
+    this.connectionThreadFactory = platformThreadFactory();
 
-    this.clientThreadGroup = new ThreadGroup("ConnectionToClient threads")
-      {
-        // All uncaught exceptions in connection threads will
-        // be sent to the clientException callback method.
-        public void uncaughtException(
-          Thread thread, Throwable exception)
-        {
-          clientException((ConnectionToClient)thread, exception);
-        }
-      };
+    connectionsAccepted = metrics.counter("ocsf_connections_accepted_total",
+      "Connections accepted.");
+    dispatchTime = metrics.histogram("ocsf_dispatch_seconds",
+      "Time taken to handle a message from a client.");
+    bytesReceived = metrics.counter("ocsf_received_bytes_total",
+      "Bytes read from the connections.");
+    bytesSent = metrics.counter("ocsf_sent_bytes_total",
+      "Bytes written to the connections.");
+    messagesSent = metrics.counter("ocsf_messages_sent_total",
+      "Messages written to the connections.");
+    registerMetrics();
   }
 
 
@@ -161,21 +290,101 @@ public abstract class AbstractServer implements Runnable
     finally
     {
       // Close the client sockets of the already connected clients
-      Thread[] clientThreadList = getClientConnections();
-      for (int i=0; i<clientThreadList.length; i++)
+      ConnectionToClient[] clientList = getClientConnections();
+      for (int i=0; i<clientList.length; i++)
       {
          try
          {
-           ((ConnectionToClient)clientThreadList[i]).close();
+           clientList[i].close();
          }
          // Ignore all exceptions when closing clients.
          catch(Exception ex) {}
       }
       setServerSocket(null);
+      closeDatagrams();
+      closeMetrics();
       serverClosed();
     }
   }
 
+  /**
+   * Starts taking datagrams on the port number the server listens on, and
+   * offers a datagram link to every client, those connected already
+   * included. If the server already takes datagrams, this call has no
+   * effect. Closing the server stops taking them.
+   *
+   * @exception IOException if the datagram socket cannot be opened.
+   */
+  final synchronized public void openDatagrams() throws IOException
+  {
+    if (datagrams != null)
+      return;
+
+    int port = (getServerSocket() != null) ? getServerSocket().getLocalPort() : getPort();
+    datagrams = new DatagramTransport(new DatagramSocket(port),
+      new DatagramTransport.Receiver()
+      {
+        public void received(DatagramLink link, StreamSegment segment)
+        {
+          ConnectionToClient client = datagramClients.get(link.getToken());
+          if (client != null)
+            client.receiveSegment(segment);
+        }
+      });
+    datagrams.setConditions(networkConditions);
+
+    ConnectionToClient[] clientList = getClientConnections();
+    for (int i=0; i<clientList.length; i++)
+      offerDatagrams(clientList[i]);
+  }
+
+  /**
+   * Stops taking datagrams. Clients keep their connections, but their
+   * datagram links are closed. If the server does not take datagrams, this
+   * call has no effect.
+   */
+  final synchronized public void closeDatagrams()
+  {
+    if (datagrams == null)
+      return;
+
+    datagrams.close();
+    datagrams = null;
+    for (ConnectionToClient client : datagramClients.values())
+      client.setDatagramLink(null);
+    datagramClients.clear();
+  }
+
+  /**
+   * Starts serving the server's metrics over HTTP on the loopback address,
+   * in the text format Prometheus scrapes. If they are served already,
+   * they move to the new port. Closing the server stops serving them.
+   *
+   * @param port the port, 0 for any free one.
+   * @return where the metrics are served.
+   * @exception IOException if the port cannot be listened on.
+   */
+  final synchronized public MetricsEndpoint openMetrics(int port)
+    throws IOException
+  {
+    closeMetrics();
+    metricsEndpoint = new MetricsEndpoint(metrics, port);
+    return metricsEndpoint;
+  }
+
+  /**
+   * Stops serving the metrics over HTTP. They are still kept. If they are
+   * not served, this call has no effect.
+   */
+  final synchronized public void closeMetrics()
+  {
+    if (metricsEndpoint == null)
+      return;
+
+    metricsEndpoint.close();
+    metricsEndpoint = null;
+  }
+
   /**
    * Sends a message to every client connected to the server.
    * This is merely a utility; a subclass may want to do some checks
@@ -184,17 +393,24 @@ public abstract class AbstractServer implements Runnable
    * function of sending to all clients, perhaps after some kind
    * of filtering is done. Any exception thrown while
    * sending the message to a particular client is ignored.
+   * Messages are only queued here, so a slow client does not delay
+   * the others.
    *
    * @param msg   Object The message to be sent
    * @throws IOException 
    */
   public void sendToAllClients(Object msg) throws IOException
   {
-    Thread[] clientThreadList = getClientConnections();
+    ConnectionToClient[] clientList = getClientConnections();
 
-    for (int i=0; i<clientThreadList.length; i++)
+    for (int i=0; i<clientList.length; i++)
     {
-      ((ConnectionToClient)clientThreadList[i]).send(msg);
+      try
+      {
+        clientList[i].send(msg);
+      }
+      // Ignore clients that closed in the meantime.
+      catch (IOException ex) {}
     }
   }
 
@@ -220,17 +436,11 @@ public abstract class AbstractServer implements Runnable
    * in this migth disconnect. New clients can also connect,
    * these later will not appear in the array.
    *
-   * @return an array of <code>Thread</code> containing
-   * <code>ConnectionToClient</code> instances.
+   * @return an array of <code>ConnectionToClient</code> instances.
    */
-  synchronized final public Thread[] getClientConnections()
+  final public ConnectionToClient[] getClientConnections()
   {
-    Thread[] clientThreadList = new
-      Thread[clientThreadGroup.activeCount()];
-
-    clientThreadGroup.enumerate(clientThreadList);
-
-    return clientThreadList;
+    return clientConnections.toArray(new ConnectionToClient[0]);
   }
 
   /**
@@ -240,7 +450,91 @@ public abstract class AbstractServer implements Runnable
    */
   final public int getNumberOfClients()
   {
-    return clientThreadGroup.activeCount();
+    return clientConnections.size();
+  }
+
+  /**
+   * Returns the transport carrying the clients' datagrams.
+   *
+   * @return the transport, or null if the server does not take datagrams.
+   */
+  final public DatagramTransport getDatagrams()
+  {
+    return datagrams;
+  }
+
+  /**
+   * Returns the simulated network everything sent to the clients goes
+   * through. Changing it applies at once to every connection and to the
+   * datagrams.
+   *
+   * @return the conditions, perfect unless changed.
+   */
+  final public NetworkConditions getNetworkConditions()
+  {
+    return networkConditions;
+  }
+
+  /**
+   * Sends everything to the clients through a simulated network, for
+   * testing.
+   *
+   * @param conditions the conditions to copy, or null for none.
+   */
+  final public void setNetworkConditions(NetworkConditions conditions)
+  {
+    networkConditions.set((conditions == null) ? new NetworkConditions() : conditions);
+  }
+
+  /**
+   * Returns the counters, gauges and histograms describing the server.
+   * Subclasses may register their own.
+   *
+   * @return the metrics.
+   */
+  final public Metrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Returns where the metrics are served over HTTP.
+   *
+   * @return the endpoint, or null if the metrics are not served.
+   */
+  final synchronized public MetricsEndpoint getMetricsEndpoint()
+  {
+    return metricsEndpoint;
+  }
+
+  /**
+   * Returns true if new client connections run on virtual threads.
+   *
+   * @return true if virtual threads are in use.
+   */
+  final public boolean isUsingVirtualThreads()
+  {
+    return usingVirtualThreads;
+  }
+
+  /**
+   * Selects the kind of thread used for new client connections.
+   * Virtual threads need a JVM that provides them (Java 21 or later);
+   * on older JVMs the server keeps using platform threads. Connections
+   * that are already open keep the thread they were started on.
+   *
+   * @param useVirtual true to run new connections on virtual threads.
+   * @return true if virtual threads will be used for new connections.
+   */
+  final public boolean setUseVirtualThreads(boolean useVirtual)
+  {
+    ThreadFactory factory = useVirtual ? virtualThreadFactory() : null;
+
+    usingVirtualThreads = (factory != null);
+    connectionThreadFactory =
+      usingVirtualThreads ? factory : platformThreadFactory();
+
+    return usingVirtualThreads;
   }
 
   /**
@@ -297,6 +591,113 @@ public void setServerSocket(ServerSocket serverSocket)
     this.timeout = timeout;
   }
 
+  /**
+   * Returns the maximum number of messages queued for one client.
+   *
+   * @return the outbound queue capacity.
+   */
+  final public int getOutboundQueueCapacity()
+  {
+    return outboundQueueCapacity;
+  }
+
+  /**
+   * Sets the maximum number of messages queued for one client before
+   * the overflow policy applies. Takes effect immediately.
+   *
+   * @param capacity the outbound queue capacity, at least 1.
+   */
+  final public void setOutboundQueueCapacity(int capacity)
+  {
+    this.outboundQueueCapacity = Math.max(1, capacity);
+  }
+
+  /**
+   * Returns what is done when a client's outbound queue is full.
+   *
+   * @return the overflow policy.
+   */
+  final public OverflowPolicy getOverflowPolicy()
+  {
+    return overflowPolicy;
+  }
+
+  /**
+   * Sets what is done when a client's outbound queue is full.
+   *
+   * @param policy the overflow policy.
+   */
+  final public void setOverflowPolicy(OverflowPolicy policy)
+  {
+    this.overflowPolicy = policy;
+  }
+
+  /**
+   * Returns the outbound queue depth at which a client is considered slow.
+   *
+   * @return the slow client queue depth.
+   */
+  final public int getSlowClientQueueDepth()
+  {
+    return slowClientQueueDepth;
+  }
+
+  /**
+   * Sets the outbound queue depth at which a client is considered slow.
+   * Slow clients keep a single queued snapshot, replaced by newer ones,
+   * until they catch up.
+   *
+   * @param depth the slow client queue depth, at least 1.
+   */
+  final public void setSlowClientQueueDepth(int depth)
+  {
+    this.slowClientQueueDepth = Math.max(1, depth);
+  }
+
+  /**
+   * Returns true if snapshots are coalesced for every client.
+   *
+   * @return true if a snapshot always replaces a queued one it supersedes.
+   */
+  final public boolean isCoalescingSnapshots()
+  {
+    return coalesceSnapshots;
+  }
+
+  /**
+   * Sets whether a snapshot always replaces a queued one it supersedes.
+   * When on, a client never has more than one snapshot of each kind
+   * waiting, so every client receives updates at the rate it can read
+   * them. When off, this only happens once the client is slow.
+   *
+   * @param coalesce true to coalesce snapshots for every client.
+   */
+  final public void setCoalesceSnapshots(boolean coalesce)
+  {
+    this.coalesceSnapshots = coalesce;
+  }
+
+  /**
+   * Returns how long a write to a client may stay blocked.
+   *
+   * @return the write stall timeout in ms, 0 if disabled.
+   */
+  final public long getWriteStallTimeout()
+  {
+    return writeStallTimeout;
+  }
+
+  /**
+   * Sets how long a write to a client may stay blocked before the client
+   * is disconnected. Checked whenever a message is sent to the client.
+   *
+   * @param timeout the write stall timeout in ms, 0 to disable.
+   */
+  final public void setWriteStallTimeout(long timeout)
+  {
+    this.writeStallTimeout = Math.max(0, timeout);
+  }
+
   /**
    * Sets the maximum number of waiting connections accepted by the
    * operating system. The default is 20.
@@ -332,12 +733,18 @@ final public void run()
           // Wait here for new connection attempts, or a timeout
           Socket clientSocket = getServerSocket().accept();
           
-          // When a client is accepted, create a thread to handle
-          // the data exchange, then add it to thread group
-          
-          synchronized(this)
+          // When a client is accepted, create a connection whose
+          // thread handles the data exchange
+          NetworkEvents.ConnectionAccepted accepted =
+            new NetworkEvents.ConnectionAccepted();
+          accepted.begin();
+          ConnectionToClient client = new ConnectionToClient(clientSocket, this);
+          if (accepted.shouldCommit())
           {
-            new ConnectionToClient(this.clientThreadGroup, clientSocket, this);
+            accepted.connectionId = client.getId();
+            accepted.remoteAddress = String.valueOf(clientSocket.getRemoteSocketAddress());
+            accepted.virtualThread = usingVirtualThreads;
+            accepted.commit();
           }
         }
         catch (InterruptedIOException exception)
@@ -381,23 +788,26 @@ final public void run()
   /**
    * Hook method called each time a client disconnects.
    * The default implementation does nothing. The method
-   * may be overridden by subclasses but should remains synchronized.
+   * may be overridden by subclasses. It is called on the disconnecting
+   * client's thread, possibly while other clients are being served, so
+   * any shared state it touches must be guarded by the subclass.
    *
    * @param client the connection with the client.
    */
-  synchronized protected void clientDisconnected(
+  protected void clientDisconnected(
     ConnectionToClient client) {}
 
   /**
    * Hook method called each time an exception is thrown in a
    * ConnectionToClient thread.
-   * The method may be overridden by subclasses but should remains
-   * synchronized.
+   * The method may be overridden by subclasses. Like
+   * <code>clientDisconnected</code>, it is not serialized with other
+   * clients' callbacks.
    *
    * @param client the client that raised the exception.
    * @param Throwable the exception thrown.
    */
-  synchronized protected void clientException(
+  protected void clientException(
     ConnectionToClient client, Throwable exception) {}
 
   /**
@@ -432,12 +842,56 @@ final public void run()
    */
   protected void serverClosed() {}
 
+  /**
+   * Hook method telling whether a message is a snapshot, i.e. one that
+   * a later message of the same kind makes obsolete. Queued snapshots
+   * may be dropped when a client falls behind. The default
+   * implementation returns false so that no message is ever dropped.
+   *
+   * @param msg the queued message.
+   * @return true if the message may be dropped under load.
+   */
+  protected boolean isSnapshot(Object msg)
+  {
+    return false;
+  }
+
+  /**
+   * Hook method telling whether a newer snapshot makes a queued message
+   * obsolete, so that a slow client can receive the newer one in its
+   * place. The default implementation treats any two snapshots as
+   * interchangeable; subclasses sending several kinds of snapshot to the
+   * same client should compare them.
+   *
+   * @param newer the snapshot being sent.
+   * @param older a message already queued.
+   * @return true if <code>newer</code> may replace <code>older</code>.
+   */
+  protected boolean supersedes(Object newer, Object older)
+  {
+    return isSnapshot(newer) && isSnapshot(older);
+  }
+
+  /**
+   * Hook method called when a client starts falling behind, and again
+   * when it catches up. The default implementation does nothing.
+   *
+   * @param client the connection with the client.
+   * @param slow true if the client became slow, false if it caught up.
+   */
+  protected void clientSlow(ConnectionToClient client, boolean slow) {}
+
   /**
    * Handles a command sent from one client to the server.
    * This MUST be implemented by subclasses, who should respond to
    * messages.
-   * This method is called by a synchronized method so it is also
-   * implcitly synchronized.
+   * Messages from one client are handled one at a time, in the order
+   * they were received, whether read from its connection or from its
+   * datagram link. They are handled on that client's thread, except for
+   * stream segments that arrive while it waits for the connection, which
+   * are handled on the thread reading the datagrams. Messages from
+   * different clients are handled in parallel, so state shared between
+   * clients must be guarded by the subclass.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
@@ -449,21 +903,240 @@ final public void run()
 
 // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+  /**
+   * Registers a connection and creates the thread that runs its loop.
+   * All uncaught exceptions in that thread are sent to the
+   * clientException callback method.
+   *
+   * @param client the connection about to be started.
+   * @return the unstarted thread for the connection.
+   */
+  final Thread addClientConnection(final ConnectionToClient client)
+  {
+    Thread thread = newConnectionThread(client);
+    thread.setUncaughtExceptionHandler(
+      new Thread.UncaughtExceptionHandler()
+      {
+        public void uncaughtException(Thread t, Throwable exception)
+        {
+          clientException(client, exception);
+        }
+      });
+
+    clientConnections.add(client);
+    connectionsAccepted.increment();
+    return thread;
+  }
+
+  /**
+   * Creates an unstarted thread of the kind used for client connections.
+   *
+   * @param task what the thread runs.
+   * @return the unstarted thread.
+   */
+  final Thread newConnectionThread(Runnable task)
+  {
+    return connectionThreadFactory.newThread(task);
+  }
+
+  /**
+   * Forgets a connection once its thread is done.
+   *
+   * @param client the connection whose thread ended.
+   */
+  final void removeClientConnection(ConnectionToClient client)
+  {
+    clientConnections.remove(client);
+
+    DatagramLink link = client.getDatagramLink();
+    if (link != null)
+    {
+      link.close();
+      datagramClients.remove(link.getToken(), client);
+    }
+  }
+
+  /**
+   * Offers a datagram link to a client, if the server takes datagrams and
+   * the client has none yet. The client opens the link on its side once it
+   * reads the offer.
+   *
+   * @param client the connection with the client.
+   */
+  final synchronized void offerDatagrams(ConnectionToClient client)
+  {
+    if (datagrams == null || client.getDatagramLink() != null)
+      return;
+
+    long token;
+    do
+      token = tokens.nextLong();
+    while (token == 0 || datagramClients.containsKey(token));
+
+    client.setDatagramLink(datagrams.open(token, null));
+    datagramClients.put(token, client);
+    try
+    {
+      client.send(new DatagramOffer(token, datagrams.getLocalPort()));
+    }
+    // The connection's own threads report it
+    catch (IOException ex) {}
+  }
+
+  /**
+   * Returns a factory making named platform threads for connections.
+   */
+  private static ThreadFactory platformThreadFactory()
+  {
+    final AtomicLong count = new AtomicLong();
+
+    return new ThreadFactory()
+      {
+        public Thread newThread(Runnable r)
+        {
+          return new Thread(r, "ConnectionToClient-" + count.incrementAndGet());
+        }
+      };
+  }
+
+  /**
+   * Returns a factory making virtual threads, looked up reflectively so
+   * the framework still compiles and runs on JVMs without them.
+   *
+   * @return the factory, or null if virtual threads are unavailable.
+   */
+  private static ThreadFactory virtualThreadFactory()
+  {
+    try
+    {
+      Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      Method name = builderType.getMethod("name", String.class, long.class);
+      Method factory = builderType.getMethod("factory");
+
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = name.invoke(builder, "ConnectionToClient-", 1L);
+      return (ThreadFactory) factory.invoke(builder);
+    }
+    catch (Exception ex)
+    {
+      return null;
+    }
+  }
+
   /**
    * Receives a command sent from the client to the server.
    * Called by the run method of <code>ConnectionToClient</code>
    * instances that are watching for messages coming from the server
-   * This method is synchronized to ensure that whatever effects it has
-   * do not conflict with work being done by other threads. The method
-   * simply calls the <code>handleMessageFromClient</code> slot method.
+   * The method is not synchronized on the server: each connection
+   * dispatches its own messages, from the connection and the datagram
+   * link, one at a time, so a client's messages stay in order while
+   * independent clients are served concurrently. The method
+   * calls the <code>handleMessageFromClient</code> slot method, timing it
+   * for the metrics and for Flight Recorder.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
    *  sent the message.
+   * @param size the bytes read for the message.
+   */
+  final void receiveMessageFromClient(
+    Object msg, ConnectionToClient client, long size)
+  {
+    countReceived(msg);
+
+    NetworkEvents.MessageDispatched event =
+      new NetworkEvents.MessageDispatched();
+    event.begin();
+    long start = System.nanoTime();
+    try
+    {
+      this.handleMessageFromClient(msg, client);
+    }
+    finally
+    {
+      dispatchTime.recordSince(start);
+      if (event.shouldCommit())
+      {
+        event.connectionId = client.getId();
+        event.messageType = msg.getClass().getSimpleName();
+        event.size = size;
+        event.datagram = msg instanceof StreamSegment;
+        event.commit();
+      }
+    }
+  }
+
+  /**
+   * Counts a message received, by the simple name of its class.
+   *
+   * @param msg the message.
    */
-  final synchronized void receiveMessageFromClient(
-    Object msg, ConnectionToClient client)
+  final void countReceived(Object msg)
   {
-    this.handleMessageFromClient(msg, client);
+    Metrics.Counter counter = messagesReceived.get(msg.getClass());
+    if (counter == null)
+    {
+      counter = metrics.counter("ocsf_messages_received_total",
+        "Messages received from the clients, by type.",
+        "type", msg.getClass().getSimpleName());
+      messagesReceived.putIfAbsent(msg.getClass(), counter);
+    }
+    counter.increment();
+  }
+
+  /**
+   * Registers the gauges of the framework: the clients connected, the
+   * messages waiting in their outbound queues, how many of them are slow,
+   * and the JVM's.
+   */
+  private void registerMetrics()
+  {
+    metrics.gauge("ocsf_connections", "Clients connected.",
+      new Metrics.Gauge()
+      {
+        public double get()
+        {
+          return getNumberOfClients();
+        }
+      });
+    metrics.gauge("ocsf_outbound_queued_messages",
+      "Messages waiting in the clients' outbound queues.",
+      new Metrics.Gauge()
+      {
+        public double get()
+        {
+          long queued = 0;
+          for (ConnectionToClient client : clientConnections)
+            queued += client.getOutboundQueueSize();
+          return queued;
+        }
+      });
+    metrics.gauge("ocsf_outbound_queue_longest",
+      "Messages waiting in the longest outbound queue.",
+      new Metrics.Gauge()
+      {
+        public double get()
+        {
+          int longest = 0;
+          for (ConnectionToClient client : clientConnections)
+            longest = Math.max(longest, client.getOutboundQueueSize());
+          return longest;
+        }
+      });
+    metrics.gauge("ocsf_slow_clients", "Clients falling behind.",
+      new Metrics.Gauge()
+      {
+        public double get()
+        {
+          int slow = 0;
+          for (ConnectionToClient client : clientConnections)
+          {
+            if (client.isSlow())
+              slow++;
+          }
+          return slow;
+        }
+      });
+    metrics.registerJvmMetrics();
   }
 }
\ No newline at end of file
@@ -6,9 +6,23 @@ package ocsf.server;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-import Tetris2P.Updater;
+import ocsf.common.DatagramLink;
+import ocsf.common.LatencyStats;
+import ocsf.common.Ping;
+import ocsf.common.ServerLog;
+import ocsf.common.SimulatedOutputStream;
+import ocsf.common.StreamSegment;
 
 
 /**
@@ -27,9 +41,118 @@ import Tetris2P.Updater;
  * @author Paul Holden
  * @version February 2001 (2.12)
  */
-public class ConnectionToClient extends Thread implements Serializable{
+public class ConnectionToClient implements Runnable, Serializable{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Source of the unique identifiers given to each connection.
+	 */
+	private static final AtomicLong	nextId		= new AtomicLong();
+
 	// INSTANCE VARIABLES ***********************************************
 
+	/**
+	 * The unique identifier of this connection.
+	 */
+	private final long			id			= nextId.incrementAndGet();
+
+	/**
+	 * Marker queued by <code>forceResetAfterSend</code>. It is never written.
+	 */
+	private static final Object	RESET_MARKER	= new Object();
+
+	/**
+	 * The thread, platform or virtual, that runs this connection's loop.
+	 */
+	private transient Thread	clientReader;
+
+	/**
+	 * The thread that drains the outbound queue onto the socket.
+	 */
+	private transient Thread	clientWriter;
+
+	/**
+	 * Messages waiting to be written to the client. Bounded by the server's
+	 * outbound queue capacity. Guarded by <code>outboxLock</code>.
+	 */
+	private final ArrayDeque<Object>	outbox	= new ArrayDeque<Object>();
+
+	/**
+	 * Guards the outbound queue. A lock rather than the queue's monitor,
+	 * since a virtual thread waiting on a monitor holds on to its carrier
+	 * thread: every idle writer would take one.
+	 */
+	private final ReentrantLock		outboxLock	= new ReentrantLock();
+
+	/**
+	 * Signalled when a message is queued or the connection stops.
+	 */
+	private final transient Condition	outboxReady	= outboxLock.newCondition();
+
+	/**
+	 * Set when the outbound queue overflowed, and reported as the reason
+	 * the connection was lost.
+	 */
+	private volatile IOException	overflowCause;
+
+	/**
+	 * True while the client is falling behind. A slow client only ever has
+	 * one queued snapshot: newer snapshots replace it instead of queuing.
+	 */
+	private boolean				slow;
+
+	/**
+	 * Bytes written to the client's socket so far.
+	 */
+	private volatile long		bytesSent;
+
+	/**
+	 * Bytes read from the client's socket so far.
+	 */
+	private volatile long		bytesReceived;
+
+	/**
+	 * Bytes handed to the socket by the batch currently being written.
+	 */
+	private volatile long		bytesInFlight;
+
+	/**
+	 * When the batch being written was started, from System.nanoTime, or 0
+	 * when the writer is idle.
+	 */
+	private volatile long		writeStartNanos;
+
+	/**
+	 * When the last message was received from the client, in milliseconds.
+	 */
+	private volatile long		lastReceiveTime	= System.currentTimeMillis();
+
+	/**
+	 * Round trip times and clock offset measured by this side's pings.
+	 */
+	private final transient LatencyStats	latency	= new LatencyStats();
+
+	/**
+	 * The link carrying this client's datagrams, or null if it has none.
+	 */
+	private transient volatile DatagramLink	datagramLink;
+
+	/**
+	 * Messages read from the connection or the datagram link, waiting to be
+	 * handled.
+	 */
+	private final transient ConcurrentLinkedQueue<Received>	inbox	= new ConcurrentLinkedQueue<Received>();
+
+	/**
+	 * True while a thread is handling this client's messages.
+	 */
+	private final transient AtomicBoolean	dispatching	= new AtomicBoolean();
+
+	/**
+	 * True if every message received from this client is traced to the log.
+	 */
+	private volatile boolean	tracing;
+
 	/**
 	 * A reference to the Server that created this instance.
 	 */
@@ -57,25 +180,22 @@ public class ConnectionToClient extends Thread implements Serializable{
 	 * Indicates if the thread is ready to stop. Set to true when closing of the
 	 * connection is initiated.
 	 */
-	private boolean				readyToStop;
+	private volatile boolean	readyToStop;
 
 	/**
 	 * Map to save information about the client such as its login ID. The
 	 * initial size of the map is small since it is not expected that concrete
 	 * servers will want to store many different types of information about each
-	 * client. Used by the setInfo and getInfo methods.
+	 * client. Used by the setInfo and getInfo methods. Synchronized since
+	 * other clients' threads may read it.
 	 */
-	@SuppressWarnings("rawtypes")
-	private HashMap				savedInfo	= new HashMap(10);
+	private transient Map<String, Object>	savedInfo	= Collections.synchronizedMap(new HashMap<String, Object>(10));
 
 	// CONSTRUCTORS *****************************************************
 
 	/**
-	 * Constructs a new connection to a client.
+	 * Constructs a new connection to a client and starts its thread.
 	 * 
-	 * @param group
-	 *            the thread groupSystem.out.println("Client at "+ client +
-	 *            "connected"); that contains the connections.
 	 * @param clientSocket
 	 *            contains the client's socket.
 	 * @param server
@@ -83,20 +203,22 @@ public class ConnectionToClient extends Thread implements Serializable{
 	 * @exception IOException
 	 *                if an I/O error occur when creating the connection.
 	 */
-	protected ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException {
-		super(group, (Runnable) null);
+	protected ConnectionToClient(Socket clientSocket, AbstractServer server) throws IOException {
 		// Initialize variables
 		this.clientSocket = clientSocket;
 		this.server = server;
 
 		clientSocket.setSoTimeout(0); // make sure timeout is infinite
+		clientSocket.setTcpNoDelay(true); // Small messages leave at once, not after the peer's delayed ack
 
 		// Initialize the objects streams
 		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
+			input = new ObjectInputStream(new CountingInputStream(clientSocket.getInputStream()));
+			output = new ObjectOutputStream(new BufferedOutputStream(new CountingOutputStream(
+					new SimulatedOutputStream(clientSocket.getOutputStream(), server.getNetworkConditions()))));
+			output.flush(); // The client is waiting for the stream header
 		} catch (IOException ex) {
-			ex.printStackTrace();
+			ServerLog.log(ServerLog.Level.WARN, "Could not open streams to " + clientSocket, ex);
 			try {
 				closeAll();
 			} catch (Exception exc) {
@@ -106,60 +228,252 @@ public class ConnectionToClient extends Thread implements Serializable{
 		}
 
 		readyToStop = false;
-		start(); // Start the thread waits for data from the socket
+		clientReader = server.addClientConnection(this);
+		clientWriter = server.newConnectionThread(new Runnable() {
+			public void run() {
+				drainOutbox();
+			}
+		});
+		clientWriter.start(); // Start the thread that writes queued messages
+		clientReader.start(); // Start the thread waits for data from the socket
 	}
 
 	// INSTANCE METHODS *************************************************
 
 	/**
-	 * Sends an object to the client.
+	 * Sends an object to the client. The object is put on this connection's
+	 * outbound queue and written later by its writer thread, so a slow client
+	 * never blocks the caller. If the queue is full, the server's overflow
+	 * policy decides whether an older snapshot is dropped or the client is
+	 * disconnected.
+	 * <p>
+	 * Once the queue reaches the server's slow client depth, the client is
+	 * marked slow and a snapshot replaces the one already queued rather than
+	 * queuing behind it, so the client gets fewer, fresher snapshots. If the
+	 * server coalesces snapshots, this happens whether or not the client is
+	 * slow. A client whose socket write has been stuck longer than the
+	 * server's write stall timeout is disconnected.
 	 * 
 	 * @param obj
 	 *            the message to be sent.
 	 * @exception IOException
-	 *                if an I/O error occur when sending the message.
+	 *                if the connection is already closed.
 	 */
 	final public void send(Object obj) throws IOException
 	{
 		if (clientSocket == null || output == null)
 			throw new SocketException("Output socket is null.");
-		try
+
+		long stallTimeout = server.getWriteStallTimeout();
+		if (stallTimeout > 0 && getWriteStallMillis() > stallTimeout)
 		{
-			
-			output.writeObject(obj);
-			
+			disconnectSlowClient("Client " + getId() + " stalled for " + getWriteStallMillis() + " ms");
+			return;
 		}
-		catch (IOException ex)
+
+		boolean overflowed = false;
+		boolean becameSlow = false;
+
+		outboxLock.lock();
+		try
 		{
-			ex.printStackTrace();
-			try {
-				closeAll();
-			}
-			catch (Exception ex1)
+			if (!slow && outbox.size() >= server.getSlowClientQueueDepth())
 			{
-				ex1.printStackTrace();
+				slow = true;
+				becameSlow = true;
 			}
 
-			throw ex; // Rethrow the exception.
-		}
-		try
-		{
-			output.flush();
+			if ((slow || server.isCoalescingSnapshots()) && replaceQueuedSnapshot(obj))
+			{
+				// Took the place of an older snapshot
+			}
+			else if (outbox.size() >= server.getOutboundQueueCapacity() && !dropOldestSnapshot())
+			{
+				overflowed = true;
+				outbox.clear(); // The client is dropped along with its backlog
+			}
+			else
+			{
+				outbox.addLast(obj);
+				outboxReady.signal();
+			}
 		}
-		catch (IOException ex)
+		finally
 		{
-			ex.printStackTrace();
-			throw ex; // Rethrow the exception.
+			outboxLock.unlock();
 		}
+
+		// Outside the lock, since the hooks may send to other clients
+		if (overflowed)
+			disconnectSlowClient("Outbound queue overflow for client " + getId());
+		else if (becameSlow)
+			server.clientSlow(this, true);
 	}
 
 	/**
 	 * Reset the output stream so we can use the same
 	 * buffer repeatedly. This would not normally be used, but is necessary
     * in some circumstances when Java refuses to send data that it thinks has been sent.
+    * The reset happens in order with the messages already queued.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+		outboxLock.lock();
+		try
+		{
+			outbox.addLast(RESET_MARKER);
+			outboxReady.signal();
+		}
+		finally
+		{
+			outboxLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a ping to the client, whose reply is recorded in
+	 * <code>getLatency</code>. The ping is timed from when it is written, so
+	 * the outbound queue does not count.
+	 * 
+	 * @exception IOException
+	 *                if the connection is already closed.
+	 */
+	final public void ping() throws IOException {
+		send(Ping.request());
+	}
+
+	/**
+	 * Returns the round trip times and clock offset measured by the server's
+	 * pings to this client.
+	 * 
+	 * @return the latency of the connection.
+	 */
+	final public LatencyStats getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Returns the link carrying this client's datagrams. Streams sent over
+	 * it once it is established may overtake messages sent over the
+	 * connection.
+	 * 
+	 * @return the link, or null if the server does not take datagrams.
+	 */
+	final public DatagramLink getDatagramLink() {
+		return datagramLink;
+	}
+
+	/**
+	 * Sets the link carrying this client's datagrams.
+	 * 
+	 * @param link
+	 *            the link, or null.
+	 */
+	final void setDatagramLink(DatagramLink link) {
+		this.datagramLink = link;
+	}
+
+	/**
+	 * Returns the number of messages waiting to be written to the client.
+	 * 
+	 * @return the outbound queue depth.
+	 */
+	final public int getOutboundQueueSize() {
+		outboxLock.lock();
+		try
+		{
+			return outbox.size();
+		}
+		finally
+		{
+			outboxLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns true if every message from this client is traced.
+	 * 
+	 * @return true if tracing is on.
+	 */
+	final public boolean isTracing() {
+		return tracing;
+	}
+
+	/**
+	 * Turns tracing of every message received from this client on or off.
+	 * Takes effect with the next message.
+	 * 
+	 * @param on
+	 *            true to trace this client's messages.
+	 */
+	final public void setTracing(boolean on) {
+		tracing = on;
+	}
+
+	/**
+	 * Returns true while the client is falling behind.
+	 * 
+	 * @return true if the client is marked slow.
+	 */
+	final public boolean isSlow() {
+		outboxLock.lock();
+		try
+		{
+			return slow;
+		}
+		finally
+		{
+			outboxLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes written to the client's socket.
+	 * 
+	 * @return the bytes sent.
+	 */
+	final public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Returns the number of bytes read from the client's socket.
+	 * 
+	 * @return the bytes received.
+	 */
+	final public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Returns the number of bytes of the batch being written that were
+	 * handed to the socket so far. Zero when the writer is idle.
+	 * 
+	 * @return the bytes in flight.
+	 */
+	final public long getBytesInFlight() {
+		return bytesInFlight;
+	}
+
+	/**
+	 * Returns how long the current write to the client has been going on.
+	 * A write only takes long when the client stopped reading and the
+	 * socket's buffers are full.
+	 * 
+	 * @return the stall in milliseconds, 0 if the writer is idle.
+	 */
+	final public long getWriteStallMillis() {
+		long start = writeStartNanos;
+		return start == 0 ? 0 : (System.nanoTime() - start) / 1000000L;
+	}
+
+	/**
+	 * Returns when the last message from the client arrived. Any message
+	 * shows the client is alive and reading its socket.
+	 * 
+	 * @return the time in milliseconds.
+	 */
+	final public long getLastReceiveTime() {
+		return lastReceiveTime;
 	}
 
 	/**
@@ -170,7 +484,7 @@ public class ConnectionToClient extends Thread implements Serializable{
 	 *                if an error occurs when closing the socket.
 	 */
 	final public void close() throws IOException {
-		readyToStop = true; // Set the flag that tells the thread to stop
+		stopOnce(); // Set the flag that tells the threads to stop
 
 		try {
 			closeAll();
@@ -181,6 +495,24 @@ public class ConnectionToClient extends Thread implements Serializable{
 
 	// ACCESSING METHODS ------------------------------------------------
 
+	/**
+	 * Returns the unique identifier of this connection.
+	 * 
+	 * @return the connection's identifier.
+	 */
+	final public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns true while the thread reading from the client is running.
+	 * 
+	 * @return true if the connection's thread is alive.
+	 */
+	final public boolean isAlive() {
+		return clientReader != null && clientReader.isAlive();
+	}
+
 	/**
 	 * Returns the address of the client.
 	 * 
@@ -209,7 +541,6 @@ public class ConnectionToClient extends Thread implements Serializable{
 	 * @param info
 	 *            the information itself.
 	 */
-	@SuppressWarnings("unchecked")
 	public void setInfo(String infoType, Object info) {
 		savedInfo.put(infoType, info);
 	}
@@ -232,6 +563,7 @@ public class ConnectionToClient extends Thread implements Serializable{
 	 * read to the server. Not to be called.
 	 */
 	final public void run() {
+		server.offerDatagrams(this);
 		server.clientConnected(this);
 
 		// This loop reads the input stream and responds to messages
@@ -243,35 +575,257 @@ public class ConnectionToClient extends Thread implements Serializable{
 			while (!readyToStop) {
 				// This block waits until it reads a message from the client
 				// and then sends it for handling by the server
+				long before = bytesReceived;
 				msg = input.readObject();
+				long received = System.nanoTime();
+				lastReceiveTime = System.currentTimeMillis();
 				
-				if ( msg instanceof Updater)
-				{
-					Updater update = (Updater) msg;
-					System.out.println("Updater command: "+update.getCommandMessage());
-				}
-				
-				System.out.println("Connectiontoclient.run() readObject"+msg.getClass());
-				System.out.println(msg.toString());
+				// Full traces only for connections being traced, a sample otherwise
+				if (tracing)
+					ServerLog.trace("[" + id + "] received " + msg);
+				else if (ServerLog.sample())
+					ServerLog.log(ServerLog.Level.DEBUG, "[" + id + "] received " + msg.getClass().getSimpleName() + " (sampled)");
 				
-				server.receiveMessageFromClient(msg, this);
+				// Pings are answered here, as soon as they are read
+				if (msg instanceof Ping) {
+					server.countReceived(msg);
+					handlePing((Ping) msg, received);
+				} else
+					dispatch(msg, bytesReceived - before);
 			}
 		} catch (Exception exception) {
-			exception.printStackTrace();
+			if (!readyToStop)
+				ServerLog.log(ServerLog.Level.DEBUG, "[" + id + "] read loop ended", exception);
 			
-			if (!readyToStop) {
+			connectionLost(exception);
+		} finally {
+			server.removeClientConnection(this);
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Hands a message to the server once those that arrived before it are
+	 * handled. A client's messages are handled one at a time, in the order
+	 * they arrived: a message that arrives while another thread is handling
+	 * this client's messages is left for that thread to handle next.
+	 * 
+	 * @param msg
+	 *            the message read.
+	 * @param size
+	 *            the bytes read for it.
+	 */
+	private void dispatch(Object msg, long size) {
+		inbox.add(new Received(msg, size));
+
+		while (!inbox.isEmpty() && dispatching.compareAndSet(false, true)) {
+			try {
+				Received next;
+				while ((next = inbox.poll()) != null)
+					server.receiveMessageFromClient(next.msg, this, next.size);
+			} finally {
+				dispatching.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Hands bytes of a stream from the client's datagram link to the server,
+	 * in turn with the messages read from the connection. Called by the
+	 * server's datagram thread, which closes the connection if handling
+	 * fails, as the connection's own thread does.
+	 * 
+	 * @param segment
+	 *            the bytes.
+	 */
+	final void receiveSegment(StreamSegment segment) {
+		try {
+			dispatch(segment, segment.getData().length);
+		} catch (RuntimeException ex) {
+			connectionLost(ex);
+		}
+	}
+
+	/**
+	 * Answers the client's ping, or records the reply to the server's.
+	 * 
+	 * @param ping
+	 *            the ping read.
+	 * @param received
+	 *            when it was read, from System.nanoTime.
+	 */
+	private void handlePing(Ping ping, long received) throws IOException {
+		if (ping.isReply())
+			latency.add(ping, received);
+		else
+			send(ping.reply(received));
+	}
+
+	/**
+	 * Writes queued messages until the connection closes. Every message
+	 * pending when the writer wakes up is written, then flushed once, so a
+	 * burst of messages leaves as a single socket write.
+	 */
+	private void drainOutbox() {
+		Object[] batch;
+
+		try {
+			while (!readyToStop) {
+				outboxLock.lock();
 				try {
-					closeAll();
-				} catch (Exception ex) {
-					ex.printStackTrace();
+					while (outbox.isEmpty() && !readyToStop)
+						outboxReady.await();
+
+					batch = outbox.toArray();
+					outbox.clear();
+				} finally {
+					outboxLock.unlock();
 				}
-				
-				server.clientException(this, exception);
+
+				ObjectOutputStream out = output;
+				if (out == null)
+					break;
+
+				bytesInFlight = 0;
+				writeStartNanos = System.nanoTime();
+				int written = 0;
+				for (Object msg : batch) {
+					if (msg == RESET_MARKER)
+						out.reset();
+					else {
+						if (msg instanceof Ping)
+							((Ping) msg).stampSent();
+						out.writeObject(msg);
+						written++;
+					}
+				}
+				out.flush();
+				server.messagesSent.add(written);
+				writeStartNanos = 0;
+				bytesInFlight = 0;
+
+				// The client caught up once little piled up during the write
+				boolean caughtUp = false;
+				outboxLock.lock();
+				try {
+					if (slow && outbox.size() < server.getSlowClientQueueDepth() / 2) {
+						slow = false;
+						caughtUp = true;
+					}
+				} finally {
+					outboxLock.unlock();
+				}
+				if (caughtUp)
+					server.clientSlow(this, false);
 			}
+		} catch (InterruptedException exception) {
+			// Nothing more will be written.
+		} catch (Exception exception) {
+			connectionLost(exception);
 		}
 	}
 
-	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+	/**
+	 * Removes the oldest queued snapshot, if any. Must hold <code>outboxLock</code>.
+	 * 
+	 * @return true if a message was dropped to make room.
+	 */
+	private boolean dropOldestSnapshot() {
+		if (server.getOverflowPolicy() != OverflowPolicy.DROP_OLDEST_SNAPSHOT)
+			return false;
+
+		for (Iterator<Object> it = outbox.iterator(); it.hasNext();) {
+			if (server.isSnapshot(it.next())) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replaces the newest queued message that the given snapshot supersedes.
+	 * Must hold <code>outboxLock</code>.
+	 * 
+	 * @param obj
+	 *            the snapshot being sent.
+	 * @return true if the snapshot took the place of a queued one.
+	 */
+	private boolean replaceQueuedSnapshot(Object obj) {
+		if (!server.isSnapshot(obj))
+			return false;
+
+		// ArrayDeque has no set(), so rebuild the tail behind the replaced entry
+		ArrayDeque<Object> tail = new ArrayDeque<Object>();
+		boolean replaced = false;
+
+		while (!outbox.isEmpty()) {
+			Object queued = outbox.pollLast();
+			if (queued != RESET_MARKER && server.supersedes(obj, queued)) {
+				outbox.addLast(obj);
+				replaced = true;
+				break;
+			}
+			tail.addFirst(queued);
+		}
+		outbox.addAll(tail);
+
+		return replaced;
+	}
+
+	/**
+	 * Disconnects a client that cannot keep up. Only the socket is closed
+	 * here; the connection's own threads notice and report it, so the
+	 * server's hooks never run on the thread that was sending.
+	 * 
+	 * @param reason
+	 *            why the client is being dropped.
+	 */
+	private void disconnectSlowClient(String reason) {
+		overflowCause = new IOException(reason);
+
+		try {
+			closeAll();
+		} catch (Exception ex) {
+		}
+	}
+
+	/**
+	 * Closes the connection after an error and tells the server, once.
+	 * 
+	 * @param exception
+	 *            the error that ended the connection.
+	 */
+	private void connectionLost(Exception exception) {
+		if (stopOnce()) {
+			try {
+				closeAll();
+			} catch (Exception ex) {
+			}
+
+			server.clientException(this, overflowCause != null ? overflowCause : exception);
+		}
+	}
+
+	/**
+	 * Marks the connection as stopping and wakes its writer.
+	 * 
+	 * @return true for the first caller only, which must report the stop.
+	 */
+	private boolean stopOnce() {
+		outboxLock.lock();
+		try {
+			if (readyToStop)
+				return false;
+
+			readyToStop = true;
+			outboxReady.signalAll();
+			return true;
+		} finally {
+			outboxLock.unlock();
+		}
+	}
 
 	/**
 	 * Closes all connection to the server.
@@ -303,6 +857,69 @@ public class ConnectionToClient extends Thread implements Serializable{
 		}
 	}
 
+	/**
+	 * A message waiting to be handled, with the bytes read for it.
+	 */
+	private static final class Received {
+		final Object	msg;
+		final long		size;
+
+		Received(Object msg, long size) {
+			this.msg = msg;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Output stream counting the bytes written to the socket.
+	 */
+	private class CountingOutputStream extends FilterOutputStream {
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesSent++;
+			bytesInFlight++;
+			server.bytesSent.increment();
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesSent += len;
+			bytesInFlight += len;
+			server.bytesSent.add(len);
+		}
+	}
+
+	/**
+	 * Input stream counting the bytes read from the socket.
+	 */
+	private class CountingInputStream extends FilterInputStream {
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				bytesReceived++;
+				server.bytesReceived.increment();
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				bytesReceived += n;
+				server.bytesReceived.add(n);
+			}
+			return n;
+		}
+	}
+
 	/**
 	 * This method is called by garbage collection.
 	 */
@@ -0,0 +1,247 @@
+package ocsf.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import ocsf.common.LatencyStats;
+
+/**
+ * The <code> Histogram </code> class counts durations in buckets whose
+ * width grows with the values they hold, as HdrHistogram does: values
+ * below <code>SUB_BUCKETS</code> nanoseconds have a bucket each, and every
+ * power of two above is split into <code>SUB_BUCKETS / 2</code> buckets, so
+ * any value is known to within about 3% whatever its magnitude, from a
+ * nanosecond to days, in a fixed array of counts.
+ * <p>
+ * Recording a value increments one count and never locks, so any number
+ * of threads may record at once. Reading the histogram while values are
+ * being recorded may see some of them and not others.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.Metrics
+ */
+public class Histogram
+{
+  // CLASS VARIABLES **************************************************
+
+  /**
+   * The number of buckets values below it have each, a power of two.
+   * Each power of two above is split into half as many buckets.
+   */
+  public static final int SUB_BUCKETS = 64;
+
+  /**
+   * The bits of <code>SUB_BUCKETS</code>.
+   */
+  private static final int SUB_BUCKET_BITS = 6;
+
+  /**
+   * The number of buckets, enough for any positive long.
+   */
+  private static final int BUCKETS =
+    SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * (SUB_BUCKETS / 2);
+
+  // INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The number of values recorded in each bucket.
+   */
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  /**
+   * The sum of the values recorded.
+   */
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * The largest value recorded.
+   */
+  private final AtomicLong max = new AtomicLong();
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Records a value.
+   *
+   * @param nanos the value, in nanoseconds; negative values count as 0.
+   */
+  public void record(long nanos)
+  {
+    if (nanos < 0)
+      nanos = 0;
+
+    counts.incrementAndGet(bucket(nanos));
+    sum.add(nanos);
+
+    long largest;
+    while (nanos > (largest = max.get()) && !max.compareAndSet(largest, nanos));
+  }
+
+  /**
+   * Records the time elapsed since an instant.
+   *
+   * @param start the instant, from System.nanoTime.
+   */
+  public void recordSince(long start)
+  {
+    record(System.nanoTime() - start);
+  }
+
+  /**
+   * @return the number of values recorded.
+   */
+  public long getCount()
+  {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++)
+      count += counts.get(i);
+    return count;
+  }
+
+  /**
+   * @return the sum of the values recorded, in nanoseconds.
+   */
+  public long getSum()
+  {
+    return sum.sum();
+  }
+
+  /**
+   * @return the largest value recorded, in nanoseconds.
+   */
+  public long getMax()
+  {
+    return max.get();
+  }
+
+  /**
+   * Returns a percentile of the values recorded, by nearest rank.
+   *
+   * @param percent the percentile, from 0 to 100.
+   * @return the highest value of the bucket holding it, in nanoseconds,
+   *  never more than the largest value recorded; -1 without values.
+   */
+  public long getPercentile(double percent)
+  {
+    long[] snapshot = snapshot();
+    long count = 0;
+    for (long each : snapshot)
+      count += each;
+    if (count == 0)
+      return -1;
+
+    long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += snapshot[i];
+      if (seen >= rank)
+        return Math.min(highestValue(i), getMax());
+    }
+    return getMax();
+  }
+
+  /**
+   * Counts the values recorded up to each bound, as a Prometheus
+   * histogram's cumulative buckets. A value is counted under a bound when
+   * its whole bucket is, so the counts are exact for bounds that fall
+   * between buckets and slightly low otherwise.
+   *
+   * @param bounds the upper bounds in nanoseconds, in increasing order.
+   * @return the count under each bound, followed by the total count.
+   */
+  public long[] getCumulativeCounts(long[] bounds)
+  {
+    long[] snapshot = snapshot();
+    long[] cumulative = new long[bounds.length + 1];
+    long seen = 0;
+    int bound = 0;
+
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      while (bound < bounds.length && highestValue(i) > bounds[bound])
+        cumulative[bound++] = seen;
+      seen += snapshot[i];
+    }
+    while (bound < bounds.length)
+      cumulative[bound++] = seen;
+    cumulative[bounds.length] = seen;
+    return cumulative;
+  }
+
+  /**
+   * Forgets every value.
+   */
+  public void clear()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+      counts.set(i, 0);
+    sum.reset();
+    max.set(0);
+  }
+
+  /**
+   * @return the count, percentiles and largest value, for display.
+   */
+  public String toString()
+  {
+    long count = getCount();
+    if (count == 0)
+      return "no value recorded yet";
+
+    return count + " values, p50 " + LatencyStats.millis(getPercentile(50))
+      + " p99 " + LatencyStats.millis(getPercentile(99))
+      + " p99.9 " + LatencyStats.millis(getPercentile(99.9))
+      + " max " + LatencyStats.millis(getMax());
+  }
+
+  /**
+   * @return a copy of the counts.
+   */
+  private long[] snapshot()
+  {
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++)
+      snapshot[i] = counts.get(i);
+    return snapshot;
+  }
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Returns the bucket of a value.
+   *
+   * @param value the value, not negative.
+   * @return the index of its bucket.
+   */
+  static int bucket(long value)
+  {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS + 1;
+    return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * (SUB_BUCKETS / 2)
+      + (int) (value >>> shift) - SUB_BUCKETS / 2;
+  }
+
+  /**
+   * Returns the highest value a bucket holds.
+   *
+   * @param bucket the index of the bucket.
+   * @return the value.
+   */
+  static long highestValue(int bucket)
+  {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+
+    int exponent = (bucket - SUB_BUCKETS) / (SUB_BUCKETS / 2) + SUB_BUCKET_BITS;
+    long mantissa = (bucket - SUB_BUCKETS) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+    int shift = exponent - SUB_BUCKET_BITS + 1;
+    return ((mantissa + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,476 @@
+package ocsf.server;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The <code> Metrics </code> class keeps the counters, gauges and
+ * histograms describing a running server, and writes them in the text
+ * format Prometheus scrapes.
+ * <p>
+ * A metric is registered under a name the first time it is asked for and
+ * the same instance is returned afterwards, so code may ask for it where
+ * it is used. Metrics of the same name may differ by one label, such as
+ * the type of the messages a counter counts; each value of the label is
+ * then a series of its own.
+ * <p>
+ * Counters and histograms are updated without locking. Gauges are not
+ * updated at all: each is read, through a callback, when the metrics are
+ * written, so they cost nothing in between.
+ * <p>
+ * As Prometheus recommends, counters are named with a <code>_total</code>
+ * suffix and durations are written in seconds, although histograms record
+ * nanoseconds.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.Histogram
+ * @see ocsf.server.MetricsEndpoint
+ */
+public class Metrics
+{
+  // CLASS VARIABLES **************************************************
+
+  /**
+   * The upper bounds of the buckets histograms are written with, in
+   * nanoseconds, from 50 microseconds to 10 seconds.
+   */
+  private static final long[] BUCKET_BOUNDS = {
+    50000L, 100000L, 250000L, 500000L, 1000000L, 2500000L, 5000000L,
+    10000000L, 25000000L, 50000000L, 100000000L, 250000000L, 500000000L,
+    1000000000L, 2500000000L, 5000000000L, 10000000000L };
+
+  // INNER TYPES ******************************************************
+
+  /**
+   * A count that only goes up.
+   */
+  public static final class Counter
+  {
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * The count and time the last display started from, to show a rate.
+     */
+    private long shownCount;
+    private long shownNanos = System.nanoTime();
+
+    /**
+     * Adds one.
+     */
+    public void increment()
+    {
+      count.increment();
+    }
+
+    /**
+     * Adds an amount.
+     *
+     * @param amount the amount, not negative.
+     */
+    public void add(long amount)
+    {
+      count.add(amount);
+    }
+
+    /**
+     * @return the count.
+     */
+    public long get()
+    {
+      return count.sum();
+    }
+
+    /**
+     * Returns the count and how fast it grew since the last time it was
+     * displayed.
+     */
+    synchronized String display()
+    {
+      long now = System.nanoTime();
+      long value = get();
+      double rate = (value - shownCount) * 1e9 / Math.max(1, now - shownNanos);
+
+      shownCount = value;
+      shownNanos = now;
+      return value + String.format(" (%.1f/s)", rate);
+    }
+  }
+
+  /**
+   * A value read when the metrics are written.
+   */
+  public interface Gauge
+  {
+    /**
+     * @return the current value.
+     */
+    double get();
+  }
+
+  /**
+   * The series sharing a name.
+   */
+  private static final class Family
+  {
+    final String name;
+    final String help;
+    final String type;
+
+    /**
+     * The series, by their label written out, sorted so that they are
+     * always written in the same order. The empty string for none.
+     */
+    final ConcurrentMap<String, Object> series =
+      new ConcurrentSkipListMap<String, Object>();
+
+    Family(String name, String help, String type)
+    {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  // INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The metrics, by name.
+   */
+  private final Map<String, Family> families =
+    new ConcurrentHashMap<String, Family>();
+
+  /**
+   * The names, in the order first registered, which is the order they are
+   * written in. Guarded by itself.
+   */
+  private final List<String> names = new ArrayList<String>();
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Returns a counter, registering it the first time.
+   *
+   * @param name the name, ending in <code>_total</code>.
+   * @param help what it counts.
+   * @return the counter.
+   */
+  public Counter counter(String name, String help)
+  {
+    return counter(name, help, null, null);
+  }
+
+  /**
+   * Returns the series of a counter for one value of a label,
+   * registering it the first time.
+   *
+   * @param name the name, ending in <code>_total</code>.
+   * @param help what it counts.
+   * @param label the label's name, or null for none.
+   * @param value the label's value.
+   * @return the counter.
+   */
+  public Counter counter(String name, String help, String label, String value)
+  {
+    Family family = family(name, help, "counter");
+    String key = labels(label, value);
+    Object counter = family.series.get(key);
+
+    if (counter == null)
+    {
+      Object created = new Counter();
+      counter = family.series.putIfAbsent(key, created);
+      if (counter == null)
+        counter = created;
+    }
+    return (Counter) counter;
+  }
+
+  /**
+   * Registers a gauge, replacing any of the same name.
+   *
+   * @param name the name.
+   * @param help what it measures.
+   * @param gauge reads the value.
+   */
+  public void gauge(String name, String help, Gauge gauge)
+  {
+    gauge(name, help, null, null, gauge);
+  }
+
+  /**
+   * Registers the series of a gauge for one value of a label, replacing
+   * any for the same value.
+   *
+   * @param name the name.
+   * @param help what it measures.
+   * @param label the label's name, or null for none.
+   * @param value the label's value.
+   * @param gauge reads the value.
+   */
+  public void gauge(String name, String help, String label, String value, Gauge gauge)
+  {
+    family(name, help, "gauge").series.put(labels(label, value), gauge);
+  }
+
+  /**
+   * Returns a histogram of durations, registering it the first time.
+   *
+   * @param name the name, ending in <code>_seconds</code>.
+   * @param help what it measures.
+   * @return the histogram.
+   */
+  public Histogram histogram(String name, String help)
+  {
+    Family family = family(name, help, "histogram");
+    Object histogram = family.series.get("");
+
+    if (histogram == null)
+    {
+      Object created = new Histogram();
+      histogram = family.series.putIfAbsent("", created);
+      if (histogram == null)
+        histogram = created;
+    }
+    return (Histogram) histogram;
+  }
+
+  /**
+   * Registers gauges for the JVM the server runs in: the collections and
+   * the time spent collecting of each garbage collector, the heap in use
+   * and the number of live threads.
+   */
+  public void registerJvmMetrics()
+  {
+    for (final GarbageCollectorMXBean collector :
+      ManagementFactory.getGarbageCollectorMXBeans())
+    {
+      gauge("jvm_gc_collections", "Collections run by the garbage collector.",
+        "gc", collector.getName(), new Gauge()
+        {
+          public double get()
+          {
+            return collector.getCollectionCount();
+          }
+        });
+      gauge("jvm_gc_collection_seconds", "Time the garbage collector spent collecting.",
+        "gc", collector.getName(), new Gauge()
+        {
+          public double get()
+          {
+            return collector.getCollectionTime() / 1e3;
+          }
+        });
+    }
+
+    final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    gauge("jvm_memory_heap_used_bytes", "Heap in use.", new Gauge()
+      {
+        public double get()
+        {
+          return memory.getHeapMemoryUsage().getUsed();
+        }
+      });
+    gauge("jvm_memory_heap_max_bytes", "Largest heap the JVM may use.", new Gauge()
+      {
+        public double get()
+        {
+          return memory.getHeapMemoryUsage().getMax();
+        }
+      });
+
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    gauge("jvm_threads", "Live threads, virtual threads excepted.", new Gauge()
+      {
+        public double get()
+        {
+          return threads.getThreadCount();
+        }
+      });
+  }
+
+  /**
+   * Writes every metric in the Prometheus text exposition format.
+   *
+   * @param out where to write.
+   * @exception IOException if writing fails.
+   */
+  public void writePrometheus(Appendable out) throws IOException
+  {
+    for (Family family : families())
+    {
+      out.append("# HELP ").append(family.name).append(' ')
+        .append(family.help).append('\n');
+      out.append("# TYPE ").append(family.name).append(' ')
+        .append(family.type).append('\n');
+
+      for (Map.Entry<String, Object> series : family.series.entrySet())
+      {
+        Object metric = series.getValue();
+
+        if (metric instanceof Histogram)
+          writeHistogram(out, family.name, (Histogram) metric);
+        else
+          out.append(family.name).append(series.getKey()).append(' ')
+            .append(format(value(metric))).append('\n');
+      }
+    }
+  }
+
+  /**
+   * Describes every metric, one series per line, for a console. Counters
+   * show how fast they grew since they were last described.
+   *
+   * @return the lines.
+   */
+  public List<String> describe()
+  {
+    List<String> lines = new ArrayList<String>();
+
+    for (Family family : families())
+    {
+      for (Map.Entry<String, Object> series : family.series.entrySet())
+      {
+        Object metric = series.getValue();
+        String shown;
+
+        if (metric instanceof Counter)
+          shown = ((Counter) metric).display();
+        else if (metric instanceof Histogram)
+          shown = metric.toString();
+        else
+          shown = format(value(metric));
+        lines.add(family.name + series.getKey() + " " + shown);
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Returns the current value of a counter or gauge, for tests and tools.
+   *
+   * @param name the name.
+   * @param label the label's name, or null for none.
+   * @param value the label's value.
+   * @return the value, or NaN if there is no such series.
+   */
+  public double get(String name, String label, String value)
+  {
+    Family family = families.get(name);
+    Object metric = (family == null) ? null
+      : family.series.get(labels(label, value));
+
+    if (metric == null || metric instanceof Histogram)
+      return Double.NaN;
+    return value(metric);
+  }
+
+  /**
+   * Returns the family of a name, registering it the first time.
+   */
+  private Family family(String name, String help, String type)
+  {
+    Family family = families.get(name);
+    if (family != null)
+      return family;
+
+    synchronized (names)
+    {
+      family = families.get(name);
+      if (family == null)
+      {
+        family = new Family(name, help, type);
+        families.put(name, family);
+        names.add(name);
+      }
+      return family;
+    }
+  }
+
+  /**
+   * @return the families, in the order first registered.
+   */
+  private List<Family> families()
+  {
+    List<Family> ordered = new ArrayList<Family>();
+    synchronized (names)
+    {
+      for (String name : names)
+        ordered.add(families.get(name));
+    }
+    return ordered;
+  }
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Writes a histogram's cumulative buckets, sum and count.
+   */
+  private static void writeHistogram(Appendable out, String name,
+    Histogram histogram) throws IOException
+  {
+    long[] cumulative = histogram.getCumulativeCounts(BUCKET_BOUNDS);
+
+    for (int i = 0; i < BUCKET_BOUNDS.length; i++)
+      out.append(name).append("_bucket{le=\"")
+        .append(format(BUCKET_BOUNDS[i] / 1e9)).append("\"} ")
+        .append(Long.toString(cumulative[i])).append('\n');
+    out.append(name).append("_bucket{le=\"+Inf\"} ")
+      .append(Long.toString(cumulative[BUCKET_BOUNDS.length])).append('\n');
+    out.append(name).append("_sum ")
+      .append(format(histogram.getSum() / 1e9)).append('\n');
+    out.append(name).append("_count ")
+      .append(Long.toString(cumulative[BUCKET_BOUNDS.length])).append('\n');
+  }
+
+  /**
+   * @return the value of a counter or gauge.
+   */
+  private static double value(Object metric)
+  {
+    if (metric instanceof Counter)
+      return ((Counter) metric).get();
+    return ((Gauge) metric).get();
+  }
+
+  /**
+   * Writes a label as Prometheus does, its value escaped.
+   *
+   * @return the label between braces, or the empty string for none.
+   */
+  static String labels(String label, String value)
+  {
+    if (label == null)
+      return "";
+
+    String escaped = String.valueOf(value).replace("\\", "\\\\")
+      .replace("\"", "\\\"").replace("\n", "\\n");
+    return "{" + label + "=\"" + escaped + "\"}";
+  }
+
+  /**
+   * Formats a value without exponent, as people read them.
+   */
+  static String format(double value)
+  {
+    if (Double.isNaN(value))
+      return "NaN";
+    if (value == Math.rint(value) && Math.abs(value) < 1e15)
+      return Long.toString((long) value);
+    if (Double.isInfinite(value))
+      return (value > 0) ? "+Inf" : "-Inf";
+    return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+  }
+}
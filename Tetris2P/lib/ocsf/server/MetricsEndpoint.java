@@ -0,0 +1,150 @@
+package ocsf.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ocsf.common.ServerLog;
+
+/**
+ * The <code> MetricsEndpoint </code> class serves a server's metrics over
+ * HTTP, at <code>/metrics</code>, in the text format Prometheus scrapes.
+ * It only listens on the loopback address unless told otherwise: the
+ * metrics are meant for a collector running next to the server, not for
+ * the clients.
+ * <p>
+ * Requests are answered one at a time on a thread of their own, so a
+ * scrape never runs on a thread serving clients.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.Metrics
+ */
+public class MetricsEndpoint
+{
+  // CLASS VARIABLES **************************************************
+
+  /**
+   * The content type of the Prometheus text format.
+   */
+  public static final String CONTENT_TYPE =
+    "text/plain; version=0.0.4; charset=utf-8";
+
+  // INSTANCE VARIABLES ***********************************************
+
+  /**
+   * Answers the requests.
+   */
+  private final HttpServer http;
+
+  /**
+   * The thread the requests are answered on.
+   */
+  private final ExecutorService executor;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Starts serving metrics on the loopback address.
+   *
+   * @param metrics the metrics to serve.
+   * @param port the port to listen on, 0 for any free one.
+   * @exception IOException if the port cannot be listened on.
+   */
+  public MetricsEndpoint(Metrics metrics, int port) throws IOException
+  {
+    this(metrics, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+  }
+
+  /**
+   * Starts serving metrics.
+   *
+   * @param metrics the metrics to serve.
+   * @param address the address to listen on.
+   * @exception IOException if the address cannot be listened on.
+   */
+  public MetricsEndpoint(final Metrics metrics, InetSocketAddress address)
+    throws IOException
+  {
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+      {
+        public Thread newThread(Runnable task)
+        {
+          Thread thread = new Thread(task, "MetricsEndpoint");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+    http = HttpServer.create(address, 0);
+    http.createContext("/metrics", new HttpHandler()
+      {
+        public void handle(HttpExchange exchange) throws IOException
+        {
+          try
+          {
+            StringBuilder text = new StringBuilder(8192);
+            metrics.writePrometheus(text);
+            byte[] body = text.toString().getBytes("UTF-8");
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            boolean head = exchange.getRequestMethod().equals("HEAD");
+            exchange.sendResponseHeaders(200, head ? -1 : body.length);
+            if (!head)
+            {
+              OutputStream out = exchange.getResponseBody();
+              out.write(body);
+              out.close();
+            }
+          }
+          catch (RuntimeException ex)
+          {
+            ServerLog.log(ServerLog.Level.ERROR, "Could not write the metrics", ex);
+            exchange.sendResponseHeaders(500, -1);
+          }
+          finally
+          {
+            exchange.close();
+          }
+        }
+      });
+    http.setExecutor(executor);
+    http.start();
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the port the metrics are served on.
+   */
+  public int getPort()
+  {
+    return http.getAddress().getPort();
+  }
+
+  /**
+   * Stops serving metrics, letting a request being answered finish.
+   */
+  public void close()
+  {
+    http.stop(0);
+    executor.shutdown();
+  }
+
+  /**
+   * @return where the metrics are served, for display.
+   */
+  public String toString()
+  {
+    return "http://" + http.getAddress().getHostString() + ":" + getPort() + "/metrics";
+  }
+}
@@ -0,0 +1,82 @@
+package ocsf.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The <code> NetworkEvents </code> class holds the events the framework
+ * records with Java Flight Recorder, so that a recording shows the
+ * connections and messages of a server next to the JVM's own events, such
+ * as garbage collections and contended locks.
+ * <p>
+ * The events cost next to nothing while no recording is running: an
+ * event's fields are only filled in once it is known to be committed, and
+ * none takes a stack trace. Record them with, for instance,
+ * <code>java -XX:StartFlightRecording=filename=server.jfr ...</code> or
+ * <code>jcmd &lt;pid&gt; JFR.start</code>, on a JVM with Flight Recorder.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer
+ */
+public final class NetworkEvents
+{
+  /**
+   * Not to be instantiated.
+   */
+  private NetworkEvents() {}
+
+  /**
+   * A client connected. Lasts while the connection's streams are set up.
+   */
+  @Name("ocsf.ConnectionAccepted")
+  @Label("Connection Accepted")
+  @Category({ "OCSF", "Network" })
+  @Description("A client connected; lasts while its streams are set up.")
+  @StackTrace(false)
+  public static final class ConnectionAccepted extends Event
+  {
+    @Label("Connection ID")
+    public long connectionId;
+
+    @Label("Remote Address")
+    public String remoteAddress;
+
+    @Label("Virtual Thread")
+    @Description("Whether the connection runs on virtual threads.")
+    public boolean virtualThread;
+  }
+
+  /**
+   * A message from a client was handled. Lasts while
+   * <code>handleMessageFromClient</code> runs.
+   */
+  @Name("ocsf.MessageDispatched")
+  @Label("Message Dispatched")
+  @Category({ "OCSF", "Network" })
+  @Description("A message from a client was handled; lasts while the server handles it.")
+  @StackTrace(false)
+  public static final class MessageDispatched extends Event
+  {
+    @Label("Connection ID")
+    public long connectionId;
+
+    @Label("Message Type")
+    public String messageType;
+
+    @Label("Size")
+    @Description("Bytes read for the message. Over a connection, the object stream may read some of the next message ahead.")
+    @DataAmount
+    public long size;
+
+    @Label("Datagram")
+    @Description("Whether the message came over the client's datagram link.")
+    public boolean datagram;
+  }
+}
@@ -0,0 +1,28 @@
+package ocsf.server;
+
+/**
+ * What a <code> ConnectionToClient </code> does when a message is sent
+ * while its outbound queue is already full, i.e. when the client is not
+ * reading as fast as the server is writing.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setOverflowPolicy(OverflowPolicy)
+ * @see ocsf.server.AbstractServer#isSnapshot(Object)
+ */
+public enum OverflowPolicy
+{
+	/**
+	 * Discard the oldest queued snapshot to make room. Snapshots are the
+	 * messages a newer message supersedes, as decided by
+	 * <code>AbstractServer.isSnapshot</code>. If no snapshot is queued the
+	 * client is disconnected, since nothing can be dropped safely.
+	 */
+	DROP_OLDEST_SNAPSHOT,
+
+	/**
+	 * Disconnect the client.
+	 */
+	DISCONNECT
+}
@@ -17,11 +17,13 @@ import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
+import java.util.Random;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextPane;
 import javax.sound.sampled.*;
 
+import Tetris2P.Engine.Input;
 import Tetris2P.Shape.Tetromino;
 import Tetris2P.Tetris.HotBar;
 import Tetris2P.Tetris2P.OutputBox;
@@ -40,11 +42,11 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
     /**
      * The width of the board units of blocks.
      */
-	private static int SQUARES_IN_WIDTH = 10;
+	private static int SQUARES_IN_WIDTH = Engine.SQUARES_IN_WIDTH;
     /**
      * The height of the board in units of blocks.
      */
-    private static int SQUARES_IN_HEIGHT = 20;
+    private static int SQUARES_IN_HEIGHT = Engine.SQUARES_IN_HEIGHT;
     /**
      * The font used for labels.
      */
@@ -60,16 +62,13 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
     		new Color(182, 36, 166), // T Mauve, OK
     		new Color(255,202,14), // Square Yellow
     		new Color(32, 58, 247), // L Dark Blue
-    		new Color(250,114,0) // L Orange, OK
+    		new Color(250,114,0), // L Orange, OK
+    		new Color(110, 110, 110) // Garbage Gray
     };
     /**
      * The Initial delay before starting to generate game ticks in miliseconds.
      */
 	private static int	INITIAL_DELAY = 700;
-    /**
-     * The Initial delay before starting to generate game ticks in miliseconds.
-     */
-	private static int	PIECE_DROPPED_LOCK_DELAY = 0;
     /**
      * The delay between game ticks in miliseconds.
      */
@@ -78,10 +77,6 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
      * The {@code Ticker} Thread that generates board update events.
      */
     private Ticker timer;
-    /**
-     * Boolean variable that determines whether the current piece has finished falling. False otherwise.
-     */
-    private boolean isFallingFinished = false;
     /**
      * Boolean variable that determines whether the game has started. False otherwise.
      */
@@ -90,22 +85,6 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
      * Boolean variable that determines if the game is paused. False if active.
      */
     private boolean isPaused = false;
-    /**
-     * Returns true if the initial newPiece call has been made.
-     */
-    private boolean isFirstPieceMade = false;
-    /**
-     * The number of lines the user has nerfed.
-     */
-    private int numLinesRemoved = 0;
-    /**
-     * The current X-axis position of the cursor on the board.
-     */
-    private int curX = 0;
-    /**
-     * The current X-axis position of the cursor on the board.
-     */
-    private int curY = 0;
     /**
      * The current game status is displayed here.
      */
@@ -118,27 +97,18 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
      * Toolbar that is updated when the game is paused, restarted or muted by keyboard.
      */
     private final ToolBar toolBar;
-     /**
-     * The current {@code Shape} object being moved on the board.
-     */
-    private Shape curPiece;
     /**
-     * The current {@code Shape} object being held.
+     * The rules of the game, and the pieces and the board they act on.
      */
-    private Shape holdPiece;
+    private final transient Engine engine;
     /**
-     * The next {@code Shape} object to be placed on the board.
+     * The board of an opponent shown in place of this board's own game, if any.
      */
-    private Shape nextPiece;
+    private Tetromino[] shownBoard;
     /**
-     * This variable will show wether the user has held a piece during the current
-     * falling shape cycle
+     * The game of an opponent shown in place of this board's own game, if any.
      */
-    private boolean isPieceHeld;
-    /**
-     * Array of {@code Tetrominoes} that encodes all the Tetrominoes on the board into a single array.
-     */
-    private Tetromino[] board;
+    private transient volatile Engine shownEngine;
     /**
      * Sound effect for when a piece is rotated.
      */
@@ -185,10 +155,7 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
     {
        // Setting the initial piece conditions.
        setFocusable(true);
-       curPiece = new Shape();
-       nextPiece = new Shape();
-       holdPiece = new Shape();
-       holdPiece.setShape(Tetromino.NoShape); // The player has no shape held at start
+       engine = new Engine(new Random().nextLong());
        
        //checking if muted
        isAudioPlaybackAllowed = parent.isAudioPlaybackAllowed();
@@ -201,7 +168,6 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
        hotBar = parent.getHotBar();
        this.output = output;
        
-       board = new Tetromino[SQUARES_IN_WIDTH * SQUARES_IN_HEIGHT];
        // Sets the listener for the board to an instance of the TAdapter class.
        addKeyListener(new TAdapter());
        
@@ -265,7 +231,7 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
     {
         isMultiplayerEnabled = b;
         //if (isMultiplayerEnabled) crashes the game
-        	//sendUpdateToServer(new Updater(holdPiece, nextPiece, curPiece, board));
+        	//sendUpdateToServer(engine.snapshot());
     }
 
     /**
@@ -287,9 +253,19 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
     /**
      * Returns the {@code Tetromino} {@code Shape} enum type at a certain point on the board.
      */
-    private synchronized Tetromino shapeAt (int x, int y)
+    private Tetromino shapeAt (int x, int y)
+    {
+    	Tetromino[] shown = shownBoard;
+    	return (shown != null) ? shown[(y * SQUARES_IN_WIDTH) + x] : shownGame().shapeAt(x, y);
+    }
+    
+    /**
+     * Returns the game shown: an opponent's, or this board's own.
+     */
+    private Engine shownGame()
     {
-    	return board[(y * SQUARES_IN_WIDTH) + x];
+    	Engine shown = shownEngine;
+    	return (shown != null) ? shown : engine;
     }
     
     /**
@@ -297,7 +273,7 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
      */
     
     public Shape getHoldPiece(){
-    	return holdPiece;
+    	return engine.getHoldPiece();
     }
 
     //*************************************CONTROL*************************************//
@@ -313,17 +289,15 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
             return;
         
         isStarted = true;
-        isFallingFinished = false;
         isMultiplayerEnabled = false;
-        isPieceHeld = false;
-        numLinesRemoved = 0;
-        clearBoard();
+        engine.reset(new Random().nextLong());
+        hotBar.setNextPiece(engine.getNextPiece());
+        hotBar.setHoldShape(engine.getHoldPiece());
         
         //Initializing the timer
         timer = new Ticker(DELAY, this);
         timer.setInitialDelay(INITIAL_DELAY);
         
-        newPiece();
         timer.start();
         pause();
     }
@@ -359,18 +333,16 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
             return;
         
         isStarted = true;
-        isFallingFinished = false;
-        isFirstPieceMade = false;
-        isPieceHeld = false; 
-        numLinesRemoved = 0;
-        toolBar.getLinesRemLabel().setText("Lines Removed: "+String.valueOf(numLinesRemoved));
-        holdPiece.setShape(Tetromino.NoShape);
-        nextPiece.setShape(Tetromino.NoShape);
+        shownBoard = null;
+        shownEngine = null;
+        hotBar.setNextPiece(engine.getNextPiece());
+        hotBar.setHoldShape(engine.getHoldPiece());
+        engine.setRecording(false);
+        engine.reset(new Random().nextLong());
+        toolBar.getLinesRemLabel().setText("Lines Removed: "+String.valueOf(engine.getLinesRemoved()));
         toolBar.getStatusLabel().setForeground(Color.magenta);
         toolBar.getStatusLabel().setText(" Game [P]aused. ");
         
-        clearBoard();
-        newPiece();
         repaint();
         try
 		{
@@ -388,11 +360,7 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
     public void gameOver()
     {
     	isStarted = false;
-        isFallingFinished = false;
-        isFirstPieceMade = false;
-        isPieceHeld = false;
         isPaused = true;
-        curPiece.setShape(Tetromino.NoShape);
         toolBar.getStatusLabel().setForeground(Color.ORANGE);
         toolBar.getStatusLabel().setText(" Game over. Press [Q]uit [R]estart");
         timer.setPaused(isPaused);
@@ -416,215 +384,98 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
     //*************************************LOGIC*************************************//
     
     /**
-     * Generates a new random piece.
+     * Starts a multiplayer game from the seed of the match, so that the server can replay
+     * the inputs it records on the same pieces.
+     * 
+     * @param seed the seed of the match.
      */
-    private void newPiece()
+    protected synchronized void startMatch(long seed)
     {
-        if (!isFirstPieceMade){
-        	// the first next piece
-        	nextPiece.setRandomShape();
-        	isFirstPieceMade = true;
-        }
-        curPiece.setShape(nextPiece.getShape());
-        // Generates a new next piece.
-        nextPiece.setRandomShape();
-        hotBar.setNextPiece(nextPiece);
-        
-        // Resets the cursor's position to the top of the board.
-        curX = (SQUARES_IN_WIDTH / 2) + 1;
-        // Hi.
-        curY = SQUARES_IN_HEIGHT - 1 + curPiece.minY();
-        // Determines if the game is over.
-        if (!tryMove(curPiece, curX, curY))
-        	gameOver();
+    	isStarted = true;
+    	shownBoard = null;
+    	engine.reset(seed);
+    	engine.setRecording(true);
+    	toolBar.getLinesRemLabel().setText("Lines Removed: "+String.valueOf(engine.getLinesRemoved()));
+    	repaint();
     }
-
     
     /**
-     * Method that releases the held piece (if applicable),
-     *  then puts the current piece on hold.
+     * Applies an input to the game and shows what it did.
+     * A piece locked into the board is sent to the server, with the inputs that led to it.
+     * 
+     * @param input the tick or key.
      */
-    private void hold()
+    private synchronized void play(Input input)
     {
-    	//The user has already swapped a piece during the current falling shape phase
-    	if(isPieceHeld)
-    		return;
-    
-        if (holdPiece.getShape()==Tetromino.NoShape)
-        {// If there is a no piece being held generate a new one 
-            holdPiece.setShape(curPiece.getShape());
-            newPiece();
-        }
-        else
-        { // If there is, then replace the current piece
-            //Assign the current piece as the previously held piece
-        	Shape pastHoldPiece = new Shape();
-        	pastHoldPiece.setShape(holdPiece.getShape());
-            holdPiece.setShape(curPiece.getShape());
-            curPiece.setShape(pastHoldPiece.getShape());
-        }
-        
-        // Resets the cursor's position to the top of the board.
-        curX = SQUARES_IN_WIDTH / 2;
-        curY = SQUARES_IN_HEIGHT - 1 + curPiece.minY();
-        isPieceHeld = true;
-        isFallingFinished = false;
-        hotBar.setHoldShape(holdPiece);
-        repaint();
+    	GameEvents.PieceLocked locked = new GameEvents.PieceLocked();
+    	locked.begin();
+    	int result = engine.apply(input);
+    	
+    	if ((result & Engine.CLEARED) != 0)
+    		toolBar.getLinesRemLabel().setText("Lines Removed: "+String.valueOf(engine.getLinesRemoved()));
+    	if ((result & Engine.LOCKED) != 0 && isMultiplayerEnabled)
+    		sendUpdateToServer(engine.snapshot());
+    	else if (input != Input.TICK && isMultiplayerEnabled)
+    	{
+    		// Keys reach the opponents at once; ticks, which they predict, wait for the next key
+    		Updater inputs = engine.takeInputs();
+    		if (inputs != null)
+    			sendUpdateToServer(inputs);
+    	}
+    	if ((result & Engine.LOCKED) != 0 && locked.shouldCommit())
+    	{
+    		locked.cleared = (result & Engine.CLEARED) != 0;
+    		locked.toppedOut = (result & Engine.TOPPED_OUT) != 0;
+    		locked.sent = isMultiplayerEnabled;
+    		locked.commit();
+    	}
+    	if ((result & Engine.TOPPED_OUT) != 0)
+    		gameOver();
+    	
+    	// The next and held pieces only change with a new piece
+    	if (input == Input.TICK || input == Input.HOLD || (result & Engine.LOCKED) != 0)
+    	{
+    		hotBar.setNextPiece(engine.getNextPiece());
+    		hotBar.setHoldShape(engine.getHoldPiece());
+    	}
+    	repaint();
     }
     
     /**
-     * Method that immediately drops a piece to the bottom of the board.
-     */
-    private void dropDown()
-    {
-        int newY = curY;
-        while (newY > 0) {
-            if (!tryMove(curPiece, curX, newY - 1))
-                break;
-            --newY;
-        }
-        pieceDropped();
-    }
-
-    /**
-     * Method that tries to lower the current piece by one line.
-     * If it cannot then the piece is in its final location.
+     * Takes in garbage lines sent by an opponent. They push the board up when the next piece
+     * is locked, and go to the server at once with the other inputs.
+     * @param lines the number of lines.
      */
-    private synchronized void oneLineDown()
+    protected synchronized void receiveGarbage(int lines)
     {
-		// attempts to lower the piece
-		if (!tryMove(curPiece, curX, curY - 1))
-    		// if cannot lower piece
-            pieceDropped();
-    }
-
-    /**
-     * Method called when a shape is in its final location.
-     */
-    private synchronized void pieceDropped()
-    {
-    	try
-		{
-			// Delay before processing piece dropped.
-        	Thread.sleep(PIECE_DROPPED_LOCK_DELAY);
-		}
+    	if (!isStarted || !isMultiplayerEnabled)
+    		return;
     	
-		catch (InterruptedException e){}
-    	for (int i = 0; i < 4; ++i) {
-            int x = curX + curPiece.x(i);
-            int y = curY - curPiece.y(i);
-            board[(y * SQUARES_IN_WIDTH) + x] = curPiece.getShape();
-        }
-        
-        removeFullLines();
-        isPieceHeld = false;
-        
-        if (!isFallingFinished)
-            newPiece();
-        if (isMultiplayerEnabled)
-        	sendUpdateToServer(new Updater(holdPiece, nextPiece, curPiece, board));
-    }
-
-    /**
-     * Fills the board with empty shapes.
-     */
-    private void clearBoard()
-    {
-            for (int i = 0; i < SQUARES_IN_HEIGHT * SQUARES_IN_WIDTH; ++i)
-                board[i] = Tetromino.NoShape;
-    }
-
-    /**
-     * Attemps to lower a given {@author Shape} at a certain {@code x} and {@code y} corrdinate by one vertically.
-     * This method needs fixing (but will not be fixed)!
-     * 
-     * This iterates through all the possible locations defined for the given {@code shape}.
-     * Checks if any of them are out of bounds or illegal and returns {@code false) if so.
-     * Returns {@code true} otherwise.
-     * 
-     * @param newPiece the {@code Shape} that we are checking
-     * @param newX The desired X position
-     * @param newY The desired Y position
-     * @return true If move operation is succesful
-     */
-    private synchronized boolean tryMove(Shape newPiece, int newX, int newY)
-    {
-		for (int i = 0; i < 4; ++i)
-    	{
-            int x = newX + newPiece.x(i);
-            int y = newY - newPiece.y(i);
-            // if the x value is out of range return
-            if (x < 0 || x >= SQUARES_IN_WIDTH || y < 0 || y >= SQUARES_IN_HEIGHT || shapeAt(x, y) != Tetromino.NoShape)
-                return false;
-        }
-        
-        curPiece = newPiece;
-        curX = newX;
-        curY = newY;
-        repaint();
-        
-        return true;
+    	for (int i = 0; i < lines; i++)
+    		engine.apply(Input.GARBAGE);
+    	
+    	Updater inputs = engine.takeInputs();
+    	if (inputs != null)
+    		sendUpdateToServer(inputs);
     }
-
-    /**
-     * Checks all the rows of the board for full lines. If there is at least
-     * one full full line, remove it and increment the counter.
-     */
-    private void removeFullLines()
-    {
-        int numFullLines = 0;
-        
-        //checks if the line is full
-        for (int i = SQUARES_IN_HEIGHT - 1; i >= 0; --i) {
-            boolean lineIsFull = true;
-            
-            for (int j = 0; j < SQUARES_IN_WIDTH; ++j) {
-                if (shapeAt(j, i) == Tetromino.NoShape) {
-                    lineIsFull = false;
-                    break;
-                }
-            }
-            
-            //moving all lines above the full line one line down
-            //This will effectively destroy the line
-            if (lineIsFull) {
-                ++numFullLines;
-                for (int k = i; k < SQUARES_IN_HEIGHT - 1; ++k) {
-                    for (int j = 0; j < SQUARES_IN_WIDTH; ++j)
-                         board[(k * SQUARES_IN_WIDTH) + j] = shapeAt(j, k + 1);
-                }
-            }
-        }
-
-		//Updating the total number of lines removed by the user
-        if (numFullLines > 0) {
-            numLinesRemoved += numFullLines;
-            toolBar.getLinesRemLabel().setText("Lines Removed: "+String.valueOf(numLinesRemoved));
-            isFallingFinished = true;
-            isPieceHeld = false;
-            curPiece.setShape(Tetromino.NoShape);
-            repaint();
-        }
-     }
-
     
     /**
      * Receives a game tick update event from the {@code Timer} class every {@code timer} miliseconds.
      */
-    public synchronized void actionPerformed(ActionEvent e)
+    public void actionPerformed(ActionEvent e)
     {
-    	if (isFallingFinished)
-        { // current piece in its final spot
-            isFallingFinished = false; // reset falling
-            isPieceHeld = false; // reset swap priviledge
-            newPiece();
-        }
-        else 
-        {// current piece still falling
-        	oneLineDown();
-        }
-    	repaint();
+    	GameEvents.Tick tick = new GameEvents.Tick();
+    	tick.begin();
+    	play(Input.TICK);
+    	
+    	// The opponents' games fall at the same pace
+    	if (client != null)
+    		client.predictOpponents();
+    	if (tick.shouldCommit())
+    	{
+    		tick.predicted = client != null;
+    		tick.commit();
+    	}
     }
     
     //*************************************SERVER-LOGIC*************************************//
@@ -636,24 +487,42 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
      */
     public void updateBoard(Updater updater)
     {
-    	holdPiece.setShape(updater.newHoldPiece.getShape());
-		nextPiece.setShape(updater.newNextPiece.getShape());
-		curPiece.setShape(updater.newCurPiece.getShape());
-		board = updater.newBoard;
+    	engine.getHoldPiece().setShape(updater.newHoldPiece.getShape());
+		engine.getNextPiece().setShape(updater.newNextPiece.getShape());
+		shownEngine = null;
+		shownBoard = updater.newBoard;
+		hotBar.setNextPiece(engine.getNextPiece());
+		hotBar.setHoldShape(engine.getHoldPiece());
 
 		repaint();
     }
     
+    /**
+     * Shows the game of an opponent played on another engine, such as one predicted by a
+     * {@code Rollback}. Called again whenever that game changes, to repaint it.
+     * 
+     * @param game the opponent's game.
+     */
+    public void watch(Engine game)
+    {
+    	shownBoard = null;
+    	shownEngine = game;
+    	hotBar.setNextPiece(game.getNextPiece());
+    	hotBar.setHoldShape(game.getHoldPiece());
+    	
+    	repaint();
+    }
+    
     /**
      * This method will send this player's {@code Board} game information to the server so 
      * that his opponent's "opponent board" can be updated.
      */
-    private void sendUpdateToServer(Object obj)
+    private void sendUpdateToServer(Updater update)
     {
-    	//Copying the current state of the game and passing it to the server
+    	//Passing the game to the server, or only its inputs over datagrams
     	try
     	{
-    		client.sendToServer(obj);
+    		client.sendUpdate(update);
     	}
     	catch(Exception e)
 		{
@@ -743,6 +612,8 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
 	@Override
     public void paintComponent(Graphics g)
     {
+        GameEvents.Paint paint = new GameEvents.Paint();
+        paint.begin();
         super.paintComponent(g);
         
         int SUBDIVISION_SIZE = this.getWidth()/SQUARES_IN_WIDTH;
@@ -774,8 +645,12 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
                                boardTop + i * squareHeight(), shape);
             }
         }
-        // Draws the current piece.
-        if (curPiece.getShape() != Tetromino.NoShape) {
+        // Draws the current piece, unless showing an opponent's board.
+        Engine game = shownGame();
+        Shape curPiece = game.getCurPiece();
+        int curX = game.getCurX();
+        int curY = game.getCurY();
+        if (shownBoard == null && curPiece.getShape() != Tetromino.NoShape) {
             for (int i = 0; i < 4; ++i) {
                 int x = curX + curPiece.x(i);
                 int y = curY - curPiece.y(i);
@@ -784,6 +659,11 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
                            curPiece.getShape());
             }
         }
+        if (paint.shouldCommit())
+        {
+            paint.opponent = shownBoard != null || game != engine;
+            paint.commit();
+        }
     }
 
     /**
@@ -937,7 +817,7 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
              }
              
              // Parses no input if the game is paused.
-             if (isPaused || !isStarted || curPiece.getShape() == Tetromino.NoShape)
+             if (isPaused || !isStarted || engine.getCurPiece().getShape() == Tetromino.NoShape)
                  return;
              
              // Switch on input key value
@@ -945,7 +825,7 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
              {
              case KeyEvent.VK_UP: case 'W': case 'w': // rotate
             	 synchronized(timer) {
-            		 tryMove(curPiece.rotate(), curX, curY);
+            		 play(Input.ROTATE);
             		 
             		 //generates sound effect
                 	 if(isAudioPlaybackAllowed)
@@ -954,7 +834,7 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
                  break;
              case KeyEvent.VK_LEFT: case 'A': case 'a': // move left
             	 synchronized(timer) {
-            		 tryMove(curPiece, curX - 1, curY);
+            		 play(Input.LEFT);
             		 
             		 //moveSound sound effect       
             		 if(isAudioPlaybackAllowed)
@@ -963,7 +843,7 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
                  break;
              case KeyEvent.VK_RIGHT: case 'D': case 'd': // move right
             	 synchronized(timer) {
-            		 tryMove(curPiece, curX + 1, curY);
+            		 play(Input.RIGHT);
             		 
             		 //generates sound effect
                 	 if(isAudioPlaybackAllowed)
@@ -971,21 +851,21 @@ public class Board extends JPanel implements ActionListener, MouseListener, Seri
             	 }
                  break;
              case KeyEvent.VK_DOWN: case 'S': case 's': // nudge down
-            	 oneLineDown();
+            	 play(Input.DOWN);
             	 
         		 //generates sound effect
             	 if(isAudioPlaybackAllowed)
             		 initMoveSound();
             	 break;
              case KeyEvent.VK_SHIFT: case 'H': case 'h': // hold
-                 hold();
+                 play(Input.HOLD);
                  break;
              case KeyEvent.VK_SPACE: // drops piece to bottom
             	 
         		 //generates sound effect
             	 if(isAudioPlaybackAllowed)
             		 initDropSound();
-                 dropDown();
+                 play(Input.DROP);
                  break;
              }
          }
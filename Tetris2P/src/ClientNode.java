@@ -2,9 +2,11 @@ package Tetris2P;
 
 import java.io.Serializable;
 
+import ocsf.server.ConnectionToClient;
+
 
 /**
- * This will group clients into a player and their respective opponent ID
+ * This will group a client's player information and the match it plays in
  * 
  * @author Dmitry Anglinov
  * @author Andréas K.LeF.
@@ -20,19 +22,39 @@ public class ClientNode implements Serializable
 	 */
 	private String name;
 	/**
-	 * The ID of the opponent of the current client
+	 * The server's connection to this client. Only set on the server.
+	 */
+	private transient ConnectionToClient connection;
+	/**
+	 * True while this client sits in the server's matchmaking queue.
+	 */
+	private transient volatile boolean queued;
+	/**
+	 * The match this client is playing in, if any. Only set on the server.
+	 */
+	private transient volatile Match match;
+	/**
+	 * The match this client is watching, if any. Only set on the server.
+	 */
+	private transient volatile Match spectating;
+	/**
+	 * The client's skill rating, used by matchmaking.
+	 */
+	private int rating = DEFAULT_RATING;
+	
+	/**
+	 * The rating of a new player.
 	 */
-	private Long opponentID;
+	public static final int DEFAULT_RATING = 1500;
 	
 	/**
-	 * Constructor used to create a default pair of client and opponent
+	 * Constructor used to create a default player
 	 * @param playerID
 	 */
 	protected ClientNode(Long playerID)
 	{
 		this.setPlayerID(playerID);
 		this.name = "Player"+playerID;
-		this.setOpponentID(playerID);
 	}
 	
 	/**
@@ -64,19 +86,99 @@ public class ClientNode implements Serializable
 	}
 
 	/**
-	 * @return the opponentID
+	 * @return true if this client is currently playing in a match.
+	 */
+	public boolean isInMatch()
+	{
+		return match != null;
+	}
+
+	/**
+	 * @return the server's connection to this client.
+	 */
+	public ConnectionToClient getConnection()
+	{
+		return connection;
+	}
+
+	/**
+	 * @param connection the server's connection to this client.
+	 */
+	public void setConnection(ConnectionToClient connection)
+	{
+		this.connection = connection;
+	}
+
+	/**
+	 * @return true if this client is waiting in the server's matchmaking queue.
+	 */
+	public boolean isQueued()
+	{
+		return queued;
+	}
+
+	/**
+	 * @param queued whether this client is waiting in the server's matchmaking queue.
+	 */
+	public void setQueued(boolean queued)
+	{
+		this.queued = queued;
+	}
+
+	/**
+	 * @return the match this client is playing in, or {@code null}.
+	 */
+	public Match getMatch()
+	{
+		return match;
+	}
+
+	/**
+	 * @param match the match this client is playing in.
+	 */
+	public void setMatch(Match match)
+	{
+		this.match = match;
+	}
+
+	/**
+	 * @return the match this client is watching, or {@code null}.
+	 */
+	public Match getSpectating()
+	{
+		return spectating;
+	}
+
+	/**
+	 * @param spectating the match this client is watching.
+	 */
+	public void setSpectating(Match spectating)
+	{
+		this.spectating = spectating;
+	}
+
+	/**
+	 * @return true if this client is currently watching a match.
+	 */
+	public boolean isSpectating()
+	{
+		return spectating != null;
+	}
+
+	/**
+	 * @return the rating
 	 */
-	public Long getOpponentID()
+	public int getRating()
 	{
-		return opponentID;
+		return rating;
 	}
 
 	/**
-	 * @param opponentID the opponentID to set
+	 * @param rating the rating to set
 	 */
-	public void setOpponentID(Long opponentID)
+	public void setRating(int rating)
 	{
-		this.opponentID = opponentID;
+		this.rating = rating;
 	}
 
 	/**
@@ -0,0 +1,870 @@
+package Tetris2P;
+
+import java.util.Arrays;
+
+import Tetris2P.Shape.Tetromino;
+
+/**
+ * The rules of a game of Tetris, without any graphics, sound or timer.
+ * <p>
+ * A game is driven only by its seed and by the inputs applied to it, gravity ticks included,
+ * so two engines seeded alike and given the same inputs end up with the same board. The
+ * {@code Board} plays through an engine, and the server replays each player's inputs on its own
+ * engine to check the boards the player sends.
+ * <p>
+ * The whole game can be saved into a {@code State} and restored from it without allocating,
+ * which lets a client predict an opponent's game and rewind it when the real inputs arrive.
+ * <p>
+ * Removing lines attacks the opponents with garbage lines, more for several lines at once, for
+ * lines removed by several pieces in a row and for a tetris right after another one. Garbage
+ * received is itself an input, so that it is replayed like the rest, and pushes the board up
+ * from the bottom when the next piece is locked. The lines of the board are kept in a ring so
+ * that pushing it up by a line only moves where the bottom is instead of every line above.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public final class Engine
+{
+	/**
+	 * Everything that can happen to a game: a gravity tick, a key pressed by the player or
+	 * a garbage line sent by an opponent.
+	 */
+	public enum Input { TICK, LEFT, RIGHT, ROTATE, DOWN, DROP, HOLD, GARBAGE }
+
+	/**
+	 * Returned by {@code apply} when the current piece moved or turned.
+	 */
+	public static final int MOVED = 1;
+	/**
+	 * Returned by {@code apply} when the current piece was locked into the board.
+	 */
+	public static final int LOCKED = 2;
+	/**
+	 * Returned by {@code apply} when at least one line was removed.
+	 */
+	public static final int CLEARED = 4;
+	/**
+	 * Returned by {@code apply} when a new piece could not be placed and the game is over.
+	 */
+	public static final int TOPPED_OUT = 8;
+
+	/**
+	 * The width of the board units of blocks.
+	 */
+	public static final int SQUARES_IN_WIDTH = 10;
+	/**
+	 * The height of the board in units of blocks.
+	 */
+	public static final int SQUARES_IN_HEIGHT = 20;
+
+	/**
+	 * Garbage lines sent for the lines removed by one piece, by number of lines.
+	 */
+	private static final int[] LINE_ATTACK = { 0, 0, 1, 2, 4 };
+	/**
+	 * Garbage lines added when several pieces in a row remove lines, by the number of pieces
+	 * in the row before this one.
+	 */
+	private static final int[] COMBO_ATTACK = { 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 4, 5 };
+	/**
+	 * Garbage lines added for a tetris right after another one.
+	 */
+	private static final int BACK_TO_BACK_ATTACK = 1;
+
+	/**
+	 * The inputs, as their ordinal.
+	 */
+	private static final Input[] INPUTS = Input.values();
+	/**
+	 * The pieces, as their ordinal.
+	 */
+	private static final Tetromino[] SHAPES = Tetromino.values();
+
+	/**
+	 * Multiplier of the piece sequence, the same as {@code java.util.Random}'s.
+	 */
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	/**
+	 * Increment of the piece sequence.
+	 */
+	private static final long ADDEND = 0xBL;
+	/**
+	 * The piece sequence keeps 48 bits.
+	 */
+	private static final long MASK = (1L << 48) - 1;
+
+	/**
+	 * The squares of the board, line by line from the bottom, in a ring that starts at {@code bottom}.
+	 */
+	private final Tetromino[] board = new Tetromino[SQUARES_IN_WIDTH * SQUARES_IN_HEIGHT];
+	/**
+	 * The line of {@code board} that holds the bottom of the board.
+	 */
+	private int bottom = 0;
+	/**
+	 * The falling piece.
+	 */
+	private Shape curPiece = new Shape();
+	/**
+	 * The piece that comes after the current one.
+	 */
+	private final Shape nextPiece = new Shape();
+	/**
+	 * The piece put on hold.
+	 */
+	private final Shape holdPiece = new Shape();
+	/**
+	 * Position of the current piece.
+	 */
+	private int curX = 0;
+	/**
+	 * Position of the current piece.
+	 */
+	private int curY = 0;
+	/**
+	 * True once the current piece was locked by removing a line, until the next tick brings a new piece.
+	 */
+	private boolean isFallingFinished = false;
+	/**
+	 * True once a piece was put on hold, until the next piece.
+	 */
+	private boolean isPieceHeld = false;
+	/**
+	 * True once the first next piece was drawn.
+	 */
+	private boolean isFirstPieceMade = false;
+	/**
+	 * True once the player topped out.
+	 */
+	private boolean isOver = false;
+	/**
+	 * The number of lines removed.
+	 */
+	private int numLinesRemoved = 0;
+	/**
+	 * The state of the sequence of pieces. It draws the same numbers as a {@code java.util.Random}
+	 * with the game's seed, but can be saved and restored as a single value.
+	 */
+	private long pieces;
+	/**
+	 * The number of pieces in a row that removed lines, less one; -1 after a piece that did not.
+	 */
+	private int combo = -1;
+	/**
+	 * True if the last piece to remove lines removed four.
+	 */
+	private boolean isBackToBack = false;
+	/**
+	 * Garbage lines received, to push the board up with when the next piece is locked.
+	 */
+	private int pendingGarbage = 0;
+	/**
+	 * Garbage lines sent to the opponents and not yet taken by {@code takeAttack}.
+	 */
+	private int attack = 0;
+	/**
+	 * The state of the sequence of holes in garbage lines, drawn like the pieces.
+	 */
+	private long holes;
+	/**
+	 * The number of inputs applied since the game started.
+	 */
+	private long inputCount = 0;
+	/**
+	 * True if the inputs are kept to be sent along with the board.
+	 */
+	private boolean isRecording = false;
+	/**
+	 * The inputs applied since the last snapshot, as their ordinal, when recording.
+	 */
+	private byte[] recorded = new byte[64];
+	/**
+	 * The number of inputs in {@code recorded}.
+	 */
+	private int recordedCount = 0;
+
+	/**
+	 * Creates a game and places its first piece.
+	 *
+	 * @param seed the seed of the piece sequence.
+	 */
+	public Engine(long seed)
+	{
+		reset(seed);
+	}
+
+	//*************************************CONTROL*************************************//
+
+	/**
+	 * Starts a new game: empties the board and the hold, and places the first piece.
+	 * The recording, if any, starts over.
+	 *
+	 * @param seed the seed of the piece sequence.
+	 */
+	public synchronized void reset(long seed)
+	{
+		pieces = (seed ^ MULTIPLIER) & MASK;
+		holes = (~seed ^ MULTIPLIER) & MASK;
+		bottom = 0;
+		combo = -1;
+		isBackToBack = false;
+		pendingGarbage = 0;
+		attack = 0;
+		isFallingFinished = false;
+		isFirstPieceMade = false;
+		isPieceHeld = false;
+		isOver = false;
+		numLinesRemoved = 0;
+		inputCount = 0;
+		recordedCount = 0;
+		holdPiece.setShape(Tetromino.NoShape);
+		nextPiece.setShape(Tetromino.NoShape);
+		Arrays.fill(board, Tetromino.NoShape);
+
+		newPiece();
+	}
+
+	/**
+	 * Applies one input to the game. Inputs that are not possible, such as moving into a wall
+	 * or playing after topping out, change nothing but are still counted.
+	 *
+	 * @param input the input.
+	 * @return what happened, as a combination of {@code MOVED}, {@code LOCKED}, {@code CLEARED}
+	 *         and {@code TOPPED_OUT}.
+	 */
+	public synchronized int apply(Input input)
+	{
+		inputCount++;
+		if (isRecording)
+			record(input);
+
+		if (isOver)
+			return 0;
+
+		if (input == Input.GARBAGE)
+		{
+			pendingGarbage = Math.min(pendingGarbage + 1, SQUARES_IN_HEIGHT);
+			return 0;
+		}
+
+		if (input == Input.TICK)
+		{
+			if (isFallingFinished)
+			{ // current piece in its final spot
+				isFallingFinished = false;
+				isPieceHeld = false;
+				return newPiece();
+			}
+			return oneLineDown();
+		}
+
+		// A player cannot act between a line being removed and the next piece
+		if (curPiece.getShape() == Tetromino.NoShape)
+			return 0;
+
+		switch (input)
+		{
+			case LEFT:
+				return tryMove(curPiece, curX - 1, curY) ? MOVED : 0;
+			case RIGHT:
+				return tryMove(curPiece, curX + 1, curY) ? MOVED : 0;
+			case ROTATE:
+				return tryMove(curPiece.rotate(), curX, curY) ? MOVED : 0;
+			case DOWN:
+				return oneLineDown();
+			case DROP:
+				return dropDown();
+			case HOLD:
+				return hold();
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Applies inputs given as their ordinal.
+	 *
+	 * @param inputs the inputs.
+	 * @return false if one of them is not an input, in which case the following ones are not applied.
+	 */
+	public boolean apply(byte[] inputs)
+	{
+		return apply(inputs, 0);
+	}
+
+	/**
+	 * Applies inputs given as their ordinal, from one of them on.
+	 *
+	 * @param inputs the inputs.
+	 * @param from the index of the first input to apply.
+	 * @return false if one of them is not an input, in which case the following ones are not applied.
+	 */
+	public synchronized boolean apply(byte[] inputs, int from)
+	{
+		for (int i = from; i < inputs.length; i++)
+		{
+			if (inputs[i] < 0 || inputs[i] >= INPUTS.length)
+				return false;
+			apply(INPUTS[inputs[i]]);
+		}
+		return true;
+	}
+
+	/**
+	 * Keeps, or stops keeping, the inputs applied so they can be sent with the board.
+	 *
+	 * @param recording true to keep them.
+	 */
+	public synchronized void setRecording(boolean recording)
+	{
+		isRecording = recording;
+		recordedCount = 0;
+	}
+
+	/**
+	 * Takes a copy of the game, along with the inputs recorded since the previous snapshot,
+	 * which are then forgotten. The board sent is always the result of the inputs sent with it.
+	 *
+	 * @return the game as an update for the server, its inputs set if recording.
+	 */
+	public synchronized Updater snapshot()
+	{
+		Updater update = new Updater(copy(holdPiece), copy(nextPiece), copy(curPiece), copyBoard());
+
+		if (isRecording)
+		{
+			update.inputs = Arrays.copyOf(recorded, recordedCount);
+			update.sequence = inputCount - recordedCount;
+			recordedCount = 0;
+		}
+		return update;
+	}
+
+	/**
+	 * Copies the game into a state. Does not allocate.
+	 *
+	 * @param state the state to overwrite.
+	 */
+	public synchronized void save(State state)
+	{
+		System.arraycopy(board, 0, state.board, 0, board.length);
+		state.bottom = bottom;
+		state.curPiece.setShape(curPiece);
+		state.nextPiece = nextPiece.getShape();
+		state.holdPiece = holdPiece.getShape();
+		state.curX = curX;
+		state.curY = curY;
+		state.isFallingFinished = isFallingFinished;
+		state.isPieceHeld = isPieceHeld;
+		state.isFirstPieceMade = isFirstPieceMade;
+		state.isOver = isOver;
+		state.numLinesRemoved = numLinesRemoved;
+		state.combo = combo;
+		state.isBackToBack = isBackToBack;
+		state.pendingGarbage = pendingGarbage;
+		state.attack = attack;
+		state.pieces = pieces;
+		state.holes = holes;
+		state.inputCount = inputCount;
+	}
+
+	/**
+	 * Brings the game back to a saved state. Does not allocate. The recording is left alone.
+	 *
+	 * @param state the state saved earlier, by this engine or one with the same seed.
+	 */
+	public synchronized void restore(State state)
+	{
+		System.arraycopy(state.board, 0, board, 0, board.length);
+		bottom = state.bottom;
+		curPiece.setShape(state.curPiece);
+		nextPiece.setShape(state.nextPiece);
+		holdPiece.setShape(state.holdPiece);
+		curX = state.curX;
+		curY = state.curY;
+		isFallingFinished = state.isFallingFinished;
+		isPieceHeld = state.isPieceHeld;
+		isFirstPieceMade = state.isFirstPieceMade;
+		isOver = state.isOver;
+		numLinesRemoved = state.numLinesRemoved;
+		combo = state.combo;
+		isBackToBack = state.isBackToBack;
+		pendingGarbage = state.pendingGarbage;
+		attack = state.attack;
+		pieces = state.pieces;
+		holes = state.holes;
+		inputCount = state.inputCount;
+	}
+
+	/**
+	 * Takes the inputs recorded since the previous snapshot, without the board, so that they
+	 * can be sent before the piece is locked.
+	 *
+	 * @return the inputs as an update for the server, or {@code null} if none were recorded.
+	 */
+	public synchronized Updater takeInputs()
+	{
+		if (!isRecording || recordedCount == 0)
+			return null;
+
+		Updater update = new Updater(null, null, null, null);
+		update.inputs = Arrays.copyOf(recorded, recordedCount);
+		update.sequence = inputCount - recordedCount;
+		recordedCount = 0;
+		return update;
+	}
+
+	/**
+	 * Takes the garbage lines this game sent to the opponents since the previous call.
+	 *
+	 * @return the number of lines.
+	 */
+	public synchronized int takeAttack()
+	{
+		int lines = attack;
+		attack = 0;
+		return lines;
+	}
+
+	/**
+	 * @return true if an update holds the same board, hold and next pieces as this game.
+	 */
+	public synchronized boolean matches(Updater update)
+	{
+		if (update.newBoard == null || update.newBoard.length != board.length)
+			return false;
+
+		for (int y = 0; y < SQUARES_IN_HEIGHT; y++)
+		{
+			int start = lineStart(y);
+			for (int x = 0; x < SQUARES_IN_WIDTH; x++)
+			{
+				if (board[start + x] != update.newBoard[(y * SQUARES_IN_WIDTH) + x])
+					return false;
+			}
+		}
+		return shapeOf(update.newHoldPiece) == holdPiece.getShape()
+			&& shapeOf(update.newNextPiece) == nextPiece.getShape();
+	}
+
+	//*************************************LOGIC*************************************//
+
+	/**
+	 * Brings the next piece to the top of the board, and draws a new next piece.
+	 */
+	private int newPiece()
+	{
+		if (!isFirstPieceMade)
+		{
+			// the first next piece
+			nextPiece.setShape(randomShape());
+			isFirstPieceMade = true;
+		}
+		curPiece.setShape(nextPiece.getShape());
+		nextPiece.setShape(randomShape());
+
+		// Resets the cursor's position to the top of the board.
+		curX = (SQUARES_IN_WIDTH / 2) + 1;
+		curY = SQUARES_IN_HEIGHT - 1 + curPiece.minY();
+
+		if (!tryMove(curPiece, curX, curY))
+		{
+			isOver = true;
+			curPiece.setShape(Tetromino.NoShape);
+			return TOPPED_OUT;
+		}
+		return MOVED;
+	}
+
+	/**
+	 * Puts the current piece on hold, and brings back the piece held before if any.
+	 * Only once per piece.
+	 */
+	private int hold()
+	{
+		if (isPieceHeld)
+			return 0;
+
+		int result = 0;
+		if (holdPiece.getShape() == Tetromino.NoShape)
+		{
+			holdPiece.setShape(curPiece.getShape());
+			result = newPiece();
+		}
+		else
+		{
+			Tetromino held = holdPiece.getShape();
+			holdPiece.setShape(curPiece.getShape());
+			curPiece.setShape(held);
+		}
+
+		// Resets the cursor's position to the top of the board.
+		curX = SQUARES_IN_WIDTH / 2;
+		curY = SQUARES_IN_HEIGHT - 1 + curPiece.minY();
+		isPieceHeld = true;
+		isFallingFinished = false;
+		return result | MOVED;
+	}
+
+	/**
+	 * Drops the current piece to the bottom and locks it.
+	 */
+	private int dropDown()
+	{
+		int newY = curY;
+		while (newY > 0)
+		{
+			if (!tryMove(curPiece, curX, newY - 1))
+				break;
+			--newY;
+		}
+		return pieceDropped();
+	}
+
+	/**
+	 * Lowers the current piece by one line, or locks it if it cannot go lower.
+	 */
+	private int oneLineDown()
+	{
+		if (!tryMove(curPiece, curX, curY - 1))
+			return pieceDropped();
+		return MOVED;
+	}
+
+	/**
+	 * Locks the current piece into the board, removes the full lines and brings the next piece
+	 * unless a line was removed, in which case the next tick does. The garbage received comes
+	 * in before the next piece, unless the piece removed lines.
+	 */
+	private int pieceDropped()
+	{
+		for (int i = 0; i < 4; ++i)
+		{
+			int x = curX + curPiece.x(i);
+			int y = curY - curPiece.y(i);
+			board[lineStart(y) + x] = curPiece.getShape();
+		}
+
+		int result = LOCKED | removeFullLines();
+		isPieceHeld = false;
+
+		if (!isFallingFinished)
+		{
+			if (pendingGarbage > 0 && !addGarbage())
+			{
+				isOver = true;
+				curPiece.setShape(Tetromino.NoShape);
+				return result | TOPPED_OUT;
+			}
+			result |= newPiece();
+		}
+		return result;
+	}
+
+	/**
+	 * Pushes the board up by the garbage lines received, all with their hole in the same column.
+	 * A line only turns the ring of lines by one, so that the top line becomes the bottom one,
+	 * and fills it.
+	 *
+	 * @return false if squares were pushed off the top of the board.
+	 */
+	private boolean addGarbage()
+	{
+		int hole = randomHole();
+		boolean fits = true;
+
+		for (; pendingGarbage > 0; pendingGarbage--)
+		{
+			bottom = (bottom == 0) ? SQUARES_IN_HEIGHT - 1 : bottom - 1;
+
+			int start = bottom * SQUARES_IN_WIDTH;
+			for (int x = 0; x < SQUARES_IN_WIDTH; x++)
+			{
+				if (board[start + x] != Tetromino.NoShape)
+					fits = false;
+				board[start + x] = (x == hole) ? Tetromino.NoShape : Tetromino.GarbageShape;
+			}
+		}
+		return fits;
+	}
+
+	/**
+	 * Moves a piece to a position if all its squares are on the board and free.
+	 *
+	 * @return true if the piece was moved.
+	 */
+	private boolean tryMove(Shape newPiece, int newX, int newY)
+	{
+		for (int i = 0; i < 4; ++i)
+		{
+			int x = newX + newPiece.x(i);
+			int y = newY - newPiece.y(i);
+			if (x < 0 || x >= SQUARES_IN_WIDTH || y < 0 || y >= SQUARES_IN_HEIGHT || shapeAt(x, y) != Tetromino.NoShape)
+				return false;
+		}
+
+		curPiece = newPiece;
+		curX = newX;
+		curY = newY;
+		return true;
+	}
+
+	/**
+	 * Removes every full line, moving the lines above it down.
+	 */
+	private int removeFullLines()
+	{
+		int numFullLines = 0;
+
+		for (int i = SQUARES_IN_HEIGHT - 1; i >= 0; --i)
+		{
+			boolean lineIsFull = true;
+
+			for (int j = 0; j < SQUARES_IN_WIDTH; ++j)
+			{
+				if (shapeAt(j, i) == Tetromino.NoShape)
+				{
+					lineIsFull = false;
+					break;
+				}
+			}
+
+			if (lineIsFull)
+			{
+				++numFullLines;
+				for (int line = i; line < SQUARES_IN_HEIGHT - 1; line++)
+					System.arraycopy(board, lineStart(line + 1), board, lineStart(line), SQUARES_IN_WIDTH);
+			}
+		}
+
+		if (numFullLines == 0)
+		{
+			combo = -1;
+			return 0;
+		}
+
+		attack(numFullLines);
+		numLinesRemoved += numFullLines;
+		isFallingFinished = true;
+		isPieceHeld = false;
+		curPiece.setShape(Tetromino.NoShape);
+		return CLEARED;
+	}
+
+	/**
+	 * Works out the garbage lines sent for lines removed by a piece. They first cancel the
+	 * garbage received that has not come in yet, and what is left goes to the opponents.
+	 */
+	private void attack(int numFullLines)
+	{
+		combo++;
+		int lines = LINE_ATTACK[Math.min(numFullLines, LINE_ATTACK.length - 1)]
+			+ COMBO_ATTACK[Math.min(combo, COMBO_ATTACK.length - 1)];
+
+		if (numFullLines >= 4)
+		{
+			if (isBackToBack)
+				lines += BACK_TO_BACK_ATTACK;
+			isBackToBack = true;
+		}
+		else
+			isBackToBack = false;
+
+		int cancelled = Math.min(lines, pendingGarbage);
+		pendingGarbage -= cancelled;
+		attack += lines - cancelled;
+	}
+
+	/**
+	 * Draws the column of the hole of the next garbage lines.
+	 */
+	private int randomHole()
+	{
+		holes = (holes * MULTIPLIER + ADDEND) & MASK;
+		return (int) ((holes >>> 17) % SQUARES_IN_WIDTH);
+	}
+
+	/**
+	 * @return the index in {@code board} of the first square of a line, counted from the bottom.
+	 */
+	private int lineStart(int y)
+	{
+		int line = y + bottom;
+		if (line >= SQUARES_IN_HEIGHT)
+			line -= SQUARES_IN_HEIGHT;
+		return line * SQUARES_IN_WIDTH;
+	}
+
+	/**
+	 * @return the board with its bottom line first, as sent to the server.
+	 */
+	private Tetromino[] copyBoard()
+	{
+		Tetromino[] copy = new Tetromino[board.length];
+		int split = (SQUARES_IN_HEIGHT - bottom) * SQUARES_IN_WIDTH;
+
+		System.arraycopy(board, bottom * SQUARES_IN_WIDTH, copy, 0, split);
+		System.arraycopy(board, 0, copy, split, bottom * SQUARES_IN_WIDTH);
+		return copy;
+	}
+
+	/**
+	 * Draws the next piece of the sequence, as {@code Shape.setRandomShape} would.
+	 */
+	private Tetromino randomShape()
+	{
+		pieces = (pieces * MULTIPLIER + ADDEND) & MASK;
+		int next = (int) (pieces >>> 16);
+		return SHAPES[Math.abs(next) % 7 + 1];
+	}
+
+	/**
+	 * Adds an input to the recording, growing it if needed.
+	 */
+	private void record(Input input)
+	{
+		if (recordedCount == recorded.length)
+			recorded = Arrays.copyOf(recorded, recorded.length * 2);
+		recorded[recordedCount++] = (byte) input.ordinal();
+	}
+
+	/**
+	 * @return a new {@code Shape} of the same kind.
+	 */
+	private static Shape copy(Shape shape)
+	{
+		Shape copy = new Shape();
+		copy.setShape(shape.getShape());
+		return copy;
+	}
+
+	/**
+	 * @return the kind of a shape, {@code NoShape} if none.
+	 */
+	private static Tetromino shapeOf(Shape shape)
+	{
+		return (shape == null) ? Tetromino.NoShape : shape.getShape();
+	}
+
+	//*************************************STATE*************************************//
+
+	/**
+	 * A saved game, see {@code save} and {@code restore}. Meant to be allocated once and reused.
+	 *
+	 * @author Andréas K.LeF.
+	 * @author Dmitry Anglinov
+	 */
+	public static final class State
+	{
+		private final Tetromino[] board = new Tetromino[SQUARES_IN_WIDTH * SQUARES_IN_HEIGHT];
+		private int bottom;
+		private final Shape curPiece = new Shape();
+		private Tetromino nextPiece;
+		private Tetromino holdPiece;
+		private int curX;
+		private int curY;
+		private boolean isFallingFinished;
+		private boolean isPieceHeld;
+		private boolean isFirstPieceMade;
+		private boolean isOver;
+		private int numLinesRemoved;
+		private int combo;
+		private boolean isBackToBack;
+		private int pendingGarbage;
+		private int attack;
+		private long pieces;
+		private long holes;
+		private long inputCount;
+
+		/**
+		 * @return the number of inputs the game had applied when saved.
+		 */
+		public long getInputCount()
+		{
+			return inputCount;
+		}
+	}
+
+	//*************************************GETTER*************************************//
+
+	/**
+	 * @return the {@code Tetromino} at a position of the board.
+	 */
+	public Tetromino shapeAt(int x, int y)
+	{
+		return board[lineStart(y) + x];
+	}
+
+	/**
+	 * @return the falling piece.
+	 */
+	public Shape getCurPiece()
+	{
+		return curPiece;
+	}
+
+	/**
+	 * @return the next piece. The same object for the whole life of the engine.
+	 */
+	public Shape getNextPiece()
+	{
+		return nextPiece;
+	}
+
+	/**
+	 * @return the piece on hold. The same object for the whole life of the engine.
+	 */
+	public Shape getHoldPiece()
+	{
+		return holdPiece;
+	}
+
+	/**
+	 * @return the position of the falling piece.
+	 */
+	public int getCurX()
+	{
+		return curX;
+	}
+
+	/**
+	 * @return the position of the falling piece.
+	 */
+	public int getCurY()
+	{
+		return curY;
+	}
+
+	/**
+	 * @return the number of lines removed.
+	 */
+	public int getLinesRemoved()
+	{
+		return numLinesRemoved;
+	}
+
+	/**
+	 * @return the garbage lines received that have not come in yet.
+	 */
+	public int getPendingGarbage()
+	{
+		return pendingGarbage;
+	}
+
+	/**
+	 * @return the number of inputs applied since the game started.
+	 */
+	public long getInputCount()
+	{
+		return inputCount;
+	}
+
+	/**
+	 * @return true once the player topped out.
+	 */
+	public boolean isOver()
+	{
+		return isOver;
+	}
+}
@@ -0,0 +1,169 @@
+package Tetris2P;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The events the game records with Java Flight Recorder: on the server, the matchmaker's
+ * batches, matches and the relay of every board; on the client, the ticks, paints and locked
+ * pieces. With the framework's {@code NetworkEvents} and the JVM's own events, a single
+ * recording shows whether a slow match was waiting on the network, on a lock or on the garbage
+ * collector.
+ * <p>
+ * While no recording runs, an event costs a check and, where it outlives the method that
+ * begins it, an allocation; its fields are only filled in once it is known to be committed.
+ * Record with {@code java -XX:StartFlightRecording=filename=game.jfr ...}.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public final class GameEvents
+{
+	private GameEvents() {}
+
+	/**
+	 * A batch of the matchmaker, grouping the players waiting into matches.
+	 */
+	@Name("Tetris2P.MatchmakingBatch")
+	@Label("Matchmaking Batch")
+	@Category({ "Tetris2P", "Server" })
+	@Description("The matchmaker grouped the players waiting into matches.")
+	@StackTrace(false)
+	public static final class MatchmakingBatch extends Event
+	{
+		@Label("Players Waiting")
+		@Description("Players queued when the batch started.")
+		public int waiting;
+
+		@Label("Matches Made")
+		public int matches;
+
+		@Label("By Rating")
+		public boolean byRating;
+	}
+
+	/**
+	 * Every player of a match is ready and the game begins.
+	 */
+	@Name("Tetris2P.MatchStarted")
+	@Label("Match Started")
+	@Category({ "Tetris2P", "Server" })
+	@StackTrace(false)
+	public static final class MatchStarted extends Event
+	{
+		@Label("Match ID")
+		public long matchId;
+
+		@Label("Players")
+		public int players;
+
+		@Label("Seed")
+		public long seed;
+	}
+
+	/**
+	 * A match that was played, from its start to its end.
+	 */
+	@Name("Tetris2P.MatchPlayed")
+	@Label("Match Played")
+	@Category({ "Tetris2P", "Server" })
+	@Description("A match, from the moment every player was ready to its end.")
+	@StackTrace(false)
+	public static final class MatchPlayed extends Event
+	{
+		@Label("Match ID")
+		public long matchId;
+
+		@Label("Players")
+		public int players;
+
+		@Label("Winner")
+		@Description("The winner's name, if the match was decided.")
+		public String winner;
+
+		@Label("Boards Checked")
+		public long boardsChecked;
+
+		@Label("Divergences")
+		public long divergences;
+
+		@Label("Garbage Lines")
+		public long garbageSent;
+	}
+
+	/**
+	 * A board or inputs a player sent, from their arrival to their forwarding to the others.
+	 */
+	@Name("Tetris2P.BoardRelayed")
+	@Label("Board Relayed")
+	@Category({ "Tetris2P", "Server" })
+	@Description("A player's board or inputs, from the moment they were read to the moment they were queued for the others.")
+	@StackTrace(false)
+	public static final class BoardRelayed extends Event
+	{
+		@Label("Match ID")
+		public long matchId;
+
+		@Label("Player")
+		public String player;
+
+		@Label("Recipients")
+		public int recipients;
+
+		@Label("Has Board")
+		@Description("False for inputs sent on their own.")
+		public boolean hasBoard;
+	}
+
+	/**
+	 * A tick of the client's game, with the prediction of its opponents' games.
+	 */
+	@Name("Tetris2P.Tick")
+	@Label("Tick")
+	@Category({ "Tetris2P", "Client" })
+	@StackTrace(false)
+	public static final class Tick extends Event
+	{
+		@Label("Predicted")
+		@Description("Whether the opponents' games were predicted with the tick.")
+		public boolean predicted;
+	}
+
+	/**
+	 * The client painted a board.
+	 */
+	@Name("Tetris2P.Paint")
+	@Label("Paint")
+	@Category({ "Tetris2P", "Client" })
+	@StackTrace(false)
+	public static final class Paint extends Event
+	{
+		@Label("Opponent")
+		@Description("Whether an opponent's board was painted.")
+		public boolean opponent;
+	}
+
+	/**
+	 * A piece of the client's game locked; lasts while the board is sent to the server.
+	 */
+	@Name("Tetris2P.PieceLocked")
+	@Label("Piece Locked")
+	@Category({ "Tetris2P", "Client" })
+	@StackTrace(false)
+	public static final class PieceLocked extends Event
+	{
+		@Label("Lines Cleared")
+		public boolean cleared;
+
+		@Label("Topped Out")
+		public boolean toppedOut;
+
+		@Label("Sent")
+		@Description("Whether the board was sent to the server.")
+		public boolean sent;
+	}
+}
@@ -0,0 +1,819 @@
+package Tetris2P;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import ocsf.common.ServerLog;
+
+/**
+ * The standing of every player over all the matches played, kept in a file so that it outlives
+ * the server. Players are ranked by the lines they removed, then by their wins, then by name.
+ * <p>
+ * Matches hand their results over with {@code record}, which never blocks: a thread of the
+ * leaderboard's own applies them to the standings at once, so that queries see them, and
+ * writes the standings they changed in batches, once {@code BATCH_SIZE} players changed or
+ * {@code FLUSH_MILLIS} after the first change, whichever comes first. A crash costs at most the
+ * results of that interval. Should the writer fall so far behind that {@code QUEUE_CAPACITY}
+ * results wait, further results are dropped and counted rather than held.
+ * <p>
+ * The standings are kept in an order-statistic treap, a search tree balanced by random
+ * priorities whose nodes know the size of their subtree: a player's standing changes, and its
+ * rank or any page of the leaderboard is found, in O(log n) for n players.
+ * <p>
+ * The file starts with {@code MAGIC}. Each record is a player's whole standing, with its
+ * length and CRC-32 before it as in a {@code ReplayLog}, and the last record of a player is its
+ * standing; a record cut short by a crash is dropped when the file is opened. Once the file
+ * holds more than twice as many records as there are players, it is compacted into one record
+ * per player, written beside it and renamed over it.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class Leaderboard implements Closeable
+{
+	/**
+	 * The first bytes of a leaderboard file.
+	 */
+	public static final int MAGIC = 0x5432504C; // "T2PL"
+
+	/**
+	 * The players on a page of the leaderboard.
+	 */
+	public static final int PAGE_SIZE = 10;
+
+	/**
+	 * The most results waiting to be applied.
+	 */
+	public static final int QUEUE_CAPACITY = 4096;
+
+	/**
+	 * The most players whose standing changed before they are written.
+	 */
+	public static final int BATCH_SIZE = 256;
+
+	/**
+	 * The longest a changed standing waits to be written, in milliseconds.
+	 */
+	public static final long FLUSH_MILLIS = 1000;
+
+	/**
+	 * The bytes before every record: its length and checksum.
+	 */
+	private static final int RECORD_HEADER = 8;
+
+	/**
+	 * The fewest records a file holds before it is compacted.
+	 */
+	private static final int MIN_COMPACTION = 1024;
+
+	/**
+	 * Handed to the writer to stop it.
+	 */
+	private static final Result CLOSE = new Result("", false, 0);
+
+	/**
+	 * A player's standing over all the matches it played.
+	 */
+	public static final class Standing
+	{
+		private final String name;
+		private final int matches;
+		private final int wins;
+		private final long lines;
+		private final int best;
+
+		private Standing(String name, int matches, int wins, long lines, int best)
+		{
+			this.name = name;
+			this.matches = matches;
+			this.wins = wins;
+			this.lines = lines;
+			this.best = best;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public int getMatches()
+		{
+			return matches;
+		}
+
+		public int getWins()
+		{
+			return wins;
+		}
+
+		/**
+		 * @return the lines removed over all the matches.
+		 */
+		public long getLines()
+		{
+			return lines;
+		}
+
+		/**
+		 * @return the most lines removed in a match.
+		 */
+		public int getBest()
+		{
+			return best;
+		}
+
+		public String toString()
+		{
+			return name + "  " + lines + " lines, " + wins + " wins in " + matches + " matches, best " + best;
+		}
+	}
+
+	/**
+	 * The order of the leaderboard: most lines first, then most wins, then by name.
+	 */
+	private static final Comparator<Standing> ORDER = new Comparator<Standing>()
+	{
+		public int compare(Standing a, Standing b)
+		{
+			if (a.lines != b.lines)
+				return a.lines > b.lines ? -1 : 1;
+			if (a.wins != b.wins)
+				return a.wins > b.wins ? -1 : 1;
+			return a.name.compareTo(b.name);
+		}
+	};
+
+	/**
+	 * The result of a player in a match.
+	 */
+	private static final class Result
+	{
+		final String name;
+		final boolean won;
+		final int lines;
+
+		Result(String name, boolean won, int lines)
+		{
+			this.name = name;
+			this.won = won;
+			this.lines = lines;
+		}
+	}
+
+	/**
+	 * A node of the treap: a standing, the random priority keeping the tree balanced and the
+	 * number of standings in its subtree.
+	 */
+	private static final class Node
+	{
+		final Standing standing;
+		final int priority;
+		int size = 1;
+		Node left;
+		Node right;
+
+		Node(Standing standing, int priority)
+		{
+			this.standing = standing;
+			this.priority = priority;
+		}
+	}
+
+	private final File file;
+	private FileChannel channel;
+	private final BlockingQueue<Result> queue = new ArrayBlockingQueue<Result>(QUEUE_CAPACITY);
+	private final Thread writer;
+
+	/**
+	 * Guards the standings: queries read them while the writer changes them.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<String, Standing> byName = new HashMap<String, Standing>();
+	private Node root;
+	/**
+	 * Draws the priorities of the nodes. Only used by the writer, or before it starts.
+	 */
+	private final Random priorities = new Random();
+
+	/**
+	 * The records in the file.
+	 */
+	private long records;
+
+	private final AtomicLong recorded = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+
+	/**
+	 * Opens a leaderboard file, creating it if need be, reads the standings and starts the writer.
+	 *
+	 * @param file the file.
+	 * @throws IOException if the file cannot be opened, or is not a leaderboard file.
+	 */
+	public Leaderboard(File file) throws IOException
+	{
+		this.file = file;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+
+		try
+		{
+			if (channel.size() == 0)
+			{
+				ByteBuffer magic = ByteBuffer.allocate(4).putInt(MAGIC);
+				magic.flip();
+				channel.write(magic);
+			}
+			else
+				// Append after the last whole record, over any record a crash cut short
+				channel.truncate(load());
+			channel.position(channel.size());
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+
+		writer = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				write();
+			}
+		}, "Leaderboard writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	//*************************************RESULTS*************************************//
+
+	/**
+	 * Hands a player's result in a match over to the leaderboard. Never blocks.
+	 *
+	 * @param name the player's name.
+	 * @param won true if the player won the match.
+	 * @param lines the lines the player removed in the match.
+	 * @return false if the result was dropped because too many are waiting, or the leaderboard is closed.
+	 */
+	public boolean record(String name, boolean won, int lines)
+	{
+		if (!writer.isAlive() || !queue.offer(new Result(name, won, lines)))
+		{
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Applies the results waiting and writes the standings they changed, then stops the writer
+	 * and closes the file.
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			if (writer.isAlive())
+				queue.put(CLOSE);
+			writer.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+	}
+
+	/**
+	 * Applies results until closed, and writes the standings they changed in batches.
+	 */
+	private void write()
+	{
+		Map<String, Standing> changed = new LinkedHashMap<String, Standing>();
+		long firstChange = 0;
+
+		try
+		{
+			while (true)
+			{
+				Result result = changed.isEmpty() ? queue.take()
+					: queue.poll(Math.max(0, firstChange + FLUSH_MILLIS - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+				if (result == CLOSE)
+				{
+					flush(changed);
+					return;
+				}
+				if (result != null)
+				{
+					if (changed.isEmpty())
+						firstChange = System.currentTimeMillis();
+					Standing standing = apply(result);
+					changed.put(standing.name, standing);
+					recorded.incrementAndGet();
+				}
+				if (result == null || changed.size() >= BATCH_SIZE)
+				{
+					flush(changed);
+					changed.clear();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Closing
+		}
+		catch (IOException e)
+		{
+			ServerLog.log(ServerLog.Level.ERROR, "Could not write the leaderboard to " + file + ", no more results will be kept", e);
+		}
+	}
+
+	/**
+	 * Applies a result to the player's standing.
+	 *
+	 * @return the player's new standing.
+	 */
+	private Standing apply(Result result)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			Standing old = byName.get(result.name);
+			Standing standing = (old == null)
+				? new Standing(result.name, 1, result.won ? 1 : 0, result.lines, result.lines)
+				: new Standing(result.name, old.matches + 1, old.wins + (result.won ? 1 : 0), old.lines + result.lines,
+					Math.max(old.best, result.lines));
+			put(old, standing);
+			return standing;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces a player's standing. Only called with the write lock held, or before the writer starts.
+	 *
+	 * @param old the player's standing, or {@code null} if it has none yet.
+	 */
+	private void put(Standing old, Standing standing)
+	{
+		if (old != null)
+			root = remove(root, old);
+		root = insert(root, new Node(standing, priorities.nextInt()));
+		byName.put(standing.name, standing);
+	}
+
+	/**
+	 * Appends the standings that changed to the file, all in one write, and compacts the file
+	 * once it holds too many records.
+	 */
+	private void flush(Map<String, Standing> changed) throws IOException
+	{
+		if (changed.isEmpty())
+			return;
+
+		channel.write(encode(changed.values()));
+		channel.force(false);
+		records += changed.size();
+		flushes.incrementAndGet();
+
+		int players = getPlayers();
+		if (records > Math.max(MIN_COMPACTION, 2L * players))
+			compact();
+	}
+
+	/**
+	 * Writes every standing to a file beside the leaderboard's and renames it over it.
+	 */
+	private void compact() throws IOException
+	{
+		List<Standing> standings;
+		lock.readLock().lock();
+		try
+		{
+			standings = new ArrayList<Standing>(byName.values());
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		File compacted = new File(file.getPath() + ".tmp");
+		FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		try
+		{
+			ByteBuffer magic = ByteBuffer.allocate(4).putInt(MAGIC);
+			magic.flip();
+			out.write(magic);
+			ByteBuffer buffer = encode(standings);
+			while (buffer.hasRemaining())
+				out.write(buffer);
+			out.force(true);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		channel.close();
+		try
+		{
+			Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			records = standings.size();
+		}
+		catch (IOException e)
+		{
+			// The file still holds every standing, only not compacted
+			ServerLog.log(ServerLog.Level.WARN, "Could not compact the leaderboard " + file, e);
+			compacted.delete();
+		}
+		finally
+		{
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.READ);
+			channel.position(channel.size());
+		}
+	}
+
+	//*************************************FILE*************************************//
+
+	/**
+	 * @return standings as records.
+	 */
+	private static ByteBuffer encode(Iterable<Standing> standings) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+		DataOutputStream fields = new DataOutputStream(record);
+		CRC32 crc = new CRC32();
+
+		for (Standing standing : standings)
+		{
+			record.reset();
+			fields.writeUTF(standing.name);
+			fields.writeInt(standing.matches);
+			fields.writeInt(standing.wins);
+			fields.writeLong(standing.lines);
+			fields.writeInt(standing.best);
+
+			crc.reset();
+			crc.update(record.toByteArray(), 0, record.size());
+			out.writeInt(record.size());
+			out.writeInt((int) crc.getValue());
+			record.writeTo(out);
+		}
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	/**
+	 * Reads the standings of the file, up to its end or the first record cut short or corrupt.
+	 *
+	 * @return the position after the last whole record.
+	 */
+	private long load() throws IOException
+	{
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException(file + " is too large to be a leaderboard");
+		ByteBuffer in = ByteBuffer.allocate((int) size);
+		while (in.hasRemaining() && channel.read(in, in.position()) >= 0) {}
+		in.flip();
+
+		if (in.remaining() < 4 || in.getInt() != MAGIC)
+			throw new IOException("Not a leaderboard file");
+
+		CRC32 crc = new CRC32();
+		while (in.remaining() >= RECORD_HEADER)
+		{
+			int length = in.getInt(in.position());
+			int checksum = in.getInt(in.position() + 4);
+			if (length < 0 || length > in.remaining() - RECORD_HEADER)
+				break;
+
+			crc.reset();
+			crc.update(in.array(), in.position() + RECORD_HEADER, length);
+			if ((int) crc.getValue() != checksum)
+				break;
+
+			DataInputStream record = new DataInputStream(new ByteArrayInputStream(in.array(), in.position() + RECORD_HEADER, length));
+			Standing standing = new Standing(record.readUTF(), record.readInt(), record.readInt(), record.readLong(), record.readInt());
+			put(byName.get(standing.name), standing);
+			records++;
+			in.position(in.position() + RECORD_HEADER + length);
+		}
+		return in.position();
+	}
+
+	//*************************************QUERIES*************************************//
+
+	/**
+	 * @return a player's standing, or {@code null} if the player has played no match.
+	 */
+	public Standing getStanding(String name)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return byName.get(name);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a player's rank, from 1, or 0 if the player has played no match.
+	 */
+	public int getRank(String name)
+	{
+		lock.readLock().lock();
+		try
+		{
+			Standing standing = byName.get(name);
+			return standing == null ? 0 : rank(root, standing) + 1;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param page the page, from 1.
+	 * @return the standings on a page of the leaderboard, best first; empty past the last page.
+	 */
+	public List<Standing> getPage(int page)
+	{
+		return getRange((page - 1) * PAGE_SIZE, PAGE_SIZE);
+	}
+
+	/**
+	 * @param from the rank of the first standing, from 0.
+	 * @param count the number of standings.
+	 * @return the standings from a rank on, best first; fewer past the last player.
+	 */
+	public List<Standing> getRange(int from, int count)
+	{
+		List<Standing> range = new ArrayList<Standing>(Math.max(0, count));
+		lock.readLock().lock();
+		try
+		{
+			int size = size(root);
+			for (int rank = Math.max(0, from); rank < size && rank < from + count; rank++)
+				range.add(select(root, rank));
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		return range;
+	}
+
+	/**
+	 * @return the number of players on the leaderboard.
+	 */
+	public int getPlayers()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return size(root);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of pages of the leaderboard.
+	 */
+	public int getPages()
+	{
+		return Math.max(1, (getPlayers() + PAGE_SIZE - 1) / PAGE_SIZE);
+	}
+
+	//*************************************TREAP*************************************//
+
+	private static int size(Node node)
+	{
+		return node == null ? 0 : node.size;
+	}
+
+	private static Node resize(Node node)
+	{
+		node.size = 1 + size(node.left) + size(node.right);
+		return node;
+	}
+
+	/**
+	 * Inserts a node: it goes down until its priority is higher than the node it meets, then
+	 * splits that node's subtree around it.
+	 *
+	 * @return the new root of the subtree.
+	 */
+	private static Node insert(Node tree, Node node)
+	{
+		if (tree == null)
+			return node;
+
+		if (node.priority > tree.priority)
+		{
+			Node[] halves = new Node[2];
+			split(tree, node.standing, halves);
+			node.left = halves[0];
+			node.right = halves[1];
+			return resize(node);
+		}
+
+		if (ORDER.compare(node.standing, tree.standing) < 0)
+			tree.left = insert(tree.left, node);
+		else
+			tree.right = insert(tree.right, node);
+		return resize(tree);
+	}
+
+	/**
+	 * Splits a subtree into the standings ranked before one and those ranked after it.
+	 *
+	 * @param halves receives the two subtrees.
+	 */
+	private static void split(Node tree, Standing standing, Node[] halves)
+	{
+		if (tree == null)
+		{
+			halves[0] = halves[1] = null;
+			return;
+		}
+
+		if (ORDER.compare(tree.standing, standing) < 0)
+		{
+			split(tree.right, standing, halves);
+			tree.right = halves[0];
+			halves[0] = resize(tree);
+		}
+		else
+		{
+			split(tree.left, standing, halves);
+			tree.left = halves[1];
+			halves[1] = resize(tree);
+		}
+	}
+
+	/**
+	 * Removes a standing, merging its node's subtrees in its place.
+	 *
+	 * @return the new root of the subtree.
+	 */
+	private static Node remove(Node tree, Standing standing)
+	{
+		if (tree == null)
+			return null;
+
+		int order = ORDER.compare(standing, tree.standing);
+		if (order == 0)
+			return merge(tree.left, tree.right);
+		if (order < 0)
+			tree.left = remove(tree.left, standing);
+		else
+			tree.right = remove(tree.right, standing);
+		return resize(tree);
+	}
+
+	/**
+	 * Merges two subtrees, every standing of the first ranked before those of the second.
+	 *
+	 * @return the root of the merged subtree.
+	 */
+	private static Node merge(Node first, Node second)
+	{
+		if (first == null)
+			return second;
+		if (second == null)
+			return first;
+
+		if (first.priority > second.priority)
+		{
+			first.right = merge(first.right, second);
+			return resize(first);
+		}
+		second.left = merge(first, second.left);
+		return resize(second);
+	}
+
+	/**
+	 * @return the number of standings ranked before one.
+	 */
+	private static int rank(Node tree, Standing standing)
+	{
+		int rank = 0;
+		while (tree != null)
+		{
+			int order = ORDER.compare(standing, tree.standing);
+			if (order == 0)
+				return rank + size(tree.left);
+			if (order < 0)
+				tree = tree.left;
+			else
+			{
+				rank += size(tree.left) + 1;
+				tree = tree.right;
+			}
+		}
+		return rank;
+	}
+
+	/**
+	 * @return the standing of a rank, from 0.
+	 */
+	private static Standing select(Node tree, int rank)
+	{
+		while (true)
+		{
+			int left = size(tree.left);
+			if (rank == left)
+				return tree.standing;
+			if (rank < left)
+				tree = tree.left;
+			else
+			{
+				rank -= left + 1;
+				tree = tree.right;
+			}
+		}
+	}
+
+	//*************************************GETTERS*************************************//
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return the results applied since the leaderboard was opened.
+	 */
+	public long getRecorded()
+	{
+		return recorded.get();
+	}
+
+	/**
+	 * @return the results dropped because too many were waiting or the leaderboard was closed.
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * @return the batches written since the leaderboard was opened.
+	 */
+	public long getFlushes()
+	{
+		return flushes.get();
+	}
+
+	/**
+	 * @return the results waiting to be applied.
+	 */
+	public int getQueued()
+	{
+		return queue.size();
+	}
+
+	public String toString()
+	{
+		return file + ": " + getPlayers() + " players, " + recorded + " results recorded in " + flushes + " writes, "
+			+ dropped + " dropped";
+	}
+}
@@ -0,0 +1,1060 @@
+package Tetris2P;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ocsf.common.DatagramLink;
+import ocsf.common.ServerLog;
+import ocsf.common.SharedFrame;
+import ocsf.common.StreamSegment;
+import ocsf.server.ConnectionToClient;
+
+/**
+ * A game between players, as seen by the server.
+ * <p>
+ * The match owns its players' connections, the seed of the game, who is ready and the latest
+ * board of every player. All of it is only changed by the match's own tasks, which run one
+ * at a time and in order of submission on a shared pool of threads; so different matches are
+ * processed in parallel while a single match never needs a lock.
+ * <p>
+ * Once the match starts, the server keeps its own copy of every player's game and checks each
+ * board a player sends against it, see {@code Referee}. A board that diverges is flagged and
+ * replaced by the server's, and the server decides who wins. Lines a player removes in the
+ * server's game attack an opponent with garbage lines, sent by the server as soon as it checks
+ * the board that removed them.
+ * <p>
+ * A player whose datagram link to the server is up when the match starts gets the others'
+ * inputs over it, see {@code DatagramLink}, and no boards: it plays the others' games from their
+ * inputs. Commands always go over the connection, and so does everything else once the link
+ * stalls. A player may also send only its inputs, over either: the server then forwards its own
+ * board of the player whenever a piece locks, to the players without datagrams and the
+ * spectators.
+ * <p>
+ * When the server keeps replays, the inputs the referees check are recorded with the seed, and
+ * the replay goes to the {@code ReplayLog} once the match is over. When it keeps a leaderboard,
+ * the lines each player removed in the server's game go to the {@code Leaderboard}, with who won.
+ * <p>
+ * Other clients may watch the match as spectators. They receive the players' boards after
+ * the players do, coalesced so that a spectator never slows the game down.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class Match
+{
+	/**
+	 * The stages of a match.
+	 */
+	public enum State { WAITING, PLAYING, OVER }
+
+	/**
+	 * Told by the match once a player that left is removed.
+	 */
+	public interface LeaveListener
+	{
+		/**
+		 * Called by the match's task, after the player is removed.
+		 *
+		 * @param match the match the player left.
+		 * @param released the players left without a match, if any.
+		 */
+		void left(Match match, List<ClientNode> released);
+	}
+
+	/**
+	 * The most players a match can hold.
+	 */
+	public static final int MAX_PLAYERS = 100;
+
+	/**
+	 * The most players a match can hold for its players' inputs to be sent to each other as they
+	 * are played, letting clients predict their opponents' games. Larger matches only send boards.
+	 */
+	public static final int MAX_STREAMED_PLAYERS = 10;
+
+	/**
+	 * How long spectators' boards are held back to be coalesced, in milliseconds.
+	 */
+	public static final long SPECTATOR_DELAY = 100;
+
+	/**
+	 * Used to give every match its own ID.
+	 */
+	private static final AtomicLong nextID = new AtomicLong(1);
+
+	/**
+	 * This match's ID.
+	 */
+	private final long matchID;
+	/**
+	 * The seed of the game's piece sequence, the same for every player. A new one is drawn for
+	 * every game the players play again.
+	 */
+	private volatile long seed;
+	/**
+	 * The players still in the match.
+	 */
+	private final CopyOnWriteArrayList<ClientNode> players = new CopyOnWriteArrayList<ClientNode>();
+	/**
+	 * IDs of the players that are ready to start.
+	 */
+	private final Set<Long> ready = new HashSet<Long>();
+	/**
+	 * The latest board of every player, by player ID.
+	 */
+	private final Map<Long, Updater> boards = new HashMap<Long, Updater>();
+	/**
+	 * The server's copy of every player's game, by player ID. Created when the match starts.
+	 */
+	private final Map<Long, Referee> referees = new HashMap<Long, Referee>();
+	/**
+	 * IDs of the players that get the others' inputs over their datagram link. Chosen when the
+	 * match starts, so that an opponent's inputs never change channel during the match.
+	 */
+	private final Set<Long> datagramPlayers = new HashSet<Long>();
+	/**
+	 * Picks the opponent a player's garbage lines go to, in matches of more than two.
+	 */
+	private Random targets;
+	/**
+	 * The number of garbage lines sent.
+	 */
+	private volatile long garbageSent = 0;
+	/**
+	 * The number of boards checked by the referees.
+	 */
+	private volatile long boardsChecked = 0;
+	/**
+	 * The number of boards that diverged.
+	 */
+	private volatile long divergences = 0;
+	/**
+	 * Time spent checking boards, in nanoseconds.
+	 */
+	private volatile long checkNanos = 0;
+	/**
+	 * The stage the match is at. Only set to {@code OVER} by {@code over}, and back to
+	 * {@code WAITING} by {@code rematch}.
+	 */
+	private volatile State state = State.WAITING;
+	/**
+	 * The Flight Recorder event of the match being played, from its start until it is over.
+	 */
+	private final AtomicReference<GameEvents.MatchPlayed> played = new AtomicReference<GameEvents.MatchPlayed>();
+	/**
+	 * Where the replay goes once the match is over, or {@code null} if none is kept.
+	 */
+	private final ReplayLog replays;
+	/**
+	 * Records the replay while the match is played. Only used by the match's tasks.
+	 */
+	private Replay.Recorder recorder;
+	/**
+	 * Where the players' results go once the match is over, or {@code null} if none is kept.
+	 */
+	private final Leaderboard leaderboard;
+	/**
+	 * The names of the players when the match started, by their index in the replay.
+	 */
+	private String[] recordedNames;
+	/**
+	 * The referees of the players recorded, by their index in the replay. Kept when a player
+	 * leaves, so that the replay and the leaderboard say how the player's game ended.
+	 */
+	private final List<Referee> recorded = new ArrayList<Referee>();
+	/**
+	 * The index of every player in the replay, by player ID.
+	 */
+	private final Map<Long, Integer> recordedIndexes = new HashMap<Long, Integer>();
+	/**
+	 * The clients watching the match.
+	 */
+	private final CopyOnWriteArrayList<ClientNode> spectators = new CopyOnWriteArrayList<ClientNode>();
+	/**
+	 * The boards not yet sent to the spectators, only the latest of each player, by player ID.
+	 */
+	private final Map<Long, SharedFrame> spectatorFrames = new LinkedHashMap<Long, SharedFrame>();
+	/**
+	 * True while a flush of the spectators' boards is scheduled.
+	 */
+	private boolean spectatorFlushScheduled = false;
+
+	/**
+	 * Runs the match's tasks, and schedules the spectators' flushes.
+	 */
+	private final ScheduledExecutorService executor;
+	/**
+	 * Tasks waiting to run, in order of submission. Also the lock for {@code scheduled}.
+	 */
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+	/**
+	 * True while a worker is running this match's tasks.
+	 */
+	private boolean scheduled = false;
+	/**
+	 * Runs the queued tasks one at a time until there are none left.
+	 */
+	private final Runnable worker = new Runnable()
+	{
+		public void run()
+		{
+			while (true)
+			{
+				Runnable task;
+				synchronized (tasks)
+				{
+					task = tasks.poll();
+					if (task == null)
+					{
+						scheduled = false;
+						return;
+					}
+				}
+				try
+				{
+					task.run();
+				}
+				catch (RuntimeException e)
+				{
+					ServerLog.log(ServerLog.Level.ERROR, "Match " + matchID + " task failed", e);
+				}
+			}
+		}
+	};
+
+	//*************************************CONSTRUCTOR*************************************//
+
+	/**
+	 * Creates a match between the given players. The players are only pointed to it once it is
+	 * built, see {@link #create(ScheduledExecutorService, List, ReplayLog, Leaderboard)}.
+	 */
+	private Match(ScheduledExecutorService executor, List<ClientNode> players, ReplayLog replays, Leaderboard leaderboard)
+	{
+		if (players.size() > MAX_PLAYERS)
+			throw new IllegalArgumentException("A match holds at most " + MAX_PLAYERS + " players.");
+		
+		this.matchID = nextID.getAndIncrement();
+		this.seed = new Random().nextLong();
+		this.targets = new Random(seed);
+		this.executor = executor;
+		this.replays = replays;
+		this.leaderboard = leaderboard;
+		this.players.addAll(players);
+	}
+
+	/**
+	 * Creates a match between the given players and points each of them to it.
+	 *
+	 * @param executor the pool the match's tasks run on.
+	 * @param players the players of the match, at most {@code MAX_PLAYERS}.
+	 * @return the match.
+	 */
+	public static Match create(ScheduledExecutorService executor, List<ClientNode> players)
+	{
+		return create(executor, players, null, null);
+	}
+
+	/**
+	 * Creates a match between the given players and points each of them to it.
+	 *
+	 * @param executor the pool the match's tasks run on.
+	 * @param players the players of the match, at most {@code MAX_PLAYERS}.
+	 * @param replays where the match's replay goes once it is over, or {@code null} to keep none.
+	 * @return the match.
+	 */
+	public static Match create(ScheduledExecutorService executor, List<ClientNode> players, ReplayLog replays)
+	{
+		return create(executor, players, replays, null);
+	}
+
+	/**
+	 * Creates a match between the given players and points each of them to it, once the match is
+	 * built: their threads may use it as soon as they see it.
+	 *
+	 * @param executor the pool the match's tasks run on.
+	 * @param players the players of the match, at most {@code MAX_PLAYERS}.
+	 * @param replays where the match's replay goes once it is over, or {@code null} to keep none.
+	 * @param leaderboard where the players' results go once it is over, or {@code null} to keep none.
+	 * @return the match.
+	 */
+	public static Match create(ScheduledExecutorService executor, List<ClientNode> players, ReplayLog replays, Leaderboard leaderboard)
+	{
+		Match match = new Match(executor, players, replays, leaderboard);
+		for (ClientNode player : players)
+			player.setMatch(match);
+		return match;
+	}
+
+	//*************************************TASKS*************************************//
+
+	/**
+	 * Runs a task after every task submitted before it. Never blocks.
+	 *
+	 * @param task the task.
+	 */
+	public void submit(Runnable task)
+	{
+		synchronized (tasks)
+		{
+			tasks.add(task);
+			if (scheduled)
+				return;
+			scheduled = true;
+		}
+		executor.execute(worker);
+	}
+
+	/**
+	 * Marks a player as ready and tells the others. The match starts once everybody is ready:
+	 * every player then gets one {@code start} command with the seed, and only plays from it.
+	 *
+	 * @param player the player that is ready.
+	 */
+	public void ready(final ClientNode player)
+	{
+		submit(new Runnable()
+		{
+			public void run()
+			{
+				if (state != State.WAITING)
+					return;
+
+				ready.add(player.getPlayerID());
+				sendToOthers(player, "/ready");
+
+				if (ready.size() == players.size())
+				{
+					state = State.PLAYING;
+					for (ClientNode each : players)
+					{
+						referees.put(each.getPlayerID(), new Referee(seed));
+						
+						DatagramLink link = each.getConnection().getDatagramLink();
+						if (link != null && link.isEstablished())
+							datagramPlayers.add(each.getPlayerID());
+					}
+					started();
+					
+					Updater start = new Updater("start " + seed);
+					for (ClientNode each : players)
+						send(each, start);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Records a player's new board and forwards it to the others.
+	 * Once the match has started, the board is first checked by the player's referee: a board
+	 * that cannot be checked is dropped, and one that diverged is replaced by the referee's.
+	 * With more than one recipient, the board is serialized once into a frame shared by all of
+	 * them. The frame is keyed by its sender, so a recipient that has not yet received the
+	 * sender's previous board gets this one in its place. Spectators get the same frame, but
+	 * only after the players and at most once per {@code SPECTATOR_DELAY} for each player.
+	 *
+	 * @param player the player whose board changed.
+	 * @param update the new board.
+	 */
+	public void update(final ClientNode player, final Updater update)
+	{
+		final GameEvents.BoardRelayed event = new GameEvents.BoardRelayed();
+		event.begin();
+		
+		submit(new Runnable()
+		{
+			public void run()
+			{
+				relay(player, update);
+				
+				if (event.shouldCommit())
+				{
+					event.matchId = matchID;
+					event.player = player.getName();
+					event.recipients = players.size() - 1;
+					event.hasBoard = update.hasBoard();
+					event.commit();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Checks a player's new board and forwards it, see {@code update}. Only called by the
+	 * match's tasks.
+	 */
+	private void relay(ClientNode player, Updater update)
+	{
+		Updater board = referee(player, update);
+		if (board == null)
+			return;
+		
+		// The attack goes out before the board, in the same hop
+		Referee referee = referees.get(player.getPlayerID());
+		if (referee != null)
+		{
+			int lines = referee.takeAttack();
+			if (lines > 0)
+				attack(player, lines);
+		}
+		
+		// Inputs sent on their own have a new board to show once they lock a piece
+		if (!board.hasBoard() && referee != null && state == State.PLAYING && referee.hasLocked())
+		{
+			Updater locked = referee.getBoard();
+			locked.inputs = board.inputs;
+			locked.sequence = board.sequence;
+			board = locked;
+		}
+		
+		board.sender = player.getName();
+		if (players.size() > MAX_STREAMED_PLAYERS)
+		{
+			// Large matches only send boards
+			if (!board.hasBoard())
+				return;
+			board.inputs = null;
+		}
+		
+		SharedFrame frame = null;
+		if (board.inputs != null)
+		{
+			stream(player, board);
+			if (!board.hasBoard())
+				return;
+			board = board.withoutInputs();
+		}
+		// A frame only pays for itself with more than one recipient
+		else if (players.size() > 2)
+		{
+			frame = encode(player, board);
+			if (frame == null)
+				return;
+			sendToOthers(player, frame);
+		}
+		else if (players.size() == 2)
+			sendToOthers(player, board);
+		
+		boards.put(player.getPlayerID(), board);
+		
+		if (!spectators.isEmpty())
+		{
+			if (frame == null)
+				frame = encode(player, board);
+			if (frame != null)
+				queueForSpectators(player, frame);
+		}
+		
+		if (referee != null && referee.isOver())
+			endIfDecided();
+	}
+
+	/**
+	 * Checks a board with the player's referee. Only called by the match's tasks.
+	 *
+	 * @return the board to forward, or {@code null} if it must be dropped.
+	 */
+	private Updater referee(ClientNode player, Updater update)
+	{
+		Referee referee = referees.get(player.getPlayerID());
+		
+		// Inputs only count from the start of a game, which the server decides
+		if (state != State.PLAYING)
+			return (update.inputs == null) ? update : null;
+		if (referee == null)
+			return update;
+		
+		// Inputs a stalled link did not deliver come again over the connection, some maybe played
+		long played = referee.getInputCount() - update.sequence;
+		if (update.inputs != null && !update.hasBoard() && played > 0)
+		{
+			if (played >= update.inputs.length)
+				return null;
+			update.inputs = Arrays.copyOfRange(update.inputs, (int) played, update.inputs.length);
+			update.sequence = referee.getInputCount();
+		}
+		
+		long before = referee.getCheckNanos();
+		long applied = referee.getInputCount();
+		Referee.Verdict verdict = referee.check(update);
+		checkNanos += referee.getCheckNanos() - before;
+		
+		// The replay holds the inputs the referee played, which may stop short of those sent
+		if (recorder != null && referee.getInputCount() > applied)
+			recorder.record(recordedIndexes.get(player.getPlayerID()), update.inputs, (int) (referee.getInputCount() - applied));
+		
+		switch (verdict)
+		{
+			case UNCHECKED:
+				ServerLog.log(ServerLog.Level.DEBUG, "Match " + matchID + " dropped a board without inputs from " + player.getName());
+				return null;
+			case DIVERGED:
+				if (referee.getDivergences() == 1)
+					ServerLog.log(ServerLog.Level.WARN, "Match " + matchID + ": the board of " + player.getName() + " diverged from the server's");
+				divergences++;
+				update = referee.getBoard();
+				break;
+			default:
+				break;
+		}
+		boardsChecked++;
+		return update;
+	}
+
+	/**
+	 * Forwards a player's inputs, with or without a board, to the others. They are never
+	 * coalesced, since a client needs every one of them to play the player's game; spectators
+	 * only get boards. Players that take datagrams only get the inputs, as a stream keyed by the
+	 * match's seed and the player's name. Once a player's link stalls, the player gets the
+	 * inputs over the connection for the rest of the match, starting with those the link did not
+	 * deliver. Only called by the match's tasks.
+	 */
+	private void stream(ClientNode player, Updater inputs)
+	{
+		String key = seed + ":" + player.getName();
+		SharedFrame frame = null;
+		
+		for (ClientNode recipient : players)
+		{
+			if (recipient == player)
+				continue;
+			
+			DatagramLink link = datagramPlayers.contains(recipient.getPlayerID()) ? recipient.getConnection().getDatagramLink() : null;
+			if (link != null)
+			{
+				if (link.send(key, inputs.sequence, inputs.inputs))
+					continue;
+				
+				datagramPlayers.remove(recipient.getPlayerID());
+				ServerLog.log(ServerLog.Level.INFO, "Match " + matchID + ": the datagram link of " + recipient.getName() + " stalled, using the connection");
+				for (StreamSegment unacked : link.takeUnacked())
+					send(recipient, unacked);
+			}
+			
+			if (players.size() == 2)
+			{
+				send(recipient, inputs);
+				continue;
+			}
+			
+			try
+			{
+				if (frame == null)
+					frame = SharedFrame.encode(inputs, null);
+				send(recipient, frame);
+			}
+			catch (IOException e)
+			{
+				ServerLog.log(ServerLog.Level.ERROR, "Match " + matchID + " could not encode the inputs of " + player.getName(), e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sends the garbage lines a player's line clear attacks with to an opponent still playing,
+	 * at random in matches of more than two. The opponent's referee holds them as owed until
+	 * its inputs take them in. Only called by the match's tasks.
+	 */
+	private void attack(ClientNode attacker, int lines)
+	{
+		List<ClientNode> opponents = new ArrayList<ClientNode>(players.size());
+		
+		for (ClientNode player : players)
+		{
+			Referee referee = referees.get(player.getPlayerID());
+			if (player != attacker && referee != null && !referee.isOver())
+				opponents.add(player);
+		}
+		if (opponents.isEmpty() || state != State.PLAYING)
+			return;
+		
+		ClientNode target = opponents.get(targets.nextInt(opponents.size()));
+		referees.get(target.getPlayerID()).owe(lines);
+		send(target, new Updater("garbage " + lines + " " + attacker.getName()));
+		garbageSent += lines;
+	}
+
+	/**
+	 * Ends the match once every player but one topped out in the server's games,
+	 * telling the winner and the others. Only called by the match's tasks.
+	 */
+	private void endIfDecided()
+	{
+		if (state != State.PLAYING || referees.isEmpty())
+			return;
+		
+		ClientNode winner = null;
+		
+		for (ClientNode player : players)
+		{
+			Referee referee = referees.get(player.getPlayerID());
+			if (referee != null && !referee.isOver())
+			{
+				if (winner != null)
+					return;
+				winner = player;
+			}
+		}
+		if (winner == null)
+			return;
+		
+		over(winner.getName());
+		send(winner, new Updater("gameWon"));
+		sendToOthers(winner, new Updater("gameLost " + winner.getName()));
+	}
+
+	/**
+	 * Records that the match started, for Flight Recorder. Only called by the match's tasks.
+	 */
+	private void started()
+	{
+		GameEvents.MatchStarted event = new GameEvents.MatchStarted();
+		if (event.shouldCommit())
+		{
+			event.matchId = matchID;
+			event.players = players.size();
+			event.seed = seed;
+			event.commit();
+		}
+		
+		if (replays != null || leaderboard != null)
+		{
+			recordedNames = new String[players.size()];
+			for (ClientNode player : players)
+			{
+				recordedIndexes.put(player.getPlayerID(), recorded.size());
+				recordedNames[recorded.size()] = player.getName();
+				recorded.add(referees.get(player.getPlayerID()));
+			}
+		}
+		if (replays != null)
+			recorder = new Replay.Recorder(matchID, seed, recordedNames);
+		
+		GameEvents.MatchPlayed match = new GameEvents.MatchPlayed();
+		match.begin();
+		match.matchId = matchID;
+		match.players = players.size();
+		played.set(match);
+	}
+
+	/**
+	 * Ends the game, and has the players play again if there are still enough of them. Only the
+	 * first call of a game counts. Only called by the match's tasks.
+	 *
+	 * @param winner the winner's name, or {@code null} if the match was not decided.
+	 */
+	private void over(final String winner)
+	{
+		if (state == State.OVER)
+			return;
+		state = State.OVER;
+		
+		if (replays != null || leaderboard != null)
+		{
+			submit(new Runnable()
+			{
+				public void run()
+				{
+					finishRecording(winner);
+				}
+			});
+		}
+		
+		GameEvents.MatchPlayed match = played.getAndSet(null);
+		if (match != null && match.shouldCommit())
+		{
+			match.winner = winner;
+			match.boardsChecked = boardsChecked;
+			match.divergences = divergences;
+			match.garbageSent = garbageSent;
+			match.commit();
+		}
+		
+		// After the recording, which needs the game just played
+		submit(new Runnable()
+		{
+			public void run()
+			{
+				rematch();
+			}
+		});
+	}
+
+	/**
+	 * Gets the match ready for its players to play again, with new pieces, once a game is over
+	 * and at least two of them are left. They ready up as they did for the first game. Only
+	 * called by the match's tasks.
+	 */
+	private void rematch()
+	{
+		if (state != State.OVER || players.size() < 2)
+			return;
+		
+		seed = new Random().nextLong();
+		targets = new Random(seed);
+		ready.clear();
+		boards.clear();
+		referees.clear();
+		datagramPlayers.clear();
+		recorded.clear();
+		recordedIndexes.clear();
+		state = State.WAITING;
+	}
+
+	/**
+	 * Hands the replay of the match to the log and the players' results to the leaderboard,
+	 * once. Only called by the match's tasks.
+	 *
+	 * @param winner the winner's name, or {@code null} if the match was not decided.
+	 */
+	private void finishRecording(String winner)
+	{
+		if (recordedNames == null)
+			return;
+		
+		int[] lines = new int[recorded.size()];
+		long[] inputs = new long[recorded.size()];
+		int winnerIndex = -1;
+		
+		for (int i = 0; i < recorded.size(); i++)
+		{
+			if (recordedNames[i].equals(winner))
+				winnerIndex = i;
+			lines[i] = recorded.get(i).getLinesRemoved();
+			inputs[i] = recorded.get(i).getInputCount();
+		}
+		
+		if (leaderboard != null)
+		{
+			for (int i = 0; i < lines.length; i++)
+			{
+				if (!leaderboard.record(recordedNames[i], i == winnerIndex, lines[i]))
+					ServerLog.log(ServerLog.Level.WARN, "Match " + matchID + ": the result of " + recordedNames[i]
+						+ " was dropped, the leaderboard is behind");
+			}
+		}
+		if (recorder != null && !replays.append(recorder.finish(winnerIndex, lines, inputs)))
+			ServerLog.log(ServerLog.Level.WARN, "Match " + matchID + ": the replay was dropped, the replay log is behind");
+		recorder = null;
+		recordedNames = null;
+	}
+
+	/**
+	 * Ends the match on a player's claim to have won, if the server's games agree:
+	 * every other player must have topped out. A false claim is flagged and ignored.
+	 *
+	 * @param player the player claiming the win.
+	 * @param result the message to forward.
+	 */
+	public void claimWin(final ClientNode player, final Object result)
+	{
+		submit(new Runnable()
+		{
+			public void run()
+			{
+				if (state != State.PLAYING)
+					return;
+				
+				for (ClientNode other : players)
+				{
+					Referee referee = referees.get(other.getPlayerID());
+					if (other != player && (referee == null || !referee.isOver()))
+					{
+						ServerLog.log(ServerLog.Level.WARN, "Match " + matchID + ": " + player.getName() + " claimed a win the server did not see");
+						divergences++;
+						send(player, "[WARNING] The server did not see you win.");
+						return;
+					}
+				}
+				over(player.getName());
+				sendToOthers(player, result);
+			}
+		});
+	}
+
+	/**
+	 * Adds a client to the spectators and sends it the latest board of every player.
+	 *
+	 * @param spectator the client that wants to watch.
+	 */
+	public void addSpectator(final ClientNode spectator)
+	{
+		spectators.add(spectator);
+		spectator.setSpectating(this);
+
+		submit(new Runnable()
+		{
+			public void run()
+			{
+				for (ClientNode player : players)
+				{
+					Updater board = boards.get(player.getPlayerID());
+					SharedFrame frame = (board == null) ? null : encode(player, board);
+					
+					if (frame != null)
+						send(spectator, frame);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops sending the match to a spectator.
+	 *
+	 * @param spectator the client that stops watching.
+	 */
+	public void removeSpectator(ClientNode spectator)
+	{
+		spectators.remove(spectator);
+		spectator.setSpectating(null);
+	}
+
+	/**
+	 * Holds a player's board back for the spectators, replacing the one still held for that
+	 * player, and schedules a flush if none is. Only called by the match's tasks.
+	 */
+	private void queueForSpectators(ClientNode player, SharedFrame frame)
+	{
+		spectatorFrames.put(player.getPlayerID(), frame);
+
+		if (spectatorFlushScheduled)
+			return;
+		spectatorFlushScheduled = true;
+
+		executor.schedule(new Runnable()
+		{
+			public void run()
+			{
+				submit(new Runnable()
+				{
+					public void run()
+					{
+						spectatorFlushScheduled = false;
+						for (SharedFrame held : spectatorFrames.values())
+						{
+							for (ClientNode spectator : spectators)
+								send(spectator, held);
+						}
+						spectatorFrames.clear();
+					}
+				});
+			}
+		}, SPECTATOR_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return a player's board serialized into a frame keyed by the player, or {@code null}
+	 *         if it could not be serialized.
+	 */
+	private SharedFrame encode(ClientNode player, Updater board)
+	{
+		try
+		{
+			return SharedFrame.encode(board, player.getPlayerID());
+		}
+		catch (IOException e)
+		{
+			ServerLog.log(ServerLog.Level.ERROR, "Match " + matchID + " could not encode the board of " + player.getName(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Ends a player's game on its word that it lost, as if it had topped out in the server's
+	 * game; the match is decided once every player but one is over. Ignored unless the match
+	 * is being played, so that a player never ends the match for the others.
+	 *
+	 * @param player the player giving up.
+	 */
+	public void resign(final ClientNode player)
+	{
+		submit(new Runnable()
+		{
+			public void run()
+			{
+				Referee referee = referees.get(player.getPlayerID());
+				if (state != State.PLAYING || referee == null || referee.isOver())
+					return;
+				
+				referee.resign();
+				sendToOthers(player, "[INFO] " + player.getName() + " gave up.");
+				endIfDecided();
+			}
+		});
+	}
+
+	/**
+	 * Removes a player that left and tells the others. With fewer than two players left the
+	 * match is over, and the remaining player no longer belongs to it. The player is only
+	 * removed by the match's task, which then tells the listener.
+	 *
+	 * @param player the player that left.
+	 * @param listener told about the players left without a match, or {@code null}.
+	 */
+	public void leave(final ClientNode player, final LeaveListener listener)
+	{
+		submit(new Runnable()
+		{
+			public void run()
+			{
+				if (!players.remove(player))
+					return;
+				player.setMatch(null);
+				ready.remove(player.getPlayerID());
+				datagramPlayers.remove(player.getPlayerID());
+				boards.remove(player.getPlayerID());
+				referees.remove(player.getPlayerID());
+				
+				List<ClientNode> released = new ArrayList<ClientNode>();
+				String winner = null;
+				if (players.size() < 2)
+				{
+					if (players.size() == 1)
+						winner = players.get(0).getName();
+					for (ClientNode remaining : players)
+					{
+						remaining.setMatch(null);
+						released.add(remaining);
+					}
+					players.clear();
+				}
+				sendToOthers(player, "[INFO] " + player.getName() + " left the match.");
+				
+				if (players.isEmpty())
+					over(winner);
+				else
+					endIfDecided();
+				
+				if (listener != null)
+					listener.left(Match.this, released);
+			}
+		});
+	}
+
+	/**
+	 * Sends a message to every player of the match except one. Only called by the match's tasks.
+	 */
+	private void sendToOthers(ClientNode sender, Object message)
+	{
+		for (ClientNode player : players)
+		{
+			if (player != sender)
+				send(player, message);
+		}
+	}
+
+	/**
+	 * Sends a message to one client of the match.
+	 */
+	private void send(ClientNode recipient, Object message)
+	{
+		ConnectionToClient connection = recipient.getConnection();
+		try
+		{
+			connection.send(message);
+		}
+		catch (IOException e)
+		{
+			ServerLog.log(ServerLog.Level.WARN, "Match " + matchID + " could not send to " + recipient.getName(), e);
+		}
+	}
+
+	//*************************************GETTER / SETTER*************************************//
+
+	/**
+	 * @return the match's ID.
+	 */
+	public long getMatchID()
+	{
+		return matchID;
+	}
+
+	/**
+	 * @return the seed of the game's piece sequence.
+	 */
+	public long getSeed()
+	{
+		return seed;
+	}
+
+	/**
+	 * @return the stage the match is at.
+	 */
+	public State getState()
+	{
+		return state;
+	}
+
+	/**
+	 * @return the players still in the match.
+	 */
+	public List<ClientNode> getPlayers()
+	{
+		return Collections.unmodifiableList(players);
+	}
+
+	/**
+	 * @return the clients watching the match.
+	 */
+	public List<ClientNode> getSpectators()
+	{
+		return Collections.unmodifiableList(spectators);
+	}
+
+	/**
+	 * @return the number of boards checked against the server's games.
+	 */
+	public long getBoardsChecked()
+	{
+		return boardsChecked;
+	}
+
+	/**
+	 * @return the number of boards that diverged from the server's games, and false claims to win.
+	 */
+	public long getDivergences()
+	{
+		return divergences;
+	}
+
+	/**
+	 * @return the number of garbage lines sent between the players.
+	 */
+	public long getGarbageSent()
+	{
+		return garbageSent;
+	}
+
+	/**
+	 * @return the time spent checking boards, in nanoseconds.
+	 */
+	public long getCheckNanos()
+	{
+		return checkNanos;
+	}
+
+	/**
+	 * @param playerID a player's ID.
+	 * @return the player's latest board, or {@code null} if none was received.
+	 *         Only safe to call from the match's tasks.
+	 */
+	public Updater getBoard(long playerID)
+	{
+		return boards.get(playerID);
+	}
+}
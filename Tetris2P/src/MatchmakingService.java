@@ -0,0 +1,479 @@
+package Tetris2P;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.common.ServerLog;
+
+/**
+ * Groups waiting players into matches on a fixed cadence.
+ * <p>
+ * Players join through a lock-free queue, so connection threads never wait on matchmaking.
+ * A single matcher thread drains that queue every {@code intervalMillis}, sorts the players
+ * into rating buckets and groups neighbours, {@code matchSize} at a time, in one pass over
+ * the buckets. Players are only grouped if their ratings all fit within each of their
+ * windows; a window starts at {@code baseWindow} rating points and widens by
+ * {@code windowGrowth} points for every second spent waiting, so nobody waits forever.
+ * With ratings off, players are simply grouped in order of arrival.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class MatchmakingService
+{
+	/**
+	 * Told about every match made. Called on the matcher thread.
+	 */
+	public interface MatchListener
+	{
+		/**
+		 * @param players the players of the new match, longest waiting first.
+		 */
+		void matched(List<ClientNode> players);
+	}
+
+	/**
+	 * The registry the waiting players belong to, used to skip those that left.
+	 */
+	private final PlayerRegistry registry;
+	/**
+	 * Told about every match made.
+	 */
+	private final MatchListener listener;
+	/**
+	 * Players that joined since the last batch. The only structure shared with other threads.
+	 */
+	private final ConcurrentLinkedQueue<Ticket> incoming = new ConcurrentLinkedQueue<Ticket>();
+	/**
+	 * Players carried over from earlier batches, by rating bucket and then in order of arrival.
+	 * Only touched by the matcher thread.
+	 */
+	private final TreeMap<Integer, ArrayDeque<Ticket>> buckets = new TreeMap<Integer, ArrayDeque<Ticket>>();
+	/**
+	 * Runs the batches.
+	 */
+	private ScheduledExecutorService matcher;
+
+	//*************************************SETTINGS*************************************//
+
+	/**
+	 * True to match players by rating, false to match them in order of arrival.
+	 */
+	private volatile boolean useRatings = false;
+	/**
+	 * Width of a rating bucket, in rating points.
+	 */
+	private volatile int bucketWidth = 100;
+	/**
+	 * Rating difference a player accepts as soon as it joins.
+	 */
+	private volatile int baseWindow = 100;
+	/**
+	 * Rating points added to a player's window for every second it waits.
+	 */
+	private volatile int windowGrowth = 50;
+	/**
+	 * Number of players in a match, from 2 to {@code Match.MAX_PLAYERS}.
+	 */
+	private volatile int matchSize = 2;
+	/**
+	 * Time between two batches, in milliseconds.
+	 */
+	private volatile long intervalMillis = 100;
+
+	//*************************************METRICS*************************************//
+
+	/**
+	 * Players currently waiting, including those not yet seen by the matcher.
+	 */
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	/**
+	 * Matches made since the service was created.
+	 */
+	private final AtomicLong matchesMade = new AtomicLong();
+	/**
+	 * Players put in matches since the service was created.
+	 */
+	private final AtomicLong playersMatched = new AtomicLong();
+	/**
+	 * Sum of the time every matched player waited, in milliseconds.
+	 */
+	private final AtomicLong totalWaitMillis = new AtomicLong();
+	/**
+	 * Longest time a matched player waited, in milliseconds.
+	 */
+	private volatile long maxWaitMillis = 0;
+	/**
+	 * How long the oldest player still waiting had waited at the last batch, in milliseconds.
+	 */
+	private volatile long oldestWaitMillis = 0;
+
+	//*************************************CONSTRUCTOR*************************************//
+
+	/**
+	 * @param registry the registry of the players to match.
+	 * @param listener told about every match made.
+	 */
+	public MatchmakingService(PlayerRegistry registry, MatchListener listener)
+	{
+		this.registry = registry;
+		this.listener = listener;
+	}
+
+	//*************************************CONTROL*************************************//
+
+	/**
+	 * Starts making matches. Does nothing if already started.
+	 */
+	public synchronized void start()
+	{
+		if (matcher != null)
+			return;
+
+		matcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "Matchmaker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		matcher.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					matchBatch();
+				}
+				catch (RuntimeException e)
+				{
+					// An exception would cancel every later batch
+					ServerLog.log(ServerLog.Level.ERROR, "Matchmaking batch failed", e);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops making matches. Waiting players stay queued until the service is started again.
+	 */
+	public synchronized void stop()
+	{
+		if (matcher == null)
+			return;
+
+		matcher.shutdown();
+		matcher = null;
+	}
+
+	//*************************************QUEUE*************************************//
+
+	/**
+	 * Puts a player that is neither in nor watching a match in the queue, once. Never blocks.
+	 *
+	 * @param node the player looking for a match.
+	 */
+	public void enqueue(ClientNode node)
+	{
+		synchronized (node)
+		{
+			if (node.isQueued() || node.isInMatch() || node.isSpectating())
+				return;
+			node.setQueued(true);
+		}
+		queueDepth.incrementAndGet();
+		incoming.add(new Ticket(node, node.getRating(), System.currentTimeMillis()));
+	}
+
+	/**
+	 * Puts as many waiting players in matches as possible. Called by the matcher thread on
+	 * every tick; must not be called concurrently.
+	 */
+	void matchBatch()
+	{
+		GameEvents.MatchmakingBatch event = new GameEvents.MatchmakingBatch();
+		event.begin();
+		int waiting = queueDepth.get();
+		long made = matchesMade.get();
+		long now = System.currentTimeMillis();
+
+		// Sort the newcomers into their buckets
+		for (Ticket ticket; (ticket = incoming.poll()) != null; )
+			bucketFor(ticket).add(ticket);
+
+		// One pass over the buckets in rating order, grouping neighbours
+		List<Ticket> unmatched = new ArrayList<Ticket>();
+		ArrayDeque<Ticket> group = new ArrayDeque<Ticket>();
+		int size = matchSize;
+		long oldest = now;
+
+		for (ArrayDeque<Ticket> bucket : buckets.values())
+		{
+			for (Ticket ticket; (ticket = bucket.poll()) != null; )
+			{
+				if (!isWaiting(ticket))
+				{
+					leave(ticket);
+					continue;
+				}
+
+				// Set aside the players the newcomer cannot play with
+				while (!group.isEmpty() && !accepts(group, ticket, now))
+					unmatched.add(group.poll());
+
+				group.add(ticket);
+				if (group.size() == size)
+				{
+					match(group, now);
+					group.clear();
+				}
+			}
+		}
+		unmatched.addAll(group);
+
+		// Carry the rest over, still in order of arrival within each bucket
+		buckets.clear();
+		for (Ticket ticket : unmatched)
+		{
+			bucketFor(ticket).add(ticket);
+			oldest = Math.min(oldest, ticket.since);
+		}
+		oldestWaitMillis = now - oldest;
+		
+		if (event.shouldCommit())
+		{
+			event.waiting = waiting;
+			event.matches = (int) (matchesMade.get() - made);
+			event.byRating = useRatings;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return the bucket of a ticket, created if needed.
+	 */
+	private ArrayDeque<Ticket> bucketFor(Ticket ticket)
+	{
+		Integer key = useRatings ? Integer.valueOf(Math.floorDiv(ticket.rating, bucketWidth)) : Integer.valueOf(0);
+		ArrayDeque<Ticket> bucket = buckets.get(key);
+
+		if (bucket == null)
+		{
+			bucket = new ArrayDeque<Ticket>();
+			buckets.put(key, bucket);
+		}
+		return bucket;
+	}
+
+	/**
+	 * @return true if the ticket's player is still connected, not yet in a match and not watching one.
+	 */
+	private boolean isWaiting(Ticket ticket)
+	{
+		ClientNode node = ticket.node;
+		return registry.get(node.getPlayerID()) == node && !node.isInMatch() && !node.isSpectating();
+	}
+
+	/**
+	 * @return true if the ratings of a group and a newcomer all fit within each of their windows.
+	 */
+	private boolean accepts(ArrayDeque<Ticket> group, Ticket newcomer, long now)
+	{
+		if (!useRatings)
+			return true;
+
+		long lowest  = newcomer.rating;
+		long highest = newcomer.rating;
+		long window  = windowOf(newcomer, now);
+
+		for (Ticket ticket : group)
+		{
+			lowest  = Math.min(lowest, ticket.rating);
+			highest = Math.max(highest, ticket.rating);
+			window  = Math.min(window, windowOf(ticket, now));
+		}
+		return highest - lowest <= window;
+	}
+
+	/**
+	 * @return the rating difference a player accepts after waiting until {@code now}.
+	 */
+	private long windowOf(Ticket ticket, long now)
+	{
+		return baseWindow + windowGrowth * ((now - ticket.since) / 1000);
+	}
+
+	/**
+	 * Takes a full group out of the queue and tells the listener, longest waiting player first.
+	 * Only the matcher puts players in matches, so the group cannot have been taken meanwhile.
+	 */
+	private void match(ArrayDeque<Ticket> group, long now)
+	{
+		List<Ticket> tickets = new ArrayList<Ticket>(group);
+		Collections.sort(tickets, new Comparator<Ticket>()
+		{
+			public int compare(Ticket a, Ticket b)
+			{
+				return Long.compare(a.since, b.since);
+			}
+		});
+
+		List<ClientNode> nodes = new ArrayList<ClientNode>(tickets.size());
+		long waited = 0;
+
+		for (Ticket ticket : tickets)
+		{
+			leave(ticket);
+			nodes.add(ticket.node);
+			waited += now - ticket.since;
+		}
+
+		matchesMade.incrementAndGet();
+		playersMatched.addAndGet(tickets.size());
+		totalWaitMillis.addAndGet(waited);
+		if (now - tickets.get(0).since > maxWaitMillis)
+			maxWaitMillis = now - tickets.get(0).since;
+
+		listener.matched(nodes);
+	}
+
+	/**
+	 * Takes a player out of the queue.
+	 */
+	private void leave(Ticket ticket)
+	{
+		ticket.node.setQueued(false);
+		queueDepth.decrementAndGet();
+	}
+
+	/**
+	 * A player's place in the queue.
+	 */
+	private static final class Ticket
+	{
+		final ClientNode node;
+		final int rating;
+		final long since;
+
+		Ticket(ClientNode node, int rating, long since)
+		{
+			this.node = node;
+			this.rating = rating;
+			this.since = since;
+		}
+	}
+
+	//*************************************GETTER / SETTER*************************************//
+
+	/**
+	 * @return the number of players waiting for an opponent.
+	 */
+	public int getQueueDepth()
+	{
+		return queueDepth.get();
+	}
+
+	/**
+	 * @return the number of matches made.
+	 */
+	public long getMatchesMade()
+	{
+		return matchesMade.get();
+	}
+
+	/**
+	 * @return the average time a matched player waited, in milliseconds.
+	 */
+	public long getAverageTimeToMatch()
+	{
+		long matched = playersMatched.get();
+		return matched == 0 ? 0 : totalWaitMillis.get() / matched;
+	}
+
+	/**
+	 * @return the longest time a matched player waited, in milliseconds.
+	 */
+	public long getMaxTimeToMatch()
+	{
+		return maxWaitMillis;
+	}
+
+	/**
+	 * @return how long the oldest player still waiting has waited, as of the last batch, in milliseconds.
+	 */
+	public long getOldestWait()
+	{
+		return oldestWaitMillis;
+	}
+
+	/**
+	 * @return true if players are matched by rating.
+	 */
+	public boolean isUsingRatings()
+	{
+		return useRatings;
+	}
+
+	/**
+	 * @param useRatings true to match players by rating, false to match them in order of arrival.
+	 */
+	public void setUseRatings(boolean useRatings)
+	{
+		this.useRatings = useRatings;
+	}
+
+	/**
+	 * Sets the rating windows. Takes effect at the next batch.
+	 *
+	 * @param bucketWidth width of a rating bucket, in rating points.
+	 * @param baseWindow rating difference a player accepts as soon as it joins.
+	 * @param windowGrowth rating points added to the window for every second waited.
+	 */
+	public void setWindows(int bucketWidth, int baseWindow, int windowGrowth)
+	{
+		this.bucketWidth  = Math.max(1, bucketWidth);
+		this.baseWindow   = Math.max(0, baseWindow);
+		this.windowGrowth = Math.max(0, windowGrowth);
+	}
+
+	/**
+	 * @return the number of players in a match.
+	 */
+	public int getMatchSize()
+	{
+		return matchSize;
+	}
+
+	/**
+	 * Sets the number of players in a match. Takes effect at the next batch.
+	 *
+	 * @param matchSize the number of players, from 2 to {@code Match.MAX_PLAYERS}.
+	 */
+	public void setMatchSize(int matchSize)
+	{
+		this.matchSize = Math.max(2, Math.min(Match.MAX_PLAYERS, matchSize));
+	}
+
+	/**
+	 * Sets the time between two batches. Takes effect when the service is next started.
+	 *
+	 * @param intervalMillis the interval, in milliseconds.
+	 */
+	public void setInterval(long intervalMillis)
+	{
+		this.intervalMillis = Math.max(1, intervalMillis);
+	}
+}
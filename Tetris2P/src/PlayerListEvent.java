@@ -0,0 +1,193 @@
+package Tetris2P;
+
+import java.io.Serializable;
+
+/**
+ * A change to the list of players online, sent by the server to every client.
+ * <p>
+ * Every event carries the version of the list it produces. Versions go up by one with each
+ * change, so a client that applies the changes in order stays in sync, and a client that sees
+ * a version it did not expect knows it missed one and asks for a snapshot of the whole list.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class PlayerListEvent implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The kinds of change.
+	 */
+	public enum Type { SNAPSHOT, JOIN, LEAVE, RENAME }
+
+	/**
+	 * What a client does with an event.
+	 */
+	public enum Action { APPLY, IGNORE, REQUEST_SNAPSHOT }
+
+	/**
+	 * The kind of change.
+	 */
+	private final Type type;
+	/**
+	 * The version of the list after this change.
+	 */
+	private final long version;
+	/**
+	 * The player that joined, left or was renamed.
+	 */
+	private final String name;
+	/**
+	 * The new name of a renamed player.
+	 */
+	private final String newName;
+	/**
+	 * Every player online, for a snapshot.
+	 */
+	private final String[] names;
+
+	/**
+	 * @see #snapshot(long, String[])
+	 * @see #join(long, String)
+	 * @see #leave(long, String)
+	 * @see #rename(long, String, String)
+	 */
+	private PlayerListEvent(Type type, long version, String name, String newName, String[] names)
+	{
+		this.type = type;
+		this.version = version;
+		this.name = name;
+		this.newName = newName;
+		this.names = names;
+	}
+
+	/**
+	 * @return the whole list of players at a version.
+	 */
+	public static PlayerListEvent snapshot(long version, String[] names)
+	{
+		return new PlayerListEvent(Type.SNAPSHOT, version, null, null, names);
+	}
+
+	/**
+	 * @return the event of a player joining.
+	 */
+	public static PlayerListEvent join(long version, String name)
+	{
+		return new PlayerListEvent(Type.JOIN, version, name, null, null);
+	}
+
+	/**
+	 * @return the event of a player leaving.
+	 */
+	public static PlayerListEvent leave(long version, String name)
+	{
+		return new PlayerListEvent(Type.LEAVE, version, name, null, null);
+	}
+
+	/**
+	 * @return the event of a player changing name.
+	 */
+	public static PlayerListEvent rename(long version, String name, String newName)
+	{
+		return new PlayerListEvent(Type.RENAME, version, name, newName, null);
+	}
+
+	/**
+	 * @return the kind of change.
+	 */
+	public Type getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return the version of the list after this change.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @return the player that joined, left or was renamed.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return the new name of a renamed player.
+	 */
+	public String getNewName()
+	{
+		return newName;
+	}
+
+	/**
+	 * @return every player online, for a snapshot.
+	 */
+	public String[] getNames()
+	{
+		return names;
+	}
+
+	/**
+	 * Follows the version of a client's list: tells which events to apply, and when one was
+	 * missed. Only used by the thread receiving the events.
+	 */
+	public static class Sequence
+	{
+		/**
+		 * The version of the list, or -1 while waiting for a snapshot.
+		 */
+		private long version = -1;
+
+		/**
+		 * A change that does not follow the current version means one was missed, so the
+		 * list is dropped until a snapshot arrives.
+		 *
+		 * @param event the change received.
+		 * @return what to do with it.
+		 */
+		public Action next(PlayerListEvent event)
+		{
+			if (event.getType() == Type.SNAPSHOT)
+				version = event.getVersion();
+			else if (version < 0 || event.getVersion() <= version)
+				return Action.IGNORE; // Waiting for a snapshot, or already in it
+			else if (event.getVersion() != version + 1)
+			{
+				version = -1;
+				return Action.REQUEST_SNAPSHOT;
+			}
+			else
+				version++;
+			return Action.APPLY;
+		}
+
+		/**
+		 * Drops the list, waiting for a snapshot.
+		 */
+		public void reset()
+		{
+			version = -1;
+		}
+
+		/**
+		 * @return the version of the list, or -1 while waiting for a snapshot.
+		 */
+		public long getVersion()
+		{
+			return version;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[PLAYERLIST v" + version + "] " + type + " " + (type == Type.SNAPSHOT ? names.length + " players" : name);
+	}
+}
@@ -0,0 +1,132 @@
+package Tetris2P;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ocsf.server.ConnectionToClient;
+
+/**
+ * Index of the players connected to the {@code TetrisServer}, keyed by player ID and by name.
+ * Each entry is the player's {@code ClientNode}, which also holds the player's connection,
+ * so finding a player, its connection or its match takes constant time from any thread.
+ * Players waiting for a match are queued by the {@code MatchmakingService}.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class PlayerRegistry
+{
+	/**
+	 * All connected players by ID.
+	 */
+	private final ConcurrentHashMap<Long, ClientNode> players = new ConcurrentHashMap<Long, ClientNode>();
+	/**
+	 * All connected players by name.
+	 */
+	private final ConcurrentHashMap<String, ClientNode> byName = new ConcurrentHashMap<String, ClientNode>();
+
+	//*************************************REGISTRATION*************************************//
+
+	/**
+	 * Adds a newly connected client to the registry.
+	 *
+	 * @param client the client's connection.
+	 * @return the new player's node.
+	 */
+	public ClientNode register(ConnectionToClient client)
+	{
+		ClientNode node = new ClientNode(client.getId());
+		node.setConnection(client);
+		add(node);
+
+		return node;
+	}
+
+	/**
+	 * Adds a player, with or without a connection. Benchmarks fill the registry this way.
+	 *
+	 * @param node the player's node.
+	 */
+	void add(ClientNode node)
+	{
+		players.put(node.getPlayerID(), node);
+		byName.put(node.getName(), node);
+	}
+
+	/**
+	 * Removes a player from the registry.
+	 *
+	 * @param playerID the ID of the player leaving.
+	 * @return the player's node, or {@code null} if it was already removed.
+	 */
+	public ClientNode unregister(long playerID)
+	{
+		ClientNode node = players.remove(playerID);
+
+		if (node != null)
+			byName.remove(node.getName(), node);
+		return node;
+	}
+
+	/**
+	 * Changes a player's name, unless another player already has it.
+	 *
+	 * @param node the player.
+	 * @param newName the player's new name.
+	 * @return {@code true} if the player was renamed.
+	 */
+	public boolean rename(ClientNode node, String newName)
+	{
+		if (byName.putIfAbsent(newName, node) != null)
+			return false;
+
+		byName.remove(node.getName(), node);
+		node.setName(newName);
+		return true;
+	}
+
+	//*************************************LOOKUP*************************************//
+
+	/**
+	 * @param playerID a player's ID.
+	 * @return the player's node, or {@code null} if not connected.
+	 */
+	public ClientNode get(long playerID)
+	{
+		return players.get(playerID);
+	}
+
+	/**
+	 * @param name a player's name.
+	 * @return the player's node, or {@code null} if no connected player has that name.
+	 */
+	public ClientNode findByName(String name)
+	{
+		return byName.get(name);
+	}
+
+	/**
+	 * @return the number of connected players.
+	 */
+	public int size()
+	{
+		return players.size();
+	}
+
+	/**
+	 * @return the names of the connected players.
+	 */
+	public String[] getNames()
+	{
+		return byName.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * @return a snapshot of the connected players.
+	 */
+	public List<ClientNode> getPlayers()
+	{
+		return new ArrayList<ClientNode>(players.values());
+	}
+}
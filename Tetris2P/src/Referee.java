@@ -0,0 +1,246 @@
+package Tetris2P;
+
+/**
+ * Keeps the server's own copy of one player's game.
+ * <p>
+ * The referee replays the inputs a player sends with each board on an {@code Engine} seeded
+ * with the match's seed, and compares the board it gets with the one the player sent. A board
+ * that does not follow from the inputs, or inputs that do not follow the previous ones, mean the
+ * client is out of step with the rules, whether through a bug or on purpose.
+ * <p>
+ * The garbage lines the server sends the player are owed until its inputs take them in. A
+ * player taking in lines nobody sent, or still owing lines it was sent before its previous
+ * lock once it locks another piece, diverges. The lock in between leaves room for the inputs
+ * already on their way when the lines were sent.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class Referee
+{
+	/**
+	 * What a referee makes of a board.
+	 */
+	public enum Verdict
+	{
+		/** The board follows from the inputs. */
+		VALID,
+		/** The board came without inputs, so it cannot be checked. */
+		UNCHECKED,
+		/** The board or the inputs are not what the referee expected. */
+		DIVERGED
+	}
+
+	/**
+	 * The inputs, by ordinal.
+	 */
+	private static final Engine.Input[] INPUTS = Engine.Input.values();
+
+	/**
+	 * The server's copy of the game.
+	 */
+	private final Engine engine;
+	/**
+	 * True if the inputs last checked locked a piece.
+	 */
+	private boolean locked = false;
+	/**
+	 * True once the player gave up.
+	 */
+	private boolean resigned = false;
+	/**
+	 * The garbage lines sent to the player that its inputs did not take in yet.
+	 */
+	private int owedGarbage = 0;
+	/**
+	 * Of the lines owed, those already owed at the previous lock, which must be taken in
+	 * before the next one.
+	 */
+	private int dueGarbage = 0;
+	/**
+	 * The number of boards checked.
+	 */
+	private long boardsChecked = 0;
+	/**
+	 * The number of boards that diverged.
+	 */
+	private long divergences = 0;
+	/**
+	 * Time spent checking boards, in nanoseconds.
+	 */
+	private long checkNanos = 0;
+
+	/**
+	 * Creates a referee for a game that starts now.
+	 *
+	 * @param seed the seed of the match.
+	 */
+	public Referee(long seed)
+	{
+		engine = new Engine(seed);
+	}
+
+	/**
+	 * Replays the inputs sent with a board and compares the result with the board.
+	 * Inputs sent without a board, before the piece is locked, are only replayed.
+	 * Once diverged, the referee keeps its own game, so a player that cheated once is
+	 * unlikely to be valid again.
+	 *
+	 * @param update the board a player sent.
+	 * @return the verdict.
+	 */
+	public Verdict check(Updater update)
+	{
+		if (update.inputs == null)
+			return Verdict.UNCHECKED;
+
+		long start = System.nanoTime();
+		boolean valid = update.sequence == engine.getInputCount()
+			&& replay(update.inputs)
+			&& (!update.hasBoard() || engine.matches(update));
+
+		checkNanos += System.nanoTime() - start;
+		boardsChecked++;
+
+		if (valid)
+			return Verdict.VALID;
+
+		divergences++;
+		return Verdict.DIVERGED;
+	}
+
+	/**
+	 * Applies inputs to the referee's game, noting whether one of them locked a piece.
+	 *
+	 * @return false if one of them is not an input, takes in garbage lines that were not
+	 *         sent, or locks a piece while garbage lines are past due.
+	 */
+	private boolean replay(byte[] inputs)
+	{
+		locked = false;
+		for (byte input : inputs)
+		{
+			if (input < 0 || input >= INPUTS.length)
+				return false;
+			
+			if (INPUTS[input] == Engine.Input.GARBAGE)
+			{
+				if (owedGarbage == 0)
+					return false;
+				owedGarbage--;
+				dueGarbage = Math.max(dueGarbage - 1, 0);
+			}
+			
+			if ((engine.apply(INPUTS[input]) & Engine.LOCKED) != 0)
+			{
+				locked = true;
+				if (dueGarbage > 0)
+					return false;
+				dueGarbage = owedGarbage;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the inputs last checked locked a piece, so that a player sending only
+	 *         inputs has a new board to show.
+	 */
+	public boolean hasLocked()
+	{
+		return locked;
+	}
+
+	/**
+	 * @return the board as the referee sees it, to forward in place of one that diverged.
+	 */
+	public Updater getBoard()
+	{
+		return engine.snapshot();
+	}
+
+	/**
+	 * Takes the garbage lines the player sent to the opponents in the referee's game since
+	 * the previous call. The server routes these, not the client's claim.
+	 *
+	 * @return the number of lines.
+	 */
+	public int takeAttack()
+	{
+		return engine.takeAttack();
+	}
+
+	/**
+	 * Notes garbage lines sent to the player, which its inputs must take in.
+	 *
+	 * @param lines the number of lines.
+	 */
+	public void owe(int lines)
+	{
+		owedGarbage += lines;
+	}
+
+	/**
+	 * @return the garbage lines sent to the player that its inputs did not take in yet.
+	 */
+	public int getOwedGarbage()
+	{
+		return owedGarbage;
+	}
+
+	/**
+	 * Ends the player's game as if it had topped out, when the player gives up.
+	 */
+	public void resign()
+	{
+		resigned = true;
+	}
+
+	/**
+	 * @return true once the player topped out in the referee's game, or gave up.
+	 */
+	public boolean isOver()
+	{
+		return resigned || engine.isOver();
+	}
+
+	/**
+	 * @return the number of inputs the referee applied to its game.
+	 */
+	public long getInputCount()
+	{
+		return engine.getInputCount();
+	}
+
+	/**
+	 * @return the number of lines removed in the referee's game.
+	 */
+	public int getLinesRemoved()
+	{
+		return engine.getLinesRemoved();
+	}
+
+	/**
+	 * @return the number of boards checked.
+	 */
+	public long getBoardsChecked()
+	{
+		return boardsChecked;
+	}
+
+	/**
+	 * @return the number of boards that diverged.
+	 */
+	public long getDivergences()
+	{
+		return divergences;
+	}
+
+	/**
+	 * @return the time spent checking boards, in nanoseconds.
+	 */
+	public long getCheckNanos()
+	{
+		return checkNanos;
+	}
+}
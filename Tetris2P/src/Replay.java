@@ -0,0 +1,419 @@
+package Tetris2P;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A match as the server saw it: the seed of its pieces and every input each player played, with
+ * when the server checked it. Since the {@code Engine} is deterministic, this is enough to play
+ * the whole match again, see {@code simulate}; what each player's game ended with is kept too,
+ * so that a replay can be checked against the engine it is played on.
+ * <p>
+ * A replay is encoded in a few bytes per input: each batch of inputs a player sent at once is
+ * written as the player, the milliseconds since the previous batch and the number of inputs,
+ * all as variable-length integers, followed by the inputs packed two to a byte. Replays are
+ * recorded by {@code Match} with a {@code Recorder} and appended to a {@code ReplayLog}.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class Replay
+{
+	/**
+	 * The version of the encoding, written first.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The inputs, by ordinal.
+	 */
+	private static final Engine.Input[] INPUTS = Engine.Input.values();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Receives the batches of inputs of a replay, in the order they were played.
+	 */
+	public interface Visitor
+	{
+		/**
+		 * @param player the index of the player who played the inputs.
+		 * @param atMillis when the server checked them, in milliseconds since the match started.
+		 * @param inputs the inputs, by ordinal.
+		 * @param count the number of inputs, at the start of {@code inputs}.
+		 */
+		void inputs(int player, long atMillis, byte[] inputs, int count);
+	}
+
+	private final long matchID;
+	private final long seed;
+	/**
+	 * When the match started, in milliseconds since the epoch.
+	 */
+	private final long startMillis;
+	private final long durationMillis;
+	private final String[] players;
+	/**
+	 * The index of the winner, or -1 if the match was not decided.
+	 */
+	private final int winner;
+	/**
+	 * What each player's game ended with, as the server saw it.
+	 */
+	private final int[] linesRemoved;
+	private final long[] inputCounts;
+	/**
+	 * The batches of inputs, encoded.
+	 */
+	private final byte[] batches;
+
+	private Replay(long matchID, long seed, long startMillis, long durationMillis, String[] players, int winner,
+		int[] linesRemoved, long[] inputCounts, byte[] batches)
+	{
+		this.matchID = matchID;
+		this.seed = seed;
+		this.startMillis = startMillis;
+		this.durationMillis = durationMillis;
+		this.players = players;
+		this.winner = winner;
+		this.linesRemoved = linesRemoved;
+		this.inputCounts = inputCounts;
+		this.batches = batches;
+	}
+
+	//*************************************RECORDING*************************************//
+
+	/**
+	 * Records a match's inputs as they are checked. Not thread-safe: a match only records from
+	 * its own tasks.
+	 */
+	public static class Recorder
+	{
+		private final long matchID;
+		private final long seed;
+		private final String[] players;
+		private final long startMillis = System.currentTimeMillis();
+		private final long startNanos = System.nanoTime();
+		/**
+		 * The batches encoded so far.
+		 */
+		private final ByteArrayOutputStream batches = new ByteArrayOutputStream(1024);
+		/**
+		 * When the previous batch was checked, in milliseconds since the start.
+		 */
+		private long lastMillis = 0;
+
+		/**
+		 * Starts recording a match.
+		 *
+		 * @param matchID the match's ID.
+		 * @param seed the seed of its pieces.
+		 * @param players the players' names, in the order their indexes refer to.
+		 */
+		public Recorder(long matchID, long seed, String[] players)
+		{
+			this.matchID = matchID;
+			this.seed = seed;
+			this.players = players;
+		}
+
+		/**
+		 * Records inputs a player played.
+		 *
+		 * @param player the player's index.
+		 * @param inputs the inputs, by ordinal, each a valid input.
+		 * @param count the number of inputs to record, at the start of {@code inputs}.
+		 */
+		public void record(int player, byte[] inputs, int count)
+		{
+			if (count <= 0)
+				return;
+
+			long now = (System.nanoTime() - startNanos) / 1000000;
+			writeVarLong(batches, player);
+			writeVarLong(batches, now - lastMillis);
+			writeVarLong(batches, count);
+			for (int i = 0; i < count; i += 2)
+				batches.write(inputs[i] | (i + 1 < count ? inputs[i + 1] << 4 : 0));
+			lastMillis = now;
+		}
+
+		/**
+		 * @return the name of a player, by index.
+		 */
+		public String getPlayer(int player)
+		{
+			return players[player];
+		}
+
+		/**
+		 * Ends the recording.
+		 *
+		 * @param winner the winner's index, or -1 if the match was not decided.
+		 * @param linesRemoved the lines each player removed in the server's games.
+		 * @param inputCounts the inputs each player played in the server's games.
+		 * @return the replay.
+		 */
+		public Replay finish(int winner, int[] linesRemoved, long[] inputCounts)
+		{
+			return new Replay(matchID, seed, startMillis, (System.nanoTime() - startNanos) / 1000000, players.clone(),
+				winner, linesRemoved.clone(), inputCounts.clone(), batches.toByteArray());
+		}
+	}
+
+	//*************************************ENCODING*************************************//
+
+	/**
+	 * @return the replay, encoded.
+	 */
+	public byte[] encode()
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 + batches.length);
+
+		writeVarLong(out, VERSION);
+		writeVarLong(out, matchID);
+		for (int i = 56; i >= 0; i -= 8)
+			out.write((int) (seed >>> i));
+		writeVarLong(out, startMillis);
+		writeVarLong(out, durationMillis);
+		writeVarLong(out, winner + 1);
+		writeVarLong(out, players.length);
+		for (int i = 0; i < players.length; i++)
+		{
+			byte[] name = players[i].getBytes(UTF8);
+			writeVarLong(out, name.length);
+			out.write(name, 0, name.length);
+			writeVarLong(out, linesRemoved[i]);
+			writeVarLong(out, inputCounts[i]);
+		}
+		writeVarLong(out, batches.length);
+		out.write(batches, 0, batches.length);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a replay.
+	 *
+	 * @param in the encoded replay, read from its position on.
+	 * @return the replay.
+	 * @throws IllegalArgumentException if it is not a replay this version can read.
+	 */
+	public static Replay decode(ByteBuffer in)
+	{
+		try
+		{
+			int version = (int) readVarLong(in);
+			if (version != VERSION)
+				throw new IllegalArgumentException("Replay version " + version + " is not supported");
+
+			long matchID = readVarLong(in);
+			long seed = in.getLong();
+			long startMillis = readVarLong(in);
+			long durationMillis = readVarLong(in);
+			int winner = (int) readVarLong(in) - 1;
+			int count = (int) readVarLong(in);
+			if (count < 0 || count > Match.MAX_PLAYERS)
+				throw new IllegalArgumentException("A replay cannot have " + count + " players");
+
+			String[] players = new String[count];
+			int[] linesRemoved = new int[count];
+			long[] inputCounts = new long[count];
+			for (int i = 0; i < count; i++)
+			{
+				byte[] name = new byte[(int) readVarLong(in)];
+				in.get(name);
+				players[i] = new String(name, UTF8);
+				linesRemoved[i] = (int) readVarLong(in);
+				inputCounts[i] = readVarLong(in);
+			}
+			byte[] batches = new byte[(int) readVarLong(in)];
+			in.get(batches);
+			return new Replay(matchID, seed, startMillis, durationMillis, players, winner, linesRemoved, inputCounts, batches);
+		}
+		catch (BufferUnderflowException | NegativeArraySizeException e)
+		{
+			throw new IllegalArgumentException("Truncated replay", e);
+		}
+	}
+
+	//*************************************PLAYBACK*************************************//
+
+	/**
+	 * Goes through the batches of inputs in the order they were played.
+	 *
+	 * @param visitor receives the batches.
+	 */
+	public void play(Visitor visitor)
+	{
+		ByteBuffer in = ByteBuffer.wrap(batches);
+		byte[] inputs = new byte[64];
+		long atMillis = 0;
+
+		while (in.hasRemaining())
+		{
+			int player = (int) readVarLong(in);
+			atMillis += readVarLong(in);
+			int count = (int) readVarLong(in);
+			if (player < 0 || player >= players.length || count < 0)
+				throw new IllegalArgumentException("Corrupt batch in the replay of match " + matchID);
+
+			if (inputs.length < count + 1)
+				inputs = Arrays.copyOf(inputs, count + 1);
+			for (int i = 0; i < count; i += 2)
+			{
+				int packed = in.get();
+				inputs[i] = (byte) (packed & 0x0F);
+				inputs[i + 1] = (byte) ((packed >> 4) & 0x0F);
+			}
+			visitor.inputs(player, atMillis, inputs, count);
+		}
+	}
+
+	/**
+	 * Plays the match again on the headless engine.
+	 *
+	 * @return every player's game at the end of the match, in the order of the players.
+	 */
+	public Engine[] simulate()
+	{
+		final Engine[] games = new Engine[players.length];
+		for (int i = 0; i < games.length; i++)
+			games[i] = new Engine(seed);
+
+		play(new Visitor()
+		{
+			public void inputs(int player, long atMillis, byte[] inputs, int count)
+			{
+				Engine game = games[player];
+				for (int i = 0; i < count; i++)
+					game.apply(INPUTS[inputs[i]]);
+			}
+		});
+		return games;
+	}
+
+	/**
+	 * Plays the match again and compares every player's game with what the server saw.
+	 *
+	 * @return true if every game ended with the same lines removed after the same inputs.
+	 */
+	public boolean verify()
+	{
+		Engine[] games = simulate();
+		for (int i = 0; i < games.length; i++)
+		{
+			if (games[i].getLinesRemoved() != linesRemoved[i] || games[i].getInputCount() != inputCounts[i])
+				return false;
+		}
+		return true;
+	}
+
+	//*************************************GETTERS*************************************//
+
+	public long getMatchID()
+	{
+		return matchID;
+	}
+
+	public long getSeed()
+	{
+		return seed;
+	}
+
+	/**
+	 * @return when the match started, in milliseconds since the epoch.
+	 */
+	public long getStartMillis()
+	{
+		return startMillis;
+	}
+
+	public long getDurationMillis()
+	{
+		return durationMillis;
+	}
+
+	/**
+	 * @return the players' names; a player's index is its position.
+	 */
+	public String[] getPlayers()
+	{
+		return players.clone();
+	}
+
+	/**
+	 * @return the index of the winner, or -1 if the match was not decided.
+	 */
+	public int getWinner()
+	{
+		return winner;
+	}
+
+	/**
+	 * @return the lines a player removed, as the server saw it.
+	 */
+	public int getLinesRemoved(int player)
+	{
+		return linesRemoved[player];
+	}
+
+	/**
+	 * @return the inputs a player played, as the server saw it.
+	 */
+	public long getInputCount(int player)
+	{
+		return inputCounts[player];
+	}
+
+	/**
+	 * @return the size of the encoded inputs, in bytes.
+	 */
+	public int getInputBytes()
+	{
+		return batches.length;
+	}
+
+	public String toString()
+	{
+		StringBuilder text = new StringBuilder("Match " + matchID + " seed " + seed + " " + (durationMillis / 1000) + "s:");
+		for (int i = 0; i < players.length; i++)
+			text.append(' ').append(players[i]).append(i == winner ? " (won) " : " ").append(linesRemoved[i])
+				.append(" lines/").append(inputCounts[i]).append(" inputs");
+		return text.toString();
+	}
+
+	//*************************************VARIABLE-LENGTH INTEGERS*************************************//
+
+	/**
+	 * Writes a value that is not negative in 7-bit groups, the lowest first, the last with its
+	 * top bit clear: values below 128 take a byte.
+	 */
+	static void writeVarLong(ByteArrayOutputStream out, long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Reads a value written by {@code writeVarLong}.
+	 */
+	static long readVarLong(ByteBuffer in)
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed variable-length integer");
+	}
+}
@@ -0,0 +1,581 @@
+package Tetris2P;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import Tetris2P.Engine.Input;
+import Tetris2P.Shape.Tetromino;
+import ocsf.server.Histogram;
+
+/**
+ * Plays recorded matches again on the headless engine, on every core, and works out how each
+ * player played: pieces per second, lines, holes, t-spins and attack per minute. This is how a
+ * change to the engine or to its balance is checked against the matches players really played:
+ * games that no longer end the way they were recorded are counted as diverged.
+ * <p>
+ * The matches are split between the tasks of a fork-join pool. Each task reads its replays from
+ * the {@code ReplayArchive} one at a time, hands every game's stats to a {@code Listener} as soon
+ * as they are known and keeps only their totals, which are added up as the tasks join: no more
+ * games are held than there are threads, however many are analysed.
+ * <p>
+ * Run {@code java Tetris2P.ReplayAnalytics <archive> [-player <name>] [-from <date>] [-to <date>]
+ * [-threads <n>] [-csv <file>]}, dates as {@code 2026-01-31}, to print the totals and the
+ * throughput, and the stats of every game to a CSV file.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class ReplayAnalytics
+{
+	private static final Input[] INPUTS = Input.values();
+
+	/**
+	 * The most matches a task analyses before splitting.
+	 */
+	private static final int BATCH = 16;
+
+	/**
+	 * How a player played a game.
+	 */
+	public static final class Player
+	{
+		private final String name;
+		private final boolean diverged;
+		private final long pieces;
+		private final int lines;
+		private final int tSpins;
+		private final long attack;
+		/**
+		 * The holes of the board after every piece locked, added up.
+		 */
+		private final long holes;
+		/**
+		 * When the player last played before the game ended, since the match started.
+		 */
+		private final long millis;
+
+		private Player(String name, boolean diverged, long pieces, int lines, int tSpins, long attack, long holes, long millis)
+		{
+			this.name = name;
+			this.diverged = diverged;
+			this.pieces = pieces;
+			this.lines = lines;
+			this.tSpins = tSpins;
+			this.attack = attack;
+			this.holes = holes;
+			this.millis = millis;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * @return true if the game no longer ends with the lines and inputs recorded.
+		 */
+		public boolean isDiverged()
+		{
+			return diverged;
+		}
+
+		public long getPieces()
+		{
+			return pieces;
+		}
+
+		public int getLines()
+		{
+			return lines;
+		}
+
+		/**
+		 * @return the T pieces turned into a spot they could not have fallen into: the last move
+		 * was a turn, and three of the four squares diagonal to the T's centre were taken.
+		 */
+		public int getTSpins()
+		{
+			return tSpins;
+		}
+
+		/**
+		 * @return the garbage lines sent to the opponents.
+		 */
+		public long getAttack()
+		{
+			return attack;
+		}
+
+		/**
+		 * @return the pieces locked per second of play.
+		 */
+		public double getPiecesPerSecond()
+		{
+			return millis == 0 ? 0 : pieces * 1000.0 / millis;
+		}
+
+		/**
+		 * @return the garbage lines sent per minute of play.
+		 */
+		public double getAttackPerMinute()
+		{
+			return millis == 0 ? 0 : attack * 60000.0 / millis;
+		}
+
+		/**
+		 * @return the holes of the board after a piece locked, on average.
+		 */
+		public double getHolesPerPiece()
+		{
+			return pieces == 0 ? 0 : (double) holes / pieces;
+		}
+	}
+
+	/**
+	 * Receives the stats of every game analysed, from several threads at once.
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param entry the match.
+		 * @param players how each player played, in the order of the replay.
+		 */
+		void game(ReplayArchive.Entry entry, Player[] players);
+	}
+
+	/**
+	 * The totals of a set of games.
+	 */
+	public static final class Totals
+	{
+		private long matches;
+		private long games;
+		private long diverged;
+		private long pieces;
+		private long lines;
+		private long tSpins;
+		private long attack;
+		private long holes;
+		private long millis;
+
+		private void add(Player player)
+		{
+			games++;
+			if (player.diverged)
+				diverged++;
+			pieces += player.pieces;
+			lines += player.lines;
+			tSpins += player.tSpins;
+			attack += player.attack;
+			holes += player.holes;
+			millis += player.millis;
+		}
+
+		private Totals add(Totals other)
+		{
+			matches += other.matches;
+			games += other.games;
+			diverged += other.diverged;
+			pieces += other.pieces;
+			lines += other.lines;
+			tSpins += other.tSpins;
+			attack += other.attack;
+			holes += other.holes;
+			millis += other.millis;
+			return this;
+		}
+
+		public long getMatches()
+		{
+			return matches;
+		}
+
+		/**
+		 * @return the games analysed: one per player of every match.
+		 */
+		public long getGames()
+		{
+			return games;
+		}
+
+		/**
+		 * @return the games that no longer end with the lines and inputs recorded.
+		 */
+		public long getDiverged()
+		{
+			return diverged;
+		}
+
+		public long getPieces()
+		{
+			return pieces;
+		}
+
+		public long getLines()
+		{
+			return lines;
+		}
+
+		public long getTSpins()
+		{
+			return tSpins;
+		}
+
+		public long getAttack()
+		{
+			return attack;
+		}
+
+		/**
+		 * @return the pieces locked per second, over all the time played.
+		 */
+		public double getPiecesPerSecond()
+		{
+			return millis == 0 ? 0 : pieces * 1000.0 / millis;
+		}
+
+		/**
+		 * @return the garbage lines sent per minute, over all the time played.
+		 */
+		public double getAttackPerMinute()
+		{
+			return millis == 0 ? 0 : attack * 60000.0 / millis;
+		}
+
+		/**
+		 * @return the holes of the board after a piece locked, on average.
+		 */
+		public double getHolesPerPiece()
+		{
+			return pieces == 0 ? 0 : (double) holes / pieces;
+		}
+
+		public String toString()
+		{
+			return String.format("%d matches, %d games, %d diverged: %d pieces (%.2f/s), %d lines (%.3f per piece), "
+				+ "%d t-spins, %d attack (%.1f/min), %.2f holes per piece", matches, games, diverged, pieces,
+				getPiecesPerSecond(), lines, pieces == 0 ? 0 : (double) lines / pieces, tSpins, attack,
+				getAttackPerMinute(), getHolesPerPiece());
+		}
+	}
+
+	private final ReplayArchive archive;
+	/**
+	 * The pieces per second and attack per minute of every game played for some time, in
+	 * hundredths.
+	 */
+	private final Histogram piecesPerSecond = new Histogram();
+	private final Histogram attackPerMinute = new Histogram();
+
+	/**
+	 * @param archive the archive the matches are read from.
+	 */
+	public ReplayAnalytics(ReplayArchive archive)
+	{
+		this.archive = archive;
+	}
+
+	/**
+	 * Analyses a set of matches on several threads.
+	 *
+	 * @param entries the matches, from the archive.
+	 * @param parallelism the number of threads.
+	 * @param listener receives the stats of every game, or {@code null}.
+	 * @return the totals of the games.
+	 */
+	public Totals analyse(List<ReplayArchive.Entry> entries, int parallelism, Listener listener)
+	{
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try
+		{
+			return pool.invoke(new Task(entries.toArray(new ReplayArchive.Entry[entries.size()]), 0, entries.size(), listener));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Analyses a range of matches, splitting it in halves while it is larger than a batch.
+	 */
+	private class Task extends RecursiveTask<Totals>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final transient ReplayArchive.Entry[] entries;
+		private final int from;
+		private final int to;
+		private final transient Listener listener;
+
+		Task(ReplayArchive.Entry[] entries, int from, int to, Listener listener)
+		{
+			this.entries = entries;
+			this.from = from;
+			this.to = to;
+			this.listener = listener;
+		}
+
+		protected Totals compute()
+		{
+			if (to - from > BATCH)
+			{
+				int middle = (from + to) >>> 1;
+				Task second = new Task(entries, middle, to, listener);
+				second.fork();
+				Totals totals = new Task(entries, from, middle, listener).compute();
+				return totals.add(second.join());
+			}
+
+			Totals totals = new Totals();
+			for (int i = from; i < to; i++)
+			{
+				Player[] players = analyse(archive.read(entries[i]));
+				totals.matches++;
+				for (Player player : players)
+				{
+					totals.add(player);
+					if (player.millis > 0)
+					{
+						piecesPerSecond.record(Math.round(player.getPiecesPerSecond() * 100));
+						attackPerMinute.record(Math.round(player.getAttackPerMinute() * 100));
+					}
+				}
+				if (listener != null)
+					listener.game(entries[i], players);
+			}
+			return totals;
+		}
+	}
+
+	/**
+	 * @return the pieces per second of the games analysed so far, in hundredths.
+	 */
+	public Histogram getPiecesPerSecond()
+	{
+		return piecesPerSecond;
+	}
+
+	/**
+	 * @return the attack per minute of the games analysed so far, in hundredths.
+	 */
+	public Histogram getAttackPerMinute()
+	{
+		return attackPerMinute;
+	}
+
+	//*************************************ONE MATCH*************************************//
+
+	/**
+	 * Plays a match again and works out how each player played.
+	 *
+	 * @param replay the match.
+	 * @return how each player played, in the order of the replay.
+	 */
+	public static Player[] analyse(Replay replay)
+	{
+		final String[] names = replay.getPlayers();
+		final Engine[] games = new Engine[names.length];
+		final long[] pieces = new long[names.length];
+		final int[] tSpins = new int[names.length];
+		final long[] attack = new long[names.length];
+		final long[] holes = new long[names.length];
+		final long[] millis = new long[names.length];
+		final boolean[] turned = new boolean[names.length];
+		for (int i = 0; i < games.length; i++)
+			games[i] = new Engine(replay.getSeed());
+
+		replay.play(new Replay.Visitor()
+		{
+			public void inputs(int player, long atMillis, byte[] inputs, int count)
+			{
+				Engine game = games[player];
+				if (!game.isOver())
+					millis[player] = atMillis;
+
+				for (int i = 0; i < count; i++)
+				{
+					Input input = INPUTS[inputs[i]];
+
+					// Whether the T about to lock, if it does, was turned into its spot
+					boolean spin = turned[player] && (input == Input.TICK || input == Input.DOWN || input == Input.DROP)
+						&& isTSpin(game);
+
+					int result = game.apply(input);
+					if ((result & Engine.LOCKED) != 0)
+					{
+						pieces[player]++;
+						if (spin)
+							tSpins[player]++;
+						holes[player] += countHoles(game);
+						attack[player] += game.takeAttack();
+						turned[player] = false;
+					}
+					else if ((result & Engine.MOVED) != 0)
+						turned[player] = input == Input.ROTATE;
+				}
+			}
+		});
+
+		Player[] players = new Player[names.length];
+		for (int i = 0; i < players.length; i++)
+		{
+			boolean diverged = games[i].getLinesRemoved() != replay.getLinesRemoved(i)
+				|| games[i].getInputCount() != replay.getInputCount(i);
+			players[i] = new Player(names[i], diverged, pieces[i], games[i].getLinesRemoved(), tSpins[i], attack[i],
+				holes[i], millis[i]);
+		}
+		return players;
+	}
+
+	/**
+	 * @return true if the falling piece is a T that cannot fall further, with three of the four
+	 * squares diagonal to its centre taken, the walls and floor counting as taken.
+	 */
+	private static boolean isTSpin(Engine game)
+	{
+		Shape piece = game.getCurPiece();
+		if (piece.getShape() != Tetromino.TShape)
+			return false;
+
+		int x = game.getCurX();
+		int y = game.getCurY();
+		for (int i = 0; i < 4; i++)
+		{
+			if (isFree(game, x + piece.x(i), y - 1 - piece.y(i)))
+				return false; // It would fall, so it was not turned into its spot
+		}
+
+		int corners = 0;
+		for (int dx = -1; dx <= 1; dx += 2)
+			for (int dy = -1; dy <= 1; dy += 2)
+				if (!isFree(game, x + dx, y + dy))
+					corners++;
+		return corners >= 3;
+	}
+
+	private static boolean isFree(Engine game, int x, int y)
+	{
+		return x >= 0 && x < Engine.SQUARES_IN_WIDTH && y >= 0
+			&& (y >= Engine.SQUARES_IN_HEIGHT || game.shapeAt(x, y) == Tetromino.NoShape);
+	}
+
+	/**
+	 * @return the empty squares of the board with a square above them.
+	 */
+	private static int countHoles(Engine game)
+	{
+		int holes = 0;
+		for (int x = 0; x < Engine.SQUARES_IN_WIDTH; x++)
+		{
+			boolean covered = false;
+			for (int y = Engine.SQUARES_IN_HEIGHT - 1; y >= 0; y--)
+			{
+				if (game.shapeAt(x, y) != Tetromino.NoShape)
+					covered = true;
+				else if (covered)
+					holes++;
+			}
+		}
+		return holes;
+	}
+
+	//*************************************TOOL*************************************//
+
+	/**
+	 * Analyses the matches of an archive, from a player or between dates if asked, and prints
+	 * the totals and the throughput.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1)
+		{
+			System.out.println("Usage: java Tetris2P.ReplayAnalytics <replay directory or file> [-player <name>]"
+				+ " [-from <yyyy-mm-dd>] [-to <yyyy-mm-dd>] [-threads <n>] [-csv <file>]");
+			return;
+		}
+
+		String player = null;
+		long from = 0;
+		long to = Long.MAX_VALUE;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String csv = null;
+		for (int i = 1; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equals("-player"))
+				player = args[i + 1];
+			else if (args[i].equals("-from"))
+				from = LocalDate.parse(args[i + 1]).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+			else if (args[i].equals("-to"))
+				to = LocalDate.parse(args[i + 1]).plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+			else if (args[i].equals("-threads"))
+				threads = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-csv"))
+				csv = args[i + 1];
+			else
+				System.out.println("Unknown option " + args[i] + " ignored");
+		}
+
+		ReplayArchive archive = new ReplayArchive(new File(args[0]));
+		List<ReplayArchive.Entry> entries = archive.byDate(from, to);
+		if (player != null)
+		{
+			List<ReplayArchive.Entry> played = new ArrayList<ReplayArchive.Entry>();
+			for (ReplayArchive.Entry entry : archive.byPlayer(player))
+				if (entry.getStartMillis() >= from && entry.getStartMillis() < to)
+					played.add(entry);
+			entries = played;
+		}
+
+		final PrintWriter out = csv == null ? null : new PrintWriter(new FileWriter(csv));
+		Listener listener = null;
+		if (out != null)
+		{
+			out.println("match,start,player,diverged,pieces,lines,tspins,attack,pps,apm,holes_per_piece");
+			listener = new Listener()
+			{
+				public void game(ReplayArchive.Entry entry, Player[] players)
+				{
+					synchronized (out)
+					{
+						for (Player player : players)
+							out.printf("%d,%d,%s,%b,%d,%d,%d,%d,%.3f,%.2f,%.3f%n", entry.getMatchID(), entry.getStartMillis(),
+								player.getName(), player.isDiverged(), player.getPieces(), player.getLines(), player.getTSpins(),
+								player.getAttack(), player.getPiecesPerSecond(), player.getAttackPerMinute(), player.getHolesPerPiece());
+					}
+				}
+			};
+		}
+
+		ReplayAnalytics analytics = new ReplayAnalytics(archive);
+		long start = System.nanoTime();
+		Totals totals = analytics.analyse(entries, threads, listener);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (out != null)
+			out.close();
+
+		System.out.println(totals);
+		System.out.println(percentiles("Pieces per second", analytics.getPiecesPerSecond()));
+		System.out.println(percentiles("Attack per minute", analytics.getAttackPerMinute()));
+		System.out.printf("%d matches analysed in %.2f s on %d threads: %.0f games/s%n", totals.getMatches(), seconds,
+			threads, totals.getGames() / Math.max(seconds, 1e-9));
+		System.exit(totals.getDiverged() > 0 ? 1 : 0);
+	}
+
+	/**
+	 * @return the percentiles of a histogram in hundredths, as units.
+	 */
+	private static String percentiles(String name, Histogram histogram)
+	{
+		return String.format("%s: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f", name, histogram.getPercentile(50) / 100.0,
+			histogram.getPercentile(90) / 100.0, histogram.getPercentile(99) / 100.0, histogram.getMax() / 100.0);
+	}
+}
@@ -0,0 +1,684 @@
+package Tetris2P;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import ocsf.common.ServerLog;
+
+/**
+ * The replays of a {@code ReplayLog}, opened for reading: every segment of its directory, or its
+ * single file, is mapped into memory and indexed by player, date, score and duration, so that
+ * any match can be found and read without reading the others, and a whole set of matches can be
+ * streamed through the engine on every core, see {@code scan}.
+ * <p>
+ * The index of a segment is kept next to it, in a file named after it with {@code .idx} added,
+ * which says how much of the segment it covers. Opening an archive reads the indexes and only
+ * indexes the records appended since, then saves them; the first opening of a day's segments
+ * reads them once, the next ones read the indexes only.
+ * <p>
+ * An archive is what the log held when it was opened, and is not changed afterwards: it may be
+ * read from any number of threads. Open it again to see the replays appended since. Mapped
+ * segments are released by the garbage collector once the archive is no longer referenced.
+ * <p>
+ * Run {@code java Tetris2P.ReplayArchive <directory or file> [player]} to index an archive, list
+ * the matches of a player, and play every match again on all cores to check it.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class ReplayArchive
+{
+	/**
+	 * The first bytes of an index file.
+	 */
+	public static final int INDEX_MAGIC = 0x54325049; // "T2PI"
+
+	/**
+	 * The most replays a task of {@code scan} reads before splitting.
+	 */
+	private static final int SCAN_BATCH = 16;
+
+	/**
+	 * A match of the archive: where its replay is and what it is indexed by.
+	 */
+	public static final class Entry
+	{
+		private final int segment;
+		private final int position;
+		private final int length;
+		private final long matchID;
+		private final long startMillis;
+		private final long durationMillis;
+		private final int winner;
+		private final String[] players;
+		private final int[] linesRemoved;
+
+		private Entry(int segment, int position, int length, long matchID, long startMillis, long durationMillis,
+			int winner, String[] players, int[] linesRemoved)
+		{
+			this.segment = segment;
+			this.position = position;
+			this.length = length;
+			this.matchID = matchID;
+			this.startMillis = startMillis;
+			this.durationMillis = durationMillis;
+			this.winner = winner;
+			this.players = players;
+			this.linesRemoved = linesRemoved;
+		}
+
+		public long getMatchID()
+		{
+			return matchID;
+		}
+
+		/**
+		 * @return when the match started, in milliseconds since the epoch.
+		 */
+		public long getStartMillis()
+		{
+			return startMillis;
+		}
+
+		public long getDurationMillis()
+		{
+			return durationMillis;
+		}
+
+		/**
+		 * @return the index of the winner, or -1 if the match was not decided.
+		 */
+		public int getWinner()
+		{
+			return winner;
+		}
+
+		/**
+		 * @return the players' names; a player's index is its position.
+		 */
+		public String[] getPlayers()
+		{
+			return players.clone();
+		}
+
+		/**
+		 * @return the lines a player removed.
+		 */
+		public int getLinesRemoved(int player)
+		{
+			return linesRemoved[player];
+		}
+
+		/**
+		 * @return the score of the match: the most lines a player removed.
+		 */
+		public int getScore()
+		{
+			int score = 0;
+			for (int lines : linesRemoved)
+				score = Math.max(score, lines);
+			return score;
+		}
+
+		/**
+		 * @return the size of the replay's record, in bytes.
+		 */
+		public int getLength()
+		{
+			return ReplayLog.RECORD_HEADER + length;
+		}
+
+		public String toString()
+		{
+			StringBuilder text = new StringBuilder("Match " + matchID + " " + (durationMillis / 1000) + "s:");
+			for (int i = 0; i < players.length; i++)
+				text.append(' ').append(players[i]).append(i == winner ? " (won) " : " ").append(linesRemoved[i]).append(" lines");
+			return text.toString();
+		}
+	}
+
+	/**
+	 * Receives the replays of a {@code scan}, from several threads at once.
+	 */
+	public interface Scanner
+	{
+		/**
+		 * @param entry the match.
+		 * @param replay its replay.
+		 */
+		void replay(Entry entry, Replay replay);
+	}
+
+	private final File[] files;
+	/**
+	 * Every segment, mapped.
+	 */
+	private final ByteBuffer[] segments;
+
+	/**
+	 * Every match, in the order appended.
+	 */
+	private final List<Entry> entries;
+	/**
+	 * The matches sorted by each key, with the keys in the same order to search them.
+	 */
+	private final Entry[] byStart;
+	private final long[] starts;
+	private final Entry[] byScore;
+	private final long[] scores;
+	private final Entry[] byDuration;
+	private final long[] durations;
+	private final Map<String, List<Entry>> byPlayer = new HashMap<String, List<Entry>>();
+
+	/**
+	 * Opens an archive: maps its segments and reads or brings up to date their indexes.
+	 *
+	 * @param file the directory of a log's segments, or a single replay file.
+	 * @throws IOException if a segment cannot be read, is not a replay file, or is too large to map.
+	 */
+	public ReplayArchive(File file) throws IOException
+	{
+		files = file.isDirectory() ? ReplayLog.segments(file) : new File[] { file };
+		segments = new ByteBuffer[files.length];
+
+		List<Entry> entries = new ArrayList<Entry>();
+		for (int i = 0; i < files.length; i++)
+			segments[i] = open(i, entries);
+		this.entries = Collections.unmodifiableList(entries);
+
+		byStart = sort(entries, new Comparator<Entry>()
+		{
+			public int compare(Entry a, Entry b)
+			{
+				return Long.compare(a.startMillis, b.startMillis);
+			}
+		});
+		byScore = sort(entries, new Comparator<Entry>()
+		{
+			public int compare(Entry a, Entry b)
+			{
+				return Integer.compare(a.getScore(), b.getScore());
+			}
+		});
+		byDuration = sort(entries, new Comparator<Entry>()
+		{
+			public int compare(Entry a, Entry b)
+			{
+				return Long.compare(a.durationMillis, b.durationMillis);
+			}
+		});
+		starts = new long[byStart.length];
+		scores = new long[byScore.length];
+		durations = new long[byDuration.length];
+		for (int i = 0; i < starts.length; i++)
+		{
+			starts[i] = byStart[i].startMillis;
+			scores[i] = byScore[i].getScore();
+			durations[i] = byDuration[i].durationMillis;
+		}
+
+		for (Entry entry : entries)
+		{
+			for (String player : entry.players)
+			{
+				List<Entry> matches = byPlayer.get(player);
+				if (matches == null)
+					byPlayer.put(player, matches = new ArrayList<Entry>());
+				matches.add(entry);
+			}
+		}
+	}
+
+	//*************************************INDEXING*************************************//
+
+	/**
+	 * Maps a segment and adds its matches to the entries, from its index and from the records
+	 * the index does not cover yet.
+	 *
+	 * @return the segment, mapped up to its last whole record.
+	 */
+	private ByteBuffer open(int segment, List<Entry> entries) throws IOException
+	{
+		File file = files[segment];
+		MappedByteBuffer mapped;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+		{
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to map, write replays to a directory of segments");
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			// The mapping outlives the channel
+			channel.close();
+		}
+
+		if (mapped.limit() < 4 || mapped.getInt(0) != ReplayLog.MAGIC)
+			throw new IOException(file + " is not a replay file");
+
+		int first = entries.size();
+		File indexFile = new File(file.getPath() + ".idx");
+		int indexed = readIndex(segment, indexFile, mapped.limit(), entries);
+		int end = index(segment, mapped, indexed, entries);
+
+		if (end != indexed)
+		{
+			try
+			{
+				writeIndex(indexFile, end, entries.subList(first, entries.size()));
+			}
+			catch (IOException e)
+			{
+				ServerLog.log(ServerLog.Level.WARN, "Could not save the index of " + file, e);
+			}
+		}
+
+		mapped.limit(end);
+		return mapped;
+	}
+
+	/**
+	 * Indexes the whole records of a segment from a position on, up to the first record cut
+	 * short or corrupt.
+	 *
+	 * @return the position after the last whole record.
+	 */
+	private int index(int segment, ByteBuffer mapped, int position, List<Entry> entries)
+	{
+		CRC32 crc = new CRC32();
+
+		while (position + ReplayLog.RECORD_HEADER <= mapped.limit())
+		{
+			int length = mapped.getInt(position);
+			if (length < 0 || length > mapped.limit() - position - ReplayLog.RECORD_HEADER)
+				break;
+
+			ByteBuffer record = record(mapped, position, length);
+			crc.reset();
+			crc.update(record);
+			if ((int) crc.getValue() != mapped.getInt(position + 4))
+				break;
+
+			record.rewind();
+			Replay replay;
+			try
+			{
+				replay = Replay.decode(record);
+			}
+			catch (IllegalArgumentException e)
+			{
+				ServerLog.log(ServerLog.Level.WARN, "Could not index the replay at " + position + " of " + files[segment], e);
+				break;
+			}
+
+			int players = replay.getPlayers().length;
+			int[] linesRemoved = new int[players];
+			for (int i = 0; i < players; i++)
+				linesRemoved[i] = replay.getLinesRemoved(i);
+			entries.add(new Entry(segment, position, length, replay.getMatchID(), replay.getStartMillis(),
+				replay.getDurationMillis(), replay.getWinner(), replay.getPlayers(), linesRemoved));
+			position += ReplayLog.RECORD_HEADER + length;
+		}
+		return position;
+	}
+
+	/**
+	 * Reads the index of a segment, if it has one that still matches it.
+	 *
+	 * @param size the size of the segment.
+	 * @return the position in the segment the index covers up to, or 4 if there is no index.
+	 */
+	private int readIndex(int segment, File indexFile, int size, List<Entry> entries)
+	{
+		if (!indexFile.isFile())
+			return 4;
+
+		List<Entry> read = new ArrayList<Entry>();
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			if (in.readInt() != INDEX_MAGIC)
+				return 4;
+			int indexed = in.readInt();
+			int count = in.readInt();
+			if (indexed > size)
+				return 4; // The segment was cut short since, the index cannot be trusted
+
+			for (int i = 0; i < count; i++)
+			{
+				int position = in.readInt();
+				int length = in.readInt();
+				long matchID = in.readLong();
+				long startMillis = in.readLong();
+				long durationMillis = in.readLong();
+				int winner = in.readByte();
+				String[] players = new String[in.readUnsignedByte()];
+				int[] linesRemoved = new int[players.length];
+				for (int p = 0; p < players.length; p++)
+				{
+					players[p] = in.readUTF();
+					linesRemoved[p] = in.readInt();
+				}
+				read.add(new Entry(segment, position, length, matchID, startMillis, durationMillis, winner, players, linesRemoved));
+			}
+
+			entries.addAll(read);
+			return indexed;
+		}
+		catch (IOException e)
+		{
+			ServerLog.log(ServerLog.Level.WARN, "Could not read the index " + indexFile + ", the segment is indexed again", e);
+			return 4;
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try { in.close(); } catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Saves the index of a segment, in place of the one it had.
+	 *
+	 * @param indexed the position in the segment the index covers up to.
+	 * @param entries the matches of the segment.
+	 */
+	private static void writeIndex(File indexFile, int indexed, List<Entry> entries) throws IOException
+	{
+		File written = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(written)));
+		try
+		{
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(indexed);
+			out.writeInt(entries.size());
+			for (Entry entry : entries)
+			{
+				out.writeInt(entry.position);
+				out.writeInt(entry.length);
+				out.writeLong(entry.matchID);
+				out.writeLong(entry.startMillis);
+				out.writeLong(entry.durationMillis);
+				out.writeByte(entry.winner);
+				out.writeByte(entry.players.length);
+				for (int p = 0; p < entry.players.length; p++)
+				{
+					out.writeUTF(entry.players[p]);
+					out.writeInt(entry.linesRemoved[p]);
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		Files.move(written.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static Entry[] sort(List<Entry> entries, Comparator<Entry> order)
+	{
+		Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+		Arrays.sort(sorted, order);
+		return sorted;
+	}
+
+	//*************************************QUERIES*************************************//
+
+	/**
+	 * @return every match, in the order appended.
+	 */
+	public List<Entry> getEntries()
+	{
+		return entries;
+	}
+
+	/**
+	 * @return the matches a player played, in the order appended.
+	 */
+	public List<Entry> byPlayer(String player)
+	{
+		List<Entry> matches = byPlayer.get(player);
+		return matches == null ? Collections.<Entry>emptyList() : Collections.unmodifiableList(matches);
+	}
+
+	/**
+	 * @return the matches started between two dates, in milliseconds since the epoch, from the
+	 * first included to the last excluded, by date.
+	 */
+	public List<Entry> byDate(long fromMillis, long toMillis)
+	{
+		return range(byStart, starts, fromMillis, toMillis);
+	}
+
+	/**
+	 * @return the matches with a score between two, the first included and the last excluded,
+	 * by score.
+	 */
+	public List<Entry> byScore(int from, int to)
+	{
+		return range(byScore, scores, from, to);
+	}
+
+	/**
+	 * @return the matches that lasted between two durations, in milliseconds, the first included
+	 * and the last excluded, by duration.
+	 */
+	public List<Entry> byDuration(long fromMillis, long toMillis)
+	{
+		return range(byDuration, durations, fromMillis, toMillis);
+	}
+
+	/**
+	 * @return the matches whose key is between two, by key.
+	 */
+	private static List<Entry> range(Entry[] sorted, long[] keys, long from, long to)
+	{
+		int first = firstAtLeast(keys, from);
+		int last = firstAtLeast(keys, to);
+		return first >= last ? Collections.<Entry>emptyList()
+			: Collections.unmodifiableList(Arrays.asList(sorted).subList(first, last));
+	}
+
+	/**
+	 * @return the index of the first key at least a value, or the number of keys if none is.
+	 */
+	private static int firstAtLeast(long[] keys, long value)
+	{
+		int low = 0;
+		int high = keys.length;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (keys[middle] < value)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	//*************************************READING*************************************//
+
+	/**
+	 * Reads the replay of a match, from the segment mapped in memory.
+	 *
+	 * @param entry the match, from this archive.
+	 * @return its replay.
+	 * @throws IllegalArgumentException if the record no longer matches its checksum.
+	 */
+	public Replay read(Entry entry)
+	{
+		ByteBuffer segment = segments[entry.segment];
+		ByteBuffer record = record(segment, entry.position, entry.length);
+
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		if ((int) crc.getValue() != segment.getInt(entry.position + 4))
+			throw new IllegalArgumentException("The replay of match " + entry.matchID + " in " + files[entry.segment] + " is corrupt");
+
+		record.rewind();
+		return Replay.decode(record);
+	}
+
+	/**
+	 * @return a view of the replay of a record, which does not change the segment's position.
+	 */
+	private static ByteBuffer record(ByteBuffer segment, int position, int length)
+	{
+		ByteBuffer record = segment.duplicate();
+		record.limit(position + ReplayLog.RECORD_HEADER + length).position(position + ReplayLog.RECORD_HEADER);
+		return record.slice();
+	}
+
+	/**
+	 * Reads the replays of a set of matches on several threads at once and hands each to a
+	 * scanner as soon as it is read. Every thread reads matches next to each other, in the
+	 * order given, and steals from the others once done; no more replays are held than there
+	 * are threads. Returns once every match is scanned.
+	 *
+	 * @param entries the matches, from this archive.
+	 * @param parallelism the number of threads.
+	 * @param scanner receives the replays, on the threads reading them.
+	 * @throws RuntimeException the first exception the scanner threw, if any did.
+	 */
+	public void scan(List<Entry> entries, int parallelism, Scanner scanner)
+	{
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try
+		{
+			pool.invoke(new ScanTask(entries.toArray(new Entry[entries.size()]), 0, entries.size(), scanner));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Scans a range of matches, splitting it in halves while it is larger than a batch.
+	 */
+	private class ScanTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final transient Entry[] entries;
+		private final int from;
+		private final int to;
+		private final transient Scanner scanner;
+
+		ScanTask(Entry[] entries, int from, int to, Scanner scanner)
+		{
+			this.entries = entries;
+			this.from = from;
+			this.to = to;
+			this.scanner = scanner;
+		}
+
+		protected void compute()
+		{
+			if (to - from <= SCAN_BATCH)
+			{
+				for (int i = from; i < to; i++)
+					scanner.replay(entries[i], read(entries[i]));
+				return;
+			}
+
+			int middle = (from + to) >>> 1;
+			invokeAll(new ScanTask(entries, from, middle, scanner), new ScanTask(entries, middle, to, scanner));
+		}
+	}
+
+	//*************************************GETTERS*************************************//
+
+	/**
+	 * @return the segments of the archive, in the order they were written.
+	 */
+	public File[] getSegments()
+	{
+		return files.clone();
+	}
+
+	/**
+	 * @return the bytes of every whole record of the archive.
+	 */
+	public long getSize()
+	{
+		long size = 0;
+		for (ByteBuffer segment : segments)
+			size += segment.limit();
+		return size;
+	}
+
+	public String toString()
+	{
+		return entries.size() + " replays in " + files.length + " segments (" + getSize() + " bytes), by " + byPlayer.size() + " players";
+	}
+
+	/**
+	 * Indexes an archive, lists the matches of a player if one is given, and plays every match
+	 * again on all cores to check it.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1 || args.length > 2)
+		{
+			System.out.println("Usage: java Tetris2P.ReplayArchive <replay directory or file> [player]");
+			return;
+		}
+
+		long opening = System.nanoTime();
+		ReplayArchive archive = new ReplayArchive(new File(args[0]));
+		System.out.println(archive + ", opened in " + (System.nanoTime() - opening) / 1000000 + " ms");
+
+		if (args.length == 2)
+		{
+			for (Entry entry : archive.byPlayer(args[1]))
+				System.out.println(entry);
+		}
+
+		final AtomicLong failed = new AtomicLong();
+		long start = System.nanoTime();
+		archive.scan(archive.getEntries(), Runtime.getRuntime().availableProcessors(), new Scanner()
+		{
+			public void replay(Entry entry, Replay replay)
+			{
+				if (!replay.verify())
+				{
+					failed.incrementAndGet();
+					System.out.println(entry + "  DOES NOT REPLAY");
+				}
+			}
+		});
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%d replays played again in %.2f s (%.0f games/s), %d that do not replay%n",
+			archive.getEntries().size(), seconds, archive.getEntries().size() / Math.max(seconds, 1e-9), failed.get());
+		System.exit(failed.get() > 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,527 @@
+package Tetris2P;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import ocsf.common.ServerLog;
+
+/**
+ * An append-only file of replays, one record per match. Matches hand their replays over with
+ * {@code append}, which never blocks: a thread of the log's own encodes them and writes them
+ * through a buffer to the file's channel, so no match ever waits on the disk. Should the disk
+ * fall so far behind that {@code QUEUE_CAPACITY} replays wait, further replays are dropped and
+ * counted rather than held.
+ * <p>
+ * The file starts with {@code MAGIC}. Each record is the length of the encoded replay and its
+ * CRC-32, both as 4-byte integers, followed by the replay, see {@code Replay}. A record cut
+ * short by a crash is detected by its length or its checksum, and reading stops there; the
+ * next replay appended follows it, so a crash costs at most the replays not yet written.
+ * <p>
+ * A log opened on a directory writes to segments, files named by {@code segmentFile}, and
+ * starts the next segment once one holds {@code segmentSize} bytes; a record is never split
+ * between two. Segments stay small enough to be mapped whole by a {@code ReplayArchive}.
+ * <p>
+ * Run {@code java Tetris2P.ReplayLog <file>} to list the replays of a file and play each one
+ * again to check it.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class ReplayLog implements Closeable
+{
+	/**
+	 * The first bytes of a replay file.
+	 */
+	public static final int MAGIC = 0x54325052; // "T2PR"
+
+	/**
+	 * The bytes before every record's replay: its length and checksum.
+	 */
+	public static final int RECORD_HEADER = 8;
+
+	/**
+	 * The most replays waiting to be written.
+	 */
+	public static final int QUEUE_CAPACITY = 1024;
+
+	/**
+	 * The size of the buffer records are written through.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The default size segments are started after.
+	 */
+	public static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * Handed to the writer to stop it.
+	 */
+	private static final Replay CLOSE = new Replay.Recorder(0, 0, new String[0]).finish(-1, new int[0], new long[0]);
+
+	/**
+	 * The directory of the segments, or {@code null} for a single file.
+	 */
+	private final File directory;
+	private final long segmentSize;
+	/**
+	 * The segment being appended to. Only the writer changes it, then only once closed.
+	 */
+	private volatile File file;
+	private FileChannel channel;
+	private int segment;
+	private final BlockingQueue<Replay> queue = new ArrayBlockingQueue<Replay>(QUEUE_CAPACITY);
+	private final Thread writer;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * Opens a replay file to append to, creating it if need be, and starts the writer.
+	 *
+	 * @param file the file.
+	 * @throws IOException if the file cannot be opened, or is not a replay file.
+	 */
+	public ReplayLog(File file) throws IOException
+	{
+		this(null, Long.MAX_VALUE, file);
+	}
+
+	/**
+	 * Opens a directory of segments to append to, creating it if need be, and starts the writer.
+	 * Replays are appended to the last segment until it holds {@code segmentSize} bytes.
+	 *
+	 * @param directory the directory.
+	 * @param segmentSize the size segments are started after, in bytes.
+	 * @throws IOException if the directory cannot be created, or its last segment opened.
+	 */
+	public ReplayLog(File directory, long segmentSize) throws IOException
+	{
+		this(directory, segmentSize, lastSegment(directory));
+	}
+
+	private ReplayLog(File directory, long segmentSize, File file) throws IOException
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.file = file;
+		channel = open(file);
+		if (directory != null)
+			segment = segmentNumber(file);
+
+		writer = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				write();
+			}
+		}, "Replay writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Opens a replay file to append to, after its last whole record.
+	 */
+	private static FileChannel open(File file) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+
+		try
+		{
+			if (channel.size() == 0)
+			{
+				ByteBuffer magic = ByteBuffer.allocate(4).putInt(MAGIC);
+				magic.flip();
+				channel.write(magic);
+			}
+			else
+			{
+				// Append after the last whole record, over any record a crash cut short
+				long end = scan(channel, null);
+				channel.truncate(end);
+			}
+			channel.position(channel.size());
+			return channel;
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Hands a replay over to be written. Never blocks.
+	 *
+	 * @param replay the replay.
+	 * @return false if the replay was dropped because too many are waiting, or the log is closed.
+	 */
+	public boolean append(Replay replay)
+	{
+		if (!writer.isAlive() || !queue.offer(replay))
+		{
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the replays waiting, then stops the writer and closes the file.
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			if (writer.isAlive())
+				queue.put(CLOSE);
+			writer.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+	}
+
+	/**
+	 * Writes replays until closed: everything waiting is encoded into the buffer, which goes to
+	 * the file once full or once nothing is left waiting.
+	 */
+	private void write()
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		CRC32 crc = new CRC32();
+		List<Replay> batch = new ArrayList<Replay>();
+
+		try
+		{
+			while (true)
+			{
+				batch.add(queue.take());
+				queue.drainTo(batch);
+
+				for (Replay replay : batch)
+				{
+					if (replay == CLOSE)
+					{
+						flush(buffer);
+						return;
+					}
+
+					byte[] record = replay.encode();
+					crc.reset();
+					crc.update(record, 0, record.length);
+
+					if (buffer.remaining() < RECORD_HEADER + record.length)
+						flush(buffer);
+					if (channel.position() + buffer.position() >= segmentSize)
+					{
+						flush(buffer);
+						roll();
+					}
+					if (buffer.capacity() < RECORD_HEADER + record.length)
+					{
+						ByteBuffer large = ByteBuffer.allocate(RECORD_HEADER + record.length);
+						large.putInt(record.length).putInt((int) crc.getValue()).put(record);
+						flush(large);
+					}
+					else
+						buffer.putInt(record.length).putInt((int) crc.getValue()).put(record);
+
+					written.incrementAndGet();
+					bytesWritten.addAndGet(RECORD_HEADER + record.length);
+				}
+				batch.clear();
+				flush(buffer);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Closing
+		}
+		catch (IOException e)
+		{
+			ServerLog.log(ServerLog.Level.ERROR, "Could not write replays to " + file + ", no more will be", e);
+		}
+	}
+
+	/**
+	 * Closes the segment and starts the next one.
+	 */
+	private void roll() throws IOException
+	{
+		channel.close();
+		file = segmentFile(directory, ++segment);
+		channel = open(file);
+	}
+
+	/**
+	 * Writes what a buffer holds to the file and empties it.
+	 */
+	private void flush(ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	//*************************************SEGMENTS*************************************//
+
+	/**
+	 * @return the file of a segment of a directory.
+	 */
+	public static File segmentFile(File directory, int segment)
+	{
+		return new File(directory, String.format("replays-%06d.t2pr", segment));
+	}
+
+	/**
+	 * @return the segments of a directory, in the order they were written.
+	 */
+	public static File[] segments(File directory)
+	{
+		File[] segments = directory.listFiles(new FileFilter()
+		{
+			public boolean accept(File file)
+			{
+				return file.isFile() && segmentNumber(file) >= 0;
+			}
+		});
+		if (segments == null)
+			return new File[0];
+
+		Arrays.sort(segments, new Comparator<File>()
+		{
+			public int compare(File a, File b)
+			{
+				return Integer.compare(segmentNumber(a), segmentNumber(b));
+			}
+		});
+		return segments;
+	}
+
+	/**
+	 * @return the number of a segment, or -1 if the file is not one.
+	 */
+	private static int segmentNumber(File file)
+	{
+		String name = file.getName();
+		if (!name.matches("replays-\\d{6,9}\\.t2pr"))
+			return -1;
+		return Integer.parseInt(name.substring(8, name.length() - 5));
+	}
+
+	/**
+	 * @return the last segment of a directory, or its first if it has none yet.
+	 */
+	private static File lastSegment(File directory) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create the directory " + directory);
+
+		File[] segments = segments(directory);
+		return segments.length == 0 ? segmentFile(directory, 1) : segments[segments.length - 1];
+	}
+
+	//*************************************READING*************************************//
+
+	/**
+	 * Receives the replays read from a file.
+	 */
+	public interface Reader
+	{
+		/**
+		 * @param replay the replay.
+		 * @param position where its record starts in the file.
+		 */
+		void replay(Replay replay, long position);
+	}
+
+	/**
+	 * Reads every whole record of a replay file, in the order appended.
+	 *
+	 * @param file the file.
+	 * @param reader receives the replays.
+	 * @return the number of replays read.
+	 * @throws IOException if the file cannot be read, or is not a replay file.
+	 */
+	public static long read(File file, Reader reader) throws IOException
+	{
+		final long[] count = new long[1];
+		final Reader counting = reader;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+		{
+			scan(channel, new Reader()
+			{
+				public void replay(Replay replay, long position)
+				{
+					count[0]++;
+					counting.replay(replay, position);
+				}
+			});
+		}
+		finally
+		{
+			channel.close();
+		}
+		return count[0];
+	}
+
+	/**
+	 * Goes through the records of a file until its end or the first record cut short or corrupt.
+	 *
+	 * @param reader receives the replays, or {@code null} to only find where the records end.
+	 * @return the position after the last whole record.
+	 */
+	private static long scan(FileChannel channel, Reader reader) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+		CRC32 crc = new CRC32();
+		long position = 4;
+
+		header.limit(4);
+		if (channel.read(header, 0) < 4 || header.getInt(0) != MAGIC)
+			throw new IOException("Not a replay file");
+
+		while (true)
+		{
+			header.clear();
+			if (read(channel, header, position) < RECORD_HEADER)
+				return position;
+			int length = header.getInt(0);
+			if (length < 0 || position + RECORD_HEADER + length > channel.size())
+				return position;
+
+			ByteBuffer record = ByteBuffer.allocate(length);
+			read(channel, record, position + RECORD_HEADER);
+			crc.reset();
+			crc.update(record.array(), 0, length);
+			if ((int) crc.getValue() != header.getInt(4))
+				return position;
+
+			if (reader != null)
+			{
+				record.flip();
+				reader.replay(Replay.decode(record), position);
+			}
+			position += RECORD_HEADER + length;
+		}
+	}
+
+	/**
+	 * Reads from a position until the buffer is full or the file ends.
+	 *
+	 * @return the bytes read.
+	 */
+	private static int read(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		int total = 0;
+		while (buffer.hasRemaining())
+		{
+			int n = channel.read(buffer, position + total);
+			if (n < 0)
+				break;
+			total += n;
+		}
+		return total;
+	}
+
+	//*************************************GETTERS*************************************//
+
+	/**
+	 * @return the file replays are appended to: the current segment, for a directory.
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return the directory of the segments, or {@code null} if the log is a single file.
+	 */
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * @return the replays written to the file since it was opened.
+	 */
+	public long getWritten()
+	{
+		return written.get();
+	}
+
+	/**
+	 * @return the replays dropped because too many were waiting or the log was closed.
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * @return the bytes written to the file since it was opened.
+	 */
+	public long getBytesWritten()
+	{
+		return bytesWritten.get();
+	}
+
+	/**
+	 * @return the replays waiting to be written.
+	 */
+	public int getQueued()
+	{
+		return queue.size();
+	}
+
+	public String toString()
+	{
+		return (directory == null ? file : directory) + ": " + written + " replays written (" + bytesWritten + " bytes), " + dropped + " dropped";
+	}
+
+	/**
+	 * Lists the replays of a file and plays each one again to check it.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 1)
+		{
+			System.out.println("Usage: java Tetris2P.ReplayLog <replay file>");
+			return;
+		}
+
+		final long[] failed = new long[1];
+		long count = read(new File(args[0]), new Reader()
+		{
+			public void replay(Replay replay, long position)
+			{
+				boolean valid = replay.verify();
+				if (!valid)
+					failed[0]++;
+				System.out.println(replay + (valid ? "" : "  DOES NOT REPLAY"));
+			}
+		});
+		System.out.println(count + " replays, " + failed[0] + " that do not replay");
+		System.exit(failed[0] > 0 ? 1 : 0);
+	}
+}
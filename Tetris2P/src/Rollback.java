@@ -0,0 +1,170 @@
+package Tetris2P;
+
+import java.util.Arrays;
+
+import Tetris2P.Engine.Input;
+
+/**
+ * An opponent's game, played ahead of the opponent's inputs.
+ * <p>
+ * Between two batches of an opponent's inputs the client predicts that the opponent only lets
+ * the piece fall, one gravity tick at a time, so the opponent's board moves smoothly instead of
+ * jumping from one locked piece to the next. The game is saved before every predicted tick in a
+ * ring of states. When the real inputs arrive, the client keeps the part of the prediction they
+ * agree with, rewinds to the first input that differs, replays the real inputs from there and
+ * predicts again the ticks that are still to come.
+ * <p>
+ * A view is predicted by the local board's ticks and corrected by the client's thread, so its
+ * changes are synchronized; the board showing it reads it without locking, as it does its own.
+ *
+ * @author Andréas K.LeF.
+ * @author Dmitry Anglinov
+ */
+public class Rollback
+{
+	/**
+	 * The most ticks predicted ahead of the last real input. Also the size of the ring of states.
+	 */
+	public static final int MAX_PREDICTION = 64;
+
+	/**
+	 * The opponent's game, predicted.
+	 */
+	private final Engine engine;
+	/**
+	 * {@code states[i]} is the game before the i-th predicted input.
+	 */
+	private final Engine.State[] states = new Engine.State[MAX_PREDICTION];
+	/**
+	 * The number of inputs predicted since the last real one.
+	 */
+	private int predicted = 0;
+	/**
+	 * The number of the opponent's real inputs applied.
+	 */
+	private long confirmed = 0;
+	/**
+	 * The number of times the prediction was wrong and the game rewound.
+	 */
+	private long rollbacks = 0;
+	/**
+	 * The largest number of predicted inputs undone at once.
+	 */
+	private int maxDepth = 0;
+
+	/**
+	 * Creates the view of an opponent's game that starts now.
+	 *
+	 * @param seed the seed of the match.
+	 */
+	public Rollback(long seed)
+	{
+		engine = new Engine(seed);
+		for (int i = 0; i < MAX_PREDICTION; i++)
+			states[i] = new Engine.State();
+	}
+
+	/**
+	 * Predicts one gravity tick of the opponent's game, unless it is already as far ahead
+	 * of the real inputs as allowed.
+	 */
+	public synchronized void predict()
+	{
+		if (predicted == MAX_PREDICTION || engine.isOver())
+			return;
+
+		engine.save(states[predicted++]);
+		engine.apply(Input.TICK);
+	}
+
+	/**
+	 * Applies the opponent's real inputs, rewinding the prediction where it was wrong.
+	 * If the update carries a board, it is compared with the game once the inputs are applied.
+	 * Inputs already applied, sent again over the connection after a datagram link stalled,
+	 * are skipped.
+	 *
+	 * @param update the opponent's inputs, and maybe board.
+	 * @return false if the inputs do not follow the ones applied before, or the board does
+	 *         not match; the view is then of no more use.
+	 */
+	public synchronized boolean receive(Updater update)
+	{
+		byte[] inputs = update.inputs;
+
+		if (inputs == null || update.sequence > confirmed)
+			return false;
+
+		// Inputs sent again another way may start with some applied already
+		if (update.sequence < confirmed)
+		{
+			if (update.sequence + inputs.length <= confirmed)
+				return true;
+			inputs = Arrays.copyOfRange(inputs, (int) (confirmed - update.sequence), inputs.length);
+		}
+
+		// The prediction only holds ticks: keep the part that agrees with the real inputs
+		int agreed = 0;
+		while (agreed < predicted && agreed < inputs.length && inputs[agreed] == Input.TICK.ordinal())
+			agreed++;
+
+		int ticks = 0;
+		for (byte input : inputs)
+		{
+			if (input == Input.TICK.ordinal())
+				ticks++;
+		}
+		// Ticks predicted that the real inputs have not reached yet
+		int ahead = Math.max(0, predicted - ticks);
+
+		if (agreed < predicted)
+		{
+			engine.restore(states[agreed]);
+			rollbacks++;
+			maxDepth = Math.max(maxDepth, predicted - agreed);
+		}
+		predicted = 0;
+
+		if (!engine.apply(inputs, agreed))
+			return false;
+		confirmed += inputs.length;
+
+		if (update.hasBoard() && !engine.matches(update))
+			return false;
+
+		for (int i = 0; i < ahead; i++)
+			predict();
+		return true;
+	}
+
+	/**
+	 * @return the opponent's game, as predicted.
+	 */
+	public Engine getEngine()
+	{
+		return engine;
+	}
+
+	/**
+	 * @return the number of the opponent's real inputs applied.
+	 */
+	public synchronized long getConfirmed()
+	{
+		return confirmed;
+	}
+
+	/**
+	 * @return the number of times the prediction was wrong and the game rewound.
+	 */
+	public synchronized long getRollbacks()
+	{
+		return rollbacks;
+	}
+
+	/**
+	 * @return the largest number of predicted inputs undone at once.
+	 */
+	public synchronized int getMaxDepth()
+	{
+		return maxDepth;
+	}
+}
@@ -108,6 +108,27 @@ public static void main(String[] args)
 	}
 	
 	ServerConsole serverChat = new ServerConsole(port);	
+	
+	// Optional arguments run client connections on virtual threads, take inputs over datagrams, serve the metrics, keep replays and keep the leaderboard
+	for (int i = 1; i < args.length; i++)
+	{
+		if (args[i].equalsIgnoreCase("virtual"))
+		{
+			if (serverChat.getTetrisServer().setUseVirtualThreads(true))
+				serverChat.display("[INFO] Client connections use virtual threads");
+			else
+				serverChat.display("[WARNING] Virtual threads unavailable, using platform threads");
+		}
+		else if (args[i].equalsIgnoreCase("udp"))
+			serverChat.getTetrisServer().handleMessageFromServerUI("/udp on");
+		else if (args[i].equalsIgnoreCase("metrics"))
+			serverChat.getTetrisServer().handleMessageFromServerUI("/metrics on");
+		else if (args[i].equalsIgnoreCase("replays"))
+			serverChat.getTetrisServer().handleMessageFromServerUI("/replays on");
+		else if (args[i].equalsIgnoreCase("leaderboard"))
+			serverChat.getTetrisServer().handleMessageFromServerUI("/leaderboard on");
+	}
+	
 	serverChat.display("[INFO] ServerConsole started");
 	serverChat.accept();  //Wait for console data    
 	serverChat.display("[INFO] Accepting console input");
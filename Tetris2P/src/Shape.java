@@ -18,7 +18,7 @@ public class Shape implements Serializable{
      * The Tetromino enum holds markers for the 8 pieces used in the Tetris game, 
      * including the empty shape.
      */
-	public enum Tetromino { NoShape, ZShape, SShape, LineShape, TShape, SquareShape, LShape, MirroredLShape };
+	public enum Tetromino { NoShape, ZShape, SShape, LineShape, TShape, SquareShape, LShape, MirroredLShape, GarbageShape };
     /**
      * The {@code Tetromino} shape this piece has.
      */
@@ -29,12 +29,23 @@ public class Shape implements Serializable{
      */
     private int[][] coords;
     /**
-     * Stores all possible shapes of Tetris pieces
-     */
-    private int[][][] coordsTable;
+     * Stores all possible shapes of Tetris pieces.
+     * The matrix for all possible Tetris pieces is 9x4x2. Garbage lines are not a piece.
+     */
+    private static final int[][][] coordsTable = new int[][][] {
+        { {  0,  0 }, { 0,  0 },  { 0,  0 }, { 0,  0 } },
+        { {  0, -1 }, { 0,  0 },  { -1, 0 }, { -1, 1 } },
+        { {  0, -1 }, { 0,  0 },  { 1,  0 }, { 1,  1 } },
+        { {  0, -1 }, { 0,  0 },  { 0,  1 }, { 0,  2 } },
+        { { -1,  0 }, { 0,  0 },  { 1,  0 }, { 0,  1 } },
+        { {  0,  0 }, { 1,  0 },  { 0,  1 }, { 1,  1 } },
+        { { -1, -1 }, { 0, -1 },  { 0,  0 }, { 0,  1 } },
+        { {  1, -1 }, { 0, -1 },  { 0, 0 },  { 0,  1 } },
+        { {  0,  0 }, { 0,  0 },  { 0,  0 }, { 0,  0 } }
+    };
     
     /**
-     *  Random variable used to generate random shapes
+     *  Random variable used to generate random shapes, created when first needed
      */
     private Random r;
 
@@ -44,26 +55,12 @@ public class Shape implements Serializable{
     protected Shape() {
         coords = new int[4][2];
         setShape(Tetromino.NoShape);
-        r = new Random();
     }
 
     /**
      * Defines a shape
      */
     public void setShape(Tetromino shape) {
-    	
-    	// Defining the matrix for all possible Tetris pieces
-    	// is 8x4x2
-         coordsTable = new int[][][] {
-            { {  0,  0 }, { 0,  0 },  { 0,  0 }, { 0,  0 } },
-            { {  0, -1 }, { 0,  0 },  { -1, 0 }, { -1, 1 } },
-            { {  0, -1 }, { 0,  0 },  { 1,  0 }, { 1,  1 } },
-            { {  0, -1 }, { 0,  0 },  { 0,  1 }, { 0,  2 } },
-            { { -1,  0 }, { 0,  0 },  { 1,  0 }, { 0,  1 } },
-            { {  0,  0 }, { 1,  0 },  { 0,  1 }, { 1,  1 } },
-            { { -1, -1 }, { 0, -1 },  { 0,  0 }, { 0,  1 } },
-            { {  1, -1 }, { 0, -1 },  { 0, 0 },  { 0,  1 } }
-        };
         
         //Initializes the specific shape by putting a row of coordinate values to
         //the coords array. The row is specified by shape.ordinal() method
@@ -77,6 +74,18 @@ public class Shape implements Serializable{
         
     }
 
+    /**
+     * Makes this shape a copy of another, turned the same way.
+     */
+    protected void setShape(Shape other)
+    {
+        for (int i = 0; i < 4 ; i++) {
+            coords[i][0] = other.coords[i][0];
+            coords[i][1] = other.coords[i][1];
+        }
+        pieceShape = other.pieceShape;
+    }
+
     /**
      * Setting the x coordinate of the shape.
      */
@@ -118,6 +127,8 @@ public class Shape implements Serializable{
      */
     protected void setRandomShape()
     {
+        if (r == null)
+            r = new Random();
         int x = Math.abs(r.nextInt()) % 7 + 1;
         Tetromino[] values = Tetromino.values(); 
         setShape(values[x]);
@@ -41,7 +41,7 @@ import javax.swing.text.StyleContext;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultListCellRenderer;
-import javax.swing.DefaultListModel;
+import javax.swing.AbstractListModel;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JComponent;
@@ -56,19 +56,25 @@ import javax.swing.JTextPane;
 import javax.swing.UIManager;
 import javax.swing.UIManager.LookAndFeelInfo;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import Tetris2P.Shape.Tetromino;
 import Tetris2P.Tetris.HotBar.ShapeArea;
 import Tetris2P.ClientNode;
 import Tetris2P.Board.*;
 import ocsf.client.*;
+import ocsf.common.LatencyStats;
+import ocsf.common.StreamSegment;
 
 
 import java.util.ArrayList;
 import java.util.EmptyStackException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class represents one complete instance of a game of multiplayer tetris played by a single user.
@@ -142,6 +148,15 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
      * Boolean variable that determines if the game is being played on a server.
      */
     private boolean isOpponentReady = false;
+    /**
+     * The seed of the current match's pieces, sent by the server, or {@code null} out of a match.
+     */
+    private volatile Long matchSeed = null;
+    /**
+     * The seed of the match whose inputs this player sends over datagrams, or {@code null} if
+     * they go over the connection. Chosen when the match is made, and kept until it is over.
+     */
+    private volatile Long datagramSeed = null;
     /**
      * Music soundtrack for the game
      */
@@ -409,13 +424,14 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 	    **/
 		private final JLabel playerListTitle;
 	   /**
-	    * GUI componenent that displays list of users
+	    * The names of the players online, shown by the list.
 	    **/
-		private DefaultListModel<String> userList;
-		/**
-		 * ArrayList to hold the list of players
+		private final PlayerListModel userList;
+	    /**
+		 * The version of the list, to know when a change was missed.
+		 * Only used by the client's thread.
 		**/
-	    private ArrayList<String> users;
+	    private final transient PlayerListEvent.Sequence sequence = new PlayerListEvent.Sequence();
 	    /**
 		 * {@code JScrollPane} to show the list of players
 		**/
@@ -430,9 +446,7 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 	        setLayout(new BorderLayout());
 	        setBorder(BorderFactory.createEmptyBorder(0, 0, 20, 0));
 	        
-	        // TODO
-	        users 	 = new ArrayList<String>();
-	        userList = new DefaultListModel<String>();
+	        userList = new PlayerListModel();
 	        list 	 = new JList(userList);
 	        
 	        // Attach a ScrollPane to the list to make it scrollable
@@ -443,6 +457,18 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 	        list.setForeground(Color.WHITE);
 	        list.setBackground(backgroundColor);
 	        
+	        // Double-clicking a player watches their match
+	        list.addMouseListener(new MouseAdapter()
+	        {
+	        	public void mouseClicked(MouseEvent e)
+	        	{
+	        		String player = list.getSelectedValue();
+	        		
+	        		if (e.getClickCount() == 2 && player != null)
+	        			tetrisClient.handleMessageFromClientUI("/spectate " + player);
+	        	}
+	        });
+	        
 	        // Adding the list to the scrollable area
 	        scrollPane.getViewport().add(list);
 	        
@@ -457,65 +483,156 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 	    }
 
 	    /**
-	     * Adds the given player's name into the list
+	     * Applies a change of the player list sent by the server.
+	     * A change that does not follow the current version means one was missed,
+	     * so the list is dropped and a snapshot requested.
 	     * 
-	     * @param newUser {@code String} name of player.
+	     * @param event the change.
+	     * @return {@code true} if a snapshot of the list must be requested.
 	     */
-		private void addUserToList(ClientNode newUser)
+		private boolean updatePlayerList(final PlayerListEvent event)
 	    {
-	    	users.add(newUser.getName()); //add to end of list so the new user will be last in the queue to play
-	    	userList.addElement(newUser.getName()); //adds a user to the list GUI
+			PlayerListEvent.Action action = sequence.next(event);
+			if (action != PlayerListEvent.Action.APPLY)
+				return action == PlayerListEvent.Action.REQUEST_SNAPSHOT;
+			
+			// The list is only touched on the event dispatch thread
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				public void run()
+				{
+					switch (event.getType())
+					{
+						case SNAPSHOT:
+							userList.clear();
+							for (String name : event.getNames())
+								userList.add(name);
+						break;
+						case JOIN:
+							userList.add(event.getName());
+						break;
+						case LEAVE:
+							userList.remove(event.getName());
+						break;
+						case RENAME:
+							userList.rename(event.getName(), event.getNewName());
+						break;
+					}
+				}
+			});
+			return false;
 	    }
-	    
+
 	    /**
-	     *  Updates the playerlist.
+	     * Removes every player from the list
 	     * 
-	     * @param obj a {@code ArrayList} of {@code ClientNode} of players.
 	     */
-		private void updatePlayerList( String[] playerList)
+	    protected void clearList()
 	    {
-			ArrayList<String> players = new ArrayList<String>();
-			
-			for(String name : playerList)
-			{
-				players.add(name);
-			}
-			
-			// Take one user each time from local list
-			// Remove missing players if found
-			for ( String node :  players)
+	    	sequence.reset();
+	    	
+	    	SwingUtilities.invokeLater(new Runnable()
 			{
-				// If local player not in new list remove them.
-				if (!users.contains(node))
+				public void run()
 				{
-					users.add(node);
-					userList.addElement(node);
+					userList.clear();
+					repaint();
 				}
-			}
-			// Take one user each time from remote list
-			// Add new players if found 
-			for ( String node :  players)
-			{
-				if (!users.contains(node))
-				{
-					users.remove(node);
-					userList.removeElement(node);
-				}
-			}
-			
+			});
 	    }
-
+	    
 	    /**
-	     * Removes the given player's name from the list
+	     * The names shown by the list. Adding, removing and renaming a player take constant time:
+	     * each name's position is indexed, and a removed name is replaced by the last one.
+	     * Only used on the event dispatch thread.
 	     * 
+	     * @author Andréas K.LeF.
 	     */
-	    protected void clearList()
+	    private class PlayerListModel extends AbstractListModel<String>
 	    {
-	    	users 	 = new ArrayList<String>();
-	        userList = new DefaultListModel<String>();
-	        list.setListData(new String[0]);
-	        
-	        repaint();
+	    	private static final long serialVersionUID = 1L;
+	    	
+	    	/**
+	    	 * The names, in display order.
+	    	 */
+	    	private final ArrayList<String> names = new ArrayList<String>();
+	    	/**
+	    	 * The position of each name.
+	    	 */
+	    	private final HashMap<String, Integer> positions = new HashMap<String, Integer>();
+	    	
+	    	public int getSize()
+	    	{
+	    		return names.size();
+	    	}
+	    	
+	    	public String getElementAt(int index)
+	    	{
+	    		return names.get(index);
+	    	}
+	    	
+	    	/**
+	    	 * Adds a name at the end of the list, if not already there.
+	    	 */
+	    	private void add(String name)
+	    	{
+	    		if (positions.containsKey(name))
+	    			return;
+	    		
+	    		positions.put(name, names.size());
+	    		names.add(name);
+	    		fireIntervalAdded(this, names.size() - 1, names.size() - 1);
+	    	}
+	    	
+	    	/**
+	    	 * Removes a name, moving the last name into its place.
+	    	 */
+	    	private void remove(String name)
+	    	{
+	    		Integer position = positions.remove(name);
+	    		
+	    		if (position == null)
+	    			return;
+	    		
+	    		int last = names.size() - 1;
+	    		String moved = names.remove(last);
+	    		
+	    		if (position != last)
+	    		{
+	    			names.set(position, moved);
+	    			positions.put(moved, position);
+	    			fireContentsChanged(this, position, position);
+	    		}
+	    		fireIntervalRemoved(this, last, last);
+	    	}
+	    	
+	    	/**
+	    	 * Changes a name in place.
+	    	 */
+	    	private void rename(String name, String newName)
+	    	{
+	    		Integer position = positions.remove(name);
+	    		
+	    		if (position == null)
+	    			return;
+	    		
+	    		names.set(position, newName);
+	    		positions.put(newName, position);
+	    		fireContentsChanged(this, position, position);
+	    	}
+	    	
+	    	/**
+	    	 * Removes every name.
+	    	 */
+	    	private void clear()
+	    	{
+	    		int size = names.size();
+	    		
+	    		names.clear();
+	    		positions.clear();
+	    		if (size > 0)
+	    			fireIntervalRemoved(this, 0, size - 1);
+	    	}
 	    }
 	    
 	    /**
@@ -560,6 +677,10 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 		 * Restart button icon that toggles restart on the game
 		 */
 		private final JButton restartButton;
+		/**
+		 * Button that asks the server for the first page of its leaderboard
+		 */
+		private final JButton leaderboardButton;
 		/**
 		 * The icon for when sound is enabed.
 		 */
@@ -580,6 +701,10 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 		 * The icon for the restart button.
 		 */
 		private final ImageIcon restart;
+		/**
+		 * The icon for the leaderboard button.
+		 */
+		private final ImageIcon podium;
 	    /**
 	     * Label that displays game status information.
 	     */
@@ -605,6 +730,7 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 	        play = 		new ImageIcon(getClass().getResource("/Icons/play.png"));
 	        pause = 	new ImageIcon(getClass().getResource("/Icons/pause.png"));
 	        restart = 	new ImageIcon(getClass().getResource("/Icons/restart.png"));
+	        podium = 	new ImageIcon(getClass().getResource("/Icons/podium.png"));
 	        
 	        // Labels
 	        gameStatus	 = new JLabel("");
@@ -620,11 +746,13 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 	        soundButton 	= new JButton("Sound Off", soundOff );
 	        playPauseButton = new JButton("Play", pause );
 	        restartButton 	= new JButton("Restart", restart );
+	        leaderboardButton = new JButton("Leaderboard", podium );
 	        
 	        // Adding tooltips
 	        soundButton.setToolTipText("Sound Off");
 	        playPauseButton.setToolTipText("Play");
 	        restartButton.setToolTipText("Restart");
+	        leaderboardButton.setToolTipText("Leaderboard of the server");
 	        
 	        // Setting background colors
 	        setBackground(backgroundColor);
@@ -635,21 +763,25 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 	        soundButton.setBackground(backgroundColor.brighter().brighter());
 	        playPauseButton.setBackground(backgroundColor.brighter().brighter());
 	        restartButton.setBackground(backgroundColor.brighter().brighter());
+	        leaderboardButton.setBackground(backgroundColor.brighter().brighter());
 	        
 	        // Correcting button look and feel
 	        soundButton.setOpaque(true);
 	        playPauseButton.setOpaque(true);
 	        restartButton.setOpaque(true);
+	        leaderboardButton.setOpaque(true);
 	        
 	        // Setting foreground colors
 	        soundButton.setForeground(Color.LIGHT_GRAY);
 	        playPauseButton.setForeground(Color.LIGHT_GRAY);
 	        restartButton.setForeground(Color.LIGHT_GRAY);
+	        leaderboardButton.setForeground(Color.LIGHT_GRAY);
 	        
 	        // Adding the action listeners to the buttons
 	        soundButton.addActionListener(this);
 	        playPauseButton.addActionListener(this);
 	        restartButton.addActionListener(this);
+	        leaderboardButton.addActionListener(this);
 	        
 	        //adding the buttons to the JPanel and displaying to the UI
 	        left.add(linesRemoved);
@@ -658,6 +790,7 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 	        right.add(playPauseButton);
 	        right.add(restartButton);
 	        right.add(soundButton);
+	        right.add(leaderboardButton);
 	        
 	        add(left);
 	        add(right);
@@ -667,6 +800,7 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 	        playPauseButton.setFocusable(false);
 	        soundButton.setFocusable(false);
 	        restartButton.setFocusable(false);
+	        leaderboardButton.setFocusable(false);
 	        gameStatus.setFocusable(false);
 		}
 
@@ -714,6 +848,13 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 					localGame.getBoard().restart();
 					break;
 					
+				case "Leaderboard":
+					if (tetrisClient.isConnected())
+						tetrisClient.handleMessageFromClientUI("/leaderboard");
+					else
+						outputBox.display("[INFO] Connect to a server to see its leaderboard.", Color.LIGHT_GRAY);
+					break;
+					
 				case "email":
 					break;
 					
@@ -957,6 +1098,47 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 	     */
 	    private PlayerList playerList;
 	    
+	    /**
+	     * The latest board of every opponent in the match, by name.
+	     * Only used while handling a message from the server.
+	     */
+	    private final transient Map<String, Updater> opponentBoards = new HashMap<String, Updater>();
+	    
+	    /**
+	     * The opponent whose board is shown.
+	     */
+	    private volatile String watchedOpponent;
+	    
+	    /**
+	     * The game of every opponent that sends its inputs, predicted between two of them, by name.
+	     * Changed by the client's thread and predicted by the local board's ticks.
+	     */
+	    private final transient Map<String, Rollback> opponentViews = new ConcurrentHashMap<String, Rollback>();
+	    
+	    /**
+	     * Pings the server while connected, and shows the round trip time next to the server.
+	     */
+	    private final Timer pinger = new Timer(TetrisServer.PING_INTERVAL, new ActionListener()
+	    {
+	    	public void actionPerformed(ActionEvent e)
+	    	{
+	    		try
+	    		{
+	    			ping();
+	    		}
+	    		catch (IOException ex)
+	    		{
+	    			return;
+	    		}
+	    		
+	    		LatencyStats latency = getLatency();
+	    		if (latency.getSamples() > 0)
+	    			serverInfo.setText("Multiplayer @ "+getHost()+" : "+getPort()
+	    				+ "   RTT " + LatencyStats.millis(latency.getRtt(50))
+	    				+ " (p99 " + LatencyStats.millis(latency.getRtt(99)) + ")");
+	    	}
+	    });
+	    
 	    //****************************CONSTRUCTOR****************************//
 	    
 		/**
@@ -983,13 +1165,17 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 		 */
 		public void handleMessageFromServer(Object obj) 
 		{
-			if ( obj instanceof Updater)
+			if ( obj instanceof StreamSegment)
+			{ // An opponent's inputs, streamed over datagrams
+				opponentInputs((StreamSegment) obj);
+			}
+			else if ( obj instanceof Updater)
 			{ 
 				Updater update = (Updater) obj;
 				
 				String command = update.getCommandMessage();
 				
-				if ( command != "")
+				if ( command != null)
 					try
 					{
 						serverCommandMessage(command);
@@ -1000,11 +1186,21 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 						e.printStackTrace();
 					}
 				else // Updater should update the opponent's board
-					opponentGame.getBoard().updateBoard(update);
+					opponentBoardUpdate(update);
 			}
-			else if ( obj instanceof String[])
-			{ //the list of clients was sent from the server to update it locally
-				playerList.updatePlayerList( (String[]) obj );
+			else if ( obj instanceof PlayerListEvent)
+			{ //a change of the list of clients was sent from the server to update it locally
+				if (playerList.updatePlayerList( (PlayerListEvent) obj ))
+				{
+					try
+					{
+						sendToServer("#playerlist");
+					}
+					catch (IOException e)
+					{
+						clientUI.display("[ERROR] Could not request the player list.", Color.LIGHT_GRAY);
+					}
+				}
 			}
 			else
 			{
@@ -1033,6 +1229,114 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 			}
 		}
 
+		/**
+		 * Keeps the latest board of every opponent and shows the watched one.
+		 * The first opponent heard from is watched until {@code /watch} picks another.
+		 * <p>
+		 * The game of an opponent that sends its inputs from the start of the match is played
+		 * locally, see {@code Rollback}. If its inputs or boards stop matching, the opponent
+		 * is shown from its boards only.
+		 * 
+		 * @param update an opponent's new board or inputs.
+		 */
+		private void opponentBoardUpdate(Updater update)
+		{
+			String sender = update.getSender();
+			
+			if (sender == null)
+			{
+				if (update.hasBoard())
+					opponentGame.getBoard().updateBoard(update);
+				return;
+			}
+			
+			Rollback view = opponentViews.get(sender);
+			Long seed = matchSeed;
+			
+			if (view == null && seed != null && update.inputs != null && update.sequence == 0)
+			{
+				view = new Rollback(seed);
+				opponentViews.put(sender, view);
+			}
+			if (view != null && !view.receive(update))
+			{
+				opponentViews.remove(sender);
+				view = null;
+			}
+			
+			if (update.hasBoard())
+				opponentBoards.put(sender, update);
+			
+			if (watchedOpponent == null)
+				watchedOpponent = sender;
+			
+			if (sender.equals(watchedOpponent))
+			{
+				if (view != null)
+					opponentGame.getBoard().watch(view.getEngine());
+				else if (update.hasBoard())
+					opponentGame.getBoard().updateBoard(update);
+			}
+		}
+		
+		/**
+		 * Plays an opponent's inputs streamed by the server over datagrams. The stream is keyed by
+		 * the match's seed and the opponent's name, so inputs of an earlier match are dropped.
+		 * 
+		 * @param segment the opponent's inputs not received before.
+		 */
+		private void opponentInputs(StreamSegment segment)
+		{
+			String key = segment.getKey();
+			int colon = key.indexOf(':');
+			Long seed = matchSeed;
+			
+			if (colon < 0 || seed == null || !key.substring(0, colon).equals(seed.toString()))
+				return;
+			
+			Updater update = new Updater(null, null, null, null);
+			update.sender = key.substring(colon + 1);
+			update.inputs = segment.getData();
+			update.sequence = segment.getFirstSeq();
+			opponentBoardUpdate(update);
+		}
+		
+		/**
+		 * Sends this player's board or inputs to the server. In a match played over datagrams,
+		 * only the inputs are sent, over the datagram link, and the server works out the board.
+		 * Once the link stalls, the rest of the match goes over the connection.
+		 * 
+		 * @param update the board and inputs, or the inputs only.
+		 * @throws IOException if the connection fails.
+		 */
+		protected void sendUpdate(Updater update) throws IOException
+		{
+			Long seed = datagramSeed;
+			
+			if (seed != null && seed.equals(matchSeed) && update.inputs != null)
+			{
+				if (sendStream(seed.toString(), update.sequence, update.inputs))
+					return;
+				datagramSeed = null;
+			}
+			sendToServer(update);
+		}
+		
+		/**
+		 * Lets the opponents' games fall by one tick until their next inputs arrive,
+		 * and shows the watched one. Called by the local board on each tick.
+		 */
+		protected void predictOpponents()
+		{
+			for (Rollback view : opponentViews.values())
+				view.predict();
+			
+			String watched = watchedOpponent;
+			Rollback view = (watched == null) ? null : opponentViews.get(watched);
+			if (view != null)
+				opponentGame.getBoard().watch(view.getEngine());
+		}
+
 		/** This method handles all data coming from the UI
 		 * 
 		 * @param message The message from the UI.
@@ -1108,21 +1412,61 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 				// Control methods
 				
 				//The client won the match.
-				case ("gameWon"):
+				case ("gamewon"):
 					matchOver(true, operand);
 				break;
 				
 				//The client lost the match.
-				case ("gameLost"):
+				case ("gamelost"):
 					matchOver(false, operand);
 				break;
 				
-				//The match can start.
+				//Garbage lines sent by an opponent's line clear: "garbage <lines> <opponent>".
+				case ("garbage"):
+					try
+					{
+						int lines = Integer.parseInt(operand);
+						localGame.getBoard().receiveGarbage(lines);
+						clientUI.display("[INFO] " + (message.length > 2 ? message[2] : "An opponent")
+							+ " sent you " + lines + " line" + (lines == 1 ? "" : "s") + ".", Color.ORANGE);
+					}
+					catch (NumberFormatException e)
+					{
+						clientUI.display("[ERROR] Invalid garbage lines.", Color.LIGHT_GRAY);
+					}
+				break;
+				
+				//Every player of the match is ready: the match starts with the pieces of the seed,
+				//which the server uses to check this player's board.
+				case ("start"):
+					if (!isMultiplayerOn)
+						break;
+					
+					try
+					{
+						matchSeed = Long.parseLong(operand);
+						// The inputs of a whole match go over the same channel, never both
+						datagramSeed = isDatagramLinkUp() ? matchSeed : null;
+					}
+					catch (NumberFormatException e)
+					{
+						clientUI.display("[ERROR] Invalid match seed.", Color.LIGHT_GRAY);
+						break;
+					}
+					
+					isPlayerReady = true;
+					isOpponentReady = true;
+					localGame.getBoard().startMatch(matchSeed);
+					toolBar.playPauseButton.doClick();
+					clientUI.display("[INFO] Match started.", Color.CYAN);
+				break;
+				
+				//An opponent is ready. The match only starts once the server says so.
 				case ("ready"): case ("reafy"):
 					if (!isMultiplayerOn)
 						break;
 				
-        			// First case client not yet marked as ready, opponent not marked as ready
+        			// Client not yet marked as ready, opponent not marked as ready
         			if ( !isPlayerReady && !isOpponentReady )
     				{
         				isOpponentReady = true;
@@ -1136,14 +1480,6 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 						
 						repaint();
     				}
-        			// Second case client ready but opponent not ready
-    				else if (isPlayerReady && !isOpponentReady)
-    				{
-    					isOpponentReady = true;
-    					
-						toolBar.playPauseButton.doClick();
-    					clientUI.display("[INFO] Match started.", Color.CYAN);
-    				}
 				break;
 			}
 		}
@@ -1198,15 +1534,14 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 				//*******************************************************************//
 				// Control methods
 				
-				//Input from client UI has two cases: when the opponent is ready, or when he isnt.
+				//Tells the server this player is ready. The match starts once the server has heard
+				//from every player, whether the opponents were ready first or not.
 				
 				case ("ready"): case ("reafy"):
-					// Other person has told us they are ready.
 					if (!isMultiplayerOn)
 						break;
 				
-					// First case client not yet marked as ready, opponent not marked as ready
-					if ( !isPlayerReady && !isOpponentReady )
+					if ( !isPlayerReady )
 					{
 						isPlayerReady = true;
 						
@@ -1225,27 +1560,6 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 						toolBar.getStatusLabel().setText("Waiting for opponent to be ready!");
 						clientUI.display("[INFO] You are ready!", Color.CYAN);
 					}
-					// Second case client not ready but opponent ready
-					else if (!isPlayerReady && isOpponentReady)
-					{
-						isPlayerReady = true;
-						localGame.getBoard().setMultiplayerEnabled(isPlayerReady);
-						
-						// Tell other player we are ready
-						Updater cmd = new Updater("ready");
-						try
-						{
-							sendToServer(cmd);
-						}
-						catch (IOException ex)
-						{
-							System.out.println(cmd);
-							ex.printStackTrace();
-						}
-						
-						toolBar.playPauseButton.doClick();
-    					clientUI.display("[INFO] Match started.", Color.CYAN);
-					}
 				break;
 				
 				//Terminates the client
@@ -1273,9 +1587,33 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 					clientUI.display("Port set: " + getPort(), Color.YELLOW);
 				break;
 				
+				//Shows the board of another opponent in the match
+				case ("watch"):
+					Updater board = opponentBoards.get(operand);
+					if (board == null)
+					{
+						clientUI.display("[INFO] No board from "+operand+" yet.", Color.LIGHT_GRAY);
+						break;
+					}
+					watchedOpponent = operand;
+					Rollback view = opponentViews.get(operand);
+					if (view != null)
+						opponentGame.getBoard().watch(view.getEngine());
+					else
+						opponentGame.getBoard().updateBoard(board);
+					clientUI.display("[INFO] Watching "+operand+".", Color.LIGHT_GRAY);
+				break;
+				
 				//*******************************************************************//
 				// Getter methods
 				
+				//Shows the round trip times to the server and the offset of its clock
+				case ("latency"): case ("rtt"):
+					clientUI.display("[INFO] " + getLatency(), Color.YELLOW);
+					if (getDatagramLink() != null)
+						clientUI.display("[INFO] Datagrams " + getDatagramLink(), Color.YELLOW);
+				break;
+				
 				//Get the host
 				case ("gethost"):
 					clientUI.display("The host is: " + getHost());
@@ -1311,6 +1649,7 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 		 * Method informs the user server has been terminated and closes the client
 		 */
 		protected void connectionClosed(){
+			pinger.stop();
 			clientUI.display("Disconnected from server.", Color.ORANGE);
 			serverInfo.setText("");
 			isMultiplayerOn = false;
@@ -1324,6 +1663,7 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 		 */
 		protected void connectionException(Exception exception)
 		{
+			pinger.stop();
 			clientUI.display("Server closed. Abnormal termination of connection.", Color.ORANGE);
 			serverInfo.setText("");
 			isMultiplayerOn = false;
@@ -1337,6 +1677,7 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 		{
 			clientUI.display("Connected to server.");
 			serverInfo.setText("Multiplayer @ "+getHost()+" : "+getPort());
+			pinger.start();
 			
 			isMultiplayerOn = true;
 			localGame.getBoard().setMultiplayerEnabled(isMultiplayerOn);
@@ -1380,7 +1721,14 @@ public class Tetris2P extends JFrame implements Runnable, Serializable
 			else
 				clientUI.display("You lost to "+opponent, Color.BLUE, new Font("Malgun Gothic", Font.BOLD, 16));
 			
+			// Everybody readies up again for the next game
 			isPlayerReady = false;
+			isOpponentReady = false;
+			opponentBoards.clear();
+			opponentViews.clear();
+			watchedOpponent = null;
+			matchSeed = null;
+			datagramSeed = null;
 			localGame.getBoard().restart();
 			opponentGame.getBoard().restart();
 		}
@@ -5,9 +5,19 @@ package Tetris2P;
 
 import java.io.*;
 
+import ocsf.common.*;
 import ocsf.server.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import Tetris2P.Shape.Tetromino;
 
@@ -22,7 +32,7 @@ import Tetris2P.Shape.Tetromino;
  * @version July 2000
  */
 @SuppressWarnings("unused")
-public class TetrisServer extends AbstractServer implements Serializable
+public final class TetrisServer extends AbstractServer implements Serializable
 {
   
     /**
@@ -30,14 +40,63 @@ public class TetrisServer extends AbstractServer implements Serializable
      */
     public final static int DEFAULT_PORT = 1337;
     /**
-     * It will be used to pair up player and opponent
+     * How often the server and the clients ping each other, in milliseconds.
      */
-    private ArrayList<ClientNode> clientList;
+    public final static int PING_INTERVAL = 1000;
+    /**
+     * The default port the metrics are served on, on the loopback address.
+     */
+    public final static int DEFAULT_METRICS_PORT = 9137;
+    /**
+     * The default directory the matches' replays are appended to, in segments.
+     */
+    public final static String DEFAULT_REPLAY_DIRECTORY = "replays";
+    /**
+     * The default file the players' standings are kept in.
+     */
+    public final static String DEFAULT_LEADERBOARD_FILE = "leaderboard.t2pl";
+    /**
+     * It will be used to pair up player and opponent.
+     * Indexed by player ID so that every lookup is constant time and thread-safe.
+     */
+    private final transient PlayerRegistry players;
+    /**
+     * Pairs the players waiting for an opponent.
+     */
+    private final transient MatchmakingService matchmaking;
+    /**
+     * The threads the matches' tasks run on, shared by all matches.
+     */
+    private final transient ScheduledExecutorService matchWorkers;
+    /**
+     * Pings every client, from the first time the server listens until it is closed.
+     */
+    private transient ScheduledFuture<?> pinger;
+    /**
+     * Held while the player list changes, so that its changes reach every client in order.
+     */
+    private final transient Object playerListLock = new Object();
+    /**
+     * The version of the player list, raised by every change. Guarded by {@code playerListLock}.
+     */
+    private long playerListVersion = 0;
     /**
      * The interface type variable.  It allows the implementation of 
      * the display method in the client.
      */
     private final ChatIF serverOutput;
+    /**
+     * The matches started since the server was created.
+     */
+    private final transient Metrics.Counter matchesStarted;
+    /**
+     * Where the matches' replays go, or {@code null} while none are kept.
+     */
+    private transient volatile ReplayLog replays;
+    /**
+     * Where the players' results go, or {@code null} while no leaderboard is kept.
+     */
+    private transient volatile Leaderboard leaderboard;
     
     
     //*************************************CONSTRUCTOR*************************************//
@@ -52,20 +111,48 @@ public class TetrisServer extends AbstractServer implements Serializable
     	// Calls constructor in parent
     	super(port);
     	serverOutput = serverText;
-    	clientList = new ArrayList<ClientNode>();
+    	players = new PlayerRegistry();
+    	
+    	// Every recipient only ever waits on the latest board of each player
+    	setCoalesceSnapshots(true);
+    	matchWorkers = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+    	{
+    		public Thread newThread(Runnable task)
+    		{
+    			Thread thread = new Thread(task, "Match worker");
+    			thread.setDaemon(true);
+    			return thread;
+    		}
+    	});
+    	matchmaking = new MatchmakingService(players, new MatchmakingService.MatchListener()
+    	{
+    		public void matched(List<ClientNode> group)
+    		{
+    			matchFound(group);
+    		}
+    	});
+    	
+    	matchesStarted = getMetrics().counter("tetris_matches_started_total", "Matches started.");
    }
 
    //*************************************MESSAGE-HANDLERS*************************************//
   
   /**
    * This method handles any messages send from the client to the server.
-   * If an updater message is detected, it is sent to the opponent of the client.
+   * If an updater message is detected, it is routed to the client's match, as are the inputs
+   * the client streams over its datagram link.
    * If a string message is detected, it can be a command message or chat to be sent to all clients.
    * @param msg The message received from the client.
    * @param client The connection from which the message originated.
    */
   public void handleMessageFromClient (Object obj, ConnectionToClient client)
   {
+	// Inputs streamed over datagrams, or sent again over the connection once the link stalled
+	if ( obj instanceof StreamSegment)
+	{
+		performStream((StreamSegment) obj, client);
+		return;
+	}
 	// Object received is an Updater.
 	if ( obj instanceof Updater)
 	{
@@ -79,6 +166,7 @@ public class TetrisServer extends AbstractServer implements Serializable
 				tetrisCommandMessage(command, client);
 			}
 			catch (IOException e) { serverOutput.display("[ERROR] Could not parse command message."); }
+			return;
 		}
 		else
 		{
@@ -162,6 +250,16 @@ public class TetrisServer extends AbstractServer implements Serializable
 		else //If there is no white space, then there is no operand and only load the instruction
 		instruction = message[0];
 		
+		// Game commands only make sense within a match
+		ClientNode player = players.get(client.getId());
+		Match match = (player == null) ? null : player.getMatch();
+		
+		if (match == null)
+		{
+			client.send("[INFO] You have no opponent.");
+			return;
+		}
+		
 		// ****************************************************************************************//
 		// List of all client-side usable commands
 		
@@ -171,18 +269,18 @@ public class TetrisServer extends AbstractServer implements Serializable
 			// Control methods
 			
 			//The client won the match.
-			case ("gameWon"):
-				findOpponent(client).send("gameWon"+operand);
+			case ("gamewon"):
+				match.claimWin(player, "gameWon"+operand);
 			break;
 			
-			//The client lost the match.
-			case ("gameLost"):
-				findOpponent(client).send("gameLost"+operand);
+			//The client gave up: its game ends as if it had topped out.
+			case ("gamelost"):
+				match.resign(player);
 			break;
 			
 			//The match can start.
 			case ("ready"):
-				findOpponent(client).send("/ready");
+				match.ready(player);
 			break;
 		}
 	}
@@ -228,7 +326,36 @@ public class TetrisServer extends AbstractServer implements Serializable
 		
 		//informs the opposing player of their victory
 		case "GameOver":
-			findOpponent(client).send("Congratulations! You have won!");
+			ClientNode loser = (client == null) ? null : players.get(client.getId());
+			if (loser != null && loser.getMatch() != null)
+				loser.getMatch().resign(loser);
+			break;
+		
+		// Sends the whole player list to a client that fell out of sync
+		case "playerlist":
+			if (client != null)
+			{
+				synchronized (playerListLock)
+				{
+					sendPlayerList(client);
+				}
+			}
+			break;
+		
+		// Changes a client's name
+		case "name":
+			if (client != null && !operand.equals(""))
+				renamePlayer(client, operand);
+			break;
+		
+		// Watches the match of another player, or stops watching without a player
+		case "spectate":
+			if (client == null)
+			{
+				serverOutput.display("[INFO] Spectating is for clients.");
+				break;
+			}
+			spectate(client, operand);
 			break;
 		
 		//*******************************************************************//
@@ -300,22 +427,322 @@ public class TetrisServer extends AbstractServer implements Serializable
 				 "\n/close	: Stop listening for new clients & disconnect all existing clietns"+
 				 "\n/getport: Returns the listening port"+
 				 "\n/setport: Sets the listening port"+
-				 "\n/ping	: Pong!"+
+				 "\n/netstat: Lists clients' queues, traffic and stalls"+
+				 "\n/trace	: Toggles tracing of one client's messages"+
+				 "\n/loglevel: Sets the server log level"+
+				 "\n/queue	: Shows the matchmaking queue and match times"+
+				 "\n/ratings: Toggles matching players by rating"+
+				 "\n/roomsize: Sets the number of players per match, 2 to 100"+
+				 "\n/matches: Lists matches and the cost of checking their boards"+
+				 "\n/ping	: Shows the round trip times to the clients"+
+				 "\n/udp	: Turns the datagram channel for inputs on or off"+
+				 "\n/netsim: Simulates delay, jitter, loss and bandwidth to the clients"+
+				 "\n/stats	: Shows the server's metrics and their rates since the last /stats"+
+				 "\n/metrics: Serves the metrics to Prometheus over HTTP, or stops"+
+				 "\n/replays: Appends every match's replay to an archive, or stops"+
+				 "\n/leaderboard: Keeps the players' standings in a file, stops, or shows a page"+
+				 "\n/rank	: Shows the rank of a player on the leaderboard"+
 				 "\n/pong	: Ping!"
 				 );
 			
 		break;
 		
+		// Toggles tracing of every message from one client
+		case "trace":
+			boolean found = false;
+			for (ConnectionToClient connection : getClientConnections())
+			{
+				if (operand.equals(connection.getInfo("ID")) || operand.equals(String.valueOf(connection.getId())))
+				{
+					connection.setTracing(!connection.isTracing());
+					serverOutput.display("[INFO] Tracing " + (connection.isTracing() ? "on" : "off") + " for " + connection.getInfo("ID"));
+					found = true;
+				}
+			}
+			if (!found)
+				serverOutput.display("[INFO] No client " + operand + " to trace.");
+		break;
+		
+		// Sets the level of the server log
+		case "loglevel":
+			try
+			{
+				ServerLog.setLevel(ServerLog.Level.valueOf(operand.toUpperCase()));
+			}
+			catch (IllegalArgumentException e)
+			{
+				serverOutput.display("[INFO] Levels: TRACE DEBUG INFO WARN ERROR OFF");
+			}
+			serverOutput.display("[INFO] Log level is " + ServerLog.getLevel());
+		break;
+		
+		// Lists every connection and how well it keeps up
+		case "netstat":
+			for (ConnectionToClient connection : getClientConnections())
+			{
+				serverOutput.display("[INFO] " + connection.getInfo("ID")
+					+ " queued: " + connection.getOutboundQueueSize()
+					+ " sent: " + connection.getBytesSent() + "B"
+					+ " received: " + connection.getBytesReceived() + "B"
+					+ " in flight: " + connection.getBytesInFlight() + "B"
+					+ " stalled: " + connection.getWriteStallMillis() + "ms"
+					+ " idle: " + (System.currentTimeMillis() - connection.getLastReceiveTime()) + "ms"
+					+ " " + connection.getLatency()
+					+ (connection.getDatagramLink() != null ? " udp " + connection.getDatagramLink() : "")
+					+ (connection.isSlow() ? " SLOW" : ""));
+			}
+		break;
+		
+		// Shows how the matchmaking queue is doing
+		case "queue":
+			serverOutput.display("[INFO] Waiting: " + matchmaking.getQueueDepth()
+				+ " oldest: " + matchmaking.getOldestWait() + "ms"
+				+ " matches: " + matchmaking.getMatchesMade()
+				+ " average wait: " + matchmaking.getAverageTimeToMatch() + "ms"
+				+ " longest wait: " + matchmaking.getMaxTimeToMatch() + "ms");
+		break;
+		
+		// Toggles matching players by rating
+		case "ratings":
+			matchmaking.setUseRatings(!matchmaking.isUsingRatings());
+			serverOutput.display("[INFO] Matching players by " + (matchmaking.isUsingRatings() ? "rating" : "arrival"));
+		break;
+		
+		// Sets how many players the matchmaker puts in a match
+		case "roomsize":
+			try
+			{
+				matchmaking.setMatchSize(Integer.parseInt(operand));
+			}
+			catch (NumberFormatException e)
+			{
+				serverOutput.display("[INFO] Usage: /roomsize <players>");
+			}
+			serverOutput.display("[INFO] Matches have " + matchmaking.getMatchSize() + " players");
+		break;
+		
+		// Lists the matches being played and what checking them costs
+		case "matches":
+			Set<Match> matches = getMatches();
+			for (Match match : matches)
+			{
+				long checked = match.getBoardsChecked();
+				serverOutput.display("[INFO] Match " + match.getMatchID() + " " + match.getState()
+					+ " players: " + match.getPlayers().size()
+					+ " spectators: " + match.getSpectators().size()
+					+ " boards checked: " + checked
+					+ " in " + (match.getCheckNanos() / 1000) + "us"
+					+ (checked > 0 ? " (" + (match.getCheckNanos() / checked) + "ns each)" : "")
+					+ " divergences: " + match.getDivergences()
+					+ " garbage lines: " + match.getGarbageSent());
+			}
+			if (matches.isEmpty())
+				serverOutput.display("[INFO] No match being played.");
+		break;
+		
 		case "status":
 			if(this.isListening())
 				serverOutput.display("[INFO] Server open on port: " + getPort());
 			else
 				serverOutput.display("[INFO] Server closed. Port set to: " + getPort());
+			serverOutput.display("[INFO] " + getNumberOfClients() + " client(s) on "
+				+ (isUsingVirtualThreads() ? "virtual" : "platform") + " threads");
+			serverOutput.display("[INFO] Round trips: " + latencySummary());
+			if (!getNetworkConditions().isPerfect())
+				serverOutput.display("[INFO] Simulating " + getNetworkConditions());
+		break;
+		
+		// Takes the players' inputs over datagrams, or stops
+		case "udp":
+			if (client != null)
+			{
+				client.send("Invalid Command.");
+				break;
+			}
+			if (operand.equals("on"))
+			{
+				try
+				{
+					openDatagrams();
+				}
+				catch (IOException e)
+				{
+					serverOutput.display("[ERROR] Could not take datagrams on port " + getPort() + ": " + e.getMessage());
+				}
+			}
+			else if (operand.equals("off"))
+				closeDatagrams();
+			else if (hasWhiteSpace)
+				serverOutput.display("[INFO] Usage: /udp [on|off]");
+			
+			if (getDatagrams() == null)
+				serverOutput.display("[INFO] Datagrams off, inputs go over the connections");
+			else
+				serverOutput.display("[INFO] Datagrams on, " + getDatagrams());
+		break;
+		
+		// Sends everything to the clients through a simulated network
+		case "netsim":
+			if (client != null)
+			{
+				client.send("Invalid Command.");
+				break;
+			}
+			if (operand.equals("off"))
+				setNetworkConditions(null);
+			else if (hasWhiteSpace)
+			{
+				try
+				{
+					NetworkConditions conditions = new NetworkConditions(Integer.parseInt(message[1]),
+						message.length > 2 ? Integer.parseInt(message[2]) : 0,
+						message.length > 3 ? Double.parseDouble(message[3]) : 0);
+					if (message.length > 4)
+						conditions.setBandwidth(Long.parseLong(message[4]) * 1024);
+					setNetworkConditions(conditions);
+				}
+				catch (NumberFormatException e)
+				{
+					serverOutput.display("[INFO] Usage: /netsim <delay ms> [jitter ms] [loss %] [bandwidth KB/s] | off");
+				}
+			}
+			serverOutput.display("[INFO] Sending to clients with " + getNetworkConditions());
+		break;
+		
+		// Shows every metric, with how fast the counters grew since the last time
+		case "stats":
+			if (client != null)
+			{
+				client.send("Invalid Command.");
+				break;
+			}
+			for (String line : getMetrics().describe())
+				serverOutput.display("[INFO] " + line);
+		break;
+		
+		// Serves the metrics over HTTP, for Prometheus to scrape
+		case "metrics":
+			if (client != null)
+			{
+				client.send("Invalid Command.");
+				break;
+			}
+			if (operand.equals("off"))
+				closeMetrics();
+			else if (hasWhiteSpace)
+			{
+				try
+				{
+					openMetrics(operand.equals("on") ? DEFAULT_METRICS_PORT : Integer.parseInt(operand));
+				}
+				catch (NumberFormatException e)
+				{
+					serverOutput.display("[INFO] Usage: /metrics [on|<port>|off]");
+				}
+				catch (IOException e)
+				{
+					serverOutput.display("[ERROR] Could not serve the metrics on port " + operand + ": " + e.getMessage());
+				}
+			}
+			
+			if (getMetricsEndpoint() == null)
+				serverOutput.display("[INFO] Metrics not served, see /stats");
+			else
+				serverOutput.display("[INFO] Metrics served at " + getMetricsEndpoint());
+		break;
+		
+		// Keeps the replay of every match in a file
+		case "replays":
+			if (client != null)
+			{
+				client.send("Invalid Command.");
+				break;
+			}
+			if (operand.equals("off"))
+				closeReplays();
+			else if (hasWhiteSpace)
+			{
+				try
+				{
+					openReplays(new File(operand.equals("on") ? DEFAULT_REPLAY_DIRECTORY : operand));
+				}
+				catch (IOException e)
+				{
+					serverOutput.display("[ERROR] Could not keep replays in " + operand + ": " + e.getMessage());
+				}
+			}
+			
+			ReplayLog log = replays;
+			if (log == null)
+				serverOutput.display("[INFO] Replays not kept, see /replays [on|<directory>|<file>.t2pr|off]");
+			else
+				serverOutput.display("[INFO] Replays kept in " + log);
+		break;
+		
+		// Shows a page of the leaderboard; the console also keeps it in a file, or stops
+		case "leaderboard":
+			Leaderboard board = leaderboard;
+			boolean isPage = !hasWhiteSpace || operand.matches("\\d{1,9}");
+			int page = (isPage && hasWhiteSpace) ? Math.max(1, Integer.parseInt(operand)) : 1;
+			
+			if (client != null)
+			{
+				if (board == null)
+					client.send("[INFO] The server keeps no leaderboard.");
+				else
+					client.send(leaderboardPage(board, page));
+				break;
+			}
+			
+			if (!isPage && operand.equals("off"))
+				closeLeaderboard();
+			else if (!isPage)
+			{
+				try
+				{
+					openLeaderboard(new File(operand.equals("on") ? DEFAULT_LEADERBOARD_FILE : operand));
+				}
+				catch (IOException e)
+				{
+					serverOutput.display("[ERROR] Could not keep the leaderboard in " + operand + ": " + e.getMessage());
+				}
+			}
+			
+			board = leaderboard;
+			if (board == null)
+				serverOutput.display("[INFO] No leaderboard kept, see /leaderboard [on|<file>|off|<page>]");
+			else
+			{
+				serverOutput.display("[INFO] Leaderboard kept in " + board);
+				if (isPage)
+					serverOutput.display(leaderboardPage(board, page));
+			}
+		break;
+		
+		// Shows the rank of a player, by default the client asking
+		case "rank":
+			board = leaderboard;
+			String name = (client != null && !hasWhiteSpace) ? (String) client.getInfo("ID") : operand;
+			String rank;
+			if (board == null)
+				rank = "[INFO] The server keeps no leaderboard.";
+			else if (board.getStanding(name) == null)
+				rank = "[INFO] " + name + " is not on the leaderboard.";
+			else
+				rank = "[INFO] #" + board.getRank(name) + " of " + board.getPlayers() + ": " + board.getStanding(name);
+			
+			if (client != null)
+				client.send(rank);
+			else
+				serverOutput.display(rank);
 		break;
 		
-		// Ping!
+		// Ping! Along with the round trips the server measured
 		case "Ping": case "ping":
-			client.send("Pong.");
+			if (client == null)
+				serverOutput.display("[INFO] Round trips: " + latencySummary());
+			else
+				client.send("Pong. Server side " + client.getLatency());
 		break;
 		// Pong!
 		case "Pong": case "pong":
@@ -344,53 +771,177 @@ public class TetrisServer extends AbstractServer implements Serializable
 
  protected void clientConnected(ConnectionToClient client)
 {
-  	// Creating connection for new client
-  	ClientNode newClient = new ClientNode(client.getId());
-  	
-  	// Adding client to the client list
-  	clientList.add(newClient);
+  	ClientNode newClient;
   	
-  	playerListUpdate();
+  	synchronized (playerListLock)
+  	{
+  		// Creating and registering the node for the new client
+  		newClient = players.register(client);
+  		
+  		// Setting default user information.
+  		client.setInfo("ID", newClient.getName());
+  		
+  		// Everybody hears of the new player, who gets the whole list
+  		publishPlayerList(PlayerListEvent.join(++playerListVersion, newClient.getName()));
+  		sendPlayerList(client);
+  	}
   	
   	// console output
   	serverOutput.display("[INFO] Client " + client.toString() + " connected.");
   	
-  	// Setting default user information.
-  	client.setInfo("ID", newClient.getName());
+  	// Queueing them for an opponent, the matchmaker tells them once one is found
+  	matchmaking.enqueue(newClient);
   	
-  	// Checking if it is possible to match them with an opponent
   	try
   	{
-  		ConnectionToClient opponent = findOpponent(client);
-  		
-  		opponent.send("You have a new opponent!");
-  		client.send("You have a new opponent!");
-  		
-  		serverOutput.display("[INFO] Client " + client.toString() + " has the opponent "+opponent.toString());
+  		client.send("[INFO] Looking for an opponent...");
   	}
-  	catch (NullPointerException ex) // catching 
-    {
-		serverOutput.display("[FAILED] No opponent for client "+client.getInfo("ID")+" at "+client.getInetAddress());
-		try
-  		{
-  			client.send("[INFO] No opponent found.");
-  		}
-    		catch (IOException e) // catching 
-  		{
-  			serverOutput.display("[FAILED] Send message to opponent of "+client.getInfo("ID")+" at "+client.getInetAddress());
-  		}
-    }
   	catch (IOException e) // catching 
 	{
-		serverOutput.display("[FAILED] Send message to opponent of "+client.getInfo("ID")+" at "+client.getInetAddress());
+		serverOutput.display("[FAILED] Send message to client "+client.getInfo("ID")+" at "+client.getInetAddress());
 	}
 }
+ 
+ /**
+  * Called by the matchmaker when waiting players have been grouped.
+  * Puts them in a new match.
+  * 
+  * @param group the players of the match, longest waiting first.
+  */
+ private void matchFound(List<ClientNode> group)
+ {
+	Match match = Match.create(matchWorkers, group, replays, leaderboard);
+	
+	// Some of them may have left before the match existed
+	List<ClientNode> matched = new ArrayList<ClientNode>(group);
+	for (ClientNode player : group)
+	{
+		if (players.get(player.getPlayerID()) != player)
+		{
+			matched.remove(player);
+			releaseFromMatch(match, player);
+		}
+	}
+	
+	// The match's task sends the one left back to the queue
+	if (matched.size() < 2)
+		return;
+	matchesStarted.increment();
+	
+	String announcement = (matched.size() == 2) ? "You have a new opponent!" : "You have " + (matched.size() - 1) + " new opponents!";
+	for (ClientNode player : matched)
+	{
+		try
+		{
+			player.getConnection().send(announcement);
+		}
+		catch (IOException e) // catching 
+		{
+			serverOutput.display("[FAILED] Send message to client "+player.getName());
+		}
+	}
+	
+	if (matched.size() == 2)
+		serverOutput.display("[INFO] Client " + matched.get(0).getName() + " has the opponent " + matched.get(1).getName());
+	else
+		serverOutput.display("[INFO] Match " + match.getMatchID() + " started with " + matched.size() + " players");
+ }
+ 
+ /**
+  * Makes a client watch the match of a player, or stop watching.
+  * A spectator leaves the matchmaking queue until it stops watching.
+  * 
+  * @param client the client that wants to watch.
+  * @param playerName the player whose match to watch, or an empty {@code String} to stop watching.
+  */
+ private void spectate(ConnectionToClient client, String playerName) throws IOException
+ {
+	ClientNode viewer = players.get(client.getId());
+	
+	if (viewer == null)
+		return;
+	
+	if (viewer.isInMatch())
+	{
+		client.send("[INFO] You cannot spectate while playing.");
+		return;
+	}
+	
+	ClientNode target = playerName.equals("") ? null : players.findByName(playerName);
+	Match match = (target == null) ? null : target.getMatch();
+	
+	if (!playerName.equals("") && match == null)
+	{
+		client.send("[INFO] " + playerName + " is not playing.");
+		return;
+	}
+	
+	if (viewer.isSpectating())
+		viewer.getSpectating().removeSpectator(viewer);
+	
+	if (match == null)
+	{
+		client.send("[INFO] You are no longer spectating.");
+		matchmaking.enqueue(viewer);
+		return;
+	}
+	
+	match.addSpectator(viewer);
+	client.send("[INFO] Spectating the match of " + playerName + ". Do /spectate to stop.");
+ }
+ 
+ /**
+  * Removes a player from its match. If that leaves the match without enough players,
+  * the others go back to the matchmaking queue once the match's task removed the player.
+  * 
+  * @param match the player's match.
+  * @param player the player leaving.
+  */
+ private void releaseFromMatch(Match match, ClientNode player)
+ {
+	match.leave(player, new Match.LeaveListener()
+	{
+		public void left(Match match, List<ClientNode> released)
+		{
+			for (ClientNode opponentNode : released)
+			{
+				try
+				{
+					opponentNode.getConnection().send("[INFO] You no longer have an opponent!");
+				}
+				catch (IOException e)
+				{
+					serverOutput.display("[IDIOT] The client in removeAsOpponent has already been disconnected.");
+				}
+				matchmaking.enqueue(opponentNode);
+			}
+			
+			// Nobody left to watch
+			if (match.getPlayers().isEmpty())
+			{
+				for (ClientNode spectator : match.getSpectators())
+				{
+					match.removeSpectator(spectator);
+					try
+					{
+						spectator.getConnection().send("[INFO] The match you were watching is over.");
+					}
+					catch (IOException e)
+					{
+						serverOutput.display("[FAILED] Send message to spectator "+spectator.getName());
+					}
+					matchmaking.enqueue(spectator);
+				}
+			}
+		}
+	});
+ }
   
   /**
    * This method removes a client from the list of connected clients and updates the status of the client's opponent
    * @param ConnectionToclient client is a client about to be disconnected
    */
-  synchronized protected void clientDisconnected( ConnectionToClient client )
+  protected void clientDisconnected( ConnectionToClient client )
   {
 	try
 	{
@@ -398,9 +949,6 @@ public class TetrisServer extends AbstractServer implements Serializable
 		// will also disconnect the current client
 		removeAsOpponent(client);
 		
-		//Update playerlist
-		playerListUpdate();
-		
 		// Notifying other clients
 		serverOutput.display("[INFO] Client " + client.getInfo("ID") + " disconnected.");
 		sendToAllClients("[INFO] Client " + client.getInfo("ID") + " left.");
@@ -415,7 +963,7 @@ public class TetrisServer extends AbstractServer implements Serializable
   /**
    * Fired off when a client unexpectedly quits the server.
    */
-  synchronized protected void clientException(ConnectionToClient client, Throwable exception)
+  protected void clientException(ConnectionToClient client, Throwable exception)
   {
   	serverOutput.display("[ERROR] Connection with client "+client.getInfo("ID")+" at "+client.getInetAddress()+" terminated abruptly.");
   	
@@ -425,151 +973,203 @@ public class TetrisServer extends AbstractServer implements Serializable
   }
   
   /**
-   * This method searches the threadlist to find and set a client's opponent.
-   * 
-   * @param client the {@code ConnectionToClient} we're trying to associate an opponent to.
-   * @throws NullPointerException if the client could not be given an opponent.
-   */
-  private ConnectionToClient findOpponent( ConnectionToClient client) throws NullPointerException
-  {
-	Long opponentId = -1L; // Default value for a long
-	
-	ClientNode clientNode = new ClientNode(-999L);;
-	
-	for( ClientNode node : clientList )
-	{// Iterate through all clients connected in the list
-		
-		// If listClient different from clientConnected and that client has himself as opponent
-		if( node.getPlayerID() == client.getId())
-		{
-			clientNode = node; // find client node
-	    	break;
-		}
-	}
-	if (clientNode.getOpponentID() == clientNode.getPlayerID())
-	{
-    	for( ClientNode possibleOpponentNode : clientList )
-    	{// Iterate through all clients connected in the list
-    		
-    		// If listClient different from clientConnected and that client has himself as opponent
-    		if( possibleOpponentNode.getPlayerID() != clientNode.getPlayerID() && possibleOpponentNode.getPlayerID() == possibleOpponentNode.getOpponentID())
-    		{
-    			// Sets the client's opponent's opponent as himself
-    			opponentId = possibleOpponentNode.getPlayerID();
-    			possibleOpponentNode.setOpponentID(client.getId());
-    			clientNode.setOpponentID(opponentId);
-    	    	break;
-    		}
-    	}
-	}
-	else
-		opponentId = clientNode.getOpponentID();
-	
-	// Iterate through the connectiontoclients array
-	if(opponentId != -1L)
-	{
-		for(Thread clientThread : getClientConnections())// list of connections
-		{
-			if(clientThread.getId() == opponentId)
-			{
-				return (ConnectionToClient) clientThread;
-			}
-		}
-	}
-	else
-		throw new NullPointerException("Client has no opponent.");
-	
-	return null;
-  }
-  
-  /**
-   * This method is only called when a client disconnects. It removes that client as other clients' opponent.
+   * This method is only called when a client disconnects. It removes that client from the
+   * registry and from its match; the players left without a match go back to the matchmaking queue.
    * 
    * @param client the {@code ConnectionToClient} we're trying to remove as other clients' opponent.
    */
     private void removeAsOpponent( ConnectionToClient client)
-    
     {
-    	Long clientID = -1L;
+    	ClientNode clientNode;
     	
-    	// Find the client in the list
-    	for( ClientNode clientNode : clientList )
+    	synchronized (playerListLock)
     	{
-    		clientID = clientNode.getPlayerID();// Try to match ID's
+    		clientNode = players.unregister(client.getId());
     		
-    		if( clientID == client.getId())
-    		{// If the node in the list and the client leaving are matched
-    			
-    			for( ClientNode opponentNode : clientList )
-    			{// Find the client's opponent
-    	    		
-    				if( opponentNode.getOpponentID() == clientID)
-    	    		{
-    	    			// Sets the client's opponent's opponent as himself
-    					opponentNode.setOpponentID(opponentNode.getPlayerID());
-    	    			
-    	    			try
-    	    			{
-    	    				//client.send("[INFO] You no longer have an opponent!");
-    	    				findOpponent(client).send("[INFO] You no longer have an opponent!");
-    	    			}
-    	    			catch (IOException e)
-    	    			{
-    	    				serverOutput.display("[IDIOT] The client in removeAsOpponent has already been disconnected.");
-    	    			}
-    	    			
-    	    	    	// Removing the user that disconnected from the clientList
-    	    	    	clientList.remove(clientNode);
-    	    	    	
-    	    	    	break;
-    	    		}
-    	    	}
-    		}
+    		// Already removed
+    		if (clientNode == null)
+    			return;
+    		
+    		publishPlayerList(PlayerListEvent.leave(++playerListVersion, clientNode.getName()));
     	}
+    	
+    	Match match = clientNode.getMatch();
+    	
+    	if (match != null)
+    		releaseFromMatch(match, clientNode);
+    	
+    	if (clientNode.isSpectating())
+    		clientNode.getSpectating().removeSpectator(clientNode);
     }
     
 
     /** 
-     * This method will send an update package to a given client's opponent.
+     * This method will send an update package to a given client's match.
      * 
      * @param client The {@code ConnectionToclient} that this message originated from.
      * @param update The {@code Updater} object to be sent to the given client's opponent.
      */ 
     private void performUpdate(Updater update, ConnectionToClient client){
-  		try
+    	ClientNode player = players.get(client.getId());
+    	Match match = (player == null) ? null : player.getMatch();
+    	
+    	if (match == null)
+    	{
+    		serverOutput.display("[CRITICAL] Could not send updater to the opponent of "+client.getInfo("ID")+" at "+client.getInetAddress());
+    		return;
+    	}
+    	match.update(player, update);
+    }
+    
+
+    /** 
+     * This method will turn inputs a client streamed over datagrams into an update of its match.
+     * The stream of a match is keyed by the match's seed, so inputs of an earlier match are dropped.
+     * 
+     * @param segment the inputs not received before.
+     * @param client The {@code ConnectionToclient} that streamed them.
+     */ 
+    private void performStream(StreamSegment segment, ConnectionToClient client)
+    {
+    	ClientNode player = players.get(client.getId());
+    	Match match = (player == null) ? null : player.getMatch();
+    	
+    	if (match == null || !segment.getKey().equals(String.valueOf(match.getSeed())))
+    	{
+    		ServerLog.log(ServerLog.Level.DEBUG, "Dropped inputs of " + client.getInfo("ID") + " for another match: " + segment);
+    		return;
+    	}
+    	
+    	Updater update = new Updater(null, null, null, null);
+    	update.inputs = segment.getData();
+    	update.sequence = segment.getFirstSeq();
+    	match.update(player, update);
+    }
+    
+
+    /** 
+     * This method will send a change of the player list to all clients.
+     * The change is serialized once for all of them. Must hold {@code playerListLock}.
+     * 
+     * @param event the change.
+     */ 
+    private void publishPlayerList(PlayerListEvent event)
+    {
+  	  	try
   		{
-  			findOpponent(client).send(update);
+  	  		sendToAllClients(SharedFrame.encode(event, null));
   		}
-  		catch (Exception ex)
+  		catch (IOException ex)
   		{
-  			serverOutput.display("[CRITICAL] Could not send updater to the opponent of "+client.getInfo("ID")+" at "+client.getInetAddress());
-  			ex.printStackTrace();
+  			serverOutput.display("[ERROR] Could not send the player list change " + event);
   		}
     }
     
-
     /** 
-     * This method will send an update package to all  clients' player lists.
+     * This method will send the whole player list to one client, which applies the later
+     * changes on top of it. Must hold {@code playerListLock}.
+     * 
+     * @param client the {@code ConnectionToClient} to send the list to.
      */ 
-    private void playerListUpdate()
+    private void sendPlayerList(ConnectionToClient client)
     {
-  		String[] playerList = new String[clientList.size()];
-  		
-  		for (int i=0; i<clientList.size(); i++)
-  		{
-  			playerList[i] = clientList.get(i).getName();
-  		}
-  		
   	  	try
   		{
-  	  		sendToAllClients(playerList);
+  	  		client.send(PlayerListEvent.snapshot(playerListVersion, players.getNames()));
   		}
   		catch (IOException ex)
   		{
-  			
-  			ex.printStackTrace();
+  			serverOutput.display("[FAILED] Send the player list to client "+client.getInfo("ID"));
   		}
     }
+    
+    /** 
+     * This method will change a player's name and tell every client.
+     * 
+     * @param client the {@code ConnectionToClient} of the player.
+     * @param newName the player's new name.
+     */ 
+    private void renamePlayer(ConnectionToClient client, String newName) throws IOException
+    {
+    	synchronized (playerListLock)
+    	{
+    		ClientNode player = players.get(client.getId());
+    		
+    		if (player == null)
+    			return;
+    		
+    		String oldName = player.getName();
+    		
+    		if (!players.rename(player, newName))
+    		{
+    			client.send("[INFO] The name " + newName + " is taken.");
+    			return;
+    		}
+    		client.setInfo("ID", newName);
+    		publishPlayerList(PlayerListEvent.rename(++playerListVersion, oldName, newName));
+    		serverOutput.display("[INFO] Client " + oldName + " is now " + newName);
+    	}
+    }
+    /**
+     * Merges the latest round trips to every client.
+     *
+     * @return their median and 99th percentile, for display.
+     */
+    private String latencySummary()
+    {
+    	ConnectionToClient[] connections = getClientConnections();
+    	long[] rtts = new long[connections.length * LatencyStats.WINDOW];
+    	int count = 0;
+    	
+    	for (ConnectionToClient connection : connections)
+    		count += connection.getLatency().copyRtts(rtts, count);
+    	if (count == 0)
+    		return "not measured yet";
+    	
+    	Arrays.sort(rtts, 0, count);
+    	return "p50 " + LatencyStats.millis(LatencyStats.percentile(rtts, count, 50))
+    		+ " p99 " + LatencyStats.millis(LatencyStats.percentile(rtts, count, 99))
+    		+ " over the last " + count + " pings";
+    }
+    
+    /**
+     * Board updates are snapshots: each one carries the whole board, so a
+     * newer update makes an older queued one obsolete. Commands are never dropped,
+     * nor are a player's inputs, which an opponent needs in full.
+     */
+    protected boolean isSnapshot(Object msg)
+    {
+    	return (msg instanceof Updater && ((Updater) msg).getCommandMessage() == null
+    			&& ((Updater) msg).hasBoard() && ((Updater) msg).inputs == null)
+    		|| (msg instanceof SharedFrame && ((SharedFrame) msg).getKey() != null);
+    }
+    
+    /**
+     * A board only replaces a queued board of the same player: in a room every
+     * recipient gets the latest board of each of the other players.
+     */
+    protected boolean supersedes(Object newer, Object older)
+    {
+    	if (newer instanceof SharedFrame || older instanceof SharedFrame)
+    		return newer instanceof SharedFrame && older instanceof SharedFrame
+    			&& ((SharedFrame) newer).getKey() != null
+    			&& ((SharedFrame) newer).getKey().equals(((SharedFrame) older).getKey());
+    	
+    	return isSnapshot(newer) && isSnapshot(older);
+    }
+    
+    /**
+     * Tells the server console when a client falls behind or catches up.
+     * A slow client receives only the latest board of its opponent.
+     */
+    protected void clientSlow(ConnectionToClient client, boolean slow)
+    {
+    	if (slow)
+    		serverOutput.display("[WARNING] Client "+client.getInfo("ID")+" is falling behind, sending latest boards only.");
+    	else
+    		serverOutput.display("[INFO] Client "+client.getInfo("ID")+" caught up.");
+    }
+    
   //*************************************CONTROL*************************************//
   
   
@@ -615,6 +1215,9 @@ public class TetrisServer extends AbstractServer implements Serializable
   protected void serverStarted()
   {
     System.out.println("[INFO] Server listening for connections on port " + getPort());
+    registerMetrics();
+    matchmaking.start();
+    startPinging();
   }
   
   /**
@@ -633,13 +1236,258 @@ public class TetrisServer extends AbstractServer implements Serializable
    */
   protected void serverClosed()
   {
+    matchmaking.stop();
+    stopPinging();
+    closeReplays();
+    closeLeaderboard();
     System.out.println("Server closed.");
   }
 
+  /**
+   * Registers the game's own metrics, next to the framework's. Done when the server starts
+   * listening rather than in the constructor, since every gauge reads the server; registering
+   * them again replaces them.
+   */
+  private void registerMetrics()
+  {
+    getMetrics().gauge("tetris_matches", "Matches being played or waiting for their players.", new Metrics.Gauge()
+    {
+      public double get()
+      {
+        return getMatches().size();
+      }
+    });
+    getMetrics().gauge("tetris_players", "Players connected.", new Metrics.Gauge()
+    {
+      public double get()
+      {
+        return players.size();
+      }
+    });
+    getMetrics().gauge("tetris_matchmaking_waiting", "Players waiting for a match.", new Metrics.Gauge()
+    {
+      public double get()
+      {
+        return matchmaking.getQueueDepth();
+      }
+    });
+    getMetrics().gauge("tetris_matchmaking_oldest_wait_seconds", "How long the player waiting longest has waited.", new Metrics.Gauge()
+    {
+      public double get()
+      {
+        return matchmaking.getOldestWait() / 1e3;
+      }
+    });
+    getMetrics().gauge("tetris_replays_written", "Replays written since the replay file was opened.", new Metrics.Gauge()
+    {
+      public double get()
+      {
+        ReplayLog log = replays;
+        return (log == null) ? 0 : log.getWritten();
+      }
+    });
+    getMetrics().gauge("tetris_replays_dropped", "Replays dropped because the replay file fell behind.", new Metrics.Gauge()
+    {
+      public double get()
+      {
+        ReplayLog log = replays;
+        return (log == null) ? 0 : log.getDropped();
+      }
+    });
+    getMetrics().gauge("tetris_replays_queued", "Replays waiting to be written.", new Metrics.Gauge()
+    {
+      public double get()
+      {
+        ReplayLog log = replays;
+        return (log == null) ? 0 : log.getQueued();
+      }
+    });
+    getMetrics().gauge("tetris_leaderboard_players", "Players on the leaderboard.", new Metrics.Gauge()
+    {
+      public double get()
+      {
+        Leaderboard board = leaderboard;
+        return (board == null) ? 0 : board.getPlayers();
+      }
+    });
+    getMetrics().gauge("tetris_leaderboard_dropped", "Results dropped because the leaderboard fell behind.", new Metrics.Gauge()
+    {
+      public double get()
+      {
+        Leaderboard board = leaderboard;
+        return (board == null) ? 0 : board.getDropped();
+      }
+    });
+  }
+  
+  /**
+   * Starts measuring every client's round trip, off the clients' own threads. Does nothing if
+   * already started: the clients are still pinged while the server stops listening.
+   */
+  private synchronized void startPinging()
+  {
+    if (pinger != null)
+      return;
+    
+    pinger = matchWorkers.scheduleAtFixedRate(new Runnable()
+    {
+      public void run()
+      {
+        for (ConnectionToClient connection : getClientConnections())
+        {
+          try
+          {
+            connection.ping();
+          }
+          catch (IOException e) {} // The connection's own threads report it
+        }
+      }
+    }, PING_INTERVAL, PING_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+  
+  /**
+   * Stops pinging the clients.
+   */
+  private synchronized void stopPinging()
+  {
+    if (pinger == null)
+      return;
+    
+    pinger.cancel(false);
+    pinger = null;
+  }
+
+  /************************************* REPLAYS *******************************************/
+  
+  /**
+   * Appends the replay of every match started from now on to an archive, in place of the one
+   * replays went to until now: to segments of a directory, which a {@code ReplayArchive} maps
+   * and indexes, or to a single file if its name ends with {@code .t2pr}.
+   * 
+   * @param file the directory or file, created if need be.
+   * @throws IOException if the file cannot be opened or is not a replay file.
+   */
+  public synchronized void openReplays(File file) throws IOException
+  {
+	ReplayLog opened = file.getName().endsWith(".t2pr") ? new ReplayLog(file) : new ReplayLog(file, ReplayLog.SEGMENT_SIZE);
+	closeReplays();
+	replays = opened;
+  }
+  
+  /**
+   * Stops keeping replays, once those of the matches already over are written. Matches still
+   * being played keep their file, which is closed under them: their replays are dropped.
+   */
+  public synchronized void closeReplays()
+  {
+	ReplayLog log = replays;
+	replays = null;
+	if (log == null)
+		return;
+	
+	try
+	{
+		log.close();
+	}
+	catch (IOException e)
+	{
+		ServerLog.log(ServerLog.Level.ERROR, "Could not close the replay file " + log.getFile(), e);
+	}
+  }
+  
+  /**
+   * @return where the matches' replays go, or {@code null} if none are kept.
+   */
+  public ReplayLog getReplays()
+  {
+	return replays;
+  }
+  
+  /************************************* LEADERBOARD *******************************************/
+  
+  /**
+   * Keeps the results of every match started from now on in a leaderboard file, in place of
+   * the one they went to until now.
+   * 
+   * @param file the file, created if need be.
+   * @throws IOException if the file cannot be opened or is not a leaderboard file.
+   */
+  public synchronized void openLeaderboard(File file) throws IOException
+  {
+	Leaderboard opened = new Leaderboard(file);
+	closeLeaderboard();
+	leaderboard = opened;
+  }
+  
+  /**
+   * Stops keeping the leaderboard, once the results of the matches already over are written.
+   * Matches still being played keep their leaderboard, which is closed under them: their
+   * results are dropped.
+   */
+  public synchronized void closeLeaderboard()
+  {
+	Leaderboard board = leaderboard;
+	leaderboard = null;
+	if (board == null)
+		return;
+	
+	try
+	{
+		board.close();
+	}
+	catch (IOException e)
+	{
+		ServerLog.log(ServerLog.Level.ERROR, "Could not close the leaderboard " + board.getFile(), e);
+	}
+  }
+  
+  /**
+   * @return where the players' results go, or {@code null} if no leaderboard is kept.
+   */
+  public Leaderboard getLeaderboard()
+  {
+	return leaderboard;
+  }
+  
+  /**
+   * @return a page of a leaderboard, as a message; the last page for a page past it.
+   */
+  private static String leaderboardPage(Leaderboard board, int page)
+  {
+	page = Math.min(page, board.getPages());
+	List<Leaderboard.Standing> standings = board.getPage(page);
+	StringBuilder text = new StringBuilder("[INFO] Leaderboard, page " + page + " of " + board.getPages()
+		+ " (" + board.getPlayers() + " players):");
+	int rank = (page - 1) * Leaderboard.PAGE_SIZE;
+	for (Leaderboard.Standing standing : standings)
+		text.append("\n  ").append(++rank).append(". ").append(standing);
+	if (standings.isEmpty())
+		text.append("\n  Nobody.");
+	return text.toString();
+  }
+  
   /************************************* GETTER / SETTER*******************************************/
   
-  public ArrayList<ClientNode> getClientList(){
-	  return clientList;
+  /**
+   * @return the matches the players are in, each once.
+   */
+  private Set<Match> getMatches()
+  {
+	Set<Match> matches = new LinkedHashSet<Match>();
+	for (ClientNode player : players.getPlayers())
+	{
+		if (player.getMatch() != null)
+			matches.add(player.getMatch());
+	}
+	return matches;
+  }
+  
+  public List<ClientNode> getClientList(){
+	  return players.getPlayers();
+  }
+  
+  public MatchmakingService getMatchmaking(){
+	  return matchmaking;
   }
   
 }
\ No newline at end of file
@@ -38,6 +38,19 @@ import Tetris2P.Shape.Tetromino;
 		 * If set, represents a command sent by the server to a specific player.
 		 */
     	protected String command;
+		/**
+		 * Name of the player whose board this is. Set by the server before forwarding.
+		 */
+    	protected String sender;
+		/**
+		 * The inputs that led to this board since the player's previous update, as their
+		 * {@code Engine.Input} ordinal, or {@code null} if the game is not recorded.
+		 */
+    	protected byte[] inputs;
+		/**
+		 * The number of inputs the player applied before {@code inputs}.
+		 */
+    	protected long sequence;
     	
     	/**
     	 * This constructor updates the local clients game with the new input after a piece has been dropped.
@@ -55,9 +68,10 @@ import Tetris2P.Shape.Tetromino;
     	
     	/**
     	 * Alternate constructor to only pass string commands to clients.
+    	 * Public so that clients outside the game, such as bots and tests, can send commands.
     	 * @param msg the command to be sent.
     	 */
-    	protected Updater(String msg)
+    	public Updater(String msg)
     	{
     		command = msg;
     	}
@@ -72,12 +86,39 @@ import Tetris2P.Shape.Tetromino;
     		return command;
     	}
     	
+    	/**
+    	 * @return the name of the player whose board this is, or {@code null} if not set.
+    	 */
+    	public String getSender()
+    	{
+    		return sender;
+    	}
+    	
+    	/**
+    	 * @return {@code false} if this update only carries inputs, played since the player's
+    	 *         previous update, and no board.
+    	 */
+    	public boolean hasBoard()
+    	{
+    		return newBoard != null;
+    	}
+    	
+    	/**
+    	 * @return a copy of this update without its inputs.
+    	 */
+    	protected Updater withoutInputs()
+    	{
+    		Updater copy = new Updater(newHoldPiece, newNextPiece, newCurPiece, newBoard);
+    		copy.sender = sender;
+    		return copy;
+    	}
+    	
     	/**
     	 * Returns a {@code String} representation of this {@code Updater}.
     	 */
     	@Override
     	public String toString()
     	{
-    		return "[UPDATER]: [CMD]: "+ command + newHoldPiece + newNextPiece + newCurPiece + " [board] "+ newBoard.toString();
+    		return "[UPDATER]: [CMD]: "+ command + newHoldPiece + newNextPiece + newCurPiece + " [board] "+ newBoard;
     	}
     }
\ No newline at end of file
@@ -0,0 +1,401 @@
+/**
+ *
+ */
+package UnitTest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.StreamSegment;
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.OverflowPolicy;
+
+/**
+ * @author Andréas K.LeF.
+ *
+ */
+public class ConnectionToClientTest {
+
+	/**
+	 * Sends every message back to the client it came from.
+	 */
+	private static class EchoServer extends AbstractServer
+	{
+		EchoServer()
+		{
+			super(0);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client)
+		{
+			try
+			{
+				client.send(msg);
+			}
+			catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Treats numbers as snapshots, and remembers what happened to its clients.
+	 */
+	private static class SnapshotServer extends EchoServer
+	{
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+		protected boolean isSnapshot(Object msg)
+		{
+			return msg instanceof Integer;
+		}
+
+		protected void clientSlow(ConnectionToClient client, boolean slow)
+		{
+			events.add(slow ? "slow" : "caught up");
+		}
+
+		protected void clientException(ConnectionToClient client, Throwable exception)
+		{
+			events.add(exception.getMessage());
+		}
+	}
+
+	/**
+	 * A client that reads nothing until asked to.
+	 */
+	private static class StalledClient
+	{
+		final Socket socket = new Socket();
+		final ConnectionToClient connection;
+		private ObjectInputStream input;
+
+		StalledClient(AbstractServer server) throws Exception
+		{
+			socket.setReceiveBufferSize(4096);
+			socket.setSoTimeout(10000);
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getServerSocket().getLocalPort()));
+			new ObjectOutputStream(socket.getOutputStream()).flush();
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (server.getNumberOfClients() == 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			connection = server.getClientConnections()[0];
+		}
+
+		/**
+		 * Sends more than the socket buffers hold, so that the connection's writer is stuck
+		 * writing it and everything sent next stays queued.
+		 */
+		void stall() throws Exception
+		{
+			char[] big = new char[16 * 1024 * 1024];
+			Arrays.fill(big, 'x');
+			connection.send(new String(big));
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((connection.getWriteStallMillis() < 100 || connection.getOutboundQueueSize() > 0)
+				&& System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertTrue("The writer should be stuck", connection.getWriteStallMillis() >= 100);
+		}
+
+		/**
+		 * Reads the message sent by <code>stall</code>, then the given number of messages.
+		 */
+		List<Object> read(int messages) throws Exception
+		{
+			if (input == null)
+			{
+				input = new ObjectInputStream(socket.getInputStream());
+				assertEquals(16 * 1024 * 1024, ((String) input.readObject()).length());
+			}
+
+			List<Object> read = new ArrayList<Object>();
+			for (int i = 0; i < messages; i++)
+				read.add(input.readObject());
+			return read;
+		}
+	}
+
+	/**
+	 * Test method for {@link ocsf.server.ConnectionToClient#send(java.lang.Object)}.
+	 * More clients than the virtual thread scheduler has carriers should all be answered
+	 * while the others stay connected and idle.
+	 */
+	@Test
+	public void testIdleConnectionsOnVirtualThreads() throws Exception {
+		EchoServer server = new EchoServer();
+		server.setUseVirtualThreads(true); // Platform threads on JVMs without virtual threads
+		server.setBacklog(512);
+		server.listen();
+
+		int clients = 300;
+		Socket[] sockets = new Socket[clients];
+		ObjectOutputStream[] outputs = new ObjectOutputStream[clients];
+		ObjectInputStream[] inputs = new ObjectInputStream[clients];
+		try
+		{
+			int port = server.getServerSocket().getLocalPort();
+			for (int i = 0; i < clients; i++)
+			{
+				sockets[i] = new Socket(InetAddress.getLoopbackAddress(), port);
+				sockets[i].setSoTimeout(10000);
+				outputs[i] = new ObjectOutputStream(sockets[i].getOutputStream());
+				outputs[i].flush();
+				inputs[i] = new ObjectInputStream(sockets[i].getInputStream());
+			}
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (server.getNumberOfClients() < clients && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals("Every client should be connected", clients, server.getNumberOfClients());
+
+			// Every client but the one talking stays idle, its writer waiting for messages
+			for (int i = 0; i < clients; i++)
+			{
+				outputs[i].writeObject("Client" + i);
+				outputs[i].flush();
+				assertEquals("Client " + i + " should be answered", "Client" + i, inputs[i].readObject());
+			}
+		}
+		finally
+		{
+			for (Socket socket : sockets)
+				if (socket != null)
+					socket.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * Test method for {@link ocsf.server.ConnectionToClient#send(java.lang.Object)}.
+	 * A full queue should drop its oldest snapshot, in order, for every message sent.
+	 */
+	@Test
+	public void testOverflowDropsOldestSnapshot() throws Exception {
+		SnapshotServer server = new SnapshotServer();
+		server.setOutboundQueueCapacity(8);
+		server.setWriteStallTimeout(0);
+		server.listen();
+		try
+		{
+			StalledClient client = new StalledClient(server);
+			client.stall();
+
+			for (int i = 1; i <= 4; i++)
+			{
+				client.connection.send(i);
+				client.connection.send("Message" + i);
+			}
+			assertEquals(8, client.connection.getOutboundQueueSize());
+
+			client.connection.send("Late1");
+			client.connection.send("Late2");
+			assertEquals("Each message should take the place of a snapshot", 8, client.connection.getOutboundQueueSize());
+
+			assertEquals(Arrays.<Object>asList("Message1", "Message2", 3, "Message3", 4, "Message4", "Late1", "Late2"),
+				client.read(8));
+			assertTrue("Nothing should be reported", server.events.isEmpty());
+			client.socket.close();
+		}
+		finally
+		{
+			server.close();
+		}
+	}
+
+	/**
+	 * Test method for {@link ocsf.server.ConnectionToClient#send(java.lang.Object)}.
+	 * A full queue with no snapshot to drop, or a server that never drops any, should
+	 * disconnect the client.
+	 */
+	@Test
+	public void testOverflowDisconnects() throws Exception {
+		for (OverflowPolicy policy : OverflowPolicy.values())
+		{
+			SnapshotServer server = new SnapshotServer();
+			server.setOutboundQueueCapacity(8);
+			server.setOverflowPolicy(policy);
+			server.setWriteStallTimeout(0);
+			server.listen();
+			try
+			{
+				StalledClient client = new StalledClient(server);
+				client.stall();
+
+				for (int i = 1; i <= 8; i++)
+					client.connection.send(policy == OverflowPolicy.DISCONNECT ? (Object) i : "Message" + i);
+				assertTrue("Nothing should be reported yet", server.events.isEmpty());
+				client.connection.send("Overflow");
+
+				long deadline = System.currentTimeMillis() + 5000;
+				while (server.getNumberOfClients() > 0 && System.currentTimeMillis() < deadline)
+					Thread.sleep(10);
+				assertEquals(policy + " should disconnect the client", 0, server.getNumberOfClients());
+				assertEquals(Arrays.asList("Outbound queue overflow for client " + client.connection.getId()), server.events);
+				client.socket.close();
+			}
+			finally
+			{
+				server.close();
+			}
+		}
+	}
+
+	/**
+	 * Test method for {@link ocsf.server.ConnectionToClient#send(java.lang.Object)}.
+	 * A slow client should get only the newest snapshot, behind the messages queued before it,
+	 * and be marked slow until it catches up.
+	 */
+	@Test
+	public void testSlowClientSnapshotsCoalesce() throws Exception {
+		SnapshotServer server = new SnapshotServer();
+		server.setSlowClientQueueDepth(4);
+		server.setWriteStallTimeout(0);
+		server.listen();
+		try
+		{
+			StalledClient client = new StalledClient(server);
+			client.stall();
+
+			for (int i = 1; i <= 4; i++)
+				client.connection.send("Message" + i);
+			assertFalse(client.connection.isSlow());
+
+			for (int i = 1; i <= 100; i++)
+				client.connection.send(i);
+			assertTrue(client.connection.isSlow());
+			assertEquals("Only the newest snapshot should be queued", 5, client.connection.getOutboundQueueSize());
+
+			client.connection.send("Message5");
+			client.connection.send(101);
+			assertEquals(Arrays.<Object>asList("Message1", "Message2", "Message3", "Message4", 101, "Message5"),
+				client.read(6));
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (client.connection.isSlow() && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertFalse("The client should have caught up", client.connection.isSlow());
+			assertEquals(Arrays.asList("slow", "caught up"), server.events);
+			client.socket.close();
+		}
+		finally
+		{
+			server.close();
+		}
+	}
+
+	/**
+	 * Test method for {@link ocsf.server.AbstractServer#setCoalesceSnapshots(boolean)}.
+	 * A snapshot should take the place of the newest one queued, even for a client that is not
+	 * slow.
+	 */
+	@Test
+	public void testCoalescedSnapshotsKeepTheirPlace() throws Exception {
+		SnapshotServer server = new SnapshotServer();
+		server.setCoalesceSnapshots(true);
+		server.setWriteStallTimeout(0);
+		server.listen();
+		try
+		{
+			StalledClient client = new StalledClient(server);
+			client.stall();
+
+			client.connection.send("Message1");
+			client.connection.send(1);
+			client.connection.send("Message2");
+			client.connection.send(2);
+			client.connection.send(3);
+			client.connection.forceResetAfterSend();
+			client.connection.send(4);
+			assertFalse(client.connection.isSlow());
+			assertEquals(4, client.connection.getOutboundQueueSize());
+
+			assertEquals(Arrays.<Object>asList("Message1", 4, "Message2"), client.read(3));
+			client.socket.close();
+		}
+		finally
+		{
+			server.close();
+		}
+	}
+
+	/**
+	 * Test method for {@link ocsf.server.AbstractServer#openDatagrams()}.
+	 * Stream segments from a client's datagram link should be handled one at a time with the
+	 * messages from its connection, never alongside them.
+	 */
+	@Test
+	public void testSegmentsAreHandledInTurnWithMessages() throws Exception {
+		final AtomicInteger handling = new AtomicInteger();
+		final AtomicInteger messages = new AtomicInteger();
+		final AtomicInteger bytes = new AtomicInteger();
+		final AtomicBoolean overlapped = new AtomicBoolean();
+
+		AbstractServer server = new AbstractServer(0)
+		{
+			protected void handleMessageFromClient(Object msg, ConnectionToClient client)
+			{
+				if (handling.incrementAndGet() > 1)
+					overlapped.set(true);
+				try
+				{
+					Thread.sleep(1);
+				}
+				catch (InterruptedException e) {}
+				if (msg instanceof StreamSegment)
+					bytes.addAndGet(((StreamSegment) msg).getData().length);
+				else
+					messages.incrementAndGet();
+				handling.decrementAndGet();
+			}
+		};
+		server.listen();
+		server.openDatagrams();
+		AbstractClient client = new AbstractClient("localhost", server.getServerSocket().getLocalPort())
+		{
+			protected void handleMessageFromServer(Object msg) {}
+		};
+		try
+		{
+			client.openConnection();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!client.isDatagramLinkUp() && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertTrue("The datagram link should open", client.isDatagramLinkUp());
+
+			for (int i = 0; i < 200; i++)
+			{
+				client.sendToServer(i);
+				assertTrue(client.sendStream("inputs", i, new byte[] { 1 }));
+			}
+
+			deadline = System.currentTimeMillis() + 10000;
+			while ((messages.get() < 200 || bytes.get() < 200) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(200, messages.get());
+			assertEquals(200, bytes.get());
+			assertFalse("A client's messages should be handled one at a time", overlapped.get());
+		}
+		finally
+		{
+			client.closeConnection();
+			server.close();
+		}
+	}
+}
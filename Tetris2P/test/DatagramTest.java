@@ -0,0 +1,212 @@
+/**
+ *
+ */
+package UnitTest;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ocsf.common.DatagramLink;
+import ocsf.common.DatagramTransport;
+import ocsf.common.NetworkConditions;
+import ocsf.common.StreamSegment;
+
+/**
+ * @author Andréas K.LeF.
+ *
+ */
+public class DatagramTest {
+
+	/**
+	 * Keeps the bytes of every stream received, and fails on a byte received twice or out of order.
+	 */
+	private static class Collector implements DatagramTransport.Receiver
+	{
+		private final Map<String, ByteArrayOutputStream> streams = new HashMap<String, ByteArrayOutputStream>();
+		private volatile String error;
+
+		public synchronized void received(DatagramLink link, StreamSegment segment)
+		{
+			ByteArrayOutputStream stream = streams.get(segment.getKey());
+			if (stream == null)
+			{
+				stream = new ByteArrayOutputStream();
+				streams.put(segment.getKey(), stream);
+			}
+			if (segment.getFirstSeq() != stream.size())
+				error = segment + " after " + stream.size() + " bytes";
+			stream.write(segment.getData(), 0, segment.getData().length);
+		}
+
+		synchronized byte[] get(String key)
+		{
+			ByteArrayOutputStream stream = streams.get(key);
+			return (stream == null) ? new byte[0] : stream.toByteArray();
+		}
+	}
+
+	/**
+	 * Test method for {@link ocsf.common.DatagramLink#send(String, long, byte[])}.
+	 */
+	@Test
+	public void testStreamsSurviveLossAndReordering() throws Exception {
+		Collector atServer = new Collector();
+		Collector atClient = new Collector();
+		DatagramTransport server = new DatagramTransport(new DatagramSocket(0, InetAddress.getLoopbackAddress()), atServer);
+		DatagramTransport client = new DatagramTransport(new DatagramSocket(0, InetAddress.getLoopbackAddress()), atClient);
+
+		try
+		{
+			// 30% of the datagrams lost both ways, the others 10 to 30ms late and out of order
+			server.setConditions(new NetworkConditions(20, 10, 30, new Random(1)));
+			client.setConditions(new NetworkConditions(20, 10, 30, new Random(2)));
+
+			DatagramLink serverLink = server.open(42, null);
+			DatagramLink clientLink = client.open(42, new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+			waitFor(clientLink, serverLink);
+
+			Random random = new Random(7);
+			ByteArrayOutputStream[] sent = { new ByteArrayOutputStream(), new ByteArrayOutputStream(), new ByteArrayOutputStream() };
+			for (int i = 0; i < 600; i++)
+			{
+				byte[] inputs = new byte[1 + random.nextInt(8)];
+				random.nextBytes(inputs);
+
+				// Two streams up, one down
+				int stream = i % 3;
+				DatagramLink link = (stream == 2) ? serverLink : clientLink;
+				assertTrue("The link should send", link.send("stream" + stream, sent[stream].size(), inputs));
+				sent[stream].write(inputs, 0, inputs.length);
+				if (i % 10 == 0)
+					Thread.sleep(5);
+			}
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while ((clientLink.getUnackedBytes() > 0 || serverLink.getUnackedBytes() > 0) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+
+			assertNull("Bytes should be delivered once and in order", atServer.error);
+			assertNull("Bytes should be delivered once and in order", atClient.error);
+			assertEquals("Every byte should be acknowledged", 0, clientLink.getUnackedBytes() + serverLink.getUnackedBytes());
+			assertTrue("Every byte of stream 0 should arrive", Arrays.equals(sent[0].toByteArray(), atServer.get("stream0")));
+			assertTrue("Every byte of stream 1 should arrive", Arrays.equals(sent[1].toByteArray(), atServer.get("stream1")));
+			assertTrue("Every byte of stream 2 should arrive", Arrays.equals(sent[2].toByteArray(), atClient.get("stream2")));
+			assertTrue("Some datagrams should have been dropped", server.getPacketsDropped() > 0 && client.getPacketsDropped() > 0);
+		}
+		finally
+		{
+			server.close();
+			client.close();
+		}
+	}
+
+	/**
+	 * Test method for {@link ocsf.common.DatagramTransport#open(long, java.net.SocketAddress)}.
+	 */
+	@Test
+	public void testWrongTokenIsIgnored() throws Exception {
+		Collector atServer = new Collector();
+		DatagramTransport server = new DatagramTransport(new DatagramSocket(0, InetAddress.getLoopbackAddress()), atServer);
+		DatagramTransport stranger = new DatagramTransport(new DatagramSocket(0, InetAddress.getLoopbackAddress()), new Collector());
+
+		try
+		{
+			DatagramLink serverLink = server.open(42, null);
+			DatagramLink strangerLink = stranger.open(43, new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+
+			Thread.sleep(300);
+			assertFalse("A link with another token should get no answer", strangerLink.isEstablished());
+			assertFalse("A link should not open for another token", serverLink.isEstablished());
+			assertFalse("A link that is not open should not send", strangerLink.send("stream", 0, new byte[] { 1 }));
+			assertEquals("Nothing should be received", 0, server.getPacketsReceived());
+		}
+		finally
+		{
+			server.close();
+			stranger.close();
+		}
+	}
+
+	/**
+	 * Test method for {@link ocsf.common.DatagramLink#takeUnacked()}.
+	 * A link whose datagrams stop getting through one way should stall, and give back the bytes
+	 * from the first one the peer did not acknowledge.
+	 */
+	@Test
+	public void testStalledLinkGivesBackItsBytes() throws Exception {
+		Collector atServer = new Collector();
+		Collector atClient = new Collector();
+		DatagramTransport server = new DatagramTransport(new DatagramSocket(0, InetAddress.getLoopbackAddress()), atServer);
+		DatagramTransport client = new DatagramTransport(new DatagramSocket(0, InetAddress.getLoopbackAddress()), atClient);
+
+		try
+		{
+			DatagramLink serverLink = server.open(42, null);
+			DatagramLink clientLink = client.open(42, new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+			waitFor(clientLink, serverLink);
+
+			ByteArrayOutputStream sent = new ByteArrayOutputStream();
+			for (int i = 0; i < 20; i++)
+			{
+				assertTrue(serverLink.send("down", sent.size(), new byte[] { (byte) i }));
+				sent.write(i);
+			}
+			long deadline = System.currentTimeMillis() + 5000;
+			while (serverLink.getUnackedBytes() > 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals("Every byte should be acknowledged", 0, serverLink.getUnackedBytes());
+
+			// Nothing from the server gets through any more
+			server.setConditions(new NetworkConditions(0, 0, 100));
+			int delivered = atClient.get("down").length;
+			boolean stalled = false;
+			long start = System.currentTimeMillis();
+			for (int i = 20; !stalled && System.currentTimeMillis() - start < 5000; i++)
+			{
+				stalled = !serverLink.send("down", sent.size(), new byte[] { (byte) i });
+				if (!stalled)
+					sent.write(i);
+				Thread.sleep(20);
+			}
+			assertTrue("The link should stall", stalled);
+			assertTrue("The link should wait for the peer", System.currentTimeMillis() - start >= DatagramLink.STALL_TIMEOUT);
+			assertFalse("A stalled link should not be established", serverLink.isEstablished());
+
+			List<StreamSegment> unacked = serverLink.takeUnacked();
+			assertEquals(1, unacked.size());
+			assertEquals("The bytes should start where the peer stopped", delivered, unacked.get(0).getFirstSeq());
+			ByteArrayOutputStream whole = new ByteArrayOutputStream();
+			whole.write(atClient.get("down"));
+			whole.write(unacked.get(0).getData());
+			assertTrue("Nothing should be lost", Arrays.equals(sent.toByteArray(), whole.toByteArray()));
+			assertEquals(0, serverLink.getUnackedBytes());
+		}
+		finally
+		{
+			server.close();
+			client.close();
+		}
+	}
+
+	/**
+	 * Waits until both sides of a link heard from each other.
+	 */
+	private static void waitFor(DatagramLink first, DatagramLink second) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!(first.isEstablished() && second.isEstablished()) && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue("The link should open", first.isEstablished() && second.isEstablished());
+	}
+}
@@ -0,0 +1,290 @@
+/**
+ *
+ */
+package UnitTest;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import Tetris2P.Engine;
+import Tetris2P.Engine.Input;
+import Tetris2P.Referee;
+import Tetris2P.Rollback;
+import Tetris2P.Updater;
+import Tetris2P.Shape.Tetromino;
+
+/**
+ * @author Andréas K.LeF.
+ *
+ */
+public class EngineTest {
+
+	/**
+	 * Test method for {@link Tetris2P.Engine#apply(Tetris2P.Engine.Input)}.
+	 */
+	@Test
+	public void testSameSeedSameGame() {
+		Engine first = new Engine(42);
+		Engine second = new Engine(42);
+		Random inputs = new Random(7);
+
+		for (int i = 0; i < 5000; i++)
+		{
+			Input input = Input.values()[inputs.nextInt(Input.values().length)];
+			assertEquals("Both games should react alike to input " + i, first.apply(input), second.apply(input));
+		}
+
+		for (int y = 0; y < Engine.SQUARES_IN_HEIGHT; y++)
+			for (int x = 0; x < Engine.SQUARES_IN_WIDTH; x++)
+				assertEquals("Both boards should be the same", first.shapeAt(x, y), second.shapeAt(x, y));
+		assertEquals("Both games should have the same next piece", first.getNextPiece().getShape(), second.getNextPiece().getShape());
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Referee#check(Tetris2P.Updater)}.
+	 */
+	@Test
+	public void testRefereeAcceptsRecordedGame() {
+		Engine player = new Engine(42);
+		Referee referee = new Referee(42);
+		Random inputs = new Random(7);
+		int boards = 0;
+
+		player.setRecording(true);
+		while (!player.isOver())
+		{
+			Input input = Input.values()[inputs.nextInt(Input.values().length)];
+			// Garbage lines only come from an opponent
+			if (input == Input.GARBAGE)
+				referee.owe(1);
+			if ((player.apply(input) & Engine.LOCKED) != 0)
+			{
+				assertEquals("Every board of an honest player should be valid", Referee.Verdict.VALID, referee.check(player.snapshot()));
+				boards++;
+			}
+		}
+		assertTrue("The game should have locked some pieces", boards > 0);
+		assertTrue("The referee should have seen the player top out", referee.isOver());
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Referee#check(Tetris2P.Updater)}.
+	 */
+	@Test
+	public void testRefereeFlagsDivergence() {
+		Engine player = new Engine(42);
+		Referee otherPieces = new Referee(43);
+		Referee missedBoard = new Referee(42);
+
+		player.setRecording(true);
+		Updater first = playUntilLocked(player);
+		Updater second = playUntilLocked(player);
+
+		assertEquals("A game with other pieces should diverge", Referee.Verdict.DIVERGED, otherPieces.check(first));
+		assertEquals("Inputs that do not follow the previous ones should diverge", Referee.Verdict.DIVERGED, missedBoard.check(second));
+		assertEquals("A board without inputs cannot be checked", Referee.Verdict.UNCHECKED, missedBoard.check(new Engine(42).snapshot()));
+
+		Engine cheater = new Engine(42);
+		Referee unsent = new Referee(42);
+		cheater.setRecording(true);
+		cheater.apply(Input.GARBAGE);
+		assertEquals("Garbage lines nobody sent should diverge", Referee.Verdict.DIVERGED, unsent.check(playUntilLocked(cheater)));
+
+		Referee ignored = new Referee(42);
+		ignored.owe(2);
+		assertEquals("Garbage lines may come in after the lock already on its way", Referee.Verdict.VALID, ignored.check(first));
+		assertEquals("Garbage lines still owed at the next lock should diverge", Referee.Verdict.DIVERGED, ignored.check(second));
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Rollback#receive(Tetris2P.Updater)}.
+	 */
+	@Test
+	public void testRollbackCatchesUpWithInputs() {
+		Engine player = new Engine(42);
+		Rollback view = new Rollback(42);
+		Random inputs = new Random(7);
+
+		player.setRecording(true);
+		for (int batch = 0; batch < 50 && !player.isOver(); batch++)
+		{
+			int count = 1 + inputs.nextInt(10);
+			for (int i = 0; i < count; i++)
+				player.apply(Input.values()[inputs.nextInt(Input.values().length)]);
+			// The view guesses ahead before the inputs arrive
+			int guesses = inputs.nextInt(12);
+			for (int i = 0; i < guesses; i++)
+				view.predict();
+
+			Updater sent = (batch % 3 == 0) ? player.snapshot() : player.takeInputs();
+			assertTrue("Inputs in order should be accepted", view.receive(sent));
+		}
+		assertEquals("The view should have applied every input", player.getInputCount(), view.getConfirmed());
+		assertTrue("Some predictions should have been wrong", view.getRollbacks() > 0);
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Engine#restore(Tetris2P.Engine.State)}.
+	 */
+	@Test
+	public void testRestoreReplaysTheSameGame() {
+		Engine engine = new Engine(42);
+		Engine.State saved = new Engine.State();
+		Random inputs = new Random(7);
+
+		for (int i = 0; i < 100; i++)
+			engine.apply(Input.values()[inputs.nextInt(Input.values().length)]);
+		engine.save(saved);
+		int[] first = new int[200];
+		for (int i = 0; i < first.length; i++)
+			first[i] = engine.apply(Input.values()[(i % 6) + 1]);
+
+		engine.restore(saved);
+		for (int i = 0; i < first.length; i++)
+			assertEquals("A restored game should play the same", first[i], engine.apply(Input.values()[(i % 6) + 1]));
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Engine#apply(Tetris2P.Engine.Input)}.
+	 */
+	@Test
+	public void testGarbagePushesBoardUp() {
+		Engine engine = new Engine(42);
+
+		for (int i = 0; i < 3; i++)
+			engine.apply(Input.GARBAGE);
+		assertEquals("Garbage should wait for the next piece", 3, engine.getPendingGarbage());
+		assertTrue("The piece should be locked", (engine.apply(Input.DROP) & Engine.LOCKED) != 0);
+		assertEquals("Garbage should come in once the piece is locked", 0, engine.getPendingGarbage());
+
+		int hole = -1;
+		for (int y = 0; y < 3; y++)
+		{
+			for (int x = 0; x < Engine.SQUARES_IN_WIDTH; x++)
+			{
+				if (engine.shapeAt(x, y) == Tetromino.NoShape)
+				{
+					assertTrue("Garbage lines should have their hole in the same column", hole == -1 || hole == x);
+					hole = x;
+				}
+				else
+					assertEquals("Garbage lines should be garbage but for the hole", Tetromino.GarbageShape, engine.shapeAt(x, y));
+			}
+		}
+		assertTrue("Garbage lines should have a hole", hole != -1);
+		assertTrue("The board sent should be the board pushed up", engine.matches(engine.snapshot()));
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Referee#takeAttack()}.
+	 */
+	@Test
+	public void testLineClearsAttack() {
+		Engine player = new Engine(42);
+		Engine scratch = new Engine(42);
+		Referee referee = new Referee(42);
+		int sent = 0;
+
+		player.setRecording(true);
+		for (int piece = 0; piece < 300 && !player.isOver(); piece++)
+		{
+			// Some garbage now and then, so that lines cancel it too
+			if (piece % 20 == 19)
+			{
+				referee.owe(1);
+				player.apply(Input.GARBAGE);
+			}
+			playBestMove(player, scratch);
+
+			assertEquals("Every board should be valid", Referee.Verdict.VALID, referee.check(player.snapshot()));
+			int lines = player.takeAttack();
+			assertEquals("The referee should see the same attack as the player", lines, referee.takeAttack());
+			sent += lines;
+		}
+		assertTrue("Removing lines should attack", sent > 0);
+	}
+
+	/**
+	 * Plays the move of the current piece that leaves the best board, trying every move on a
+	 * scratch game with the same seed.
+	 */
+	private void playBestMove(Engine engine, Engine scratch)
+	{
+		Engine.State start = new Engine.State();
+		int bestTurns = 0, bestShift = 0, bestScore = Integer.MIN_VALUE;
+
+		engine.save(start);
+		for (int turns = 0; turns < 4; turns++)
+		{
+			for (int shift = -Engine.SQUARES_IN_WIDTH / 2 - 1; shift <= Engine.SQUARES_IN_WIDTH / 2; shift++)
+			{
+				scratch.restore(start);
+				move(scratch, turns, shift);
+				int score = (scratch.getLinesRemoved() - engine.getLinesRemoved()) * 760 - cost(scratch);
+				if (score > bestScore)
+				{
+					bestScore = score;
+					bestTurns = turns;
+					bestShift = shift;
+				}
+			}
+		}
+		move(engine, bestTurns, bestShift);
+	}
+
+	/**
+	 * Turns and moves the current piece, drops it, and brings the next piece if a line was removed.
+	 */
+	private void move(Engine engine, int turns, int shift)
+	{
+		for (int i = 0; i < turns; i++)
+			engine.apply(Input.ROTATE);
+		for (int i = 0; i < Math.abs(shift); i++)
+			engine.apply(shift < 0 ? Input.LEFT : Input.RIGHT);
+		if ((engine.apply(Input.DROP) & Engine.CLEARED) != 0)
+			engine.apply(Input.TICK);
+	}
+
+	/**
+	 * @return how bad a board is, from the height of its columns, the holes under them and
+	 *         how uneven they are.
+	 */
+	private int cost(Engine engine)
+	{
+		int total = 0, previous = -1;
+		for (int x = 0; x < Engine.SQUARES_IN_WIDTH; x++)
+		{
+			int height = 0;
+			for (int y = Engine.SQUARES_IN_HEIGHT - 1; y >= 0; y--)
+			{
+				if (engine.shapeAt(x, y) != Tetromino.NoShape)
+				{
+					if (height == 0)
+						height = y + 1;
+				}
+				else if (height > 0)
+					total += 356;
+			}
+			total += height * 510;
+			if (previous >= 0)
+				total += Math.abs(height - previous) * 184;
+			previous = height;
+		}
+		return total;
+	}
+
+	/**
+	 * Drops pieces until one is locked.
+	 *
+	 * @return the board once locked.
+	 */
+	private Updater playUntilLocked(Engine engine)
+	{
+		while ((engine.apply(Input.DROP) & Engine.LOCKED) == 0)
+			engine.apply(Input.TICK);
+		return engine.snapshot();
+	}
+}
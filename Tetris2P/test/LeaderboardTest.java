@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package UnitTest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import Tetris2P.Leaderboard;
+
+/**
+ * @author Andréas K.LeF.
+ *
+ */
+public class LeaderboardTest {
+
+	private static File newFile() throws IOException
+	{
+		File file = File.createTempFile("leaderboard", ".t2pl");
+		file.delete();
+		return file;
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Leaderboard#getPage(int)}.
+	 * The leaderboard should rank the players by lines, then wins, then name, and keep them
+	 * once reopened.
+	 */
+	@Test
+	public void testRanksPlayers() throws IOException {
+		File file = newFile();
+		try
+		{
+			Leaderboard board = new Leaderboard(file);
+			Random random = new Random(1);
+			for (int i = 0; i < 500; i++)
+				assertTrue(board.record("Player" + random.nextInt(25), random.nextBoolean(), random.nextInt(20)));
+			board.close();
+
+			board = new Leaderboard(file);
+			assertEquals(25, board.getPlayers());
+			assertEquals(3, board.getPages());
+
+			List<Leaderboard.Standing> expected = new ArrayList<Leaderboard.Standing>();
+			for (int i = 0; i < 25; i++)
+				expected.add(board.getStanding("Player" + i));
+			Collections.sort(expected, new Comparator<Leaderboard.Standing>()
+			{
+				public int compare(Leaderboard.Standing a, Leaderboard.Standing b)
+				{
+					if (a.getLines() != b.getLines())
+						return Long.compare(b.getLines(), a.getLines());
+					if (a.getWins() != b.getWins())
+						return b.getWins() - a.getWins();
+					return a.getName().compareTo(b.getName());
+				}
+			});
+
+			List<Leaderboard.Standing> ranked = new ArrayList<Leaderboard.Standing>();
+			for (int page = 1; page <= board.getPages(); page++)
+				ranked.addAll(board.getPage(page));
+			assertEquals(expected, ranked);
+			for (int i = 0; i < expected.size(); i++)
+				assertEquals(i + 1, board.getRank(expected.get(i).getName()));
+
+			int matches = 0;
+			for (Leaderboard.Standing standing : ranked)
+				matches += standing.getMatches();
+			assertEquals(500, matches);
+			assertEquals(0, board.getRank("Nobody"));
+			assertTrue(board.getPage(4).isEmpty());
+			board.close();
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Leaderboard#record(java.lang.String, boolean, int)}.
+	 * A file holding many more records than players should be compacted, and a record cut short
+	 * by a crash should be dropped and written over.
+	 */
+	@Test
+	public void testCompactsAndSurvivesTornRecords() throws IOException {
+		File file = newFile();
+		try
+		{
+			Leaderboard board = new Leaderboard(file);
+			for (int round = 0; round < 3; round++)
+				for (int i = 0; i < 1500; i++)
+					while (!board.record("P" + i, false, 1))
+						Thread.yield();
+			board.close();
+
+			// One record per player, give or take the standings written since the compaction
+			assertTrue("The file should have been compacted", file.length() < 2 * 1500 * 35);
+
+			RandomAccessFile raw = new RandomAccessFile(file, "rw");
+			raw.setLength(raw.length() - 5);
+			raw.close();
+
+			board = new Leaderboard(file);
+			assertTrue(board.getPlayers() >= 1499);
+			int players = board.getPlayers();
+			board.record("Winner", true, 10);
+			board.close();
+
+			board = new Leaderboard(file);
+			assertEquals(players + 1, board.getPlayers());
+			assertEquals(1, board.getStanding("Winner").getWins());
+			assertEquals(1, board.getRank("Winner"));
+			board.close();
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
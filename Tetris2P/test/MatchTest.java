@@ -0,0 +1,422 @@
+/**
+ *
+ */
+package UnitTest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import Tetris2P.ChatIF;
+import Tetris2P.ClientNode;
+import Tetris2P.Engine;
+import Tetris2P.Engine.Input;
+import Tetris2P.Match;
+import Tetris2P.Shape.Tetromino;
+import Tetris2P.TetrisServer;
+import Tetris2P.Updater;
+import ocsf.client.AbstractClient;
+
+/**
+ * @author Andréas K.LeF.
+ *
+ */
+public class MatchTest {
+
+	/**
+	 * A player without a window, keeping the commands the server sends it.
+	 */
+	private static class Player extends AbstractClient
+	{
+		private final BlockingQueue<String> commands = new LinkedBlockingQueue<String>();
+
+		Player(int port) throws IOException
+		{
+			super("localhost", port);
+			openConnection();
+		}
+
+		protected void handleMessageFromServer(Object msg)
+		{
+			if (msg instanceof Updater && ((Updater) msg).getCommandMessage() != null)
+				commands.add(((Updater) msg).getCommandMessage());
+		}
+
+		/**
+		 * Waits for a command starting with the given word, skipping the others.
+		 *
+		 * @return the command's operand.
+		 */
+		String await(String command) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + 5000;
+			String received;
+			do
+			{
+				received = commands.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+				assertNotNull("No " + command + " received", received);
+			}
+			while (!received.split(" ")[0].equals(command));
+			return received.substring(command.length()).trim();
+		}
+
+		/**
+		 * Drops pieces until the game tops out, and sends the inputs to the server.
+		 */
+		void topOut(long seed) throws IOException
+		{
+			Engine engine = new Engine(seed);
+			engine.setRecording(true);
+			while (!engine.isOver())
+				engine.apply(Input.DROP);
+			sendToServer(engine.takeInputs());
+		}
+
+		/**
+		 * Places pieces where they leave the lowest board once the next piece is placed too,
+		 * until they remove enough lines to attack, and sends the inputs to the server.
+		 */
+		void attack(long seed) throws IOException
+		{
+			Engine engine = new Engine(seed);
+			Engine scratch = new Engine(seed);
+			Engine.State saved = new Engine.State();
+			Engine.State placed = new Engine.State();
+			engine.setRecording(true);
+
+			while (!engine.isOver() && engine.takeAttack() == 0)
+			{
+				int bestTurns = 0, bestShift = 0, bestScore = Integer.MIN_VALUE;
+				engine.save(saved);
+				for (int turns = 0; turns < 4; turns++)
+				{
+					for (int shift = -Engine.SQUARES_IN_WIDTH / 2 - 1; shift <= Engine.SQUARES_IN_WIDTH / 2; shift++)
+					{
+						scratch.restore(saved);
+						play(scratch, turns, shift);
+						scratch.save(placed);
+
+						// The next piece, placed as well as it can be
+						for (int nextTurns = 0; nextTurns < 4; nextTurns++)
+						{
+							for (int nextShift = -Engine.SQUARES_IN_WIDTH / 2 - 1; nextShift <= Engine.SQUARES_IN_WIDTH / 2; nextShift++)
+							{
+								scratch.restore(placed);
+								play(scratch, nextTurns, nextShift);
+								if (scratch.isOver())
+									continue;
+								int score = (scratch.getLinesRemoved() - engine.getLinesRemoved()) * 760 - cost(scratch);
+								if (score > bestScore)
+								{
+									bestScore = score;
+									bestTurns = turns;
+									bestShift = shift;
+								}
+							}
+						}
+					}
+				}
+				play(engine, bestTurns, bestShift);
+			}
+			assertFalse("The player should have attacked before topping out", engine.isOver());
+			sendToServer(engine.takeInputs());
+		}
+
+		/**
+		 * Turns and moves the piece, drops it, and brings the next one.
+		 */
+		private static void play(Engine engine, int turns, int shift)
+		{
+			for (int i = 0; i < turns; i++)
+				engine.apply(Input.ROTATE);
+			for (int i = 0; i < Math.abs(shift); i++)
+				engine.apply(shift < 0 ? Input.LEFT : Input.RIGHT);
+			engine.apply(Input.DROP);
+			engine.apply(Input.TICK);
+		}
+
+		/**
+		 * @return how bad a board is, from the height of its columns, the holes under them
+		 *         and how uneven they are.
+		 */
+		private static int cost(Engine engine)
+		{
+			int total = 0, previous = -1;
+			for (int x = 0; x < Engine.SQUARES_IN_WIDTH; x++)
+			{
+				int height = 0;
+				for (int y = Engine.SQUARES_IN_HEIGHT - 1; y >= 0; y--)
+				{
+					if (engine.shapeAt(x, y) != Tetromino.NoShape)
+					{
+						if (height == 0)
+							height = y + 1;
+					}
+					else if (height > 0)
+						total += 356;
+				}
+				total += height * 510;
+				if (previous >= 0)
+					total += Math.abs(height - previous) * 184;
+				previous = height;
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * Waits for a match to reach a stage.
+	 */
+	private static void await(Match match, Match.State state) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 5000;
+		while (match.getState() != state && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(state, match.getState());
+	}
+
+	/**
+	 * Starts a server matching the given number of players, and connects them.
+	 *
+	 * @return the match they are in.
+	 */
+	private static Match connect(TetrisServer server, Player[] players) throws Exception
+	{
+		server.getMatchmaking().setMatchSize(players.length);
+		server.listen();
+		for (int i = 0; i < players.length; i++)
+			players[i] = new Player(server.getServerSocket().getLocalPort());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < deadline)
+		{
+			if (server.getClientList().size() == players.length && server.getClientList().get(0).getMatch() != null)
+				return server.getClientList().get(0).getMatch();
+			Thread.sleep(10);
+		}
+		fail("The players should have been matched");
+		return null;
+	}
+
+	private static TetrisServer newServer()
+	{
+		return new TetrisServer(0, new ChatIF()
+		{
+			public void display(String message) {}
+		});
+	}
+
+	private static void close(TetrisServer server, Player[] players) throws IOException
+	{
+		for (Player player : players)
+			if (player != null)
+				player.closeConnection();
+		server.closeServer();
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Match#ready(Tetris2P.ClientNode)}.
+	 * Two players should play a second game in the same match once the first is over, with
+	 * new pieces, without reconnecting.
+	 */
+	@Test
+	public void testPlayersPlayAgain() throws Exception {
+		TetrisServer server = newServer();
+		Player[] players = new Player[2];
+		try
+		{
+			Match match = connect(server, players);
+			long previous = 0;
+
+			for (int game = 0; game < 2; game++)
+			{
+				Player loser = players[game];
+				Player winner = players[1 - game];
+
+				players[0].sendToServer(new Updater("ready"));
+				players[1].sendToServer(new Updater("ready"));
+				long seed = Long.parseLong(players[0].await("start"));
+				assertEquals(seed, Long.parseLong(players[1].await("start")));
+				assertEquals("Game " + game + " should start", Match.State.PLAYING, match.getState());
+				assertTrue("Every game should have new pieces", seed != previous);
+
+				loser.topOut(seed);
+				winner.await("gameWon");
+				loser.await("gameLost");
+
+				// The same players, ready to play again
+				await(match, Match.State.WAITING);
+				for (ClientNode player : server.getClientList())
+					assertSame(match, player.getMatch());
+				previous = seed;
+			}
+		}
+		finally
+		{
+			close(server, players);
+		}
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Match#update(Tetris2P.ClientNode, Tetris2P.Updater)}.
+	 * Inputs a player sends before every player of the room is ready should be dropped, and
+	 * the player's game checked from the start the server sent.
+	 */
+	@Test
+	public void testInputsBeforeTheStartAreDropped() throws Exception {
+		TetrisServer server = newServer();
+		Player[] players = new Player[3];
+		try
+		{
+			Match match = connect(server, players);
+
+			players[0].sendToServer(new Updater("ready"));
+			players[1].sendToServer(new Updater("ready"));
+			// A player that starts on its own, before the third one is ready
+			players[0].topOut(match.getSeed());
+			Thread.sleep(200);
+			assertEquals(Match.State.WAITING, match.getState());
+
+			players[2].sendToServer(new Updater("ready"));
+			long seed = Long.parseLong(players[0].await("start"));
+			assertEquals(seed, Long.parseLong(players[1].await("start")));
+			assertEquals(seed, Long.parseLong(players[2].await("start")));
+
+			// Played from the start, the same games are valid
+			players[0].topOut(seed);
+			players[1].topOut(seed);
+			players[2].await("gameWon");
+			players[0].await("gameLost");
+			players[1].await("gameLost");
+			assertEquals("No board should have diverged", 0, match.getDivergences());
+			assertEquals(2, match.getBoardsChecked());
+		}
+		finally
+		{
+			close(server, players);
+		}
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Match#resign(Tetris2P.ClientNode)}.
+	 * A player saying it lost should only end its own game, and only once the match started.
+	 */
+	@Test
+	public void testResigningEndsOnlyThePlayersGame() throws Exception {
+		TetrisServer server = newServer();
+		Player[] players = new Player[3];
+		try
+		{
+			Match match = connect(server, players);
+
+			players[0].sendToServer(new Updater("gameLost"));
+			for (Player player : players)
+				player.sendToServer(new Updater("ready"));
+			for (Player player : players)
+				player.await("start");
+
+			players[0].sendToServer(new Updater("gameLost"));
+			players[0].sendToServer(new Updater("gameLost"));
+			Thread.sleep(200);
+			assertEquals("One player giving up should not end the match", Match.State.PLAYING, match.getState());
+
+			players[1].sendToServer(new Updater("gameLost"));
+			players[2].await("gameWon");
+			String winner = players[0].await("gameLost");
+			assertEquals(winner, players[1].await("gameLost"));
+			assertTrue("The loser should be told who won", winner.length() > 0);
+			assertEquals("Nothing should have diverged", 0, match.getDivergences());
+		}
+		finally
+		{
+			close(server, players);
+		}
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Referee#owe(int)}.
+	 * A player that ignores the garbage lines an opponent sent it should diverge once it locks
+	 * pieces without them.
+	 */
+	@Test
+	public void testIgnoringGarbageDiverges() throws Exception {
+		TetrisServer server = newServer();
+		Player[] players = new Player[2];
+		try
+		{
+			Match match = connect(server, players);
+
+			players[0].sendToServer(new Updater("ready"));
+			players[1].sendToServer(new Updater("ready"));
+			long seed = Long.parseLong(players[0].await("start"));
+			players[1].await("start");
+
+			players[0].attack(seed);
+			assertTrue(Integer.parseInt(players[1].await("garbage").split(" ")[0]) > 0);
+			assertEquals("Nothing should have diverged before the garbage was due", 0, match.getDivergences());
+
+			// Plays on as if the lines had never come
+			players[1].topOut(seed);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (match.getDivergences() == 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals("The board without the garbage should be flagged", 1, match.getDivergences());
+		}
+		finally
+		{
+			close(server, players);
+		}
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Match#leave(Tetris2P.ClientNode, Tetris2P.Match.LeaveListener)}.
+	 * Players leaving at the same time should end the match, and leave the last one without it.
+	 */
+	@Test
+	public void testPlayersLeavingTogether() throws Exception {
+		TetrisServer server = newServer();
+		final Player[] players = new Player[3];
+		try
+		{
+			Match match = connect(server, players);
+
+			Thread[] leaving = new Thread[2];
+			for (int i = 0; i < leaving.length; i++)
+			{
+				final Player player = players[i];
+				leaving[i] = new Thread()
+				{
+					public void run()
+					{
+						try
+						{
+							player.closeConnection();
+						}
+						catch (IOException e) {}
+					}
+				};
+			}
+			for (Thread thread : leaving)
+				thread.start();
+			for (Thread thread : leaving)
+				thread.join();
+
+			await(match, Match.State.OVER);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (server.getClientList().size() > 1 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(1, server.getClientList().size());
+			assertNull("The last player should no longer be in the match", server.getClientList().get(0).getMatch());
+			assertTrue(match.getPlayers().isEmpty());
+		}
+		finally
+		{
+			close(server, players);
+		}
+	}
+}
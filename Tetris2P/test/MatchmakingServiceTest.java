@@ -0,0 +1,196 @@
+/**
+ *
+ */
+package UnitTest;
+
+import static org.junit.Assert.*;
+
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import Tetris2P.ClientNode;
+import Tetris2P.MatchmakingService;
+import Tetris2P.PlayerRegistry;
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+
+/**
+ * @author Andréas K.LeF.
+ *
+ */
+public class MatchmakingServiceTest {
+
+	/**
+	 * Accepts the connections of the players, and nothing more.
+	 */
+	private static class Lobby extends AbstractServer
+	{
+		Lobby()
+		{
+			super(0);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {}
+	}
+
+	/**
+	 * Keeps the ratings of the players of every match made.
+	 */
+	private static class Matches implements MatchmakingService.MatchListener
+	{
+		final List<List<Integer>> ratings = Collections.synchronizedList(new ArrayList<List<Integer>>());
+
+		public void matched(List<ClientNode> players)
+		{
+			List<Integer> match = new ArrayList<Integer>();
+			for (ClientNode player : players)
+				match.add(player.getRating());
+			ratings.add(match);
+		}
+
+		/**
+		 * Waits for the given number of matches.
+		 */
+		void await(int matches, long millis) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + millis;
+			while (ratings.size() < matches && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Connects one player per rating to the lobby and registers them, in order.
+	 *
+	 * @return the players.
+	 */
+	private static List<ClientNode> connect(Lobby lobby, PlayerRegistry registry, List<Socket> sockets, int... ratings) throws Exception
+	{
+		lobby.listen();
+		for (int i = 0; i < ratings.length; i++)
+		{
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), lobby.getServerSocket().getLocalPort());
+			new ObjectOutputStream(socket.getOutputStream()).flush();
+			sockets.add(socket);
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (lobby.getNumberOfClients() < ratings.length && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(ratings.length, lobby.getNumberOfClients());
+
+		List<ClientNode> players = new ArrayList<ClientNode>();
+		ConnectionToClient[] connections = lobby.getClientConnections();
+		for (int i = 0; i < ratings.length; i++)
+		{
+			ClientNode player = registry.register(connections[i]);
+			player.setRating(ratings[i]);
+			players.add(player);
+		}
+		return players;
+	}
+
+	private static void close(Lobby lobby, List<Socket> sockets) throws Exception
+	{
+		for (Socket socket : sockets)
+			socket.close();
+		lobby.close();
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.MatchmakingService#setWindows(int, int, int)}.
+	 * Players too far apart to play at first should be matched once their windows have widened
+	 * enough, and not before.
+	 */
+	@Test
+	public void testWindowsWiden() throws Exception {
+		Lobby lobby = new Lobby();
+		List<Socket> sockets = new ArrayList<Socket>();
+		PlayerRegistry registry = new PlayerRegistry();
+		Matches matches = new Matches();
+		MatchmakingService matchmaking = new MatchmakingService(registry, matches);
+		try
+		{
+			List<ClientNode> players = connect(lobby, registry, sockets, 1000, 1500);
+			matchmaking.setUseRatings(true);
+			matchmaking.setWindows(100, 100, 400);
+			matchmaking.setInterval(20);
+			matchmaking.start();
+
+			long start = System.currentTimeMillis();
+			for (ClientNode player : players)
+				matchmaking.enqueue(player);
+
+			Thread.sleep(500);
+			assertTrue("500 rating points apart should be too far at first", matches.ratings.isEmpty());
+			assertEquals(2, matchmaking.getQueueDepth());
+
+			matches.await(1, 5000);
+			assertEquals(Collections.singletonList(Arrays.asList(1000, 1500)), matches.ratings);
+			assertTrue("The windows should have taken a second to widen", System.currentTimeMillis() - start >= 1000);
+			assertTrue(matchmaking.getMaxTimeToMatch() >= 1000);
+			assertEquals(0, matchmaking.getQueueDepth());
+			for (ClientNode player : players)
+				assertFalse(player.isQueued());
+		}
+		finally
+		{
+			matchmaking.stop();
+			close(lobby, sockets);
+		}
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.MatchmakingService#enqueue(Tetris2P.ClientNode)}.
+	 * One batch should group the neighbours of every bucket, and leave those without a close
+	 * enough rating waiting.
+	 */
+	@Test
+	public void testBatchMatchesNeighbours() throws Exception {
+		Lobby lobby = new Lobby();
+		List<Socket> sockets = new ArrayList<Socket>();
+		PlayerRegistry registry = new PlayerRegistry();
+		Matches matches = new Matches();
+		MatchmakingService matchmaking = new MatchmakingService(registry, matches);
+		try
+		{
+			List<ClientNode> players = connect(lobby, registry, sockets, 1000, 2000, 3000, 1010, 2020, 1040, 2060, 2090);
+			matchmaking.setUseRatings(true);
+			matchmaking.setWindows(100, 100, 0);
+			matchmaking.setMatchSize(3);
+			matchmaking.setInterval(20);
+
+			// Everybody joins before the first batch
+			for (ClientNode player : players)
+				matchmaking.enqueue(player);
+			matchmaking.enqueue(players.get(0));
+			assertEquals("A player should only be queued once", 8, matchmaking.getQueueDepth());
+			matchmaking.start();
+
+			matches.await(2, 5000);
+			Thread.sleep(200);
+			List<List<Integer>> expected = new ArrayList<List<Integer>>();
+			expected.add(Arrays.asList(1000, 1010, 1040));
+			expected.add(Arrays.asList(2000, 2020, 2060));
+			assertEquals(expected, matches.ratings);
+
+			// The others wait for players close enough, in arrival order
+			assertEquals(2, matchmaking.getQueueDepth());
+			assertEquals(2, matchmaking.getMatchesMade());
+			assertTrue(players.get(2).isQueued());
+			assertTrue(players.get(7).isQueued());
+		}
+		finally
+		{
+			matchmaking.stop();
+			close(lobby, sockets);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ *
+ */
+package UnitTest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ocsf.server.Histogram;
+import ocsf.server.Metrics;
+
+/**
+ * @author Andréas K.LeF.
+ *
+ */
+public class MetricsTest {
+
+	/**
+	 * Test method for {@link ocsf.server.Histogram#getPercentile(double)}.
+	 * Every percentile should be within the histogram's precision of the exact one, whatever
+	 * the magnitude of the values.
+	 */
+	@Test
+	public void testPercentilesArePrecise() {
+		Random random = new Random(1);
+		long[] values = new long[10000];
+		Histogram histogram = new Histogram();
+
+		for (int i = 0; i < values.length; i++)
+		{
+			// From a microsecond to ten seconds, evenly on a log scale
+			values[i] = (long) Math.pow(10, 3 + random.nextDouble() * 7);
+			histogram.record(values[i]);
+		}
+		java.util.Arrays.sort(values);
+
+		assertEquals(values.length, histogram.getCount());
+		assertEquals(values[values.length - 1], histogram.getMax());
+		for (double percent : new double[] { 1, 50, 90, 99, 99.9 })
+		{
+			long exact = values[(int) Math.ceil(percent / 100 * values.length) - 1];
+			long measured = histogram.getPercentile(percent);
+			assertTrue("p" + percent + " should not be below " + exact + ", was " + measured, measured >= exact);
+			assertTrue("p" + percent + " should be within 4% of " + exact + ", was " + measured, measured <= exact * 1.04);
+		}
+	}
+
+	/**
+	 * Test method for {@link ocsf.server.Histogram#getCumulativeCounts(long[])}.
+	 * Small values should be exact, and a value should never be counted under a bound it exceeds.
+	 */
+	@Test
+	public void testCumulativeCountsRespectBounds() {
+		Histogram histogram = new Histogram();
+		for (long value = 0; value < 1000; value++)
+			histogram.record(value);
+
+		assertEquals(9, histogram.getPercentile(1));
+		long[] cumulative = histogram.getCumulativeCounts(new long[] { 10, 100, 500 });
+		assertEquals(11, cumulative[0]);
+		assertTrue("Nothing above 100 should count under 100", cumulative[1] <= 101);
+		assertTrue("Counts should be within precision", cumulative[1] >= 97);
+		assertTrue("Nothing above 500 should count under 500", cumulative[2] <= 501);
+		assertEquals(1000, cumulative[3]);
+	}
+
+	/**
+	 * Test method for {@link ocsf.server.Metrics#writePrometheus(java.lang.Appendable)}.
+	 * Metrics should be written in the Prometheus text format, labels escaped and durations in seconds.
+	 */
+	@Test
+	public void testWritesPrometheusText() throws IOException {
+		Metrics metrics = new Metrics();
+		metrics.counter("test_messages_total", "Messages.", "type", "Updater").add(3);
+		metrics.counter("test_messages_total", "Messages.", "type", "a \"quoted\" type").increment();
+		metrics.gauge("test_depth", "Depth.", new Metrics.Gauge()
+		{
+			public double get()
+			{
+				return 2.5;
+			}
+		});
+		metrics.histogram("test_seconds", "Durations.").record(2000000);
+
+		StringBuilder text = new StringBuilder();
+		metrics.writePrometheus(text);
+		String written = text.toString();
+
+		assertTrue(written, written.contains("# TYPE test_messages_total counter\n"));
+		assertTrue(written, written.contains("test_messages_total{type=\"Updater\"} 3\n"));
+		assertTrue(written, written.contains("test_messages_total{type=\"a \\\"quoted\\\" type\"} 1\n"));
+		assertTrue(written, written.contains("test_depth 2.5\n"));
+		assertTrue(written, written.contains("test_seconds_bucket{le=\"0.001\"} 0\n"));
+		assertTrue(written, written.contains("test_seconds_bucket{le=\"0.0025\"} 1\n"));
+		assertTrue(written, written.contains("test_seconds_count 1\n"));
+		assertTrue(written, written.contains("test_seconds_sum 0.002\n"));
+		assertSame("A counter should be registered once", metrics.counter("test_messages_total", "Messages.", "type", "Updater"),
+			metrics.counter("test_messages_total", "Messages.", "type", "Updater"));
+		assertEquals(3, metrics.get("test_messages_total", "type", "Updater"), 0);
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ *
+ */
+package UnitTest;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ocsf.common.NetworkConditions;
+import ocsf.common.SimulatedOutputStream;
+
+/**
+ * @author Andréas K.LeF.
+ *
+ */
+public class NetworkSimulationTest {
+
+	/**
+	 * Keeps the bytes written to it, and when the last of them came.
+	 */
+	private static class Receiver extends OutputStream
+	{
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private volatile long lastWrite;
+
+		public synchronized void write(int b)
+		{
+			bytes.write(b);
+			lastWrite = System.nanoTime();
+		}
+
+		public synchronized void write(byte[] b, int off, int len)
+		{
+			bytes.write(b, off, len);
+			lastWrite = System.nanoTime();
+		}
+
+		synchronized byte[] get()
+		{
+			return bytes.toByteArray();
+		}
+
+		/**
+		 * Waits for a number of bytes, and returns how long after a start they were all in.
+		 */
+		long waitFor(int count, long start) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + 10000;
+			while (get().length < count && System.currentTimeMillis() < deadline)
+				Thread.sleep(1);
+			assertEquals("Every byte should arrive", count, get().length);
+			return (lastWrite - start) / 1000000;
+		}
+	}
+
+	/**
+	 * Test method for {@link ocsf.common.SimulatedOutputStream#write(byte[], int, int)}.
+	 */
+	@Test
+	public void testPerfectConditionsWriteAtOnce() throws Exception {
+		Receiver socket = new Receiver();
+		SimulatedOutputStream out = new SimulatedOutputStream(socket, new NetworkConditions());
+
+		out.write(new byte[] { 1, 2, 3 });
+		assertTrue("The bytes should be written at once", Arrays.equals(new byte[] { 1, 2, 3 }, socket.get()));
+		assertEquals("Nothing should wait", 0, out.getQueuedBytes());
+		out.close();
+	}
+
+	/**
+	 * Test method for {@link ocsf.common.SimulatedOutputStream#write(byte[], int, int)}.
+	 */
+	@Test
+	public void testJitterNeverReorders() throws Exception {
+		Receiver socket = new Receiver();
+		SimulatedOutputStream out = new SimulatedOutputStream(socket, new NetworkConditions(50, 40, 0, new Random(1)));
+
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+		for (int i = 0; i < 100; i++)
+		{
+			byte[] segment = { (byte) i, (byte) (i * 7) };
+			out.write(segment);
+			sent.write(segment, 0, segment.length);
+		}
+		assertEquals("The bytes should wait for the delay", 0, socket.get().length);
+
+		long elapsed = socket.waitFor(sent.size(), start);
+		assertTrue("The bytes should arrive in the order written", Arrays.equals(sent.toByteArray(), socket.get()));
+		assertTrue("The bytes should arrive after the delay, took " + elapsed + "ms", elapsed >= 10);
+		out.close();
+	}
+
+	/**
+	 * Test method for {@link ocsf.common.NetworkConditions#setBandwidth(long)}.
+	 */
+	@Test
+	public void testBandwidthLimitsThroughput() throws Exception {
+		Receiver socket = new Receiver();
+		NetworkConditions conditions = new NetworkConditions();
+		conditions.setBandwidth(20000);
+		SimulatedOutputStream out = new SimulatedOutputStream(socket, conditions);
+
+		// 10KB at 20KB/s is half a second
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++)
+			out.write(new byte[1000]);
+
+		long elapsed = socket.waitFor(10000, start);
+		assertTrue("The bytes should take as long as the bandwidth allows, took " + elapsed + "ms", elapsed >= 450);
+		out.close();
+	}
+
+	/**
+	 * Test method for {@link ocsf.common.SimulatedOutputStream#write(byte[], int, int)}.
+	 */
+	@Test
+	public void testFullBufferBlocksWrites() throws Exception {
+		Receiver socket = new Receiver();
+		NetworkConditions conditions = new NetworkConditions();
+		conditions.setBandwidth(SimulatedOutputStream.BUFFER * 4);
+		SimulatedOutputStream out = new SimulatedOutputStream(socket, conditions);
+
+		// Twice the buffer at four buffers a second: the writer waits about a quarter second
+		long start = System.nanoTime();
+		for (int i = 0; i < 32; i++)
+			out.write(new byte[SimulatedOutputStream.BUFFER / 16]);
+		long blocked = (System.nanoTime() - start) / 1000000;
+
+		assertTrue("Writes should block once the buffer is full, took " + blocked + "ms", blocked >= 200);
+		assertTrue("No more than the buffer should wait", out.getQueuedBytes() <= SimulatedOutputStream.BUFFER);
+		socket.waitFor(2 * SimulatedOutputStream.BUFFER, start);
+		out.close();
+	}
+
+	/**
+	 * Test method for {@link ocsf.common.NetworkConditions#drop()}.
+	 */
+	@Test
+	public void testLostSegmentsAreSentAgain() throws Exception {
+		Receiver socket = new Receiver();
+		SimulatedOutputStream out = new SimulatedOutputStream(socket, new NetworkConditions(10, 0, 50, new Random(3)));
+
+		Random random = new Random(5);
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+		for (int i = 0; i < 20; i++)
+		{
+			byte[] segment = new byte[1 + random.nextInt(50)];
+			random.nextBytes(segment);
+			out.write(segment);
+			sent.write(segment, 0, segment.length);
+		}
+
+		long elapsed = socket.waitFor(sent.size(), start);
+		assertTrue("Every byte should arrive intact and in order", Arrays.equals(sent.toByteArray(), socket.get()));
+		assertTrue("A lost segment should wait for its retransmission, took " + elapsed + "ms",
+			elapsed >= SimulatedOutputStream.MIN_RETRANSMIT);
+		out.close();
+	}
+}
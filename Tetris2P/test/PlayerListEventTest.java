@@ -0,0 +1,59 @@
+/**
+ *
+ */
+package UnitTest;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import Tetris2P.PlayerListEvent;
+import Tetris2P.PlayerListEvent.Action;
+
+/**
+ * @author Andréas K.LeF.
+ *
+ */
+public class PlayerListEventTest {
+
+	/**
+	 * Test method for {@link Tetris2P.PlayerListEvent.Sequence#next(Tetris2P.PlayerListEvent)}.
+	 * Changes following the snapshot should be applied in order, and the ones already in it
+	 * ignored.
+	 */
+	@Test
+	public void testChangesFollowTheSnapshot() {
+		PlayerListEvent.Sequence sequence = new PlayerListEvent.Sequence();
+
+		assertEquals("Nothing applies before the first snapshot", Action.IGNORE, sequence.next(PlayerListEvent.join(1, "A")));
+		assertEquals(Action.APPLY, sequence.next(PlayerListEvent.snapshot(5, new String[] { "A", "B" })));
+		assertEquals(Action.IGNORE, sequence.next(PlayerListEvent.join(4, "B")));
+		assertEquals(Action.IGNORE, sequence.next(PlayerListEvent.join(5, "B")));
+		assertEquals(Action.APPLY, sequence.next(PlayerListEvent.join(6, "C")));
+		assertEquals(Action.APPLY, sequence.next(PlayerListEvent.rename(7, "C", "D")));
+		assertEquals(Action.APPLY, sequence.next(PlayerListEvent.leave(8, "A")));
+		assertEquals(8, sequence.getVersion());
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.PlayerListEvent.Sequence#next(Tetris2P.PlayerListEvent)}.
+	 * A missed change should request a snapshot once, and drop every change until it arrives.
+	 */
+	@Test
+	public void testGapRequestsASnapshot() {
+		PlayerListEvent.Sequence sequence = new PlayerListEvent.Sequence();
+		sequence.next(PlayerListEvent.snapshot(3, new String[] { "A" }));
+		assertEquals(Action.APPLY, sequence.next(PlayerListEvent.join(4, "B")));
+
+		assertEquals("Version 5 was missed", Action.REQUEST_SNAPSHOT, sequence.next(PlayerListEvent.join(6, "C")));
+		assertEquals(-1, sequence.getVersion());
+		assertEquals(Action.IGNORE, sequence.next(PlayerListEvent.leave(7, "A")));
+		assertEquals(Action.IGNORE, sequence.next(PlayerListEvent.join(8, "D")));
+
+		assertEquals(Action.APPLY, sequence.next(PlayerListEvent.snapshot(8, new String[] { "B", "C", "D" })));
+		assertEquals(Action.APPLY, sequence.next(PlayerListEvent.leave(9, "B")));
+
+		sequence.reset();
+		assertEquals("A dropped list waits for a snapshot", Action.IGNORE, sequence.next(PlayerListEvent.join(10, "E")));
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package UnitTest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import Tetris2P.Engine;
+import Tetris2P.Engine.Input;
+import Tetris2P.Replay;
+import Tetris2P.ReplayAnalytics;
+import Tetris2P.ReplayArchive;
+import Tetris2P.ReplayLog;
+
+/**
+ * @author Andréas K.LeF.
+ *
+ */
+public class ReplayAnalyticsTest {
+
+	/**
+	 * The pieces each player locked while recording.
+	 */
+	private long[] locked;
+
+	/**
+	 * Plays a match between two players, moving and dropping pieces at random, and
+	 * records it.
+	 */
+	private Replay record(long seed)
+	{
+		Random random = new Random(seed);
+		Engine[] games = { new Engine(seed), new Engine(seed) };
+		Replay.Recorder recorder = new Replay.Recorder(seed, seed, new String[] { "Player1", "Player2" });
+		Input[] moves = { Input.LEFT, Input.RIGHT, Input.ROTATE, Input.DROP, Input.DROP, Input.TICK };
+		locked = new long[2];
+
+		for (int batch = 0; batch < 2000; batch++)
+		{
+			int player = random.nextInt(2);
+			Input input = moves[random.nextInt(moves.length)];
+			if ((games[player].apply(input) & Engine.LOCKED) != 0)
+				locked[player]++;
+			recorder.record(player, new byte[] { (byte) input.ordinal() }, 1);
+		}
+
+		return recorder.finish(-1, new int[] { games[0].getLinesRemoved(), games[1].getLinesRemoved() },
+			new long[] { games[0].getInputCount(), games[1].getInputCount() });
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.ReplayAnalytics#analyse(Tetris2P.Replay)}.
+	 * Analysing a match should play the same games as were recorded.
+	 */
+	@Test
+	public void testAnalysesAMatch() {
+		Replay replay = record(7);
+		ReplayAnalytics.Player[] players = ReplayAnalytics.analyse(replay);
+
+		assertEquals(2, players.length);
+		for (int i = 0; i < 2; i++)
+		{
+			assertFalse(players[i].isDiverged());
+			assertEquals(locked[i], players[i].getPieces());
+			assertEquals(replay.getLinesRemoved(i), players[i].getLines());
+			assertTrue(players[i].getHolesPerPiece() >= 0);
+		}
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.ReplayAnalytics#analyse(java.util.List, int, Tetris2P.ReplayAnalytics.Listener)}.
+	 * The totals of an archive should add up every game handed to the listener.
+	 */
+	@Test
+	public void testAddsUpAnArchive() throws IOException {
+		File directory = File.createTempFile("replays", "");
+		directory.delete();
+		try
+		{
+			ReplayLog log = new ReplayLog(directory, 16 * 1024);
+			for (long seed = 1; seed <= 50; seed++)
+				log.append(record(seed));
+			log.close();
+
+			ReplayArchive archive = new ReplayArchive(directory);
+			final AtomicLong pieces = new AtomicLong();
+			final AtomicLong games = new AtomicLong();
+			ReplayAnalytics.Totals totals = new ReplayAnalytics(archive).analyse(archive.getEntries(), 4,
+				new ReplayAnalytics.Listener()
+			{
+				public void game(ReplayArchive.Entry entry, ReplayAnalytics.Player[] players)
+				{
+					for (ReplayAnalytics.Player player : players)
+					{
+						games.incrementAndGet();
+						pieces.addAndGet(player.getPieces());
+					}
+				}
+			});
+
+			assertEquals(50, totals.getMatches());
+			assertEquals(100, totals.getGames());
+			assertEquals(games.get(), totals.getGames());
+			assertEquals(pieces.get(), totals.getPieces());
+			assertEquals(0, totals.getDiverged());
+			assertTrue(totals.getPieces() > 0);
+		}
+		finally
+		{
+			File[] files = directory.listFiles();
+			if (files != null)
+				for (File file : files)
+					file.delete();
+			directory.delete();
+		}
+	}
+}
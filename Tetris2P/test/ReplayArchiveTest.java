@@ -0,0 +1,142 @@
+/**
+ *
+ */
+package UnitTest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import Tetris2P.Engine;
+import Tetris2P.Engine.Input;
+import Tetris2P.Replay;
+import Tetris2P.ReplayArchive;
+import Tetris2P.ReplayLog;
+
+/**
+ * @author Andréas K.LeF.
+ *
+ */
+public class ReplayArchiveTest {
+
+	/**
+	 * Plays a match between two players with random inputs, and records it.
+	 */
+	private static Replay record(long seed, String player1, String player2)
+	{
+		Random random = new Random(seed);
+		Engine[] games = { new Engine(seed), new Engine(seed) };
+		Replay.Recorder recorder = new Replay.Recorder(seed, seed, new String[] { player1, player2 });
+
+		for (int batch = 0; batch < 100 + random.nextInt(200); batch++)
+		{
+			int player = random.nextInt(2);
+			byte[] inputs = { (byte) random.nextInt(Input.values().length) };
+			games[player].apply(Input.values()[inputs[0]]);
+			recorder.record(player, inputs, 1);
+		}
+
+		return recorder.finish(random.nextInt(2), new int[] { games[0].getLinesRemoved(), games[1].getLinesRemoved() },
+			new long[] { games[0].getInputCount(), games[1].getInputCount() });
+	}
+
+	private static void delete(File directory)
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.ReplayArchive#ReplayArchive(java.io.File)}.
+	 * Replays appended to a directory should be split into segments, indexed, and found again
+	 * by player, date and score.
+	 */
+	@Test
+	public void testIndexesSegments() throws IOException {
+		File directory = File.createTempFile("replays", "");
+		directory.delete();
+		try
+		{
+			ReplayLog log = new ReplayLog(directory, 2048);
+			for (long seed = 1; seed <= 40; seed++)
+				assertTrue(log.append(record(seed, "Player" + (seed % 4), "Player" + (seed % 4 + 4))));
+			log.close();
+
+			assertTrue("The log should have started several segments", ReplayLog.segments(directory).length > 3);
+
+			ReplayArchive archive = new ReplayArchive(directory);
+			assertEquals(40, archive.getEntries().size());
+			assertEquals(10, archive.byPlayer("Player1").size());
+			assertEquals(0, archive.byPlayer("Nobody").size());
+			assertEquals(40, archive.byDate(0, Long.MAX_VALUE).size());
+			assertEquals(0, archive.byDate(System.currentTimeMillis() + 60000, Long.MAX_VALUE).size());
+			assertEquals(40, archive.byScore(0, Integer.MAX_VALUE).size());
+
+			// Any match, read on its own
+			ReplayArchive.Entry entry = archive.byPlayer("Player3").get(2);
+			Replay replay = archive.read(entry);
+			assertEquals(entry.getMatchID(), replay.getMatchID());
+			assertEquals("Player3", replay.getPlayers()[0]);
+			assertTrue(replay.verify());
+
+			// Opened again from the indexes, with the replays appended since
+			log = new ReplayLog(directory, 2048);
+			log.append(record(41, "Player1", "Player9"));
+			log.close();
+			archive = new ReplayArchive(directory);
+			assertEquals(41, archive.getEntries().size());
+			assertEquals(11, archive.byPlayer("Player1").size());
+			assertEquals(41, archive.read(archive.byPlayer("Player9").get(0)).getMatchID());
+		}
+		finally
+		{
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.ReplayArchive#scan(java.util.List, int, Tetris2P.ReplayArchive.Scanner)}.
+	 * A scan should hand over every replay once, from several threads.
+	 */
+	@Test
+	public void testScansInParallel() throws IOException {
+		File directory = File.createTempFile("replays", "");
+		directory.delete();
+		try
+		{
+			ReplayLog log = new ReplayLog(directory, 4096);
+			for (long seed = 1; seed <= 100; seed++)
+				log.append(record(seed, "Player1", "Player2"));
+			log.close();
+
+			ReplayArchive archive = new ReplayArchive(directory);
+			final AtomicInteger scanned = new AtomicInteger();
+			final AtomicInteger valid = new AtomicInteger();
+			List<ReplayArchive.Entry> entries = archive.getEntries();
+			archive.scan(entries, 4, new ReplayArchive.Scanner()
+			{
+				public void replay(ReplayArchive.Entry entry, Replay replay)
+				{
+					scanned.incrementAndGet();
+					if (replay.verify() && replay.getMatchID() == entry.getMatchID())
+						valid.incrementAndGet();
+				}
+			});
+			assertEquals(100, scanned.get());
+			assertEquals(100, valid.get());
+		}
+		finally
+		{
+			delete(directory);
+		}
+	}
+}
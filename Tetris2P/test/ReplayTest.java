@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package UnitTest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import Tetris2P.Engine;
+import Tetris2P.Engine.Input;
+import Tetris2P.Replay;
+import Tetris2P.ReplayLog;
+
+/**
+ * @author Andréas K.LeF.
+ *
+ */
+public class ReplayTest {
+
+	/**
+	 * Plays two games on the same seed with random inputs sent in batches, as players would,
+	 * and records them.
+	 *
+	 * @return the replay, with what the games ended with.
+	 */
+	private static Replay record(long seed)
+	{
+		Random random = new Random(seed);
+		Engine[] games = { new Engine(seed), new Engine(seed) };
+		Replay.Recorder recorder = new Replay.Recorder(1, seed, new String[] { "Player1", "Player2" });
+
+		for (int batch = 0; batch < 400; batch++)
+		{
+			int player = random.nextInt(2);
+			byte[] inputs = new byte[1 + random.nextInt(5)];
+			for (int i = 0; i < inputs.length; i++)
+			{
+				inputs[i] = (byte) random.nextInt(Input.values().length);
+				games[player].apply(Input.values()[inputs[i]]);
+			}
+			recorder.record(player, inputs, inputs.length);
+		}
+
+		return recorder.finish(0, new int[] { games[0].getLinesRemoved(), games[1].getLinesRemoved() },
+			new long[] { games[0].getInputCount(), games[1].getInputCount() });
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Replay#verify()}.
+	 * A replay should play again into the same games, after being encoded and decoded.
+	 */
+	@Test
+	public void testReplaysDeterministically() {
+		Replay replay = record(42);
+		Replay decoded = Replay.decode(ByteBuffer.wrap(replay.encode()));
+
+		assertTrue("The recorded replay should play again", replay.verify());
+		assertTrue("The decoded replay should play again", decoded.verify());
+		assertEquals("Player2", decoded.getPlayers()[1]);
+		assertEquals(42, decoded.getSeed());
+		assertEquals(replay.getInputCount(0) + replay.getInputCount(1), decoded.getInputCount(0) + decoded.getInputCount(1));
+
+		Engine[] games = decoded.simulate();
+		assertEquals(replay.getLinesRemoved(0), games[0].getLinesRemoved());
+		assertTrue("Inputs should take less than 2 bytes each",
+			replay.encode().length < 2 * (replay.getInputCount(0) + replay.getInputCount(1)));
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.Replay#decode(java.nio.ByteBuffer)}.
+	 * A replay of another version, or cut short, should not decode.
+	 */
+	@Test
+	public void testRejectsUnreadableReplays() {
+		byte[] encoded = record(42).encode();
+
+		try
+		{
+			Replay.decode(ByteBuffer.wrap(new byte[] { Replay.VERSION + 1 }));
+			fail("A replay of another version should not decode");
+		}
+		catch (IllegalArgumentException e) {}
+
+		try
+		{
+			Replay.decode(ByteBuffer.wrap(encoded, 0, encoded.length / 2));
+			fail("A replay cut short should not decode");
+		}
+		catch (IllegalArgumentException e) {}
+	}
+
+	/**
+	 * Test method for {@link Tetris2P.ReplayLog#read(java.io.File, Tetris2P.ReplayLog.Reader)}.
+	 * Replays appended to a log should be read back in order, and a record cut short by a crash
+	 * should be skipped and then written over.
+	 */
+	@Test
+	public void testLogSurvivesTornRecords() throws IOException {
+		File file = File.createTempFile("replays", ".t2pr");
+		file.delete();
+		try
+		{
+			ReplayLog log = new ReplayLog(file);
+			for (long seed = 1; seed <= 5; seed++)
+				assertTrue(log.append(record(seed)));
+			log.close();
+			assertEquals(5, log.getWritten());
+
+			// A crash in the middle of the last record
+			RandomAccessFile raw = new RandomAccessFile(file, "rw");
+			raw.setLength(raw.length() - 10);
+			raw.close();
+
+			final List<Long> seeds = new ArrayList<Long>();
+			ReplayLog.Reader reader = new ReplayLog.Reader()
+			{
+				public void replay(Replay replay, long position)
+				{
+					assertTrue(replay.verify());
+					seeds.add(replay.getSeed());
+				}
+			};
+			assertEquals(4, ReplayLog.read(file, reader));
+
+			log = new ReplayLog(file);
+			log.append(record(6));
+			log.close();
+
+			seeds.clear();
+			assertEquals(5, ReplayLog.read(file, reader));
+			assertEquals(Long.valueOf(6), seeds.get(4));
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}